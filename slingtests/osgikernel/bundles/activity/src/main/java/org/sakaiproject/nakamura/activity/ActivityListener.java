@@ -106,6 +106,10 @@ public class ActivityListener implements MessageListener {
    * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
    */
   public void onMessage(Message message) {
+    if (activityRouterManager.isFanoutOnRead()) {
+      // the activity stays where it was stored, feeds are merged when they are read.
+      return;
+    }
     try {
       final String activityItemPath = message
           .getStringProperty(ActivityConstants.EVENT_PROP_PATH);
@@ -24,6 +24,8 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouter;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
@@ -40,13 +42,20 @@ import javax.jcr.Node;
 @Component(immediate = true, enabled = true)
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
-    @Property(name = "servie.description", value = "The manager who will pass the activity to all the routers") })
+    @Property(name = "servie.description", value = "The manager who will pass the activity to all the routers"),
+    @Property(name = ActivityConstants.FANOUT, value = ActivityConstants.FANOUT_WRITE) })
 @Service(value = ActivityRouterManager.class)
 @Reference(name = "activityRouters", policy=ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, referenceInterface = ActivityRouter.class, bind = "addActivityRouter", unbind = "removeActivityRouter")
 public class ActivityRouterManagerImpl implements ActivityRouterManager {
 
   private List<ActivityRouter> routers = new ArrayList<ActivityRouter>();
   private Set<ActivityRouter> activityRouters = new HashSet<ActivityRouter>();
+  private boolean fanoutOnRead;
+
+  protected void activate(ComponentContext context) {
+    Object fanout = context.getProperties().get(ActivityConstants.FANOUT);
+    fanoutOnRead = ActivityConstants.FANOUT_READ.equals(fanout);
+  }
 
   /**
    * {@inheritDoc}
@@ -62,6 +71,15 @@ public class ActivityRouterManagerImpl implements ActivityRouterManager {
 
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activity.ActivityRouterManager#isFanoutOnRead()
+   */
+  public boolean isFanoutOnRead() {
+    return fanoutOnRead;
+  }
+
   protected void addActivityRouter(ActivityRouter router) {
     activityRouters.add(router);
     routers = getSortedList();
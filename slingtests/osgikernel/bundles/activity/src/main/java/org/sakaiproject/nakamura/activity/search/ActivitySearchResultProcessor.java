@@ -20,23 +20,45 @@ package org.sakaiproject.nakamura.activity.search;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.search.AbstractSearchResultSet;
 import org.sakaiproject.nakamura.api.search.Aggregator;
+import org.sakaiproject.nakamura.api.search.MergedRowIterator;
+import org.sakaiproject.nakamura.api.search.SearchCursor;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.RowUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
 import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
 
 
 @Component(immediate = true, enabled = true, name = "ActivitySearchResultProcessor", label = "ActivitySearchResultProcessor")
@@ -49,15 +71,182 @@ import javax.jcr.query.Row;
 @Service(value = SearchResultProcessor.class)
 public class ActivitySearchResultProcessor implements SearchResultProcessor {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ActivitySearchResultProcessor.class);
+
   /**
-   * {@inheritDoc}
+   * Property names that can be sorted on.
+   */
+  private static final Pattern SORT_ON = Pattern.compile("[\\w:-]+");
+
+  /**
+   * The most actors in one query. Every actor adds a clause to the query, so the actors of
+   * a larger feed are spread over several queries.
+   */
+  protected static final int MAX_QUERY_ACTORS = 100;
+
+  /**
+   * The most actors a user feed is read for, the user included. Contacts past this are
+   * left out of the feed, and a warning is logged.
+   */
+  protected static final int MAX_FEED_ACTORS = 1000;
+
+  @Reference
+  protected ActivityRouterManager activityRouterManager;
+
+  @Reference
+  protected ConnectionManager connectionManager;
+
+  /**
+   * {@inheritDoc} When activities fan out on read the query of the search template, over
+   * the copies in a feed, is replaced by queries over the stored activities of the actors
+   * the feed follows, merged in the requested order. They run in the session of the
+   * reader, so only activities the reader can see are returned.
    * 
    * @see org.sakaiproject.nakamura.api.search.SearchResultProcessor#getSearchResultSet(org.apache.sling.api.SlingHttpServletRequest,
    *      javax.jcr.query.Query)
    */
   public SearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SearchException {
-    return SearchUtil.getSearchResultSet(request, query);
+    if (!activityRouterManager.isFanoutOnRead()) {
+      return SearchUtil.getSearchResultSet(request, query);
+    }
+    try {
+      Session session = request.getResourceResolver().adaptTo(Session.class);
+      QueryManager queryManager = session.getWorkspace().getQueryManager();
+      String sortOn = getSortOn(request);
+      boolean ascending = isAscending(request);
+      List<String> statements = getFeedQueries(request, sortOn, ascending);
+      if (statements.size() == 1) {
+        return SearchUtil.getSearchResultSet(request, queryManager.createQuery(statements
+            .get(0), Query.XPATH));
+      }
+      // every activity has one actor, so the queries do not overlap.
+      RowIterator[] rows = new RowIterator[statements.size()];
+      int hits = 0;
+      for (int i = 0; i < rows.length; i++) {
+        QueryResult result = queryManager.createQuery(statements.get(i), Query.XPATH)
+            .execute();
+        hits += SearchUtil.getHits(result);
+        rows[i] = result.getRows();
+      }
+      RowIterator iterator = new MergedRowIterator(sortOn, !ascending, rows);
+      // the merged rows carry no score, so a cursor only gives the position to start at.
+      SearchCursor cursor = SearchUtil.getCursor(request);
+      iterator.skip(cursor == null ? SearchUtil.getPaging(request, hits) : Math.min(cursor
+          .getPosition(), hits));
+      return new AbstractSearchResultSet(iterator, hits);
+    } catch (RepositoryException e) {
+      throw new SearchException(500, "Unable to read the activity feed.");
+    }
+  }
+
+  /**
+   * @param request
+   * @param sortOn
+   *          the property the feed is ordered by.
+   * @param ascending
+   * @return the queries over the stored activities that make up the requested feed, each
+   *         in the same order. The feed of a site is every activity under the site, in one
+   *         query. The feed of a user is every activity of the user and their accepted
+   *         contacts, up to {@link #MAX_FEED_ACTORS} actors, with at most
+   *         {@link #MAX_QUERY_ACTORS} actors in each query. Only the activity stores are
+   *         searched, so copies made into feeds while activities fanned out on write are
+   *         left out.
+   * @throws RepositoryException
+   * @throws SearchException
+   *           when a site feed is requested without a site, or with a site that is not an
+   *           absolute path below the root.
+   */
+  protected List<String> getFeedQueries(SlingHttpServletRequest request, String sortOn,
+      boolean ascending) throws RepositoryException, SearchException {
+    String orderBy = " and not(@" + ActivityConstants.PARAM_SOURCE + ")] order by @"
+        + sortOn + (ascending ? " ascending" : " descending");
+    List<String> queries = new ArrayList<String>();
+    Node searchNode = request.getResource().adaptTo(Node.class);
+    if (searchNode != null
+        && searchNode.hasProperty(ActivityConstants.FEED_TYPE)
+        && ActivityConstants.FEED_SITE.equals(searchNode.getProperty(
+            ActivityConstants.FEED_TYPE).getString())) {
+      RequestParameter siteParam = request.getRequestParameter("site");
+      String site = (siteParam == null) ? "" : siteParam.getString();
+      while (site.endsWith("/")) {
+        site = site.substring(0, site.length() - 1);
+      }
+      if (site.length() == 0 || !site.startsWith("/")) {
+        throw new SearchException(400, "A site is required for the site feed.");
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append("/jcr:root").append(ISO9075.encodePath(site));
+      sb.append("//").append(ActivityConstants.ACTIVITY_STORE_NAME);
+      sb.append("//*[@").append(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY);
+      sb.append("='").append(ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE).append("'");
+      queries.add(sb.append(orderBy).toString());
+    } else {
+      String user = request.getRemoteUser();
+      List<String> actors = new ArrayList<String>(getFeedActors(user));
+      for (int from = 0; from < actors.size(); from += MAX_QUERY_ACTORS) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("//element(*)/").append(ActivityConstants.ACTIVITY_STORE_NAME);
+        sb.append("//*[@").append(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY);
+        sb.append("='").append(ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE).append("'");
+        sb.append(" and (");
+        int to = Math.min(from + MAX_QUERY_ACTORS, actors.size());
+        for (int i = from; i < to; i++) {
+          if (i > from) {
+            sb.append(" or ");
+          }
+          sb.append("@").append(ActivityConstants.PARAM_ACTOR_ID).append("='");
+          sb.append(actors.get(i).replace("'", "''")).append("'");
+        }
+        sb.append(")");
+        queries.add(sb.append(orderBy).toString());
+      }
+    }
+    return queries;
+  }
+
+  /**
+   * @param user
+   * @return the user and their accepted contacts, up to {@link #MAX_FEED_ACTORS}.
+   */
+  private Set<String> getFeedActors(String user) {
+    Set<String> actors = new LinkedHashSet<String>();
+    actors.add(user);
+    List<String> contacts = connectionManager.getConnectedUsers(user,
+        ConnectionState.ACCEPTED);
+    if (contacts != null) {
+      for (String contact : contacts) {
+        if (actors.size() >= MAX_FEED_ACTORS) {
+          LOGGER.warn("The feed of {} is limited to {} of {} contacts ", new Object[] {
+              user, MAX_FEED_ACTORS - 1, contacts.size() });
+          break;
+        }
+        actors.add(contact);
+      }
+    }
+    return actors;
+  }
+
+  /**
+   * @param request
+   * @return the property named by the sortOn parameter, jcr:created if there is none.
+   */
+  protected String getSortOn(SlingHttpServletRequest request) {
+    RequestParameter sortOnParam = request.getRequestParameter("sortOn");
+    if (sortOnParam != null && SORT_ON.matcher(sortOnParam.getString()).matches()) {
+      return sortOnParam.getString();
+    }
+    return "jcr:created";
+  }
+
+  /**
+   * @param request
+   * @return true if the sortOrder parameter is ascending, the feed is descending otherwise.
+   */
+  protected boolean isAscending(SlingHttpServletRequest request) {
+    RequestParameter sortOrderParam = request.getRequestParameter("sortOrder");
+    return sortOrderParam != null && "ascending".equals(sortOrderParam.getString());
   }
 
   /**
@@ -88,4 +88,30 @@ public interface ActivityConstants {
    */
   public static final String EVENT_PROP_PATH = "sakai:activity-item-path";
 
+  // Feed delivery
+
+  /**
+   * The property of the activity router manager that chooses how activities reach the
+   * feeds, {@link #FANOUT_WRITE} or {@link #FANOUT_READ}.
+   */
+  public static final String FANOUT = "activity.fanout";
+  /**
+   * Activities are copied into the feed of every recipient when they are created.
+   */
+  public static final String FANOUT_WRITE = "write";
+  /**
+   * Activities are only stored where they happened, and a feed is the query over the
+   * activities of the actors it follows, run as the reader.
+   */
+  public static final String FANOUT_READ = "read";
+  /**
+   * The property of a feed search node that says which feed it reads, {@link #FEED_SITE}
+   * or, when not set, the feed of the current user.
+   */
+  public static final String FEED_TYPE = "sakai:activity-feed";
+  /**
+   * The feed of a site.
+   */
+  public static final String FEED_SITE = "site";
+
 }
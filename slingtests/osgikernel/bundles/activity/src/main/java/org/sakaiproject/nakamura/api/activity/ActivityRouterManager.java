@@ -32,4 +32,10 @@ public interface ActivityRouterManager {
    */
   List<ActivityRoute> getActivityRoutes(Node activity);
 
+  /**
+   * @return true if activities are not copied into feeds when they are created, but
+   *         merged from the actors of a feed when it is read.
+   */
+  boolean isFanoutOnRead();
+
 }
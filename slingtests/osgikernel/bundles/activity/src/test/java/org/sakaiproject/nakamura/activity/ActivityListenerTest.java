@@ -26,12 +26,14 @@ import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Workspace;
+import javax.jms.Message;
 
 /**
  *
@@ -103,6 +105,20 @@ public class ActivityListenerTest {
     EasyMock.verify(session);
   }
 
+  @Test
+  public void testFanoutOnRead() {
+    ActivityRouterManager activityRouterManager = createMock(ActivityRouterManager.class);
+    expect(activityRouterManager.isFanoutOnRead()).andReturn(true);
+    Message message = createMock(Message.class);
+    replay(activityRouterManager, message);
+
+    // nothing is delivered, the repository is not touched.
+    ActivityListener listener = new ActivityListener();
+    listener.activityRouterManager = activityRouterManager;
+    listener.onMessage(message);
+    EasyMock.verify(activityRouterManager, message);
+  }
+
   public void prepareCopy(String srcAbsPath, String destAbsPath)
       throws RepositoryException {
     Workspace workspace = createMock(Workspace.class);
@@ -17,13 +17,18 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import static org.easymock.EasyMock.expect;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouter;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
+import java.util.Hashtable;
 import java.util.List;
 
 import javax.jcr.Node;
@@ -87,5 +92,20 @@ public class ActivityRouterManagerImplTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testFanout() {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ActivityConstants.FANOUT, ActivityConstants.FANOUT_READ);
+    ComponentContext context = createMock(ComponentContext.class);
+    expect(context.getProperties()).andReturn(properties);
+    replay();
+
+    ActivityRouterManagerImpl manager = new ActivityRouterManagerImpl();
+    Assert.assertFalse(manager.isFanoutOnRead());
+    manager.activate(context);
+    Assert.assertTrue(manager.isFanoutOnRead());
+    verify();
+  }
+
 
 }
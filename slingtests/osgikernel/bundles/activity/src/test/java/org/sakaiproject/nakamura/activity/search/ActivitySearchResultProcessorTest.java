@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.search.SearchException;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ *
+ */
+public class ActivitySearchResultProcessorTest extends AbstractEasyMockTest {
+
+  private SlingHttpServletRequest createFeedRequest(String feedType)
+      throws RepositoryException {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    Resource resource = createMock(Resource.class);
+    Node searchNode = createMock(Node.class);
+    expect(request.getResource()).andReturn(resource);
+    expect(resource.adaptTo(Node.class)).andReturn(searchNode);
+    if (feedType == null) {
+      expect(searchNode.hasProperty(ActivityConstants.FEED_TYPE)).andReturn(false);
+    } else {
+      addStringPropertyToNode(searchNode, ActivityConstants.FEED_TYPE, feedType);
+    }
+    return request;
+  }
+
+  @Test
+  public void testUserFeedQuery() throws Exception {
+    SlingHttpServletRequest request = createFeedRequest(null);
+    expect(request.getRemoteUser()).andReturn("alice");
+    List<String> contacts = new ArrayList<String>();
+    contacts.add("bob");
+    contacts.add("o'neil");
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers("alice", ConnectionState.ACCEPTED))
+        .andReturn(contacts);
+    replay();
+
+    ActivitySearchResultProcessor processor = new ActivitySearchResultProcessor();
+    processor.connectionManager = connectionManager;
+    assertEquals("//element(*)/activity//*[@sling:resourceType='sakai/activity' and ("
+        + "@sakai:activity-actor='alice' or @sakai:activity-actor='bob' or "
+        + "@sakai:activity-actor='o''neil') and not(@sakai:activity-source)]"
+        + " order by @jcr:created descending", processor.getFeedQueries(request,
+        "jcr:created", false).get(0));
+    verify();
+  }
+
+  @Test
+  public void testUserFeedSplitsActors() throws Exception {
+    SlingHttpServletRequest request = createFeedRequest(null);
+    expect(request.getRemoteUser()).andReturn("alice");
+    List<String> contacts = new ArrayList<String>();
+    for (int i = 0; i < ActivitySearchResultProcessor.MAX_FEED_ACTORS * 2; i++) {
+      contacts.add("user" + i);
+    }
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers("alice", ConnectionState.ACCEPTED))
+        .andReturn(contacts);
+    replay();
+
+    ActivitySearchResultProcessor processor = new ActivitySearchResultProcessor();
+    processor.connectionManager = connectionManager;
+    List<String> queries = processor.getFeedQueries(request, "jcr:created", false);
+    assertEquals(ActivitySearchResultProcessor.MAX_FEED_ACTORS
+        / ActivitySearchResultProcessor.MAX_QUERY_ACTORS, queries.size());
+    int actors = 0;
+    for (String query : queries) {
+      int n = query.split("@sakai:activity-actor=").length - 1;
+      assertTrue(n <= ActivitySearchResultProcessor.MAX_QUERY_ACTORS);
+      assertTrue(query.endsWith(" order by @jcr:created descending"));
+      actors += n;
+    }
+    assertEquals(ActivitySearchResultProcessor.MAX_FEED_ACTORS, actors);
+    assertTrue(queries.get(0).contains("@sakai:activity-actor='alice'"));
+    verify();
+  }
+
+  @Test
+  public void testSiteFeedQuery() throws Exception {
+    SlingHttpServletRequest request = createFeedRequest(ActivityConstants.FEED_SITE);
+    addStringRequestParameter(request, "site", "/sites/physics-101");
+    addStringRequestParameter(request, "sortOn", "sakai:activity-appid");
+    addStringRequestParameter(request, "sortOrder", "ascending");
+    replay();
+
+    ActivitySearchResultProcessor processor = new ActivitySearchResultProcessor();
+    assertEquals("/jcr:root/sites/physics-101//activity//*[@sling:resourceType='sakai/activity'"
+        + " and not(@sakai:activity-source)] order by @sakai:activity-appid ascending",
+        processor.getFeedQueries(request, processor.getSortOn(request),
+            processor.isAscending(request)).get(0));
+    verify();
+  }
+
+  @Test
+  public void testSiteFeedWithoutSite() throws Exception {
+    SlingHttpServletRequest request = createFeedRequest(ActivityConstants.FEED_SITE);
+    expect(request.getRequestParameter("site")).andReturn(null);
+    replay();
+
+    ActivitySearchResultProcessor processor = new ActivitySearchResultProcessor();
+    try {
+      processor.getFeedQueries(request, "jcr:created", false);
+      fail("A site feed needs a site.");
+    } catch (SearchException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  @Test
+  public void testSiteFeedWithRootSite() throws Exception {
+    SlingHttpServletRequest request = createFeedRequest(ActivityConstants.FEED_SITE);
+    addStringRequestParameter(request, "site", "/");
+    replay();
+
+    ActivitySearchResultProcessor processor = new ActivitySearchResultProcessor();
+    try {
+      processor.getFeedQueries(request, "jcr:created", false);
+      fail("The root is not a site.");
+    } catch (SearchException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+}
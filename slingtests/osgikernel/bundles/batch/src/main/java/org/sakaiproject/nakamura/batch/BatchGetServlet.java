@@ -31,6 +31,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.ResponseWrapper;
+import org.sakaiproject.nakamura.util.StreamingJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
  
@@ -128,7 +129,7 @@ public class BatchGetServlet extends SlingAllMethodsServlet {
       }
     }
  
-    ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+    ExtendedJSONWriter write = new StreamingJSONWriter(response.getWriter());
     try {
       write.array();
       for (String resourcePath : requestedResources) {
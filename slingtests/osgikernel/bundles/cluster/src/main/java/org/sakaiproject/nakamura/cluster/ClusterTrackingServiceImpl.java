@@ -150,6 +150,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     thisSecureUrl = (String) properties.get(PROP_SECURE_HOST_URL);
 
     componentStartTime = String.valueOf(System.currentTimeMillis());
+    cacheManagerService.registerClassLoader(SERVER_CACHE, getClass().getClassLoader());
     MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
     ObjectName name = new ObjectName("java.lang:type=Runtime");
     serverId = ((String) mbeanServer.getAttribute(name, "Name")).replace("@", "-");
@@ -17,7 +17,9 @@
  */
 package org.sakaiproject.nakamura.cluster;
 
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.Assert.assertEquals;
@@ -72,6 +74,9 @@ public class ClusterTrackingServiceImplTest extends AbstractEasyMockTest {
     expect(
         cacheManagerService.getCache("server-tracking-cache",
             CacheScope.CLUSTERREPLICATED)).andReturn(serverTrackingCache).anyTimes();
+    cacheManagerService.registerClassLoader(eq("server-tracking-cache"),
+        (ClassLoader) anyObject());
+    expectLastCall().anyTimes();
     clusterTrackingServiceImpl = new ClusterTrackingServiceImpl(cacheManagerService);
     componentContext = createMock(ComponentContext.class);
     Hashtable<String, Object> dict = new Hashtable<String, Object>();
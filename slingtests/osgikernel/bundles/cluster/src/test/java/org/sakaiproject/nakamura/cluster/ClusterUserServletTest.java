@@ -17,7 +17,9 @@
  */
 package org.sakaiproject.nakamura.cluster;
 
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.Assert.assertEquals;
@@ -88,6 +90,9 @@ public class ClusterUserServletTest extends AbstractEasyMockTest {
     expect(
         cacheManagerService.getCache("server-tracking-cache",
             CacheScope.CLUSTERREPLICATED)).andReturn(serverTrackingCache).anyTimes();
+    cacheManagerService.registerClassLoader(eq("server-tracking-cache"),
+        (ClassLoader) anyObject());
+    expectLastCall().anyTimes();
     clusterTrackingServiceImpl = new ClusterTrackingServiceImpl(cacheManagerService);
 
     userManager = createMock(UserManager.class);
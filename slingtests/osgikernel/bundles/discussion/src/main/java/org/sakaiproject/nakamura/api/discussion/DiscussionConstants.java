@@ -63,4 +63,10 @@ public interface DiscussionConstants {
 
   public static final String PROP_NOTIFY_ADDRESS = "sakai:notificationaddress";
 
+  /**
+   * The request parameter that holds how many levels of replies should be written out
+   * for each thread. Deeper replies are only counted.
+   */
+  public static final String PARAM_DEPTH = "depth";
+
 }
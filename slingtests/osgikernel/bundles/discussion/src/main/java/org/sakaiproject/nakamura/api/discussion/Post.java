@@ -45,13 +45,37 @@ public class Post {
   private Node node;
   private List<Post> children;
   private String postId;
+  private String path;
+  private Session session;
+  private int replyCount = -1;
 
   public Post(Node node) {
     setNode(node);
     children = new ArrayList<Post>();
   }
 
-  public Node getNode() {
+  /**
+   * A post whose node is only loaded when it is written out, so a whole thread can be
+   * assembled without holding on to the nodes of the posts that are not shown.
+   * 
+   * @param path
+   *          the path of the post node.
+   * @param postId
+   *          the sakai:id of the post.
+   * @param session
+   *          the session to load the node with.
+   */
+  public Post(String path, String postId, Session session) {
+    this.path = path;
+    this.session = session;
+    setPostId(postId);
+    children = new ArrayList<Post>();
+  }
+
+  public Node getNode() throws RepositoryException {
+    if (node == null && path != null) {
+      node = (Node) session.getItem(path);
+    }
     return node;
   }
 
@@ -89,6 +113,7 @@ public class Post {
    */
   public boolean checkEdit() {
     try {
+      Node node = getNode();
       AccessControlManager acm = AccessControlUtil.getAccessControlManager(node
           .getSession());
       Privilege write = acm.privilegeFromName(ACLUtils.WRITE_GRANTED.substring(2));
@@ -116,6 +141,7 @@ public class Post {
    */
   public boolean checkDelete() {
     try {
+      Node node = getNode();
       AccessControlManager acm = AccessControlUtil.getAccessControlManager(node
           .getSession());
       Privilege write = acm.privilegeFromName(ACLUtils.WRITE_GRANTED.substring(2));
@@ -140,8 +166,38 @@ public class Post {
     return false;
   }
 
+  /**
+   * @return the number of replies on this post and on those replies, all the way down.
+   */
+  public int getReplyCount() {
+    if (replyCount < 0) {
+      int count = 0;
+      for (Post p : children) {
+        count += 1 + p.getReplyCount();
+      }
+      replyCount = count;
+    }
+    return replyCount;
+  }
+
   public void outputPostAsJSON(JSONWriter writer) throws JSONException,
       RepositoryException {
+    outputPostAsJSON(writer, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Write this post and its replies.
+   * 
+   * @param writer
+   * @param depth
+   *          the levels of replies to write, below that only the reply count is written
+   *          and the nodes of the replies are not loaded.
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public void outputPostAsJSON(JSONWriter writer, int depth) throws JSONException,
+      RepositoryException {
+    Node node = getNode();
     boolean canEdit = checkEdit();
     boolean canDelete = checkDelete();
 
@@ -155,7 +211,7 @@ public class Post {
     if (isDeleted && !canDelete) {
       // This post has been deleted and we dont have sufficient rights to edit, so we just
       // show the replies.
-      outputChildrenAsJSON(writer);
+      outputChildrenAsJSON(writer, depth);
     } else {
       writer.object();
 
@@ -198,9 +254,13 @@ public class Post {
       writer.endObject();
 
       // All the replies on this post.
+      writer.key("replyCount");
+      writer.value(getReplyCount());
       writer.key("replies");
       writer.array();
-      outputChildrenAsJSON(writer);
+      if (depth > 0) {
+        outputChildrenAsJSON(writer, depth - 1);
+      }
       writer.endArray();
 
       writer.endObject();
@@ -209,9 +269,14 @@ public class Post {
 
   public void outputChildrenAsJSON(JSONWriter writer) throws JSONException,
       RepositoryException {
-    LOG.info("this post {} has {} children", getPostId(), getChildren().size());
+    outputChildrenAsJSON(writer, Integer.MAX_VALUE);
+  }
+
+  public void outputChildrenAsJSON(JSONWriter writer, int depth) throws JSONException,
+      RepositoryException {
+    LOG.debug("this post {} has {} children", getPostId(), getChildren().size());
     for (Post p : children) {
-      p.outputPostAsJSON(writer);
+      p.outputPostAsJSON(writer, depth);
     }
   }
 
@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.discussion.searchresults;
 
+import static org.sakaiproject.nakamura.api.search.SearchConstants.DEFAULT_PAGED_ITEMS;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
+
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
@@ -34,13 +38,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
 import javax.jcr.query.RowIterator;
@@ -65,36 +69,58 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
       RepositoryException {
 
     Session session = request.getResourceResolver().adaptTo(Session.class);
-    List<Node> allNodes = new ArrayList<Node>();
-    for (; iterator.hasNext();) {
-      Node node = RowUtils.getNode(iterator.nextRow(), session);
+    int nitems = SearchUtil.intRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+        DEFAULT_PAGED_ITEMS);
+    int page = SearchUtil.intRequestParameter(request, PARAMS_PAGE, 0);
+    int depth = SearchUtil.intRequestParameter(request, DiscussionConstants.PARAM_DEPTH,
+        Integer.MAX_VALUE);
+
+    // Read every post once, only the id and what it replies on are kept.
+    Map<String, Post> posts = new HashMap<String, Post>();
+    List<Post> basePosts = new ArrayList<Post>();
+    List<Post> replies = new ArrayList<Post>();
+    List<String> replyOns = new ArrayList<String>();
+    while (iterator.hasNext()) {
+      Node n = RowUtils.getNode(iterator.nextRow(), session);
+      if (n == null) {
+        continue;
+      }
       if (aggregator != null) {
-        aggregator.add(node);
+        aggregator.add(n);
+      }
+      String postId = null;
+      if (n.hasProperty(MessageConstants.PROP_SAKAI_ID)) {
+        postId = n.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
+      }
+      Post post = new Post(n.getPath(), postId, session);
+      if (postId != null && !posts.containsKey(postId)) {
+        posts.put(postId, post);
       }
-      allNodes.add(node);
-    }
-
-    List<Post> basePosts = new ArrayList<Post>();
-    for (int i = 0; i < allNodes.size(); i++) {
-      Node n = allNodes.get(i);
 
       if (n.hasProperty(DiscussionConstants.PROP_REPLY_ON)) {
-        String replyon = n.getProperty(DiscussionConstants.PROP_REPLY_ON)
-            .getString();
         // This post is a reply on another post.
-        // Find that post and add it.
-        addPost(basePosts, n, replyon);
-
+        replies.add(post);
+        replyOns.add(n.getProperty(DiscussionConstants.PROP_REPLY_ON).getString());
       } else {
         // This post is not a reply to another post, thus it is a basepost.
-        basePosts.add(new Post(n));
+        basePosts.add(post);
       }
     }
 
-    // The posts are sorted, now return them as json.
+    // Hang every reply under the post it replies on, replies on posts that are not in
+    // the results are left out.
+    for (int i = 0; i < replies.size(); i++) {
+      Post parent = posts.get(replyOns.get(i));
+      if (parent != null) {
+        parent.getChildren().add(replies.get(i));
+      }
+    }
 
-    for (Post p : basePosts) {
-      p.outputPostAsJSON(writer);
+    // The posts are sorted, now return the threads on this page as json.
+    int start = (int) Math.max(0, Math.min((long) page * nitems, basePosts.size()));
+    int end = (int) Math.max(start, Math.min((long) start + nitems, basePosts.size()));
+    for (Post p : basePosts.subList(start, end)) {
+      p.outputPostAsJSON(writer, depth);
     }
   }
 
@@ -121,27 +147,4 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
     }
   }
 
-  /**
-   * Adds the post to the list at the correct place.
-   * 
-   * @param basePosts
-   * @param n
-   * @return
-   * @throws ValueFormatException
-   * @throws PathNotFoundException
-   * @throws RepositoryException
-   */
-  private void addPost(List<Post> basePosts, Node n, String replyon)
-      throws ValueFormatException, PathNotFoundException, RepositoryException {
-    String postid = n.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
-    for (Post p : basePosts) {
-      if (p.getPostId().equals(replyon)) {
-        p.getChildren().add(new Post(n));
-        break;
-      } else {
-        p.addPost(n, postid, replyon);
-      }
-    }
-  }
-
 }
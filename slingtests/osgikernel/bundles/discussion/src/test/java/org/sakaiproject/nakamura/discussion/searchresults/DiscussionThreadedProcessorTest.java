@@ -24,6 +24,7 @@ import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
@@ -87,6 +88,10 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     ResourceResolver resolver = createMock(ResourceResolver.class);
     expect(resolver.adaptTo(Session.class)).andReturn(session);
     expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getRequestParameter("items")).andReturn(null).anyTimes();
+    expect(request.getRequestParameter("page")).andReturn(null).anyTimes();
+    expect(request.getRequestParameter(DiscussionConstants.PARAM_DEPTH)).andReturn(null)
+        .anyTimes();
 
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     Writer w = new PrintWriter(baos);
@@ -132,10 +137,11 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     nodes.add(nodeC);
     nodes.add(nodeD);
 
-    expect(session.getItem("/msg/a")).andReturn(nodeA);
-    expect(session.getItem("/msg/b")).andReturn(nodeB);
-    expect(session.getItem("/msg/c")).andReturn(nodeC);
-    expect(session.getItem("/msg/d")).andReturn(nodeD);
+    // Once to build the tree and once to write the post out.
+    expect(session.getItem("/msg/a")).andReturn(nodeA).times(2);
+    expect(session.getItem("/msg/b")).andReturn(nodeB).times(2);
+    expect(session.getItem("/msg/c")).andReturn(nodeC).times(2);
+    expect(session.getItem("/msg/d")).andReturn(nodeD).times(2);
     expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(
         profileNode).anyTimes();
     expect(session.getItem("/_user/a/an/anonymous/public/authprofile")).andReturn(
@@ -156,6 +162,77 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     assertEquals("a", json.getJSONObject("post").get("sakai:id"));
     assertEquals("b", json.getJSONArray("replies").getJSONObject(0).getJSONObject("post")
         .get("sakai:id"));
+    assertEquals(3, json.getInt("replyCount"));
+  }
+
+  @Test
+  public void testPagingAndDepth() throws RepositoryException, JSONException,
+      IOException {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    AccessControlManager accessControlManager = createNiceMock(AccessControlManager.class);
+    expect(session.getAccessControlManager()).andReturn(accessControlManager).anyTimes();
+    Authorizable adminUser = createAuthorizable("admin", false, true);
+    UserManager um = createUserManager(null, true, adminUser);
+    expect(session.getUserManager()).andReturn(um).anyTimes();
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session);
+    expect(request.getResourceResolver()).andReturn(resolver);
+    addParameter(request, "items", "1");
+    addParameter(request, "page", "1");
+    addParameter(request, DiscussionConstants.PARAM_DEPTH, "0");
+
+    // 2 threads
+    // a
+    // - b
+    // e
+    // - f
+    // -- g
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(createPost(session, "a", null));
+    nodes.add(createPost(session, "b", "a"));
+    nodes.add(createPost(session, "g", "f"));
+    nodes.add(createPost(session, "e", null));
+    nodes.add(createPost(session, "f", "e"));
+    for (Node node : nodes) {
+      expect(session.getItem(node.getPath())).andReturn(node);
+    }
+    // Only the thread on the page is read again, its replies are collapsed.
+    expect(session.getItem("/msg/e")).andReturn(nodes.get(3));
+    expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(
+        new MockNode("/_user/a/ad/admin/public/authprofile")).anyTimes();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    JSONWriter writer = new JSONWriter(w);
+
+    replay();
+    processor.writeNodes(request, writer, null, new MockRowIterator(nodes));
+    w.flush();
+
+    JSONObject json = new JSONObject(baos.toString("UTF-8"));
+    assertEquals("e", json.getJSONObject("post").get("sakai:id"));
+    assertEquals(2, json.getInt("replyCount"));
+    assertEquals(0, json.getJSONArray("replies").length());
+  }
+
+  private MockNode createPost(Session session, String id, String replyOn)
+      throws RepositoryException {
+    MockNode node = new MockNode("/msg/" + id);
+    node.setSession(session);
+    node.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+    node.setProperty(MessageConstants.PROP_SAKAI_FROM, "admin");
+    if (replyOn != null) {
+      node.setProperty(DiscussionConstants.PROP_REPLY_ON, replyOn);
+    }
+    return node;
+  }
+
+  private void addParameter(SlingHttpServletRequest request, String name, String value) {
+    RequestParameter param = createMock(RequestParameter.class);
+    expect(param.getString()).andReturn(value).anyTimes();
+    expect(request.getRequestParameter(name)).andReturn(param).anyTimes();
   }
 
 }
@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationChannel;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationEvent;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationListener;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Carries cluster cache replication messages over a JMS topic on the ActiveMQ broker.
+ * Each batch is java serialized into a single bytes message, the values in the batch are
+ * already serialized event by event by the cache. Messages are published on one
+ * connection and session held for the life of the component, and a received message may
+ * only hold the message and event classes, anything else is refused before it is read.
+ */
+@Component(label = "%replication.name", description = "%replication.description", metatype = true, immediate = true)
+@Service(value = CacheReplicationChannel.class)
+public class JmsCacheReplicationChannel implements CacheReplicationChannel,
+    MessageListener {
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(JmsCacheReplicationChannel.class);
+
+  @Property(value = "sakai/cache/replication")
+  static final String TOPIC = "replication.topic";
+
+  /**
+   * The classes a replication message is made of, the values are carried as bytes.
+   */
+  private static final Set<String> ENVELOPE_CLASSES = new HashSet<String>(Arrays.asList(
+      CacheReplicationMessage.class.getName(), CacheReplicationEvent.class.getName(),
+      CacheReplicationEvent.Type.class.getName(), Enum.class.getName(),
+      ArrayList.class.getName(), byte[].class.getName()));
+
+  @Reference
+  private ConnectionFactoryService connFactoryService;
+
+  private List<CacheReplicationListener> listeners = new CopyOnWriteArrayList<CacheReplicationListener>();
+  private String topicName;
+  private Connection consumerConnection;
+  private Session consumerSession;
+  /**
+   * Guards the producer, JMS sessions are not thread safe.
+   */
+  private final Object producerLock = new Object();
+  private Connection producerConnection;
+  private Session producerSession;
+  private MessageProducer producer;
+
+  /**
+   * Default constructor.
+   */
+  public JmsCacheReplicationChannel() {
+  }
+
+  /**
+   * Testing constructor to pass in a mocked connection factory.
+   *
+   * @param connFactoryService
+   */
+  protected JmsCacheReplicationChannel(ConnectionFactoryService connFactoryService) {
+    this.connFactoryService = connFactoryService;
+  }
+
+  /**
+   * Called by the OSGi container to activate this component, subscribes to the topic.
+   *
+   * @param ctx
+   * @throws JMSException
+   */
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext ctx) throws JMSException {
+    Dictionary props = ctx.getProperties();
+    topicName = (String) props.get(TOPIC);
+    consumerConnection = connFactoryService.getDefaultConnectionFactory()
+        .createConnection();
+    consumerSession = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    Topic topic = consumerSession.createTopic(topicName);
+    MessageConsumer consumer = consumerSession.createConsumer(topic);
+    consumer.setMessageListener(this);
+    consumerConnection.start();
+    LOGGER.info("Cache replication listening on {} ", topicName);
+  }
+
+  /**
+   * Called by the OSGi container to deactivate this component.
+   *
+   * @param ctx
+   */
+  protected void deactivate(ComponentContext ctx) {
+    synchronized (producerLock) {
+      closeProducer();
+    }
+    try {
+      if (consumerSession != null) {
+        consumerSession.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    try {
+      if (consumerConnection != null) {
+        consumerConnection.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    consumerSession = null;
+    consumerConnection = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheReplicationChannel#publish(org.sakaiproject.nakamura.api.memory.CacheReplicationMessage)
+   */
+  public void publish(CacheReplicationMessage message) {
+    byte[] body;
+    try {
+      body = serialize(message);
+    } catch (IOException e) {
+      LOGGER.error("Unable to serialize " + message + " " + e.getMessage(), e);
+      return;
+    }
+    synchronized (producerLock) {
+      try {
+        if (producer == null) {
+          openProducer();
+        }
+        BytesMessage msg = producerSession.createBytesMessage();
+        msg.writeBytes(body);
+        producer.send(msg);
+      } catch (JMSException e) {
+        LOGGER.error(e.getMessage(), e);
+        // start again with a new connection on the next publish.
+        closeProducer();
+      }
+    }
+  }
+
+  /**
+   * Open the connection, session and producer that messages are published with, the
+   * caller holds the producer lock.
+   *
+   * @throws JMSException
+   */
+  private void openProducer() throws JMSException {
+    producerConnection = connFactoryService.getDefaultConnectionFactory()
+        .createConnection();
+    producerSession = producerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    Topic topic = producerSession.createTopic(topicName);
+    producer = producerSession.createProducer(topic);
+    producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+  }
+
+  /**
+   * Close the producer connection if it is open, the caller holds the producer lock.
+   */
+  private void closeProducer() {
+    try {
+      if (producerSession != null) {
+        producerSession.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    try {
+      if (producerConnection != null) {
+        producerConnection.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    producer = null;
+    producerSession = null;
+    producerConnection = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    if (!(message instanceof BytesMessage)) {
+      return;
+    }
+    try {
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(body);
+      CacheReplicationMessage replicationMessage = deserialize(body);
+      for (CacheReplicationListener listener : listeners) {
+        listener.onMessage(replicationMessage);
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (IOException e) {
+      LOGGER.error("Unable to read cache replication message " + e.getMessage(), e);
+    } catch (ClassNotFoundException e) {
+      LOGGER.error("Unable to read cache replication message " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheReplicationChannel#addListener(org.sakaiproject.nakamura.api.memory.CacheReplicationListener)
+   */
+  public void addListener(CacheReplicationListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheReplicationChannel#removeListener(org.sakaiproject.nakamura.api.memory.CacheReplicationListener)
+   */
+  public void removeListener(CacheReplicationListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * @param message
+   * @return the serialized form of the message.
+   * @throws IOException
+   */
+  protected static byte[] serialize(CacheReplicationMessage message) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(baos);
+    out.writeObject(message);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * The message only holds the api classes and the serialized values of each event, the
+   * values are deserialized by the listener with the classloader of the cache owner. Any
+   * other class in the body is refused.
+   *
+   * @param body
+   * @return the message.
+   * @throws IOException
+   * @throws ClassNotFoundException
+   */
+  protected static CacheReplicationMessage deserialize(byte[] body) throws IOException,
+      ClassNotFoundException {
+    ObjectInputStream oin = new EnvelopeInputStream(new ByteArrayInputStream(body));
+    try {
+      return (CacheReplicationMessage) oin.readObject();
+    } finally {
+      oin.close();
+    }
+  }
+
+  /**
+   * Only resolves the classes of {@link #ENVELOPE_CLASSES}.
+   */
+  private static class EnvelopeInputStream extends ObjectInputStream {
+
+    EnvelopeInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
+     */
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      if (!ENVELOPE_CLASSES.contains(desc.getName())) {
+        throw new InvalidClassException(desc.getName(),
+            "not part of a cache replication message");
+      }
+      return super.resolveClass(desc);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.ObjectInputStream#resolveProxyClass(java.lang.String[])
+     */
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+      throw new InvalidClassException("Proxy", "not part of a cache replication message");
+    }
+  }
+}
@@ -40,15 +40,17 @@ import org.sakaiproject.nakamura.api.site.SiteService;
 import org.sakaiproject.nakamura.util.DateUtils;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.JcrUtils;
+import org.sakaiproject.nakamura.util.PermissionEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.AccessControlException;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
@@ -59,8 +61,6 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFactory;
-import javax.jcr.security.AccessControlManager;
-import javax.jcr.security.Privilege;
 
 // TODO: Javadoc
 public class FileUtils {
@@ -346,11 +346,34 @@ public class FileUtils {
    */
   public static void writeFileNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
+    writeFileNode(node, session, write, siteService, new PermissionEvaluator(session),
+        new HashMap<String, Integer>());
+  }
+
+  /**
+   * Writes all the properties of a sakai/file node. Also checks what the permissions are
+   * for a session and where the links are.
+   * 
+   * @param node
+   * @param write
+   * @param siteService
+   * @param permissions
+   *          evaluates the permissions of the session, share one for all the nodes in a
+   *          request.
+   * @param memberCounts
+   *          the member counts of the sites written so far by path, share one for all the
+   *          nodes in a request.
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public static void writeFileNode(Node node, Session session, JSONWriter write,
+      SiteService siteService, PermissionEvaluator permissions,
+      Map<String, Integer> memberCounts) throws JSONException, RepositoryException {
     write.object();
     // dump all the properties.
     ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
     // The permissions for this session.
-    writePermissions(node, session, write);
+    writePermissions(node, permissions, write);
 
     // The download path to this file.
     write.key("path");
@@ -371,7 +394,7 @@ public class FileUtils {
     }
 
     // Get all the sites where this file is referenced.
-    getSites(node, write, siteService);
+    getSites(node, write, siteService, permissions, memberCounts);
 
     write.endObject();
   }
@@ -387,6 +410,28 @@ public class FileUtils {
    */
   public static void writeLinkNode(Node node, Session session, JSONWriter write,
       SiteService siteService) throws JSONException, RepositoryException {
+    writeLinkNode(node, session, write, siteService, new PermissionEvaluator(session),
+        new HashMap<String, Integer>());
+  }
+
+  /**
+   * Writes all the properties for a linked node.
+   * 
+   * @param node
+   * @param write
+   * @param siteService
+   * @param permissions
+   *          evaluates the permissions of the session, share one for all the nodes in a
+   *          request.
+   * @param memberCounts
+   *          the member counts of the sites written so far by path, share one for all the
+   *          nodes in a request.
+   * @throws JSONException
+   * @throws RepositoryException
+   */
+  public static void writeLinkNode(Node node, Session session, JSONWriter write,
+      SiteService siteService, PermissionEvaluator permissions,
+      Map<String, Integer> memberCounts) throws JSONException, RepositoryException {
     write.object();
     // Write all the properties.
     ExtendedJSONWriter.writeNodeContentsToWriter(write, node);
@@ -397,7 +442,7 @@ public class FileUtils {
     write.key("path");
     write.value(node.getPath());
     // permissions
-    writePermissions(node, session, write);
+    writePermissions(node, permissions, write);
 
     // Write the actual file.
     if (node.hasProperty("jcr:reference")) {
@@ -405,7 +450,7 @@ public class FileUtils {
       write.key("file");
       try {
         Node fileNode = session.getNodeByIdentifier(uuid);
-        writeFileNode(fileNode, session, write, siteService);
+        writeFileNode(fileNode, session, write, siteService, permissions, memberCounts);
       } catch (ItemNotFoundException e) {
         write.value(false);
       }
@@ -418,53 +463,38 @@ public class FileUtils {
    * Gives the permissions for this user.
    * 
    * @param node
-   * @param session
+   * @param permissions
    * @param write
    * @throws RepositoryException
    * @throws JSONException
    */
-  private static void writePermissions(Node node, Session session, JSONWriter write)
-      throws RepositoryException, JSONException {
-    String path = node.getPath();
+  private static void writePermissions(Node node, PermissionEvaluator permissions,
+      JSONWriter write) throws RepositoryException, JSONException {
+    int granted = permissions.getPermissions(node.getPath());
     write.key("permissions");
     write.object();
     write.key("set_property");
-    write.value(hasPermission(session, path, "set_property"));
+    write.value((granted & PermissionEvaluator.SET_PROPERTY) != 0);
     write.key("read");
-    write.value(hasPermission(session, path, "read"));
+    write.value((granted & PermissionEvaluator.READ) != 0);
     write.key("remove");
-    write.value(hasPermission(session, path, "remove"));
+    write.value((granted & PermissionEvaluator.REMOVE) != 0);
     write.endObject();
   }
 
-  /**
-   * Checks if the current user has a permission on a path.
-   * 
-   * @param session
-   * @param path
-   * @param permission
-   * @return
-   */
-  private static boolean hasPermission(Session session, String path, String permission) {
-    try {
-      session.checkPermission(path, permission);
-      return true;
-    } catch (AccessControlException e) {
-      return false;
-    } catch (RepositoryException e) {
-      return false;
-    }
-  }
-
   /**
    * Gets all the sites where this file is used and parses the info for it.
    * 
    * @param node
    * @param write
+   * @param siteService
+   * @param permissions
+   * @param memberCounts
    * @throws RepositoryException
    * @throws JSONException
    */
-  private static void getSites(Node node, JSONWriter write, SiteService siteService)
+  private static void getSites(Node node, JSONWriter write, SiteService siteService,
+      PermissionEvaluator permissions, Map<String, Integer> memberCounts)
       throws RepositoryException, JSONException {
 
     write.key("usedIn");
@@ -478,19 +508,16 @@ public class FileUtils {
 
     int total = 0;
     try {
-      List<String> handledSites = new ArrayList<String>();
-      AccessControlManager acm = AccessControlUtil.getAccessControlManager(session);
-      Privilege read = acm.privilegeFromName(Privilege.JCR_READ);
-      Privilege[] privs = new Privilege[] { read };
+      Set<String> handledSites = new HashSet<String>();
       for (Value v : sites) {
-        String path = v.getString();
-        if (!handledSites.contains(path)) {
-          handledSites.add(path);
-          Node siteNode = (Node) session.getNodeByIdentifier(v.getString());
+        String uuid = v.getString();
+        if (handledSites.add(uuid)) {
+          Node siteNode = (Node) session.getNodeByIdentifier(uuid);
 
-          boolean hasAccess = acm.hasPrivileges(path, privs);
+          boolean hasAccess = permissions.hasPermissions(siteNode.getPath(),
+              PermissionEvaluator.READ);
           if (siteService.isSite(siteNode) && hasAccess) {
-            writeSiteInfo(siteNode, write, siteService);
+            writeSiteInfo(siteNode, write, siteService, memberCounts);
             total++;
           }
         }
@@ -511,14 +538,23 @@ public class FileUtils {
    * 
    * @param siteNode
    * @param write
+   * @param memberCounts
+   *          the member counts already looked up in this request, by site path.
    * @throws JSONException
    * @throws RepositoryException
    */
   private static void writeSiteInfo(Node siteNode, JSONWriter write,
-      SiteService siteService) throws JSONException, RepositoryException {
+      SiteService siteService, Map<String, Integer> memberCounts) throws JSONException,
+      RepositoryException {
+    // a page of files is often used in the same few sites, count each once.
+    Integer count = memberCounts.get(siteNode.getPath());
+    if (count == null) {
+      count = siteService.getMemberCount(siteNode);
+      memberCounts.put(siteNode.getPath(), count);
+    }
     write.object();
     write.key("member-count");
-    write.value(String.valueOf(siteService.getMemberCount(siteNode)));
+    write.value(String.valueOf(count));
     write.key("path");
     write.value(siteNode.getPath());
     ExtendedJSONWriter.writeNodeContentsToWriter(write, siteNode);
@@ -33,6 +33,7 @@ import org.sakaiproject.nakamura.api.files.FileUtils;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.search.AbstractSearchResultSet;
 import org.sakaiproject.nakamura.api.search.Aggregator;
+import org.sakaiproject.nakamura.api.search.ReadableRowIterator;
 import org.sakaiproject.nakamura.api.search.RowIteratorImpl;
 import org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
@@ -40,12 +41,14 @@ import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.api.site.SiteService;
-import org.sakaiproject.nakamura.util.RowUtils;
+import org.sakaiproject.nakamura.util.PermissionEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -101,12 +104,12 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       int nitems = SearchUtil.intRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
           SearchConstants.DEFAULT_PAGED_ITEMS);
 
-      // Do the paging on the iterator.
-      RowIterator iterator = rs.getRows();
-      long start = SearchUtil.getPaging(request, hits);
-      iterator.skip(start);
-
+      // Do the paging on the readable rows, resolving a page at a time.
       Session session = request.getResourceResolver().adaptTo(Session.class);
+      ReadableRowIterator iterator = new ReadableRowIterator(session, rs.getRows(),
+          nitems);
+      long start = SearchUtil.getPaging(request, hits);
+      iterator.skipReadable(start);
 
       long i = start;
       List<Row> savedRows = new ArrayList<Row>();
@@ -115,7 +118,7 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       while (i < (start + nitems) && iterator.hasNext()) {
         // Grab the next row and node.
         Row row = iterator.nextRow();
-        Node node = RowUtils.getNode(row, session);
+        Node node = iterator.getNode();
         String path = node.getPath();
 
         // We only check nt:file's no nt:resource (those are just children anyway)
@@ -163,14 +166,19 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       RepositoryException {
     Session session = request.getResourceResolver().adaptTo(Session.class);
 
-    while (iterator.hasNext()) {
-      Row row = iterator.nextRow();
-      Node node = RowUtils.getNode(row, session);
+    int nitems = SearchUtil.intRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+        SearchConstants.DEFAULT_PAGED_ITEMS);
+    ReadableRowIterator rows = new ReadableRowIterator(session, iterator, nitems);
+    PermissionEvaluator permissions = new PermissionEvaluator(session);
+    Map<String, Integer> memberCounts = new HashMap<String, Integer>();
+    while (rows.hasNext()) {
+      rows.nextRow();
+      Node node = rows.getNode();
       if (aggregator != null) {
         aggregator.add(node);
       }
 
-      handleNode(node, session, write);
+      handleNode(node, session, write, permissions, memberCounts);
     }
   }
 
@@ -195,10 +203,12 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
       JSONException {
 
     Session session = request.getResourceResolver().adaptTo(Session.class);
+    PermissionEvaluator permissions = new PermissionEvaluator(session);
+    Map<String, Integer> memberCounts = new HashMap<String, Integer>();
     iterator.skip(start);
     for (long i = start; i < end && iterator.hasNext(); i++) {
       Node node = iterator.nextNode();
-      handleNode(node, session, write);
+      handleNode(node, session, write, permissions, memberCounts);
     }
   }
 
@@ -211,10 +221,15 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
    *          The {@link Session} to use to grab more information.
    * @param write
    *          The {@link JSONWriter} to use.
+   * @param permissions
+   *          The {@link PermissionEvaluator} shared by all the nodes of the request.
+   * @param memberCounts
+   *          The member counts of the sites written so far in the request, by path.
    * @throws JSONException
    * @throws RepositoryException
    */
-  protected void handleNode(Node node, Session session, JSONWriter write)
+  protected void handleNode(Node node, Session session, JSONWriter write,
+      PermissionEvaluator permissions, Map<String, Integer> memberCounts)
       throws JSONException, RepositoryException {
     String type = "";
     if (node.hasProperty(SLING_RESOURCE_TYPE_PROPERTY)) {
@@ -222,9 +237,9 @@ public class FileSearchBatchResultProcessor implements SearchBatchResultProcesso
     }
 
     if (FilesConstants.RT_SAKAI_LINK.equals(type)) {
-      FileUtils.writeLinkNode(node, session, write, siteService);
+      FileUtils.writeLinkNode(node, session, write, siteService, permissions, memberCounts);
     } else {
-      FileUtils.writeFileNode(node, session, write, siteService);
+      FileUtils.writeFileNode(node, session, write, siteService, permissions, memberCounts);
     }
   }
 }
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.memory.ThreadBound;
+
+/**
+ * A lease on an id held in a {@link LeaseStore}. The lock id is the token of the lease,
+ * it goes up every time the id is locked, across the cluster.
+ */
+public class JdbcLock implements Lock, ThreadBound {
+
+  /**
+   * For serialization.
+   */
+  private static final long serialVersionUID = 3453364524530734131L;
+  /**
+   * The lock manager for this instance.
+   */
+  private transient JdbcLockManager currentLockManager;
+  /**
+   * The id of the object being locked.
+   */
+  private String id;
+  /**
+   * The owner of the lease, the lock manager instance and thread.
+   */
+  private String owner;
+  /**
+   * The token of the lease.
+   */
+  private long token;
+  /**
+   * Set when the lock is unlocked.
+   */
+  private volatile boolean released;
+  /**
+   * Set when the lease could not be renewed and somebody else may hold it.
+   */
+  private volatile boolean lost;
+
+  /**
+   * @param id
+   *          the object being locked.
+   * @param owner
+   *          the owner of the lease.
+   * @param token
+   *          the token of the lease.
+   */
+  public JdbcLock(String id, String owner, long token) {
+    this.id = id;
+    this.owner = owner;
+    this.token = token;
+  }
+
+  /**
+   * Bind this lock to a lock manager.
+   *
+   * @param currentLockManager
+   *          the lock manager to bind to.
+   */
+  protected void bind(JdbcLockManager currentLockManager) {
+    this.currentLockManager = currentLockManager;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.Lock#getLocked()
+   */
+  public String getLocked() {
+    return id;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.Lock#getOwner()
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @return true if the lease was taken by the lock manager this lock is bound to.
+   * @see org.sakaiproject.nakamura.api.locking.Lock#isLocal()
+   */
+  public boolean isLocal() {
+    return owner.startsWith(currentLockManager.getInstanceId());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @return true if the lease is held, and was taken by the current thread.
+   * @see org.sakaiproject.nakamura.api.locking.Lock#isOwner()
+   */
+  public boolean isOwner() {
+    return isLocked() && isHeldByCurrentThread();
+  }
+
+  /**
+   * @return true if the lease was taken by the current thread, whether or not it is still
+   *         held.
+   */
+  protected boolean isHeldByCurrentThread() {
+    return owner.equals(currentLockManager.getOwnerId());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.Lock#unlock()
+   */
+  public void unlock() {
+    currentLockManager.unlock(this);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @return false once unlocked, or once the lease was lost.
+   * @see org.sakaiproject.nakamura.api.locking.Lock#isLocked()
+   */
+  public boolean isLocked() {
+    return !released && !lost;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @return the token of the lease.
+   * @see org.sakaiproject.nakamura.api.locking.Lock#getLockId()
+   */
+  public long getLockId() {
+    return token;
+  }
+
+  /**
+   * @return true if the lock was unlocked.
+   */
+  protected boolean isReleased() {
+    return released;
+  }
+
+  /**
+   * Mark the lock as unlocked.
+   */
+  protected void setReleased() {
+    released = true;
+  }
+
+  /**
+   * Mark the lease as lost, the lock is no longer held although it was not unlocked.
+   */
+  protected void setLost() {
+    lost = true;
+  }
+
+  /**
+   * {@inheritDoc} unbind this lock, performing an unlock in the process.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.ThreadBound#unbind()
+   */
+  public void unbind() {
+    unlock();
+  }
+}
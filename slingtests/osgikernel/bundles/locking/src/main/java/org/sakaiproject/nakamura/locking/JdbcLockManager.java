@@ -0,0 +1,549 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.persistence.DataSourceService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A lock manager that keeps locks as leases in a database shared by all the nodes of the
+ * cluster, through the {@link DataSourceService}. A lease has to be renewed before it
+ * expires, this is done in the background for every lock held on the node, so when a
+ * node dies its locks are free again once the lease runs out. The lock id of a lock is the
+ * token of the lease, it goes up every time the id is locked anywhere in the cluster.
+ * Nothing written under a lock checks the token, so a node that stalls for longer than
+ * its lease can still write after another node has taken the lock: the lease must be much
+ * longer than the clock skew between the nodes, and longer than a stop the world pause.
+ *
+ * Threads of this node waiting for the same id queue up on a fair local lock, and only
+ * the first of them polls the database, backing off from lock.recheck up to
+ * lock.recheck.max between attempts. Waits are counted in a {@link LockMetrics}.
+ *
+ * This lock manager is ranked below {@link LockManagerImpl}, raise its service.ranking
+ * to use it.
+ *
+ * @scr.component immediate="true" metatype="no"
+ * @scr.property name="service.description" value="Cluster Lock Manager"
+ * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="service.ranking" value="-100" type="Integer"
+ * @scr.property name="lock.lease" value="15000" type="Long"
+ * @scr.property name="lock.timeout" value="30000" type="Long"
+ * @scr.property name="lock.recheck" value="100" type="Long"
+ * @scr.property name="lock.recheck.max" value="1000" type="Long"
+ * @scr.service interface="org.sakaiproject.nakamura.api.locking.LockManager"
+ * @scr.reference name="cacheManagerService"
+ *                interface="org.sakaiproject.nakamura.api.memory.CacheManagerService"
+ *                bind="bindCacheManagerService" unbind="unbindCacheManagerService"
+ * @scr.reference name="dataSourceService"
+ *                interface="org.sakaiproject.nakamura.api.persistence.DataSourceService"
+ *                bind="bindDataSourceService" unbind="unbindDataSourceService"
+ */
+public class JdbcLockManager implements LockManager {
+
+  /**
+   * The request cache of the locks taken by the request.
+   */
+  private static final String REQUEST_LOCKS = "jdbclockmanager.requestmap";
+  /**
+   * The time in ms a lease lasts unless renewed.
+   */
+  private static final String LEASE = "lock.lease";
+  /**
+   * The time in ms a thread waits for a lock before giving up.
+   */
+  private static final String TIMEOUT = "lock.timeout";
+  /**
+   * The time in ms before the first waiting thread tries to take the lease again.
+   */
+  private static final String RECHECK = "lock.recheck";
+  /**
+   * The longest time in ms between attempts, the time doubles up to this.
+   */
+  private static final String MAX_RECHECK = "lock.recheck.max";
+  private static final long DEFAULT_LEASE = 15000L;
+  private static final long DEFAULT_TIMEOUT = 30000L;
+  private static final long DEFAULT_RECHECK = 100L;
+  private static final long DEFAULT_MAX_RECHECK = 1000L;
+  /**
+   * The JMX name of the lock metrics.
+   */
+  private static final String METRICS_NAME =
+      "org.sakaiproject.nakamura.locking:type=JdbcLockMetrics";
+  private static final Logger LOGGER = LoggerFactory.getLogger(JdbcLockManager.class);
+  private static final boolean debug = LOGGER.isDebugEnabled();
+
+  private CacheManagerService cacheManagerService;
+  private DataSourceService dataSourceService;
+  private LeaseStore store;
+  /**
+   * The id of this node, the start of the owner of every lease taken here.
+   */
+  private final String instanceId;
+  private final SecureRandom random;
+  private long lease = DEFAULT_LEASE;
+  private long timeout = DEFAULT_TIMEOUT;
+  private long recheck = DEFAULT_RECHECK;
+  private long maxRecheck = DEFAULT_MAX_RECHECK;
+  /**
+   * The locks held on this node by id, their leases are renewed in the background.
+   */
+  private final Map<String, JdbcLock> held = new ConcurrentHashMap<String, JdbcLock>();
+  /**
+   * The local queues by id, only the thread holding the gate of an id talks to the
+   * database about it.
+   */
+  private final Map<String, Gate> gates = new HashMap<String, Gate>();
+  private ScheduledExecutorService renewer;
+  private final LockMetrics metrics = new LockMetrics();
+
+  private ThreadLocal<String> ownerId = new ThreadLocal<String>() {
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.ThreadLocal#initialValue()
+     */
+    @Override
+    protected String initialValue() {
+      return instanceId + ":" + Long.toHexString(random.nextLong());
+    }
+  };
+
+  /**
+   * @throws NoSuchAlgorithmException
+   */
+  public JdbcLockManager() throws NoSuchAlgorithmException {
+    random = SecureRandom.getInstance("SHA1PRNG");
+    instanceId = Long.toHexString(random.nextLong());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#getLock(java.lang.String)
+   */
+  public Lock getLock(String id) {
+    return getLock(id, true);
+  }
+
+  /**
+   * {@inheritDoc} Taking a lock without waiting still queues behind the threads of this
+   * node already waiting for it.
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#getLock(java.lang.String,
+   *      boolean)
+   */
+  public Lock getLock(String id, boolean create) {
+    JdbcLock lock = held.get(id);
+    if (lock != null && lock.isOwner()) {
+      return lock;
+    }
+    if (create) {
+      Gate gate = enter(id);
+      boolean acquired = false;
+      try {
+        if (gate.lock.tryLock()) {
+          try {
+            lock = take(id);
+            acquired = (lock != null);
+          } catch (SQLException e) {
+            LOGGER.warn("Unable to lock " + id + " " + e.getMessage());
+          } finally {
+            if (!acquired) {
+              gate.lock.unlock();
+            }
+          }
+        }
+      } finally {
+        if (!acquired) {
+          leave(id, gate);
+        }
+      }
+      if (acquired) {
+        return lock;
+      }
+    }
+    return read(id);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#waitForLock(java.lang.String)
+   */
+  public Lock waitForLock(String id) throws LockTimeoutException {
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " locking " + id);
+    }
+    JdbcLock lock = held.get(id);
+    if (lock != null && lock.isOwner()) {
+      return lock;
+    }
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+    boolean interrupted = false;
+    boolean waited = false;
+    Gate gate = enter(id);
+    lock = null;
+    try {
+      boolean entered = gate.lock.tryLock();
+      if (!entered) {
+        waited = true;
+        metrics.queued(gate.users);
+        entered = gate.lock.tryLock(timeout, TimeUnit.MILLISECONDS);
+      }
+      if (entered) {
+        try {
+          long delay = recheck;
+          while (true) {
+            lock = take(id);
+            long remaining = deadline - System.nanoTime();
+            if (lock != null || remaining <= 0) {
+              break;
+            }
+            if (!waited) {
+              waited = true;
+              metrics.queued(gate.users);
+            }
+            // back off with some jitter, so the nodes waiting for a lease spread out.
+            long sleep = delay / 2 + (long) (random.nextDouble() * (delay / 2 + 1));
+            Thread.sleep(Math.min(sleep, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+            delay = Math.min(delay * 2, maxRecheck);
+          }
+        } finally {
+          if (lock == null) {
+            gate.lock.unlock();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      interrupted = true;
+    } catch (SQLException e) {
+      LOGGER.warn("Unable to lock " + id + " " + e.getMessage());
+    } finally {
+      if (lock == null) {
+        leave(id, gate);
+      }
+      if (waited) {
+        metrics.dequeued(System.nanoTime() - start, lock != null);
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (lock != null) {
+      if (debug) {
+        LOGGER.debug(Thread.currentThread() + " lock Granted " + id);
+      }
+      return lock;
+    }
+    LOGGER.warn(Thread.currentThread() + " Failed to lock " + id + " after " + timeout
+        + " ms, " + metrics);
+    throw new LockTimeoutException("Failed to lock node " + id);
+  }
+
+  /**
+   * Try to take the lease on an id, the caller holds the gate of the id.
+   *
+   * @param id
+   * @return the lock, or null if another node holds the lease.
+   * @throws SQLException
+   */
+  private JdbcLock take(String id) throws SQLException {
+    String owner = ownerId.get();
+    long now = System.currentTimeMillis();
+    Long token = store.take(id, owner, now, now + lease);
+    if (token == null) {
+      return null;
+    }
+    JdbcLock lock = new JdbcLock(id, owner, token);
+    lock.bind(this);
+    held.put(id, lock);
+    getRequestLocks().putQuiet(id, lock);
+    return lock;
+  }
+
+  /**
+   * @param id
+   * @return the lease held on the id, or null if nobody holds it.
+   */
+  private JdbcLock read(String id) {
+    try {
+      JdbcLock lock = store.read(id, System.currentTimeMillis());
+      if (lock != null) {
+        lock.bind(this);
+      }
+      return lock;
+    } catch (SQLException e) {
+      LOGGER.warn("Unable to read lock " + id + " " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Give up the lease and let the next local thread in, only if the current thread took
+   * the lock. A lock whose lease was lost is still unlocked, to let the next thread in.
+   *
+   * @param lock
+   */
+  protected void unlock(JdbcLock lock) {
+    if (lock.isHeldByCurrentThread() && !lock.isReleased()) {
+      if (debug) {
+        LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
+      }
+      String id = lock.getLocked();
+      lock.setReleased();
+      held.remove(id);
+      try {
+        store.release(id, lock.getOwner(), lock.getLockId());
+      } catch (SQLException e) {
+        // the lease will expire.
+        LOGGER.warn("Unable to release lock " + id + " " + e.getMessage());
+      }
+      Gate gate;
+      synchronized (gates) {
+        gate = gates.get(id);
+      }
+      if (gate != null && gate.lock.isHeldByCurrentThread()) {
+        gate.lock.unlock();
+        leave(id, gate);
+      }
+    }
+  }
+
+  /**
+   * Renew the leases of all the locks held on this node. Locks whose lease was lost are
+   * marked as no longer locked.
+   */
+  protected void renewLeases() {
+    List<JdbcLock> locks = new ArrayList<JdbcLock>(held.values());
+    try {
+      for (JdbcLock lost : store.renew(locks, System.currentTimeMillis() + lease)) {
+        LOGGER.warn("Lost the lease on " + lost.getLocked() + " token "
+            + lost.getLockId());
+        lost.setLost();
+        held.remove(lost.getLocked());
+      }
+    } catch (SQLException e) {
+      LOGGER.warn("Unable to renew " + locks.size() + " leases " + e.getMessage());
+    }
+  }
+
+  private Gate enter(String id) {
+    synchronized (gates) {
+      Gate gate = gates.get(id);
+      if (gate == null) {
+        gate = new Gate();
+        gates.put(id, gate);
+      }
+      gate.users++;
+      return gate;
+    }
+  }
+
+  private void leave(String id, Gate gate) {
+    synchronized (gates) {
+      gate.users--;
+      if (gate.users == 0) {
+        gates.remove(id);
+      }
+    }
+  }
+
+  /**
+   * @return the id of this node.
+   */
+  protected String getInstanceId() {
+    return instanceId;
+  }
+
+  /**
+   * @return the owner of leases taken by the current thread.
+   */
+  protected String getOwnerId() {
+    return ownerId.get();
+  }
+
+  /**
+   * @return the wait time and queue depth of this lock manager.
+   */
+  public LockMetrics getMetrics() {
+    return metrics;
+  }
+
+  private Cache<JdbcLock> getRequestLocks() {
+    return cacheManagerService.getCache(REQUEST_LOCKS, CacheScope.REQUEST);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#clearLocks()
+   */
+  public void clearLocks() {
+    // clearing the requestLocks will invoke unbind which will unlock.
+    getRequestLocks().clear();
+  }
+
+  /**
+   * @param componentContext
+   * @throws SQLException
+   */
+  protected void activate(ComponentContext componentContext) throws SQLException {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    Long l = (Long) properties.get(LEASE);
+    if (l != null) {
+      lease = l;
+    }
+    Long t = (Long) properties.get(TIMEOUT);
+    if (t != null) {
+      timeout = t;
+    }
+    Long r = (Long) properties.get(RECHECK);
+    if (r != null) {
+      recheck = r;
+    }
+    Long m = (Long) properties.get(MAX_RECHECK);
+    if (m != null) {
+      maxRecheck = m;
+    }
+    maxRecheck = Math.max(recheck, maxRecheck);
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(METRICS_NAME);
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(metrics, objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register lock metrics " + e.getMessage());
+    }
+    store = new LeaseStore(dataSourceService.getDataSource());
+    store.createTable();
+    renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Lock lease renewer " + instanceId);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(1, lease / 3);
+    renewer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        renewLeases();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop renewing and give up all the leases held here, so other nodes do not have to
+   * wait for them to expire.
+   *
+   * @param componentContext
+   */
+  protected void deactivate(ComponentContext componentContext) {
+    if (renewer != null) {
+      renewer.shutdownNow();
+      renewer = null;
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(METRICS_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to unregister lock metrics " + e.getMessage());
+    }
+    for (JdbcLock lock : new ArrayList<JdbcLock>(held.values())) {
+      lock.setLost();
+      held.remove(lock.getLocked());
+      try {
+        store.release(lock.getLocked(), lock.getOwner(), lock.getLockId());
+      } catch (SQLException e) {
+        LOGGER.warn("Unable to release lock " + lock.getLocked() + " " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param cacheManagerService
+   */
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  /**
+   * @param cacheManagerService
+   */
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+
+  /**
+   * @param dataSourceService
+   */
+  protected void bindDataSourceService(DataSourceService dataSourceService) {
+    this.dataSourceService = dataSourceService;
+  }
+
+  /**
+   * @param dataSourceService
+   */
+  protected void unbindDataSourceService(DataSourceService dataSourceService) {
+    this.dataSourceService = null;
+  }
+
+  /**
+   * The threads of this node using one id, the first thread to get the fair lock is the
+   * one that tries to take the lease.
+   */
+  private static class Gate {
+    private final ReentrantLock lock = new ReentrantLock(true);
+    /**
+     * The threads waiting for or holding the lock, guarded by the gates map.
+     */
+    private int users;
+  }
+}
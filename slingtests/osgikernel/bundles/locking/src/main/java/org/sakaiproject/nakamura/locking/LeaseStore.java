@@ -0,0 +1,294 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+/**
+ * Keeps lock leases in a database table, one row per locked id. A lease is held by an
+ * owner until it expires, and every time a lease is taken the token of the row goes up
+ * by one, so renewing or releasing with the token of an earlier lease does nothing. Rows
+ * are never deleted, a released lease has no owner, which keeps the tokens
+ * of an id increasing. Expiry times come from the clocks of the nodes, the lease must be
+ * much longer than the clock skew between them.
+ */
+public class LeaseStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LeaseStore.class);
+
+  private static final String TABLE = "sakai_lock";
+  private static final String CREATE = "create table " + TABLE
+      + " (lock_id varchar(255) not null primary key, owner varchar(255),"
+      + " token bigint not null, expires bigint not null)";
+  private static final String CHECK = "select count(*) from " + TABLE + " where 1 = 0";
+  private static final String TAKE = "update " + TABLE
+      + " set owner = ?, token = token + 1, expires = ?"
+      + " where lock_id = ? and (owner is null or expires < ?)";
+  private static final String INSERT = "insert into " + TABLE
+      + " (lock_id, owner, token, expires) values (?, ?, 1, ?)";
+  private static final String TOKEN = "select token from " + TABLE
+      + " where lock_id = ? and owner = ?";
+  private static final String RENEW = "update " + TABLE + " set expires = ?"
+      + " where lock_id = ? and owner = ? and token = ?";
+  private static final String RELEASE = "update " + TABLE
+      + " set owner = null, expires = 0 where lock_id = ? and owner = ? and token = ?";
+  private static final String READ = "select owner, token, expires from " + TABLE
+      + " where lock_id = ?";
+
+  private final DataSource dataSource;
+
+  /**
+   * @param dataSource
+   *          the database holding the lease table.
+   */
+  public LeaseStore(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * Create the lease table if it is not there.
+   *
+   * @throws SQLException
+   */
+  public void createTable() throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      Statement statement = connection.createStatement();
+      try {
+        statement.executeQuery(CHECK).close();
+      } catch (SQLException e) {
+        LOGGER.info("Creating lock table {} ", TABLE);
+        statement.executeUpdate(CREATE);
+      } finally {
+        statement.close();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Take the lease on an id if nobody holds it or the lease of the holder has expired.
+   *
+   * @param id
+   *          the locked id.
+   * @param owner
+   *          the new owner.
+   * @param now
+   *          the current time in ms.
+   * @param expires
+   *          the time in ms when the lease expires unless renewed.
+   * @return the token of the lease, or null if somebody else holds it.
+   * @throws SQLException
+   */
+  public Long take(String id, String owner, long now, long expires) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    boolean autoCommit = connection.getAutoCommit();
+    try {
+      connection.setAutoCommit(false);
+      Long token = null;
+      PreparedStatement take = connection.prepareStatement(TAKE);
+      try {
+        take.setString(1, owner);
+        take.setLong(2, expires);
+        take.setString(3, id);
+        take.setLong(4, now);
+        if (take.executeUpdate() == 1) {
+          token = readToken(connection, id, owner);
+        }
+      } finally {
+        take.close();
+      }
+      if (token == null && !exists(connection, id)) {
+        token = insert(connection, id, owner, expires);
+      }
+      connection.commit();
+      return token;
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+      connection.close();
+    }
+  }
+
+  /**
+   * Extend the leases, only those still held with the same token are extended.
+   *
+   * @param locks
+   *          the locks to renew.
+   * @param expires
+   *          the new expiry time in ms.
+   * @return the locks whose lease was lost.
+   * @throws SQLException
+   */
+  public List<JdbcLock> renew(List<JdbcLock> locks, long expires) throws SQLException {
+    List<JdbcLock> lost = new ArrayList<JdbcLock>();
+    if (locks.isEmpty()) {
+      return lost;
+    }
+    Connection connection = dataSource.getConnection();
+    try {
+      PreparedStatement renew = connection.prepareStatement(RENEW);
+      try {
+        for (JdbcLock lock : locks) {
+          renew.setLong(1, expires);
+          renew.setString(2, lock.getLocked());
+          renew.setString(3, lock.getOwner());
+          renew.setLong(4, lock.getLockId());
+          renew.addBatch();
+        }
+        int[] counts = renew.executeBatch();
+        for (int i = 0; i < counts.length; i++) {
+          // some drivers do not say how many rows a batched statement changed.
+          if (counts[i] == 0) {
+            lost.add(locks.get(i));
+          }
+        }
+      } finally {
+        renew.close();
+      }
+    } finally {
+      connection.close();
+    }
+    return lost;
+  }
+
+  /**
+   * Give up a lease, if it is still held with the same token.
+   *
+   * @param id
+   * @param owner
+   * @param token
+   * @throws SQLException
+   */
+  public void release(String id, String owner, long token) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      PreparedStatement release = connection.prepareStatement(RELEASE);
+      try {
+        release.setString(1, id);
+        release.setString(2, owner);
+        release.setLong(3, token);
+        release.executeUpdate();
+      } finally {
+        release.close();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * @param id
+   * @param now
+   *          the current time in ms.
+   * @return the lease on the id, or null if nobody holds an unexpired lease.
+   * @throws SQLException
+   */
+  public JdbcLock read(String id, long now) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      PreparedStatement read = connection.prepareStatement(READ);
+      try {
+        read.setString(1, id);
+        ResultSet rs = read.executeQuery();
+        try {
+          if (rs.next()) {
+            String owner = rs.getString(1);
+            long token = rs.getLong(2);
+            if (owner != null && rs.getLong(3) >= now) {
+              return new JdbcLock(id, owner, token);
+            }
+          }
+          return null;
+        } finally {
+          rs.close();
+        }
+      } finally {
+        read.close();
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  private Long readToken(Connection connection, String id, String owner)
+      throws SQLException {
+    PreparedStatement token = connection.prepareStatement(TOKEN);
+    try {
+      token.setString(1, id);
+      token.setString(2, owner);
+      ResultSet rs = token.executeQuery();
+      try {
+        return rs.next() ? rs.getLong(1) : null;
+      } finally {
+        rs.close();
+      }
+    } finally {
+      token.close();
+    }
+  }
+
+  private boolean exists(Connection connection, String id) throws SQLException {
+    PreparedStatement read = connection.prepareStatement(READ);
+    try {
+      read.setString(1, id);
+      ResultSet rs = read.executeQuery();
+      try {
+        return rs.next();
+      } finally {
+        rs.close();
+      }
+    } finally {
+      read.close();
+    }
+  }
+
+  private Long insert(Connection connection, String id, String owner, long expires)
+      throws SQLException {
+    PreparedStatement insert = connection.prepareStatement(INSERT);
+    try {
+      insert.setString(1, id);
+      insert.setString(2, owner);
+      insert.setLong(3, expires);
+      insert.executeUpdate();
+      return 1L;
+    } catch (SQLException e) {
+      // another node inserted the row first, and so holds the lease.
+      if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+        return null;
+      }
+      throw e;
+    } finally {
+      insert.close();
+    }
+  }
+}
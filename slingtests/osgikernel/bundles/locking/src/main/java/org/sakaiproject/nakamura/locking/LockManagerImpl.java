@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
@@ -29,15 +30,33 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to manage the locks. Threads in
+ * this JVM waiting for the same lock queue up in order, and an unlock hands the lock
+ * straight to the first thread in the queue and wakes it. Only the first thread in a
+ * queue checks the cache again on its own, to pick up locks released on another node of
+ * the cluster or expired from the cache.
  *
  * @scr.component immediate="true" metatype="no"
  * @scr.property name="service.description" value="In JVM Lock Manager"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="lock.timeout" value="30000" type="Long"
+ * @scr.property name="lock.recheck" value="500" type="Long"
  * @scr.service interface="org.sakaiproject.nakamura.api.locking.LockManager"
  * @scr.reference name="cacheManagerService"
  *                interface="org.sakaiproject.nakamura.api.memory.CacheManagerService"
@@ -56,6 +75,25 @@ public class LockManagerImpl implements LockManager {
    *
    */
   private static final String REQUEST_LOCKS = "lockmanager.requestmap";
+  /**
+   * The time in ms a thread waits for a lock before giving up.
+   */
+  private static final String TIMEOUT = "lock.timeout";
+  /**
+   * The time in ms between checks of the cache by the first thread waiting for a lock.
+   */
+  private static final String RECHECK = "lock.recheck";
+  private static final long DEFAULT_TIMEOUT = 30000L;
+  private static final long DEFAULT_RECHECK = 500L;
+  /**
+   * The number of stripes the wait queues are spread over, a power of 2.
+   */
+  private static final int STRIPES = 64;
+  /**
+   * The JMX name of the lock metrics.
+   */
+  private static final String METRICS_NAME =
+      "org.sakaiproject.nakamura.locking:type=LockMetrics";
   /**
    * The Logger
    */
@@ -80,6 +118,22 @@ public class LockManagerImpl implements LockManager {
    *
    */
   private SecureRandom random;
+  /**
+   * The wait queues, spread over stripes by the hash of the lock id.
+   */
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  /**
+   * The time in ms a thread waits for a lock.
+   */
+  private long timeout = DEFAULT_TIMEOUT;
+  /**
+   * The time in ms between checks of the cache by the first waiting thread.
+   */
+  private long recheck = DEFAULT_RECHECK;
+  /**
+   * Wait time and queue depth.
+   */
+  private final LockMetrics metrics = new LockMetrics();
   /**
    *
    */
@@ -94,7 +148,6 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
 
   /**
    * @throws NoSuchAlgorithmException
@@ -104,6 +157,9 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
   }
 
   public Lock getLock(String id) {
@@ -116,18 +172,23 @@ public class LockManagerImpl implements LockManager {
    */
   public Lock getLock(String id, boolean create) {
     LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
+    if (create && (lock == null || !lock.isLocked())) {
+      LockImpl newLock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
+      boolean acquired = false;
+      if (lock == null) {
+        lock = lockMap.putIfAbsent(id, newLock);
+        acquired = (lock == null);
+      } else {
+        // an unlocked lock left in the map, swap it only if nobody else has.
+        acquired = lockMap.replace(id, lock, newLock);
+        if (!acquired) {
           lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
         }
       }
+      if (acquired) {
+        lock = newLock;
+        getRequestLocks().putQuiet(id, lock);
+      }
     }
     if (lock != null) {
       lock.bind(this);
@@ -152,9 +213,59 @@ public class LockManagerImpl implements LockManager {
       if (debug) {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
-      lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      String id = lock.getLocked();
+      Stripe stripe = getStripe(id);
+      LinkedList<Waiter> queue;
+      Waiter next = null;
+      stripe.lock.lock();
+      try {
+        queue = stripe.queues.get(id);
+        if (queue != null && !queue.isEmpty()) {
+          // the first waiter stays at the head of the queue until the handover is done.
+          next = queue.getFirst();
+          next.handing = true;
+        }
+      } finally {
+        stripe.lock.unlock();
+      }
+
+      // the cache may go over the network, so don't hold up the stripe while in it.
+      LockImpl newLock = null;
+      boolean handed = false;
+      try {
+        if (next != null) {
+          // hand the lock to the first waiter, it never shows as free in between.
+          newLock = new LockImpl(id, random.nextLong(), next.ownerId, instanceId);
+          handed = lockMap.replace(id, lock, newLock);
+        }
+        lock.setLocked(false);
+        if (!handed) {
+          // only remove our own lock, another thread may already have replaced it.
+          lockMap.remove(id, lock);
+        }
+      } finally {
+        stripe.lock.lock();
+        try {
+          if (next != null) {
+            next.handing = false;
+          }
+          if (handed) {
+            newLock.bind(this);
+            next.granted = newLock;
+            queue.remove(next);
+            metrics.handedOff();
+            next.condition.signal();
+          } else {
+            // a waiter may have read the cache before the lock was removed.
+            queue = stripe.queues.get(id);
+            if (queue != null && !queue.isEmpty()) {
+              queue.getFirst().woken = true;
+              queue.getFirst().condition.signal();
+            }
+          }
+        } finally {
+          stripe.lock.unlock();
+        }
       }
     }
   }
@@ -179,38 +290,119 @@ public class LockManagerImpl implements LockManager {
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
-        return lock;
+    Lock lock = getLock(id);
+    if (lock != null && lock.isOwner()) {
+      if (debug) {
+        LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+      return lock;
+    }
+
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+    long recheckNanos = TimeUnit.MILLISECONDS.toNanos(recheck);
+    boolean interrupted = false;
+    LockImpl acquired = null;
+    Stripe stripe = getStripe(id);
+    stripe.lock.lock();
+    try {
+      Waiter waiter = new Waiter(threadId.get(), stripe.lock.newCondition());
+      LinkedList<Waiter> queue = stripe.queues.get(id);
+      if (queue == null) {
+        queue = new LinkedList<Waiter>();
+        stripe.queues.put(id, queue);
       }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+      queue.add(waiter);
+      metrics.queued(queue.size());
+      while (waiter.granted == null) {
+        if (interrupted && !waiter.handing) {
+          break;
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        if (queue.getFirst() == waiter && !waiter.handing) {
+          // the cache may go over the network, so don't hold up the stripe while in it.
+          waiter.woken = false;
+          stripe.lock.unlock();
+          try {
+            lock = getLock(id);
+          } finally {
+            stripe.lock.lock();
+          }
+          if (waiter.granted != null) {
+            break;
+          }
+          if (lock != null && lock.isOwner()) {
+            acquired = (LockImpl) lock;
+            break;
+          }
+          if (waiter.woken) {
+            // the lock was released while the cache was read, read it again.
+            continue;
+          }
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 && !waiter.handing) {
+          break;
+        }
+        try {
+          // a lock being handed over is waited for past the timeout, it is never lost.
+          waiter.condition.awaitNanos(remaining <= 0 ? recheckNanos : Math.min(remaining,
+              recheckNanos));
+        } catch (InterruptedException e) {
+          interrupted = true;
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
       }
+      if (waiter.granted != null) {
+        acquired = waiter.granted;
+      } else {
+        boolean first = queue.getFirst() == waiter;
+        queue.remove(waiter);
+        if (first && acquired == null && !queue.isEmpty()) {
+          // let the next waiter check the cache.
+          queue.getFirst().woken = true;
+          queue.getFirst().condition.signal();
+        }
+      }
+      if (queue.isEmpty()) {
+        stripe.queues.remove(id);
+      }
+      metrics.dequeued(System.nanoTime() - start, acquired != null);
+    } finally {
+      stripe.lock.unlock();
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
     }
+    if (acquired != null) {
+      // a lock handed over by another thread is registered with this request here.
+      getRequestLocks().putQuiet(id, acquired);
+      acquired.bind(this);
+      if (debug) {
+        LOGGER.debug(Thread.currentThread() + " lock Granted " + acquired.getLocked());
+      }
+      return acquired;
+    }
+    LOGGER.warn(Thread.currentThread() + " Failed to lock " + id + " after " + timeout
+        + " ms, " + metrics);
     throw new LockTimeoutException("Failed to lock node " + id);
   }
 
+  /**
+   * @return the wait time and queue depth of this lock manager.
+   */
+  public LockMetrics getMetrics() {
+    return metrics;
+  }
+
+  private Stripe getStripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 16);
+    return stripes[h & (STRIPES - 1)];
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -223,20 +415,102 @@ public class LockManagerImpl implements LockManager {
   }
 
  
+  /**
+   * @param componentContext
+   */
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    Long t = (Long) properties.get(TIMEOUT);
+    if (t != null) {
+      timeout = t;
+    }
+    Long r = (Long) properties.get(RECHECK);
+    if (r != null) {
+      recheck = r;
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(METRICS_NAME);
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(metrics, objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register lock metrics " + e.getMessage());
+    }
+  }
+
+  /**
+   * @param componentContext
+   */
+  protected void deactivate(ComponentContext componentContext) {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(METRICS_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to unregister lock metrics " + e.getMessage());
+    }
+  }
+
   /**
    * @param cacheManagerService
    */
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
+    cacheManagerService.registerClassLoader(LOCKMAP, getClass().getClassLoader());
     lockMap = cacheManagerService.getCache(LOCKMAP, CacheScope.CLUSTERREPLICATED);
   }
   /**
    * @param cacheManagerService
    */
   protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    cacheManagerService.registerClassLoader(LOCKMAP, null);
     this.cacheManagerService = null;
     lockMap = null;
   }
- 
- 
+
+  /**
+   * A thread waiting for a lock.
+   */
+  private static class Waiter {
+    /**
+     * The owner id of the waiting thread, the lock handed over is created with it.
+     */
+    private final long ownerId;
+    /**
+     * Signalled when the lock is handed over or might be free.
+     */
+    private final Condition condition;
+    /**
+     * The lock handed over by the unlocking thread, guarded by the stripe lock.
+     */
+    private LockImpl granted;
+    /**
+     * Set when the waiter is signalled without a lock, so a signal sent while the first
+     * waiter is reading the cache is not lost. Guarded by the stripe lock.
+     */
+    private boolean woken;
+    /**
+     * Set while an unlocking thread writes the lock handed over to the cache, the waiter
+     * neither reads the cache nor leaves the queue until it is done. Guarded by the stripe
+     * lock.
+     */
+    private boolean handing;
+
+    private Waiter(long ownerId, Condition condition) {
+      this.ownerId = ownerId;
+      this.condition = condition;
+    }
+  }
+
+  /**
+   * The wait queues of the lock ids that hash to one stripe.
+   */
+  private static class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, LinkedList<Waiter>> queues =
+        new HashMap<String, LinkedList<Waiter>>();
+  }
 }
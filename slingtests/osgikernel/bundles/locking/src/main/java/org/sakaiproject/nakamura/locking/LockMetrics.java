@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how long threads wait for locks in {@link LockManagerImpl} or
+ * {@link JdbcLockManager} and how deep the wait queues get. Locks granted without waiting
+ * are not counted.
+ */
+public class LockMetrics implements LockMetricsMBean {
+
+  /**
+   * The number of waits that ended with the lock.
+   */
+  private final AtomicLong waits = new AtomicLong();
+  /**
+   * The number of waits that ended without the lock.
+   */
+  private final AtomicLong timeouts = new AtomicLong();
+  /**
+   * The number of locks passed straight from the unlocking thread to a waiting thread.
+   */
+  private final AtomicLong handoffs = new AtomicLong();
+  /**
+   * The total time spent waiting, in nanoseconds.
+   */
+  private final AtomicLong totalWait = new AtomicLong();
+  /**
+   * The longest wait, in nanoseconds.
+   */
+  private final AtomicLong maxWait = new AtomicLong();
+  /**
+   * The number of threads waiting now.
+   */
+  private final AtomicInteger waiting = new AtomicInteger();
+  /**
+   * The longest queue seen for a single lock.
+   */
+  private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+  /**
+   * A thread joined a wait queue.
+   *
+   * @param depth
+   *          the length of the queue including the thread.
+   */
+  protected void queued(int depth) {
+    waiting.incrementAndGet();
+    int max = maxQueueDepth.get();
+    while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+      max = maxQueueDepth.get();
+    }
+  }
+
+  /**
+   * A thread left a wait queue.
+   *
+   * @param nanos
+   *          the time it waited.
+   * @param acquired
+   *          true if it left with the lock.
+   */
+  protected void dequeued(long nanos, boolean acquired) {
+    waiting.decrementAndGet();
+    if (acquired) {
+      waits.incrementAndGet();
+    } else {
+      timeouts.incrementAndGet();
+    }
+    totalWait.addAndGet(nanos);
+    long max = maxWait.get();
+    while (nanos > max && !maxWait.compareAndSet(max, nanos)) {
+      max = maxWait.get();
+    }
+  }
+
+  /**
+   * A lock was passed straight to a waiting thread.
+   */
+  protected void handedOff() {
+    handoffs.incrementAndGet();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockMetricsMBean#getWaitCount()
+   */
+  public long getWaitCount() {
+    return waits.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockMetricsMBean#getTimeoutCount()
+   */
+  public long getTimeoutCount() {
+    return timeouts.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockMetricsMBean#getHandoffCount()
+   */
+  public long getHandoffCount() {
+    return handoffs.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockMetricsMBean#getAverageWait()
+   */
+  public double getAverageWait() {
+    long n = waits.get() + timeouts.get();
+    return n == 0 ? 0 : (double) totalWait.get() / n / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockMetricsMBean#getMaxWait()
+   */
+  public long getMaxWait() {
+    return TimeUnit.NANOSECONDS.toMillis(maxWait.get());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockMetricsMBean#getWaiting()
+   */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockMetricsMBean#getMaxQueueDepth()
+   */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "waits=" + getWaitCount() + " timeouts=" + getTimeoutCount() + " handoffs="
+        + getHandoffCount() + " averageWait=" + String.format("%.1f", getAverageWait())
+        + "ms maxWait=" + getMaxWait() + "ms waiting=" + getWaiting()
+        + " maxQueueDepth=" + getMaxQueueDepth();
+  }
+}
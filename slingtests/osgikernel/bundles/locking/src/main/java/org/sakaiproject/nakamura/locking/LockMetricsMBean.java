@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * JMX view of the waits for locks in a lock manager.
+ */
+public interface LockMetricsMBean {
+
+  /**
+   * @return the number of waits that ended with the lock.
+   */
+  long getWaitCount();
+
+  /**
+   * @return the number of waits that ended without the lock.
+   */
+  long getTimeoutCount();
+
+  /**
+   * @return the number of locks passed straight from the unlocking thread to a waiting
+   *         thread.
+   */
+  long getHandoffCount();
+
+  /**
+   * @return the average wait in ms.
+   */
+  double getAverageWait();
+
+  /**
+   * @return the longest wait in ms.
+   */
+  long getMaxWait();
+
+  /**
+   * @return the number of threads waiting now.
+   */
+  int getWaiting();
+
+  /**
+   * @return the longest queue seen for a single lock.
+   */
+  int getMaxQueueDepth();
+}
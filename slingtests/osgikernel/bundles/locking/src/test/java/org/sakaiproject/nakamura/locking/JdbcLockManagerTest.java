@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.persistence.DataSourceService;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs two lock managers, two nodes of a cluster, over one embedded database.
+ */
+public class JdbcLockManagerTest {
+
+  private static int db;
+  private EmbeddedDataSource dataSource;
+  private JdbcLockManager nodeA;
+  private JdbcLockManager nodeB;
+
+  /**
+   * @throws Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    dataSource = new EmbeddedDataSource();
+    dataSource.setDatabaseName("target/locks" + System.currentTimeMillis() + "_" + db++);
+    dataSource.setCreateDatabase("create");
+    nodeA = createNode(500, 50);
+    nodeB = createNode(500, 50);
+  }
+
+  /**
+   *
+   */
+  @After
+  public void tearDown() {
+    nodeA.deactivate(null);
+    nodeB.deactivate(null);
+  }
+
+  private JdbcLockManager createNode(long timeout, long lease) throws Exception {
+    Cache<Object> requestCache = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache("jdbclockmanager.requestmap", CacheScope.REQUEST))
+        .andReturn(requestCache).anyTimes();
+    DataSourceService dataSourceService = createMock(DataSourceService.class);
+    expect(dataSourceService.getDataSource()).andReturn(dataSource).anyTimes();
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("lock.timeout", timeout);
+    properties.put("lock.lease", lease);
+    properties.put("lock.recheck", 10L);
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    replay(cacheManagerService, dataSourceService, componentContext);
+
+    JdbcLockManager lockManager = new JdbcLockManager();
+    lockManager.bindCacheManagerService(cacheManagerService);
+    lockManager.bindDataSourceService(dataSourceService);
+    lockManager.activate(componentContext);
+    return lockManager;
+  }
+
+  @Test
+  public void testLockAcrossNodes() throws Exception {
+    Lock lock = nodeA.waitForLock("/messages/a");
+    assertTrue(lock.isOwner());
+    assertTrue(lock.isLocal());
+    // a free lock is taken without waiting.
+    assertEquals(0, nodeA.getMetrics().getWaitCount());
+
+    Lock other = nodeB.getLock("/messages/a");
+    assertNotNull(other);
+    assertFalse(other.isOwner());
+    assertFalse(other.isLocal());
+    assertEquals(lock.getLockId(), other.getLockId());
+    try {
+      nodeB.waitForLock("/messages/a");
+      fail("Node B must not get a lock held by node A");
+    } catch (LockTimeoutException e) {
+      // expected
+    }
+    assertEquals(1, nodeB.getMetrics().getTimeoutCount());
+
+    long token = lock.getLockId();
+    lock.unlock();
+    assertFalse(lock.isLocked());
+    assertEquals(null, nodeB.getLock("/messages/a", false));
+    Lock next = nodeB.waitForLock("/messages/a");
+    assertTrue(next.isOwner());
+    assertTrue(next.getLockId() > token);
+    next.unlock();
+  }
+
+  @Test
+  public void testWaitForRelease() throws Exception {
+    final Lock lock = nodeA.waitForLock("/messages/b");
+    final AtomicReference<Lock> granted = new AtomicReference<Lock>();
+    final CountDownLatch done = new CountDownLatch(1);
+    new Thread() {
+      public void run() {
+        try {
+          granted.set(nodeB.waitForLock("/messages/b"));
+          granted.get().unlock();
+        } catch (LockTimeoutException e) {
+          // left unset.
+        } finally {
+          done.countDown();
+        }
+      }
+    }.start();
+    Thread.sleep(100);
+    lock.unlock();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNotNull(granted.get());
+    assertTrue(granted.get().getLockId() > lock.getLockId());
+    assertEquals(1, nodeB.getMetrics().getWaitCount());
+  }
+
+  @Test
+  public void testThreadsOfOneNode() throws Exception {
+    final Lock lock = nodeA.waitForLock("/messages/c");
+    final AtomicReference<Lock> granted = new AtomicReference<Lock>();
+    final CountDownLatch done = new CountDownLatch(1);
+    new Thread() {
+      public void run() {
+        try {
+          Lock other = nodeA.getLock("/messages/c");
+          if (other.isOwner()) {
+            return;
+          }
+          granted.set(nodeA.waitForLock("/messages/c"));
+          granted.get().unlock();
+        } catch (LockTimeoutException e) {
+          // left unset.
+        } finally {
+          done.countDown();
+        }
+      }
+    }.start();
+    Thread.sleep(100);
+    lock.unlock();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertNotNull(granted.get());
+  }
+
+  @Test
+  public void testExpiredLeaseIsTakenOver() throws Exception {
+    // a node that died holding the lock.
+    LeaseStore store = new LeaseStore(dataSource);
+    long now = System.currentTimeMillis();
+    Long token = store.take("/messages/d", "dead:node", now, now + 200);
+    assertNotNull(token);
+    Lock lock = nodeB.waitForLock("/messages/d");
+    assertTrue(lock.isOwner());
+    assertTrue(lock.getLockId() > token);
+    lock.unlock();
+  }
+
+  @Test
+  public void testLeaseIsRenewed() throws Exception {
+    Lock lock = nodeA.waitForLock("/messages/e");
+    Thread.sleep(300);
+    assertTrue(lock.isOwner());
+    try {
+      nodeB.waitForLock("/messages/e");
+      fail("Node B must not get a lock whose lease is renewed");
+    } catch (LockTimeoutException e) {
+      // expected
+    }
+    lock.unlock();
+  }
+
+  @Test
+  public void testLostLease() throws Exception {
+    Lock lock = nodeA.waitForLock("/messages/f");
+    Connection connection = dataSource.getConnection();
+    try {
+      Statement statement = connection.createStatement();
+      statement.executeUpdate("update sakai_lock set owner = 'somebody:else', "
+          + "token = token + 1, expires = " + (System.currentTimeMillis() + 60000)
+          + " where lock_id = '/messages/f'");
+      statement.close();
+    } finally {
+      connection.close();
+    }
+    nodeA.renewLeases();
+    assertFalse(lock.isLocked());
+    assertFalse(lock.isOwner());
+    // unlocking a lost lock lets the other threads of the node in.
+    lock.unlock();
+    Lock other = nodeA.getLock("/messages/f");
+    assertEquals("somebody:else", other.getOwner());
+  }
+
+  @Test
+  public void testDeactivateReleasesLeases() throws Exception {
+    Lock lock = nodeA.waitForLock("/messages/g");
+    nodeA.deactivate(null);
+    assertFalse(lock.isLocked());
+    Lock next = nodeB.getLock("/messages/g");
+    assertTrue(next.isOwner());
+    next.unlock();
+  }
+}
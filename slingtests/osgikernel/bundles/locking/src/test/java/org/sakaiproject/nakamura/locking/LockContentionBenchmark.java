@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 500 senders each lock the message store of one recipient, as
+ * MessagingServiceImpl does when a message is created, hold it while the message is
+ * written and unlock. Compares {@link LockManagerImpl#waitForLock(String)} against the
+ * earlier loop that polled getLock with a growing sleep. Not run as part of the unit
+ * tests, run the main method by hand.
+ */
+public class LockContentionBenchmark {
+
+  private static final int SENDERS = 500;
+  private static final String MAILBOX = "/_user/r/re/recipient/message";
+  /**
+   * The time a sender holds the lock, in ms.
+   */
+  private static final long WRITE_TIME = 2;
+
+  public static void main(String[] args) throws Exception {
+    for (int round = 0; round < 2; round++) {
+      run("waitForLock", false);
+      run("polling", true);
+    }
+  }
+
+  private static void run(String name, final boolean polling) throws Exception {
+    final LockManagerImpl lockManager = new LockManagerImpl();
+    lockManager.bindCacheManagerService(new BenchmarkCacheManagerService());
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(SENDERS);
+    final AtomicInteger failed = new AtomicInteger();
+    final long[] waits = new long[SENDERS];
+    for (int i = 0; i < SENDERS; i++) {
+      final int sender = i;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            long t0 = System.nanoTime();
+            Lock lock = polling ? pollForLock(lockManager, MAILBOX) : lockManager
+                .waitForLock(MAILBOX);
+            waits[sender] = System.nanoTime() - t0;
+            Thread.sleep(WRITE_TIME);
+            lock.unlock();
+          } catch (LockTimeoutException e) {
+            failed.incrementAndGet();
+          } catch (InterruptedException e) {
+            failed.incrementAndGet();
+          } finally {
+            lockManager.clearLocks();
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    long t0 = System.nanoTime();
+    start.countDown();
+    done.await();
+    long total = System.nanoTime() - t0;
+
+    long max = 0;
+    long sum = 0;
+    for (long w : waits) {
+      max = Math.max(max, w);
+      sum += w;
+    }
+    System.out.println(name + ": " + SENDERS + " senders in "
+        + TimeUnit.NANOSECONDS.toMillis(total) + " ms, average wait "
+        + TimeUnit.NANOSECONDS.toMillis(sum / SENDERS) + " ms, max wait "
+        + TimeUnit.NANOSECONDS.toMillis(max) + " ms, failed " + failed.get());
+    if (!polling) {
+      System.out.println("  " + lockManager.getMetrics());
+    }
+  }
+
+  /**
+   * The loop waitForLock used before the wait queues.
+   */
+  private static Lock pollForLock(LockManagerImpl lockManager, String id)
+      throws LockTimeoutException, InterruptedException {
+    long sleepTime = 100;
+    int tries = 0;
+    while (tries++ < 300) {
+      Lock lock = lockManager.getLock(id);
+      if (lock != null && lock.isOwner()) {
+        return lock;
+      }
+      if (sleepTime < 500) {
+        sleepTime = sleepTime + 10;
+      }
+      Thread.sleep(sleepTime);
+    }
+    throw new LockTimeoutException("Failed to lock node " + id);
+  }
+
+  /**
+   * A shared lock map and a request map per thread.
+   */
+  private static class BenchmarkCacheManagerService implements CacheManagerService {
+    private final Cache<Object> lockMap = new SynchronizedCache<Object>();
+    private final ThreadLocal<Cache<Object>> requestMap = new ThreadLocal<Cache<Object>>() {
+      @Override
+      protected Cache<Object> initialValue() {
+        return new MapCacheImpl<Object>();
+      }
+    };
+
+    @SuppressWarnings("unchecked")
+    public <T> Cache<T> getCache(String name, CacheScope scope) {
+      if (CacheScope.REQUEST.equals(scope)) {
+        return (Cache<T>) requestMap.get();
+      }
+      return (Cache<T>) lockMap;
+    }
+
+    public void unbind(CacheScope scope) {
+    }
+
+    public void registerClassLoader(String name, ClassLoader classLoader) {
+    }
+  }
+
+  /**
+   * The lock map is shared by all the senders.
+   */
+  private static class SynchronizedCache<V> extends MapCacheImpl<V> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized V get(String key) {
+      return super.get(key);
+    }
+
+    @Override
+    public synchronized V putIfAbsent(String key, V payload) {
+      return super.putIfAbsent(key, payload);
+    }
+
+    @Override
+    public synchronized boolean replace(String key, V expected, V payload) {
+      return super.replace(key, expected, payload);
+    }
+
+    @Override
+    public synchronized boolean remove(String key, V expected) {
+      return super.remove(key, expected);
+    }
+  }
+}
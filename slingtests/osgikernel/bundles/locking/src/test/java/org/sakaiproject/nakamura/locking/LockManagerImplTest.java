@@ -17,21 +17,35 @@
  */
 package org.sakaiproject.nakamura.locking;
 
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  *
  */
@@ -57,6 +71,9 @@ public class LockManagerImplTest {
     expect(
         cacheManagerService.getCache("lockmanager.requestmap",
             CacheScope.REQUEST)).andReturn(requestCache).anyTimes();
+    cacheManagerService.registerClassLoader(eq("lockmanager.lockmap"),
+        (ClassLoader) anyObject());
+    expectLastCall().anyTimes();
 
     replay(cacheManagerService);
 
@@ -69,6 +86,7 @@ public class LockManagerImplTest {
    */
   @After
   public void tearDown() {
+    lockManager.deactivate(null);
     lockManager.unbindCacheManagerService(cacheManagerService);
     verify(cacheManagerService);
   }
@@ -88,6 +106,18 @@ public class LockManagerImplTest {
     assertEquals(false, l.isLocked());
   }
 
+  @Test
+  public void testUnlockDoesNotRemoveNewOwner() {
+    LockImpl first = (LockImpl) lockManager.getLock("foo");
+    first.setLocked(false);
+    LockImpl second = (LockImpl) lockManager.getLock("foo");
+    assertEquals(true, second != first);
+    assertEquals(true, second.isLocked());
+    first.setLocked(true);
+    lockManager.unlock(first);
+    assertEquals(second, lockManager.getLock("foo", false));
+  }
+
   @Test
   public void testClearLocks() {
     LockImpl l = (LockImpl) lockManager.getLock("foo");
@@ -97,4 +127,104 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaitForLockHandoff() throws Exception {
+    // the recheck is longer than the test, only the unlock can wake the waiter.
+    activate(10000L, 10000L);
+    Lock held = lockManager.waitForLock("foo");
+    List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(1);
+    startWaiter("first", granted, done);
+    waitForWaiters(1);
+
+    long start = System.nanoTime();
+    held.unlock();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    assertEquals(1, granted.size());
+    assertEquals(1, lockManager.getMetrics().getHandoffCount());
+    assertEquals(1, lockManager.getMetrics().getWaitCount());
+    assertEquals(0, lockManager.getMetrics().getWaiting());
+  }
+
+  @Test
+  public void testWaitForLockInOrder() throws Exception {
+    activate(10000L, 10000L);
+    Lock held = lockManager.waitForLock("foo");
+    List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch done = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      startWaiter("waiter" + i, granted, done);
+      waitForWaiters(i + 1);
+    }
+    assertEquals(3, lockManager.getMetrics().getMaxQueueDepth());
+
+    held.unlock();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals("[waiter0, waiter1, waiter2]", granted.toString());
+    assertEquals(3, lockManager.getMetrics().getHandoffCount());
+  }
+
+  @Test
+  public void testWaitForLockTimeout() throws Exception {
+    activate(200L, 50L);
+    lockManager.waitForLock("foo");
+    final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("foo");
+        } catch (LockTimeoutException e) {
+          errors.add(e);
+        }
+      }
+    };
+    t.start();
+    t.join(5000);
+    assertEquals(1, errors.size());
+    assertEquals(1, lockManager.getMetrics().getTimeoutCount());
+    assertEquals(0, lockManager.getMetrics().getWaiting());
+  }
+
+  private void activate(long timeout, long recheck) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("lock.timeout", timeout);
+    properties.put("lock.recheck", recheck);
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    expect(componentContext.getProperties()).andReturn(properties);
+    replay(componentContext);
+    lockManager.activate(componentContext);
+    verify(componentContext);
+  }
+
+  /**
+   * Start a thread that waits for the lock on foo, records its name and passes the lock
+   * on.
+   */
+  private void startWaiter(final String name, final List<String> granted,
+      final CountDownLatch done) {
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Lock lock = lockManager.waitForLock("foo");
+          granted.add(name);
+          lock.unlock();
+        } catch (LockTimeoutException e) {
+          fail(e.getMessage());
+        } finally {
+          done.countDown();
+        }
+      }
+    }.start();
+  }
+
+  private void waitForWaiters(int n) throws InterruptedException {
+    for (int i = 0; i < 500 && lockManager.getMetrics().getWaiting() < n; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(n, lockManager.getMetrics().getWaiting());
+  }
+
 }
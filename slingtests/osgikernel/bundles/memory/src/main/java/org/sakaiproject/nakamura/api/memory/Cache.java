@@ -37,6 +37,69 @@ public interface Cache<V> {
    */
   V put(String key, V payload);
 
+  /**
+   * Cache an object without retrieving the previous value, cheaper than
+   * {@link #put(String, Object)} when the previous value is not needed.
+   *
+   * @param key
+   *          The key with which to find the object.
+   * @param payload
+   *          The object to cache.
+   */
+  void putQuiet(String key, V payload);
+
+  /**
+   * Cache an object only if there is no entry for the key. The check and the put
+   * are atomic with respect to other operations on this node.
+   *
+   * @param key
+   *          The key with which to find the object.
+   * @param payload
+   *          The object to cache.
+   * @return the existing value, in which case the payload was not cached, or null
+   *         if the payload was cached.
+   */
+  V putIfAbsent(String key, V payload);
+
+  /**
+   * Replace the entry for a key only if it is currently the expected value. The
+   * check and the put are atomic with respect to other operations on this node.
+   *
+   * @param key
+   *          The cache key.
+   * @param expected
+   *          The value the entry must currently have.
+   * @param payload
+   *          The new value.
+   * @return true if the entry was replaced.
+   */
+  boolean replace(String key, V expected, V payload);
+
+  /**
+   * Remove the entry for a key only if it is currently the expected value.
+   *
+   * @param key
+   *          The cache key.
+   * @param expected
+   *          The value the entry must currently have.
+   * @return true if the entry was removed.
+   */
+  boolean remove(String key, V expected);
+
+  /**
+   * Get the entry for a key, loading and caching it if it is not there. The loader
+   * is invoked at most once at a time per missing key on this node, other calls for
+   * the same key wait for that load. Other operations, and other keys, are not held up
+   * by a load.
+   *
+   * @param key
+   *          The cache key.
+   * @param loader
+   *          Creates the value if it is missing.
+   * @return the cached or newly loaded value, or null if the loader returned null.
+   */
+  V getOrCompute(String key, CacheLoader<V> loader);
+
   /**
    * Test for a non expired entry in the cache.
    *
@@ -71,8 +134,9 @@ public interface Cache<V> {
   void remove(String key);
 
   /**
-   * Remove the key and any child keys from the cache, this is an expensive
-   * operation.
+   * Remove the key and any child keys from the cache. Child keys are those that
+   * start with the key followed by a /. Implementations index keys so that the
+   * cost is proportional to the number of keys removed.
    *
    * @param key
    */
@@ -37,6 +37,18 @@ public interface CacheManagerService {
    */
   <T> Cache<T> getCache(String name, CacheScope scope);
 
+  /**
+   * Register the classloader that can see the classes of the values stored in a cluster
+   * cache. Values replicated from other nodes are deserialized with this classloader, so
+   * the owner of a {@link CacheScope#CLUSTERREPLICATED} cache holding its own classes
+   * should register before using the cache. Values that cannot be deserialized are
+   * invalidated instead.
+   *
+   * @param name the name of the cache.
+   * @param classLoader the classloader for values in the cache, null to unregister.
+   */
+  void registerClassLoader(String name, ClassLoader classLoader);
+
   /**
    * Unbind the the context specified in scope.
    *
@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * A transport that carries cache replication messages between the nodes of a cluster.
+ * Implementations may use JMS, multicast or anything else, the only requirement is that
+ * a message published on one node is eventually delivered to the listeners on every node
+ * in the cluster, including the node that published it.
+ */
+public interface CacheReplicationChannel {
+
+  /**
+   * Publish a message to all nodes in the cluster. Implementations should not block for
+   * long, as this is invoked from the replication flush thread.
+   *
+   * @param message
+   *          the message to send.
+   */
+  void publish(CacheReplicationMessage message);
+
+  /**
+   * @param listener
+   *          a listener that will be notified of every message delivered by this channel.
+   */
+  void addListener(CacheReplicationListener listener);
+
+  /**
+   * @param listener
+   *          the listener to remove.
+   */
+  void removeListener(CacheReplicationListener listener);
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+import java.io.Serializable;
+
+/**
+ * A single operation on a cluster cache.
+ */
+public class CacheReplicationEvent implements Serializable {
+
+  /**
+   * The type of operation.
+   */
+  public enum Type {
+    /**
+     * Store the value on the remote node (CLUSTERREPLICATED caches only).
+     */
+    PUT(),
+    /**
+     * Remove the key on the remote node.
+     */
+    REMOVE(),
+    /**
+     * Remove the key and all its children on the remote node.
+     */
+    REMOVE_CHILDREN(),
+    /**
+     * Clear the whole cache on the remote node.
+     */
+    CLEAR();
+  }
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -2370863342207693853L;
+  private Type type;
+  private String cacheName;
+  private String key;
+  private transient Serializable value;
+  private byte[] payload;
+
+  /**
+   * @param type
+   *          the operation.
+   * @param cacheName
+   *          the name of the cache the operation applies to.
+   * @param key
+   *          the key, null for {@link Type#CLEAR}.
+   * @param value
+   *          the value, only used for {@link Type#PUT}.
+   */
+  public CacheReplicationEvent(Type type, String cacheName, String key, Serializable value) {
+    this.type = type;
+    this.cacheName = cacheName;
+    this.key = key;
+    this.value = value;
+  }
+
+  /**
+   * @return the operation.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the name of the cache.
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the key, null if the operation is a {@link Type#CLEAR}.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the value for a {@link Type#PUT}, otherwise null. The value is not sent over
+   *         the channel, a received event only carries the {@link #getPayload()}.
+   */
+  public Serializable getValue() {
+    return value;
+  }
+
+  /**
+   * @return the serialized value of a {@link Type#PUT} as sent over the channel, null
+   *         before the event has been serialized for sending.
+   */
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  /**
+   * @param payload
+   *          the serialized value.
+   * @return a copy of this event, carrying the serialized value instead of the value.
+   */
+  public CacheReplicationEvent withPayload(byte[] payload) {
+    CacheReplicationEvent event = new CacheReplicationEvent(type, cacheName, key, null);
+    event.payload = payload;
+    return event;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return type + "[" + cacheName + ":" + key + "]";
+  }
+}
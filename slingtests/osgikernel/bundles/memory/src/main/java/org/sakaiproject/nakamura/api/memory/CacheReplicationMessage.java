@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of cache operations sent from one node to the rest of the cluster.
+ */
+public class CacheReplicationMessage implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 4326590131946520338L;
+  private String origin;
+  private List<CacheReplicationEvent> events;
+
+  /**
+   * @param origin
+   *          the id of the node that generated the message.
+   * @param events
+   *          the operations, in the order they were performed.
+   */
+  public CacheReplicationMessage(String origin, List<CacheReplicationEvent> events) {
+    this.origin = origin;
+    this.events = new ArrayList<CacheReplicationEvent>(events);
+  }
+
+  /**
+   * @return the id of the node that generated the message.
+   */
+  public String getOrigin() {
+    return origin;
+  }
+
+  /**
+   * @return the operations, in the order they were performed.
+   */
+  public List<CacheReplicationEvent> getEvents() {
+    return events;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "CacheReplicationMessage from " + origin + " " + events;
+  }
+}
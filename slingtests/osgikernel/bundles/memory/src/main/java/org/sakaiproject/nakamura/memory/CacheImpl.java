@@ -21,17 +21,43 @@ import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
- *
+ * A {@link Cache} backed by an ehcache. When the settings of the cache change the
+ * ehcache is replaced: the new ehcache is swapped in with a single volatile write, and
+ * the old one is only disposed of after that. An operation that was already running on
+ * the old ehcache when it was disposed of is retried once on the new one.
  */
 public class CacheImpl<V> implements Cache<V> {
 
   private String cacheName;
-  private net.sf.ehcache.Cache cache;
+  private volatile Binding binding;
+  /**
+   * The loads in progress for getOrCompute, by key.
+   */
+  private ConcurrentHashMap<String, FutureTask<V>> loading = new ConcurrentHashMap<String, FutureTask<V>>();
+
+  /**
+   * An ehcache and its key index, swapped together.
+   */
+  private static final class Binding {
+    private final net.sf.ehcache.Cache cache;
+    private final CacheKeyIndex keyIndex;
+
+    private Binding(net.sf.ehcache.Cache cache, CacheKeyIndex keyIndex) {
+      this.cache = cache;
+      this.keyIndex = keyIndex;
+    }
+  }
 
   /**
    * @param cacheManager
@@ -44,24 +70,99 @@ public class CacheImpl<V> implements Cache<V> {
       cacheName = name;
     }
     synchronized (cacheManager) {
-      cache = cacheManager.getCache(cacheName);
-      if (cache == null) {
+      net.sf.ehcache.Cache c = cacheManager.getCache(cacheName);
+      if (c == null) {
         cacheManager.addCache(cacheName);
-        cache = cacheManager.getCache(cacheName);
-        if (cache == null) {
+        c = cacheManager.getCache(cacheName);
+        if (c == null) {
           throw new RuntimeException("Failed to create Cache with name " + cacheName);
         }
       }
+      bind(c);
     }
   }
 
+  /**
+   * Switch to another ehcache, which must already be registered with the cache manager.
+   * The caller disposes of the previous ehcache afterwards.
+   *
+   * @param c
+   *          the new ehcache.
+   */
+  void bind(net.sf.ehcache.Cache c) {
+    CacheKeyIndex index = findKeyIndex(c);
+    if (index == null) {
+      index = new CacheKeyIndex();
+      c.getCacheEventNotificationService().registerListener(index);
+    }
+    binding = new Binding(c, index);
+  }
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the underlying ehcache.
+   */
+  net.sf.ehcache.Cache getEhcache() {
+    return binding.cache;
+  }
+
+  /**
+   * @return the key index of the underlying ehcache.
+   */
+  CacheKeyIndex getKeyIndex() {
+    return binding.keyIndex;
+  }
+
+  /**
+   * @param cache
+   * @return the key index already attached to the ehcache, or null if there is none.
+   */
+  private static CacheKeyIndex findKeyIndex(net.sf.ehcache.Cache cache) {
+    Set<?> listeners = cache.getCacheEventNotificationService()
+        .getCacheEventListeners();
+    for (Object listener : listeners) {
+      if (listener instanceof CacheKeyIndex) {
+        return (CacheKeyIndex) listener;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param b
+   *          the binding the operation failed on.
+   * @param e
+   *          the failure.
+   * @return the binding to retry on, if the ehcache was replaced while the operation was
+   *         running.
+   */
+  private Binding retry(Binding b, IllegalStateException e) {
+    Binding current = binding;
+    if (current == b) {
+      throw e;
+    }
+    return current;
+  }
+
   /**
    * {@inheritDoc}
    * 
    * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
    */
   public void clear() {
-    cache.removeAll();
+    Binding b = binding;
+    try {
+      b.keyIndex.clear(b.cache);
+    } catch (IllegalStateException e) {
+      b = retry(b, e);
+      b.keyIndex.clear(b.cache);
+    }
   }
 
   /**
@@ -70,7 +171,12 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
    */
   public boolean containsKey(String key) {
-    return cache.isKeyInCache(key);
+    Binding b = binding;
+    try {
+      return b.cache.isKeyInCache(key);
+    } catch (IllegalStateException e) {
+      return retry(b, e).cache.isKeyInCache(key);
+    }
   }
 
   /**
@@ -78,9 +184,20 @@ public class CacheImpl<V> implements Cache<V> {
    * 
    * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
    */
-  @SuppressWarnings("unchecked")
   public V get(String key) {
-    Element e = cache.get(key);
+    Binding b = binding;
+    try {
+      V value = get(b, key);
+      b.keyIndex.purge(b.cache);
+      return value;
+    } catch (IllegalStateException e) {
+      return get(retry(b, e), key);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private V get(Binding b, String key) {
+    Element e = b.cache.get(key);
     if (e == null) {
       return null;
     }
@@ -92,26 +209,254 @@ public class CacheImpl<V> implements Cache<V> {
    * 
    * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
    */
-  @SuppressWarnings("unchecked")
   public V put(String key, V payload) {
+    Binding b = binding;
+    try {
+      return put(b, key, payload);
+    } catch (IllegalStateException e) {
+      return put(retry(b, e), key, payload);
+    }
+  }
+
+  private V put(Binding b, String key, V payload) {
     V previous = null;
-    if (cache.isKeyInCache(key)) {
-      Element e = cache.get(key);
-      if (e != null) {
-        previous = (V) e.getObjectValue();
-      }
+    synchronized (b.keyIndex.lockFor(key)) {
+      previous = get(b, key);
+      store(b, key, payload);
     }
-    cache.put(new Element(key, payload));
+    b.keyIndex.purge(b.cache);
     return previous;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putQuiet(java.lang.String, java.lang.Object)
+   */
+  public void putQuiet(String key, V payload) {
+    Binding b = binding;
+    try {
+      putQuiet(b, key, payload);
+    } catch (IllegalStateException e) {
+      putQuiet(retry(b, e), key, payload);
+    }
+  }
+
+  private void putQuiet(Binding b, String key, V payload) {
+    synchronized (b.keyIndex.lockFor(key)) {
+      store(b, key, payload);
+    }
+    b.keyIndex.purge(b.cache);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putIfAbsent(java.lang.String, java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    Binding b = binding;
+    try {
+      return putIfAbsent(b, key, payload);
+    } catch (IllegalStateException e) {
+      return putIfAbsent(retry(b, e), key, payload);
+    }
+  }
+
+  private V putIfAbsent(Binding b, String key, V payload) {
+    V existing = null;
+    synchronized (b.keyIndex.lockFor(key)) {
+      existing = get(b, key);
+      if (existing == null) {
+        store(b, key, payload);
+      }
+    }
+    b.keyIndex.purge(b.cache);
+    return existing;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.memory.Cache#replace(java.lang.String, java.lang.Object, java.lang.Object)
+   */
+  public boolean replace(String key, V expected, V payload) {
+    Binding b = binding;
+    try {
+      return replace(b, key, expected, payload);
+    } catch (IllegalStateException e) {
+      return replace(retry(b, e), key, expected, payload);
+    }
+  }
+
+  private boolean replace(Binding b, String key, V expected, V payload) {
+    synchronized (b.keyIndex.lockFor(key)) {
+      if (!isCurrent(b, key, expected)) {
+        return false;
+      }
+      store(b, key, payload);
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String, java.lang.Object)
+   */
+  public boolean remove(String key, V expected) {
+    Binding b = binding;
+    try {
+      return remove(b, key, expected);
+    } catch (IllegalStateException e) {
+      return remove(retry(b, e), key, expected);
+    }
+  }
+
+  private boolean remove(Binding b, String key, V expected) {
+    synchronized (b.keyIndex.lockFor(key)) {
+      if (!isCurrent(b, key, expected)) {
+        return false;
+      }
+      b.cache.remove(key);
+      b.keyIndex.remove(key);
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.memory.Cache#getOrCompute(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public V getOrCompute(String key, CacheLoader<V> loader) {
+    Binding b = binding;
+    try {
+      return getOrCompute(b, key, loader);
+    } catch (IllegalStateException e) {
+      return getOrCompute(retry(b, e), key, loader);
+    }
+  }
+
+  /**
+   * Only one thread loads a key at a time, others asking for the same key wait for that
+   * load. The load runs without holding the stripe lock, so it does not hold up other
+   * keys.
+   */
+  private V getOrCompute(final Binding b, final String key, final CacheLoader<V> loader) {
+    V value = get(b, key);
+    if (value != null) {
+      return value;
+    }
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+      public V call() {
+        V loaded = get(b, key);
+        if (loaded == null) {
+          loaded = loader.load(key);
+          if (loaded != null) {
+            synchronized (b.keyIndex.lockFor(key)) {
+              V existing = get(b, key);
+              if (existing == null) {
+                store(b, key, loaded);
+              } else {
+                loaded = existing;
+              }
+            }
+          }
+        }
+        return loaded;
+      }
+    });
+    FutureTask<V> inFlight = loading.putIfAbsent(key, task);
+    if (inFlight == null) {
+      inFlight = task;
+      try {
+        task.run();
+      } finally {
+        loading.remove(key, task);
+      }
+    }
+    value = waitFor(inFlight);
+    b.keyIndex.purge(b.cache);
+    return value;
+  }
+
+  /**
+   * @param task
+   *          a load.
+   * @return the result of the load, rethrowing anything the loader threw.
+   */
+  private V waitFor(FutureTask<V> task) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Put into the cache and the key index, the caller must hold the key lock.
+   *
+   * @param b
+   * @param key
+   * @param payload
+   */
+  private void store(Binding b, String key, V payload) {
+    b.keyIndex.add(key);
+    b.cache.put(new Element(key, payload));
+  }
+
+  /**
+   * @param b
+   * @param key
+   * @param expected
+   * @return true if there is an entry for key and it equals expected.
+   */
+  private boolean isCurrent(Binding b, String key, V expected) {
+    V current = get(b, key);
+    if (current == null) {
+      return false;
+    }
+    return current.equals(expected);
+  }
+
   /**
    * {@inherit-doc}
    * 
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    cache.remove(key);
+    Binding b = binding;
+    try {
+      remove(b, key);
+    } catch (IllegalStateException e) {
+      remove(retry(b, e), key);
+    }
+  }
+
+  private void remove(Binding b, String key) {
+    synchronized (b.keyIndex.lockFor(key)) {
+      b.cache.remove(key);
+      b.keyIndex.remove(key);
+    }
   }
 
   /**
@@ -120,15 +465,18 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
-    cache.remove(key);
-    if (!key.endsWith("/")) {
-      key = key + "/";
-    }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
-      }
+    Binding b = binding;
+    try {
+      removeChildren(b, key);
+    } catch (IllegalStateException e) {
+      removeChildren(retry(b, e), key);
+    }
+  }
+
+  private void removeChildren(Binding b, String key) {
+    remove(b, key);
+    for (String k : b.keyIndex.getChildren(key, b.cache)) {
+      remove(b, k);
     }
   }
 
@@ -137,12 +485,21 @@ public class CacheImpl<V> implements Cache<V> {
    * 
    * @see org.sakaiproject.nakamura.api.memory.Cache#list()
    */
-  @SuppressWarnings("unchecked")
   public List<V> list() {
-    List<String> keys = cache.getKeys();
+    Binding b = binding;
+    try {
+      return list(b);
+    } catch (IllegalStateException e) {
+      return list(retry(b, e));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<V> list(Binding b) {
+    List<String> keys = b.cache.getKeys();
     List<V> values = new ArrayList<V>();
     for (String k : keys) {
-      Element e = cache.get(k);
+      Element e = b.cache.get(k);
       if ( e != null ) {
         values.add((V) e.getObjectValue());
       }
@@ -0,0 +1,265 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link PathIndex} attached to an ehcache, shared by all the {@link CacheImpl}s that
+ * wrap that ehcache. The index always contains every key in the cache, but may contain
+ * keys that ehcache has since evicted or expired. Evicted and expired keys are queued by
+ * the listener and purged later, outside the ehcache locks, and keys that are no longer
+ * in the cache are dropped whenever the children of a key are read.
+ * <p>
+ * Changes to a key must be made while holding the stripe lock for that key, so that a
+ * purge cannot drop a key that is being put at the same time.
+ * </p>
+ */
+public class CacheKeyIndex implements CacheEventListener {
+
+  private static final int STRIPES = 32;
+  /**
+   * The number of evicted keys that triggers a purge.
+   */
+  private static final int PURGE_THRESHOLD = 1000;
+  private PathIndex index = new PathIndex();
+  private Object[] stripes = new Object[STRIPES];
+  private ConcurrentLinkedQueue<String> evicted = new ConcurrentLinkedQueue<String>();
+  private AtomicInteger evictedCount = new AtomicInteger();
+  private AtomicLong evictions = new AtomicLong();
+  private AtomicLong expirations = new AtomicLong();
+
+  public CacheKeyIndex() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  /**
+   * @param key
+   * @return the lock object that must be held while changing the key.
+   */
+  public Object lockFor(String key) {
+    return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+  }
+
+  /**
+   * @param key
+   */
+  public void add(String key) {
+    index.add(key);
+  }
+
+  /**
+   * @param key
+   */
+  public void remove(String key) {
+    index.remove(key);
+  }
+
+  /**
+   * Must not be called while holding a stripe lock.
+   *
+   * @param key
+   * @param cache
+   *          the cache the index belongs to.
+   * @return a snapshot of the keys below key that are still in the cache.
+   */
+  public List<String> getChildren(String key, Ehcache cache) {
+    List<String> children = index.getChildren(key);
+    for (Iterator<String> i = children.iterator(); i.hasNext();) {
+      String child = i.next();
+      if (!cache.isKeyInCache(child)) {
+        i.remove();
+        drop(child, cache);
+      }
+    }
+    return children;
+  }
+
+  /**
+   * @return the number of keys in the index, including any not yet purged.
+   */
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * Remove everything from the cache and the index, holding all the stripe locks.
+   *
+   * @param cache
+   */
+  public void clear(Ehcache cache) {
+    clear(cache, 0);
+  }
+
+  private void clear(Ehcache cache, int stripe) {
+    if (stripe == STRIPES) {
+      index.clear();
+      evicted.clear();
+      evictedCount.set(0);
+      cache.removeAll();
+    } else {
+      synchronized (stripes[stripe]) {
+        clear(cache, stripe + 1);
+      }
+    }
+  }
+
+  /**
+   * Drop keys that ehcache has evicted or expired, if enough have been queued. Called on
+   * reads as well as writes, and must not be called while holding a stripe lock.
+   *
+   * @param cache
+   */
+  public void purge(Ehcache cache) {
+    if (evictedCount.get() < PURGE_THRESHOLD) {
+      return;
+    }
+    String key = evicted.poll();
+    while (key != null) {
+      evictedCount.decrementAndGet();
+      drop(key, cache);
+      key = evicted.poll();
+    }
+  }
+
+  /**
+   * Remove a key from the index if it is not in the cache, checked under the stripe lock
+   * so that a concurrent put of the key is not lost.
+   *
+   * @param key
+   * @param cache
+   */
+  private void drop(String key, Ehcache cache) {
+    synchronized (lockFor(key)) {
+      if (!cache.isKeyInCache(key)) {
+        index.remove(key);
+      }
+    }
+  }
+
+  /**
+   * @return the number of entries ehcache has evicted to stay within its size.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the number of entries ehcache has found expired.
+   */
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+  private void queueEvicted(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      evicted.offer((String) element.getObjectKey());
+      evictedCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementEvicted(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    evictions.incrementAndGet();
+    queueEvicted(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementExpired(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    expirations.incrementAndGet();
+    queueEvicted(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementPut(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    // maintained by CacheImpl under the stripe lock.
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementRemoved(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    // maintained by CacheImpl under the stripe lock.
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementUpdated(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#notifyRemoveAll(net.sf.ehcache.Ehcache)
+   */
+  public void notifyRemoveAll(Ehcache cache) {
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see net.sf.ehcache.event.CacheEventListener#dispose()
+   */
+  public void dispose() {
+    index.clear();
+    evicted.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("The key index is bound to a single cache");
+  }
+}
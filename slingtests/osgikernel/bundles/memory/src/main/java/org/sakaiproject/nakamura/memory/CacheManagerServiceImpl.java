@@ -18,10 +18,17 @@
 package org.sakaiproject.nakamura.memory;
 
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.ConfigurationFactory;
 import net.sf.ehcache.management.ManagementService;
 
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedServiceFactory;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationChannel;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationEvent;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.util.ResourceLoader;
 import org.slf4j.Logger;
@@ -30,10 +37,17 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
@@ -42,29 +56,93 @@ import javax.management.MBeanServer;
  * description="Implementation of the Cache Manager Service"
  *          name="org.sakaiproject.nakamura.api.memory.CacheManagerService"
  * @scr.service interface="org.sakaiproject.nakamura.api.memory.CacheManagerService"
+ * @scr.service interface="org.osgi.service.cm.ManagedServiceFactory"
+ * @scr.property name="service.pid" value="org.sakaiproject.nakamura.memory.CacheSettings"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="service.description"
  *      value="Cache Manager Service Implementation"
+ * @scr.reference name="replicationChannel"
+ *                interface="org.sakaiproject.nakamura.api.memory.CacheReplicationChannel"
+ *                cardinality="0..1" policy="dynamic"
+ *                bind="bindReplicationChannel" unbind="unbindReplicationChannel"
  */
-public class CacheManagerServiceImpl implements CacheManagerService {
+public class CacheManagerServiceImpl implements CacheManagerService,
+    ManagedServiceFactory {
 
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  /**
+   * The defaultCache from ehcacheConfig.xml, which configured caches fall back to.
+   */
+  private CacheConfiguration defaultCacheConfiguration;
+  /**
+   * Counts replacements of ehcaches, to give each replacement a unique name.
+   */
+  private int generation;
+  private Map<String, Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  /**
+   * The maximum time in ms a change to a cluster cache waits before it is sent.
+   */
+  private static final long REPLICATION_FLUSH_INTERVAL = 100;
+  /**
+   * The number of queued cluster cache changes that triggers an immediate send.
+   */
+  private static final int REPLICATION_BATCH_SIZE = 500;
+  private ConcurrentHashMap<String, Cache<?>> clusterCaches = new ConcurrentHashMap<String, Cache<?>>();
+  private CacheReplicator replicator;
+  /**
+   * Classloaders registered by the owners of cluster caches, used to deserialize values.
+   */
+  private ConcurrentHashMap<String, ClassLoader> classLoaders = new ConcurrentHashMap<String, ClassLoader>();
+  /**
+   * Per cache settings from configuration admin, keyed by cache name.
+   */
+  private Map<String, CacheSettings> cacheSettings = new HashMap<String, CacheSettings>();
+  /**
+   * The cache name configured by each factory configuration pid.
+   */
+  private Map<String, String> configuredNames = new HashMap<String, String>();
+  /**
+   * The JMX domain the per cache metrics are registered under.
+   */
+  public static final String METRICS_DOMAIN = "org.sakaiproject.nakamura.memory";
+  private List<ObjectName> metricsNames = new ArrayList<ObjectName>();
+  /**
+   * Used when no cluster channel is bound, so that a single node works unchanged.
+   */
+  private CacheReplicationChannel loopbackChannel = new LoopbackCacheReplicationChannel();
 
   public CacheManagerServiceImpl() throws IOException {
     create();
+    replicator.setChannel(loopbackChannel);
+  }
+
+  /**
+   * Create a cache manager connected to a replication channel, for testing.
+   *
+   * @param channel
+   * @throws IOException
+   */
+  public CacheManagerServiceImpl(CacheReplicationChannel channel) throws IOException {
+    create();
+    replicator.setChannel(channel);
   }
 
   private void create() throws IOException {
     logger.info("Loading Resource using "+this.getClass().getClassLoader());
     logger.info("Locally Stream was "+this.getClass().getClassLoader().getResourceAsStream(CONFIG_PATH));
     InputStream in = ResourceLoader.openResource(CONFIG_PATH, this.getClass().getClassLoader());
-    cacheManager = new CacheManager(in);
+    Configuration configuration = ConfigurationFactory.parseConfiguration(in);
     in.close();
+    defaultCacheConfiguration = configuration.getDefaultCacheConfiguration();
+    cacheManager = new CacheManager(configuration);
+
+    replicator = new CacheReplicator(UUID.randomUUID().toString(), this,
+        REPLICATION_FLUSH_INTERVAL, REPLICATION_BATCH_SIZE);
+    replicator.start();
 
     /*
      * Add in a shutdown hook, for safety
@@ -98,6 +176,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    replicator.stop();
+    unregisterMetrics();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -112,9 +192,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, false);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, true);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -124,6 +204,30 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheManagerService#registerClassLoader(java.lang.String,
+   *      java.lang.ClassLoader)
+   */
+  public void registerClassLoader(String name, ClassLoader classLoader) {
+    String cacheName = (name == null) ? "default" : name;
+    if (classLoader == null) {
+      classLoaders.remove(cacheName);
+    } else {
+      classLoaders.put(cacheName, classLoader);
+    }
+  }
+
+  /**
+   * @param name
+   *          the name of a cluster cache.
+   * @return the classloader registered for values in the cache, null if none.
+   */
+  ClassLoader getClassLoader(String name) {
+    return classLoaders.get(name);
+  }
+
   /**
    * Generate a cache bound to the thread.
    *
@@ -164,18 +268,224 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    */
   @SuppressWarnings("unchecked")
   private <V> Cache<V> getInstanceCache(String name) {
-    if (name == null) {
-      return new CacheImpl<V>(cacheManager, null);
+    String cacheName = (name == null) ? "default" : name;
+    Cache<V> c = (Cache<V>) caches.get(cacheName);
+    if (c == null) {
+      // creation is rare, and must not overlap with settings being applied.
+      synchronized (cacheManager) {
+        c = (Cache<V>) caches.get(cacheName);
+        if (c == null) {
+          CacheSettings settings = cacheSettings.get(cacheName);
+          if (settings != null && !cacheManager.cacheExists(cacheName)) {
+            cacheManager.addCache(settings.createCache(cacheName));
+          }
+          CacheImpl<V> cacheImpl = new CacheImpl<V>(cacheManager, cacheName);
+          registerMetrics(cacheImpl, cacheName);
+          caches.put(cacheName, cacheImpl);
+          c = cacheImpl;
+        }
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Generate a cache that is stored in the instance but sends its changes to the rest of
+   * the cluster.
+   *
+   * @param name
+   * @param replicate
+   *          true to send values, false to send invalidations only.
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterCache(String name, boolean replicate) {
+    String cacheName = (name == null) ? "default" : name;
+    String key = (replicate ? "r:" : "i:") + cacheName;
+    Cache<V> c = (Cache<V>) clusterCaches.get(key);
+    if (c == null) {
+      Cache<V> local = getInstanceCache(cacheName);
+      c = new ReplicatedCacheImpl<V>(local, cacheName, replicate, replicator);
+      Cache<V> existing = (Cache<V>) clusterCaches.putIfAbsent(key, c);
+      if (existing != null) {
+        c = existing;
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Apply an operation that was performed on another node in the cluster to the local
+   * copy of the cache, without sending it on.
+   *
+   * @param event
+   */
+  void applyReplicationEvent(CacheReplicationEvent event) {
+    Cache<Object> local = getInstanceCache(event.getCacheName());
+    switch (event.getType()) {
+    case PUT:
+      local.putQuiet(event.getKey(), event.getValue());
+      break;
+    case REMOVE:
+      local.remove(event.getKey());
+      break;
+    case REMOVE_CHILDREN:
+      local.removeChildren(event.getKey());
+      break;
+    case CLEAR:
+      local.clear();
+      break;
+    }
+  }
+
+  /**
+   * Flush any pending cluster cache changes on the calling thread.
+   */
+  public void flushReplication() {
+    replicator.flush();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.cm.ManagedServiceFactory#getName()
+   */
+  public String getName() {
+    return "Sakai Nakamura Cache Settings";
+  }
+
+  /**
+   * {@inheritDoc} Each factory configuration sets the size, expiry and eviction policy of
+   * one named cache. The cache is recreated with the new settings straight away, dropping
+   * its current contents.
+   *
+   * @see org.osgi.service.cm.ManagedServiceFactory#updated(java.lang.String,
+   *      java.util.Dictionary)
+   */
+  @SuppressWarnings("unchecked")
+  public void updated(String pid, Dictionary properties) throws ConfigurationException {
+    CacheSettings settings = new CacheSettings(properties, defaultCacheConfiguration);
+    if (settings.getName() == null || "default".equals(settings.getName())) {
+      throw new ConfigurationException(CacheSettings.CACHE_NAME,
+          "A cache name other than default is required");
+    }
+    synchronized (cacheManager) {
+      String previousName = configuredNames.put(pid, settings.getName());
+      if (previousName != null && !previousName.equals(settings.getName())) {
+        cacheSettings.remove(previousName);
+        applySettings(previousName);
+      }
+      cacheSettings.put(settings.getName(), settings);
+      applySettings(settings.getName());
+    }
+    logger.info("Configured cache {} ", settings);
+  }
+
+  /**
+   * {@inheritDoc} The cache goes back to the default settings.
+   *
+   * @see org.osgi.service.cm.ManagedServiceFactory#deleted(java.lang.String)
+   */
+  public void deleted(String pid) {
+    synchronized (cacheManager) {
+      String name = configuredNames.remove(pid);
+      if (name != null) {
+        cacheSettings.remove(name);
+        applySettings(name);
+      }
+    }
+  }
+
+  /**
+   * Replace the ehcache with one built from the current settings for the name, or the
+   * defaults if there are none. A cache already handed out is switched to the new ehcache
+   * before the old one is disposed of, so that operations in flight do not fail. Must be
+   * called holding the cacheManager lock.
+   *
+   * @param name
+   */
+  private void applySettings(String name) {
+    CacheSettings settings = cacheSettings.get(name);
+    CacheImpl<?> cacheImpl = (CacheImpl<?>) caches.get(name);
+    if (cacheImpl == null) {
+      // nothing uses the ehcache yet, so it can be replaced under the same name.
+      if (cacheManager.cacheExists(name)) {
+        cacheManager.removeCache(name);
+      }
+      addCache(name, settings);
+      return;
+    }
+    String previous = cacheImpl.getEhcache().getName();
+    String ehcacheName = name + "#" + (++generation);
+    addCache(ehcacheName, settings);
+    cacheImpl.bind(cacheManager.getCache(ehcacheName));
+    cacheManager.removeCache(previous);
+  }
+
+  /**
+   * @param ehcacheName
+   *          the name to register the ehcache under.
+   * @param settings
+   *          the settings, null to use the defaultCache.
+   */
+  private void addCache(String ehcacheName, CacheSettings settings) {
+    if (settings != null) {
+      cacheManager.addCache(settings.createCache(ehcacheName));
     } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
-      if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name);
-        caches.put(name, c);
+      cacheManager.addCache(ehcacheName);
+    }
+  }
+
+  /**
+   * Expose the metrics of a named cache over JMX.
+   *
+   * @param cacheImpl
+   * @param name
+   */
+  private void registerMetrics(CacheImpl<?> cacheImpl, String name) {
+    try {
+      ObjectName objectName = new ObjectName(METRICS_DOMAIN + ":type=CacheMetrics,name="
+          + ObjectName.quote(name));
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(new CacheMetrics(cacheImpl), objectName);
+        synchronized (metricsNames) {
+          metricsNames.add(objectName);
+        }
       }
-      return c;
+    } catch (JMException e) {
+      logger.warn("Unable to register metrics for cache " + name + " " + e.getMessage());
     }
   }
 
+  private void unregisterMetrics() {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    synchronized (metricsNames) {
+      for (ObjectName objectName : metricsNames) {
+        try {
+          mBeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+          logger.debug("Unable to unregister " + objectName + " " + e.getMessage());
+        }
+      }
+      metricsNames.clear();
+    }
+  }
+
+  /**
+   * @param channel
+   */
+  protected void bindReplicationChannel(CacheReplicationChannel channel) {
+    replicator.setChannel(channel);
+  }
+
+  /**
+   * @param channel
+   */
+  protected void unbindReplicationChannel(CacheReplicationChannel channel) {
+    replicator.setChannel(loopbackChannel);
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -207,11 +517,12 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    *
    */
   private void unbindRequest() {
+    // request threads are pooled, so the caches are reset and kept for the next request
+    // on this thread rather than thrown away.
     Map<String, Cache<?>> requestCache = requestCacheMapHolder.get();
     for (Cache<?> cache : requestCache.values()) {
       cache.clear();
     }
-    requestCacheMapHolder.remove();
   }
 
 }
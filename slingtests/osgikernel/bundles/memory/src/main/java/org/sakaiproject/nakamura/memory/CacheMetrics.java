@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.Statistics;
+
+/**
+ * Reads the metrics of a cache from the ehcache statistics and the key index. The
+ * statistics follow the cache when it is recreated with new settings, but start again
+ * from zero.
+ */
+public class CacheMetrics implements CacheMetricsMBean {
+
+  private CacheImpl<?> cache;
+
+  /**
+   * @param cache
+   */
+  public CacheMetrics(CacheImpl<?> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getName()
+   */
+  public String getName() {
+    return cache.getName();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getSize()
+   */
+  public long getSize() {
+    return cache.getEhcache().getSize();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getHits()
+   */
+  public long getHits() {
+    return getStatistics().getCacheHits();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getMisses()
+   */
+  public long getMisses() {
+    return getStatistics().getCacheMisses();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getHitRatio()
+   */
+  public double getHitRatio() {
+    Statistics statistics = getStatistics();
+    long hits = statistics.getCacheHits();
+    long total = hits + statistics.getCacheMisses();
+    return (total == 0) ? 0.0 : ((double) hits) / total;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getEvictions()
+   */
+  public long getEvictions() {
+    return cache.getKeyIndex().getEvictions();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getExpirations()
+   */
+  public long getExpirations() {
+    return cache.getKeyIndex().getExpirations();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getMaxEntries()
+   */
+  public long getMaxEntries() {
+    return cache.getEhcache().getCacheConfiguration().getMaxElementsInMemory();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getTimeToLive()
+   */
+  public long getTimeToLive() {
+    return cache.getEhcache().getCacheConfiguration().getTimeToLiveSeconds();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getTimeToIdle()
+   */
+  public long getTimeToIdle() {
+    return cache.getEhcache().getCacheConfiguration().getTimeToIdleSeconds();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheMetricsMBean#getEvictionPolicy()
+   */
+  public String getEvictionPolicy() {
+    return String.valueOf(cache.getEhcache().getCacheConfiguration()
+        .getMemoryStoreEvictionPolicy());
+  }
+
+  private Statistics getStatistics() {
+    return cache.getEhcache().getStatistics();
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the size, settings and effectiveness of a single cache.
+ */
+public interface CacheMetricsMBean {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the number of entries in the cache.
+   */
+  long getSize();
+
+  /**
+   * @return the number of gets that found an entry.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that did not find an entry.
+   */
+  long getMisses();
+
+  /**
+   * @return hits as a fraction of all gets.
+   */
+  double getHitRatio();
+
+  /**
+   * @return the number of entries evicted to keep the cache within its size.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of entries that expired.
+   */
+  long getExpirations();
+
+  /**
+   * @return the maximum number of entries.
+   */
+  long getMaxEntries();
+
+  /**
+   * @return the time to live in seconds, 0 for no limit.
+   */
+  long getTimeToLive();
+
+  /**
+   * @return the time to idle in seconds, 0 for no limit.
+   */
+  long getTimeToIdle();
+
+  /**
+   * @return the eviction policy.
+   */
+  String getEvictionPolicy();
+}
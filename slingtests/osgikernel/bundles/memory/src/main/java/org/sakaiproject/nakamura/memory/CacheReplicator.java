@@ -0,0 +1,399 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheReplicationChannel;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationEvent;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationListener;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationMessage;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationEvent.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the operations performed on cluster caches on this node, coalesces them and
+ * sends them to the rest of the cluster in batches from a background thread. Operations
+ * that arrive from other nodes are applied to the local caches without being sent on.
+ * <p>
+ * Coalescing works per cache: a later operation on a key replaces an earlier pending one,
+ * a removeChildren drops pending operations on the subtree and a clear drops everything
+ * pending for the cache.
+ * </p>
+ * <p>
+ * Values arrive here already serialized by the {@link ReplicatedCacheImpl} and are
+ * deserialized one event at a time on arrival, with the classloader registered for the
+ * cache. Only the classes of that classloader and the value classes of java.lang,
+ * java.util and java.math are accepted. A value whose class cannot be resolved or is not
+ * accepted becomes a remove of its key, so the rest of the batch is still applied and no
+ * node is left holding a stale value.
+ * </p>
+ */
+public class CacheReplicator implements CacheReplicationListener, Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheReplicator.class);
+  /**
+   * Pending key used for clear operations, cannot collide with a real key.
+   */
+  private static final String CLEAR_KEY = "\u0000clear";
+  /**
+   * Prefix of pending keys used for removeChildren operations.
+   */
+  private static final String CHILDREN_PREFIX = "\u0000children:";
+  /**
+   * The packages, not including their sub packages, whose classes may be deserialized in
+   * any value.
+   */
+  private static final String[] VALUE_PACKAGES = { "java.lang.", "java.util.",
+      "java.util.concurrent.", "java.math." };
+
+  private String nodeId;
+  private CacheManagerServiceImpl cacheManager;
+  private CacheReplicationChannel channel;
+  private long flushInterval;
+  private int maxBatchSize;
+  private Object lock = new Object();
+  private Map<String, LinkedHashMap<String, CacheReplicationEvent>> pending = new LinkedHashMap<String, LinkedHashMap<String, CacheReplicationEvent>>();
+  private int queued;
+  private volatile boolean running;
+  private Thread flushThread;
+
+  /**
+   * @param nodeId
+   *          the id of this node, used to ignore our own messages.
+   * @param cacheManager
+   *          the cache manager that remote operations are applied to.
+   * @param flushInterval
+   *          the maximum time in ms an operation waits before being sent.
+   * @param maxBatchSize
+   *          the number of operations that triggers an immediate send.
+   */
+  public CacheReplicator(String nodeId, CacheManagerServiceImpl cacheManager,
+      long flushInterval, int maxBatchSize) {
+    this.nodeId = nodeId;
+    this.cacheManager = cacheManager;
+    this.flushInterval = flushInterval;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Start the flush thread.
+   */
+  public void start() {
+    running = true;
+    flushThread = new Thread(this, "Cache Replicator " + nodeId);
+    flushThread.setDaemon(true);
+    flushThread.start();
+  }
+
+  /**
+   * Stop the flush thread, sending anything that is still pending.
+   */
+  public void stop() {
+    running = false;
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+    if (flushThread != null) {
+      try {
+        flushThread.join(flushInterval * 10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      flushThread = null;
+    }
+    flush();
+    setChannel(null);
+  }
+
+  /**
+   * Switch the channel that messages are sent and received on.
+   *
+   * @param newChannel
+   *          the new channel, may be null to disconnect.
+   */
+  public synchronized void setChannel(CacheReplicationChannel newChannel) {
+    if (channel != null) {
+      channel.removeListener(this);
+    }
+    channel = newChannel;
+    if (channel != null) {
+      channel.addListener(this);
+    }
+  }
+
+  /**
+   * @return the id of this node.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Queue an operation for sending to the cluster.
+   *
+   * @param event
+   *          the operation.
+   */
+  public void enqueue(CacheReplicationEvent event) {
+    synchronized (lock) {
+      LinkedHashMap<String, CacheReplicationEvent> cachePending = pending.get(event
+          .getCacheName());
+      if (cachePending == null) {
+        cachePending = new LinkedHashMap<String, CacheReplicationEvent>();
+        pending.put(event.getCacheName(), cachePending);
+      }
+      switch (event.getType()) {
+      case CLEAR:
+        cachePending.clear();
+        cachePending.put(CLEAR_KEY, event);
+        break;
+      case REMOVE_CHILDREN:
+        String key = event.getKey();
+        String prefix = key.endsWith("/") ? key : key + "/";
+        for (Iterator<String> i = cachePending.keySet().iterator(); i.hasNext();) {
+          String k = i.next();
+          if (k.startsWith(CHILDREN_PREFIX)) {
+            k = k.substring(CHILDREN_PREFIX.length());
+          }
+          if (k.equals(key) || k.startsWith(prefix)) {
+            i.remove();
+          }
+        }
+        cachePending.put(CHILDREN_PREFIX + key, event);
+        break;
+      default:
+        // remove first so that the replacement goes to the end of the order.
+        cachePending.remove(event.getKey());
+        cachePending.put(event.getKey(), event);
+        break;
+      }
+      queued++;
+      if (queued >= maxBatchSize) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Send everything that is pending now, on the calling thread.
+   */
+  public void flush() {
+    List<CacheReplicationEvent> batch = drain();
+    send(batch);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    while (running) {
+      synchronized (lock) {
+        if (queued < maxBatchSize) {
+          try {
+            lock.wait(flushInterval);
+          } catch (InterruptedException e) {
+            running = false;
+          }
+        }
+      }
+      send(drain());
+    }
+  }
+
+  /**
+   * @return the pending operations in order, leaving nothing pending.
+   */
+  private List<CacheReplicationEvent> drain() {
+    List<CacheReplicationEvent> batch = new ArrayList<CacheReplicationEvent>();
+    synchronized (lock) {
+      for (LinkedHashMap<String, CacheReplicationEvent> cachePending : pending.values()) {
+        batch.addAll(cachePending.values());
+      }
+      pending.clear();
+      queued = 0;
+    }
+    return batch;
+  }
+
+  /**
+   * @param batch
+   */
+  private void send(List<CacheReplicationEvent> batch) {
+    if (batch.size() == 0) {
+      return;
+    }
+    CacheReplicationChannel c = null;
+    synchronized (this) {
+      c = channel;
+    }
+    if (c == null) {
+      LOGGER.debug("No replication channel, dropping {} cache events ", batch.size());
+      return;
+    }
+    try {
+      c.publish(new CacheReplicationMessage(nodeId, batch));
+    } catch (Exception e) {
+      LOGGER.warn("Failed to send " + batch.size() + " cache events " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheReplicationListener#onMessage(org.sakaiproject.nakamura.api.memory.CacheReplicationMessage)
+   */
+  public void onMessage(CacheReplicationMessage message) {
+    if (nodeId.equals(message.getOrigin())) {
+      return;
+    }
+    for (CacheReplicationEvent event : message.getEvents()) {
+      try {
+        cacheManager.applyReplicationEvent(decode(event));
+      } catch (Exception e) {
+        LOGGER.warn("Failed to apply " + event + " from " + message.getOrigin(), e);
+      }
+    }
+  }
+
+  /**
+   * @param event
+   *          an event received from the channel.
+   * @return the event to apply, with the value of a put deserialized, or a remove of the
+   *         key if the value cannot be deserialized.
+   */
+  private CacheReplicationEvent decode(CacheReplicationEvent event) {
+    if (event.getType() != Type.PUT) {
+      return event;
+    }
+    if (event.getPayload() == null) {
+      LOGGER.warn("No value sent with {}, invalidating ", event);
+      return new CacheReplicationEvent(Type.REMOVE, event.getCacheName(), event.getKey(),
+          null);
+    }
+    try {
+      ObjectInputStream ois = new ValueInputStream(new ByteArrayInputStream(event
+          .getPayload()), cacheManager.getClassLoader(event.getCacheName()));
+      try {
+        return new CacheReplicationEvent(Type.PUT, event.getCacheName(), event.getKey(),
+            (Serializable) ois.readObject());
+      } finally {
+        ois.close();
+      }
+    } catch (ClassNotFoundException e) {
+      LOGGER.warn("No class for {}, register a classloader for the cache, invalidating: {}",
+          event, e.getMessage());
+    } catch (IOException e) {
+      LOGGER.warn("Unable to deserialize {}, invalidating: {}", event, e.getMessage());
+    }
+    return new CacheReplicationEvent(Type.REMOVE, event.getCacheName(), event.getKey(), null);
+  }
+
+  /**
+   * Resolves the classes of a value through the classloader registered by the owner of the
+   * cache, falling back to the classes visible to this bundle. Only classes defined by the
+   * registered classloader and those in {@link CacheReplicator#VALUE_PACKAGES} are
+   * accepted, anything else in the stream is refused before it is instantiated.
+   */
+  private static class ValueInputStream extends ObjectInputStream {
+
+    private ClassLoader classLoader;
+
+    /**
+     * @param in
+     * @param classLoader
+     *          the classloader registered for the cache, may be null.
+     * @throws IOException
+     */
+    ValueInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+      super(in);
+      this.classLoader = classLoader;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.ObjectInputStream#resolveClass(java.io.ObjectStreamClass)
+     */
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      Class<?> c = null;
+      if (classLoader != null) {
+        try {
+          c = Class.forName(desc.getName(), false, classLoader);
+        } catch (ClassNotFoundException e) {
+          LOGGER.debug("{} not visible to the cache classloader", desc.getName());
+        }
+      }
+      if (c == null) {
+        c = super.resolveClass(desc);
+      }
+      if (!isAccepted(c)) {
+        throw new InvalidClassException(desc.getName(), "not accepted in a cache value");
+      }
+      return c;
+    }
+
+    /**
+     * {@inheritDoc} Proxies are never accepted in a cache value.
+     *
+     * @see java.io.ObjectInputStream#resolveProxyClass(java.lang.String[])
+     */
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+      throw new InvalidClassException("Proxy", "not accepted in a cache value");
+    }
+
+    /**
+     * @param c
+     *          a class in the stream.
+     * @return true if the class may be deserialized.
+     */
+    private boolean isAccepted(Class<?> c) {
+      while (c.isArray()) {
+        c = c.getComponentType();
+      }
+      if (c.isPrimitive() || (classLoader != null && c.getClassLoader() == classLoader)) {
+        return true;
+      }
+      String name = c.getName();
+      for (String p : VALUE_PACKAGES) {
+        if (name.startsWith(p) && name.indexOf('.', p.length()) < 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+}
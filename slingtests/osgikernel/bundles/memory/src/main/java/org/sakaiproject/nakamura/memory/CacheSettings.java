@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Dictionary;
+
+/**
+ * The size, expiry and eviction settings for a single named cache, as supplied through a
+ * factory configuration of the cache manager. Anything not set falls back to the
+ * defaultCache of the cache manager, as loaded from ehcacheConfig.xml.
+ */
+public class CacheSettings {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheSettings.class);
+
+  /**
+   * The name of the cache the settings apply to.
+   */
+  public static final String CACHE_NAME = "cache.name";
+  /**
+   * The maximum number of entries held in memory.
+   */
+  public static final String MAX_ENTRIES = "cache.maxEntries";
+  /**
+   * The time in seconds an entry lives after it is created, 0 for no limit.
+   */
+  public static final String TIME_TO_LIVE = "cache.timeToLive";
+  /**
+   * The time in seconds an entry lives after it was last used, 0 for no limit.
+   */
+  public static final String TIME_TO_IDLE = "cache.timeToIdle";
+  /**
+   * The eviction policy, one of LRU, LFU, FIFO or W-TinyLFU.
+   */
+  public static final String EVICTION_POLICY = "cache.evictionPolicy";
+
+  private String name;
+  private int maxEntries;
+  private long timeToLive;
+  private long timeToIdle;
+  private String evictionPolicy;
+
+  /**
+   * @param properties
+   *          the configuration properties.
+   * @param defaults
+   *          the default cache configuration of the cache manager.
+   */
+  @SuppressWarnings("unchecked")
+  public CacheSettings(Dictionary properties, CacheConfiguration defaults) {
+    boolean eternal = defaults.isEternal();
+    name = toString(properties.get(CACHE_NAME), null);
+    maxEntries = (int) toLong(properties.get(MAX_ENTRIES), defaults.getMaxElementsInMemory());
+    timeToLive = toLong(properties.get(TIME_TO_LIVE), eternal ? 0 : defaults
+        .getTimeToLiveSeconds());
+    timeToIdle = toLong(properties.get(TIME_TO_IDLE), eternal ? 0 : defaults
+        .getTimeToIdleSeconds());
+    evictionPolicy = toString(properties.get(EVICTION_POLICY),
+        String.valueOf(defaults.getMemoryStoreEvictionPolicy())).toUpperCase();
+  }
+
+  /**
+   * @return the name of the cache, null if the configuration did not name one.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the maximum number of entries.
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @return the time to live in seconds.
+   */
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * @return the time to idle in seconds.
+   */
+  public long getTimeToIdle() {
+    return timeToIdle;
+  }
+
+  /**
+   * @return the configured eviction policy name.
+   */
+  public String getEvictionPolicy() {
+    return evictionPolicy;
+  }
+
+  /**
+   * Ehcache only provides LRU, LFU and FIFO, W-TinyLFU is mapped onto LFU which is the
+   * closest it has.
+   *
+   * @return the ehcache eviction policy.
+   */
+  public MemoryStoreEvictionPolicy getMemoryStoreEvictionPolicy() {
+    if ("W-TINYLFU".equals(evictionPolicy) || "TINYLFU".equals(evictionPolicy)) {
+      return MemoryStoreEvictionPolicy.LFU;
+    }
+    if ("LFU".equals(evictionPolicy)) {
+      return MemoryStoreEvictionPolicy.LFU;
+    }
+    if ("FIFO".equals(evictionPolicy)) {
+      return MemoryStoreEvictionPolicy.FIFO;
+    }
+    if (!"LRU".equals(evictionPolicy)) {
+      LOGGER.warn("Unknown eviction policy {} for cache {}, using LRU", evictionPolicy,
+          name);
+    }
+    return MemoryStoreEvictionPolicy.LRU;
+  }
+
+  /**
+   * @param ehcacheName
+   *          the name to register the ehcache under, which must be unique in the cache
+   *          manager.
+   * @return a new ehcache with these settings, not yet added to a cache manager.
+   */
+  public net.sf.ehcache.Cache createCache(String ehcacheName) {
+    boolean eternal = (timeToLive <= 0 && timeToIdle <= 0);
+    return new net.sf.ehcache.Cache(ehcacheName, maxEntries, getMemoryStoreEvictionPolicy(),
+        false, null, eternal, timeToLive, timeToIdle, false, 120, null);
+  }
+
+  private static String toString(Object o, String defaultValue) {
+    if (o == null) {
+      return defaultValue;
+    }
+    String s = String.valueOf(o).trim();
+    return (s.length() == 0) ? defaultValue : s;
+  }
+
+  private static long toLong(Object o, long defaultValue) {
+    if (o instanceof Number) {
+      return ((Number) o).longValue();
+    }
+    String s = toString(o, null);
+    if (s == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(s);
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Invalid cache setting {}, using {}", s, defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return name + "[maxEntries=" + maxEntries + ",ttl=" + timeToLive + ",tti="
+        + timeToIdle + ",policy=" + evictionPolicy + "]";
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheReplicationChannel;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationListener;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in JVM replication channel, that delivers every published message to all the
+ * listeners registered with it. Used when no cluster transport is available and to wire
+ * several cache managers together in tests.
+ */
+public class LoopbackCacheReplicationChannel implements CacheReplicationChannel {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LoopbackCacheReplicationChannel.class);
+  private List<CacheReplicationListener> listeners = new CopyOnWriteArrayList<CacheReplicationListener>();
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheReplicationChannel#publish(org.sakaiproject.nakamura.api.memory.CacheReplicationMessage)
+   */
+  public void publish(CacheReplicationMessage message) {
+    for (CacheReplicationListener listener : listeners) {
+      try {
+        listener.onMessage(message);
+      } catch (Exception e) {
+        LOGGER.warn("Failed to deliver cache replication message " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheReplicationChannel#addListener(org.sakaiproject.nakamura.api.memory.CacheReplicationListener)
+   */
+  public void addListener(CacheReplicationListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheReplicationChannel#removeListener(org.sakaiproject.nakamura.api.memory.CacheReplicationListener)
+   */
+  public void removeListener(CacheReplicationListener listener) {
+    listeners.remove(listener);
+  }
+
+}
@@ -18,12 +18,13 @@
 package org.sakaiproject.nakamura.memory;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  *
@@ -35,6 +36,107 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    *
    */
   private static final long serialVersionUID = -5400056532743570231L;
+  /**
+   * The sorted keys, only built by the first {@link #removeChildren(String)} so that
+   * request scope caches that never remove children do not pay for it.
+   */
+  private PathIndex index;
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#put(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public V put(String key, V value) {
+    if (index != null) {
+      index.add(key);
+    }
+    return super.put(key, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#putAll(java.util.Map)
+   */
+  @Override
+  public void putAll(Map<? extends String, ? extends V> m) {
+    for (Map.Entry<? extends String, ? extends V> e : m.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#remove(java.lang.Object)
+   */
+  @Override
+  public V remove(Object key) {
+    if (index != null && key instanceof String) {
+      index.remove((String) key);
+    }
+    return super.remove(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putQuiet(java.lang.String, java.lang.Object)
+   */
+  public void putQuiet(String key, V payload) {
+    put(key, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putIfAbsent(java.lang.String, java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    V existing = super.get(key);
+    if ( existing == null ) {
+      put(key, payload);
+    }
+    return existing;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#replace(java.lang.String, java.lang.Object, java.lang.Object)
+   */
+  public boolean replace(String key, V expected, V payload) {
+    V current = super.get(key);
+    if ( current == null || !current.equals(expected) ) {
+      return false;
+    }
+    put(key, payload);
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String, java.lang.Object)
+   */
+  public boolean remove(String key, V expected) {
+    V current = super.get(key);
+    if ( current == null || !current.equals(expected) ) {
+      return false;
+    }
+    remove(key);
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#getOrCompute(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public V getOrCompute(String key, CacheLoader<V> loader) {
+    V value = super.get(key);
+    if ( value == null ) {
+      value = loader.load(key);
+      if ( value != null ) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
 
   /**
    * {@inheritDoc}
@@ -57,6 +159,9 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
+    if (index != null) {
+      index.remove(key);
+    }
     V o = super.remove(key);
     if ( o instanceof ThreadBound ) {
       ((ThreadBound) o).unbind();
@@ -70,6 +175,10 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   @Override
   public void clear() {
+    if ( super.isEmpty() ) {
+      // nothing to unbind, and reused request caches are usually empty.
+      return;
+    }
     for ( String k : super.keySet() ) {
       Object o = get(k);
       if( o instanceof ThreadBound ) {
@@ -77,6 +186,7 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
       }
     }
     super.clear();
+    index = null;
   }
 
   /**
@@ -84,16 +194,18 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
-    super.remove(key);
-    if ( !key.endsWith("/") ) {
-      key = key + "/";
-    }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    if (index == null) {
+      index = new PathIndex();
+      for (String k : super.keySet()) {
+        index.add(k);
       }
     }
+    super.remove(key);
+    index.remove(key);
+    for ( String k : index.getChildren(key) ) {
+      super.remove(k);
+      index.remove(k);
+    }
   }
 
   /**
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A sorted index of path shaped keys. All the children of a path sort into a contiguous
+ * range, so finding them costs O(log n + matches) rather than a scan of every key. This
+ * class is thread safe, each method holds the lock on the index only for the one change
+ * or copy it makes.
+ */
+public class PathIndex implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 3087420863437014245L;
+  private SortedSet<String> keys = new TreeSet<String>();
+
+  /**
+   * @param key
+   *          the key to add.
+   */
+  public synchronized void add(String key) {
+    keys.add(key);
+  }
+
+  /**
+   * @param key
+   *          the key to remove.
+   */
+  public synchronized void remove(String key) {
+    keys.remove(key);
+  }
+
+  /**
+   * Remove all keys.
+   */
+  public synchronized void clear() {
+    keys.clear();
+  }
+
+  /**
+   * @return the number of keys in the index.
+   */
+  public synchronized int size() {
+    return keys.size();
+  }
+
+  /**
+   * @param key
+   *          the parent path.
+   * @return a snapshot of all the keys that start with the parent followed by a /,
+   *         including that key itself.
+   */
+  public List<String> getChildren(String key) {
+    String prefix = key.endsWith("/") ? key : key + "/";
+    // every key starting with "a/" sorts at or after "a/" and before "a0", since '0' is
+    // the character after '/'.
+    String upper = prefix.substring(0, prefix.length() - 1)
+        + (char) (prefix.charAt(prefix.length() - 1) + 1);
+    synchronized (this) {
+      return new ArrayList<String>(keys.subSet(prefix, upper));
+    }
+  }
+
+}
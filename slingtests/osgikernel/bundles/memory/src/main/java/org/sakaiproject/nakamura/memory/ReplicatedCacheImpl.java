@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationEvent;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationEvent.Type;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A cache that is stored locally, but where every change is sent to the rest of the
+ * cluster. In replicate mode puts carry the value to the other nodes, otherwise a put
+ * only invalidates the key on the other nodes. Values that are not serializable are
+ * always invalidated rather than replicated, this includes values with a field that
+ * cannot be serialized. Values are serialized when they are put, so the other nodes get
+ * the value as it was at the time of the put even if the object changes after it.
+ */
+public class ReplicatedCacheImpl<V> implements Cache<V> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicatedCacheImpl.class);
+
+  private Cache<V> local;
+  private String cacheName;
+  private boolean replicate;
+  private CacheReplicator replicator;
+
+  /**
+   * @param local
+   *          the local storage for the cache.
+   * @param name
+   *          the name of the cache, which must be the same on all nodes.
+   * @param replicate
+   *          true if values should be sent to the cluster, false for invalidation only.
+   * @param replicator
+   *          the replicator that sends changes to the cluster.
+   */
+  public ReplicatedCacheImpl(Cache<V> local, String name, boolean replicate,
+      CacheReplicator replicator) {
+    this.local = local;
+    this.cacheName = name;
+    this.replicate = replicate;
+    this.replicator = replicator;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    replicator.enqueue(new CacheReplicationEvent(Type.CLEAR, cacheName, null, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    publishPut(key, payload);
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putQuiet(java.lang.String, java.lang.Object)
+   */
+  public void putQuiet(String key, V payload) {
+    local.putQuiet(key, payload);
+    publishPut(key, payload);
+  }
+
+  /**
+   * {@inheritDoc} The check is only atomic on this node, two nodes may both succeed
+   * before they see each others changes.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putIfAbsent(java.lang.String, java.lang.Object)
+   */
+  public V putIfAbsent(String key, V payload) {
+    V existing = local.putIfAbsent(key, payload);
+    if (existing == null) {
+      publishPut(key, payload);
+    }
+    return existing;
+  }
+
+  /**
+   * {@inheritDoc} The check is only atomic on this node.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#replace(java.lang.String, java.lang.Object, java.lang.Object)
+   */
+  public boolean replace(String key, V expected, V payload) {
+    if (local.replace(key, expected, payload)) {
+      publishPut(key, payload);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * {@inheritDoc} The check is only atomic on this node.
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String, java.lang.Object)
+   */
+  public boolean remove(String key, V expected) {
+    if (local.remove(key, expected)) {
+      replicator.enqueue(new CacheReplicationEvent(Type.REMOVE, cacheName, key, null));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#getOrCompute(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public V getOrCompute(String key, final CacheLoader<V> loader) {
+    return local.getOrCompute(key, new CacheLoader<V>() {
+      public V load(String k) {
+        V value = loader.load(k);
+        if (value != null) {
+          publishPut(k, value);
+        }
+        return value;
+      }
+    });
+  }
+
+  /**
+   * Send a put to the cluster, as a serialized value or as an invalidation.
+   *
+   * @param key
+   * @param payload
+   */
+  private void publishPut(String key, V payload) {
+    if (replicate && payload instanceof Serializable) {
+      try {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(payload);
+        oos.close();
+        replicator.enqueue(new CacheReplicationEvent(Type.PUT, cacheName, key, null)
+            .withPayload(baos.toByteArray()));
+        return;
+      } catch (IOException e) {
+        LOGGER.debug("Unable to serialize {} in {}, invalidating instead: {}",
+            new Object[] { key, cacheName, e.getMessage() });
+      }
+    }
+    replicator.enqueue(new CacheReplicationEvent(Type.REMOVE, cacheName, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.remove(key);
+    replicator.enqueue(new CacheReplicationEvent(Type.REMOVE, cacheName, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    replicator.enqueue(new CacheReplicationEvent(Type.REMOVE_CHILDREN, cacheName, key,
+        null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return local.list();
+  }
+
+}
@@ -27,6 +27,8 @@ import java.util.Map;
  * When used in Threads there is a potential for memory leaks as perm space is not cleaned up.
  * This will be caused by references to classloaders being in the Map, and keeping the classloaders
  * open.
+ * For the request scope the map and its caches are reset at the end of each request and
+ * reused by the next request on the same thread, so they are only allocated once per thread.
  */
 public class ThreadLocalCacheMap extends ThreadLocal<Map<String,Cache<?>>> {
   /**
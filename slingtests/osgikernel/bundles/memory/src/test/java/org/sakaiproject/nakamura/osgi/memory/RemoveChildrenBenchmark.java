@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.memory.CacheImpl;
+
+import java.util.List;
+
+/**
+ * Compares the linear key scan that removeChildren used to perform with the indexed
+ * implementation in CacheImpl, on caches of 100k path shaped keys. Not run as part of the
+ * unit tests, run the main method by hand.
+ */
+public class RemoveChildrenBenchmark {
+
+  private static final int ENTRIES = 100000;
+  private static final int SITES = 100;
+  private static final int ITERATIONS = 200;
+
+  public static void main(String[] args) {
+    CacheManager cacheManager = new CacheManager();
+    try {
+      net.sf.ehcache.Cache linear = new net.sf.ehcache.Cache("linear", ENTRIES * 2, false,
+          true, 0, 0);
+      cacheManager.addCache(linear);
+      // created up front so that it is large enough, CacheImpl picks it up by name.
+      cacheManager.addCache(new net.sf.ehcache.Cache("indexed", ENTRIES * 2, false, true,
+          0, 0));
+      Cache<String> indexed = new CacheImpl<String>(cacheManager, "indexed");
+
+      for (int round = 0; round < 3; round++) {
+        long linearTime = 0;
+        long indexedTime = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+          String site = "/sites/s" + (i % SITES);
+          fill(linear, indexed, i % SITES);
+          long start = System.nanoTime();
+          removeChildrenLinear(linear, site);
+          linearTime += System.nanoTime() - start;
+          start = System.nanoTime();
+          indexed.removeChildren(site);
+          indexedTime += System.nanoTime() - start;
+        }
+        System.out.println("Round " + round + " linear scan " + (linearTime / ITERATIONS)
+            + " ns/op, indexed " + (indexedTime / ITERATIONS) + " ns/op over "
+            + linear.getSize() + " keys");
+      }
+    } finally {
+      cacheManager.shutdown();
+    }
+  }
+
+  /**
+   * Fill both caches to ENTRIES keys, refilling the subtree removed last time.
+   */
+  private static void fill(net.sf.ehcache.Cache linear, Cache<String> indexed, int site) {
+    if (linear.getSize() == 0) {
+      for (int i = 0; i < ENTRIES; i++) {
+        String key = key(i);
+        linear.put(new Element(key, key));
+        indexed.put(key, key);
+      }
+    } else {
+      for (int i = site; i < ENTRIES; i += SITES) {
+        String key = key(i);
+        linear.put(new Element(key, key));
+        indexed.put(key, key);
+      }
+    }
+  }
+
+  private static String key(int i) {
+    return "/sites/s" + (i % SITES) + "/pages/p" + ((i / SITES) % 10) + "/n" + i;
+  }
+
+  /**
+   * The removeChildren implementation CacheImpl used before the key index.
+   */
+  private static void removeChildrenLinear(net.sf.ehcache.Cache cache, String key) {
+    cache.remove(key);
+    if (!key.endsWith("/")) {
+      key = key + "/";
+    }
+    List<?> keys = cache.getKeys();
+    for (Object k : keys) {
+      if (((String) k).startsWith(key)) {
+        cache.remove(k);
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures getCache(name, REQUEST) and the request unbind under 200 concurrent threads,
+ * each thread simulating requests that use a handful of request caches. Not run as part
+ * of the unit tests, run the main method by hand.
+ */
+public class RequestCacheBenchmark {
+
+  private static final int THREADS = 200;
+  private static final int REQUESTS_PER_THREAD = 5000;
+  private static final String[] CACHE_NAMES = new String[] { "lockmanager.requestmap",
+      "session.request", "acl.request", "search.request" };
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    final CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    try {
+      for (int round = 0; round < 3; round++) {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicLong lookups = new AtomicLong();
+        for (int t = 0; t < THREADS; t++) {
+          Thread thread = new Thread(new Runnable() {
+            public void run() {
+              try {
+                start.await();
+                long n = 0;
+                for (int r = 0; r < REQUESTS_PER_THREAD; r++) {
+                  for (String name : CACHE_NAMES) {
+                    Cache<String> cache = cacheManagerService.getCache(name,
+                        CacheScope.REQUEST);
+                    cache.put("key", name);
+                    cache.get("key");
+                    n++;
+                  }
+                  cacheManagerService.unbind(CacheScope.REQUEST);
+                }
+                lookups.addAndGet(n);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              } finally {
+                done.countDown();
+              }
+            }
+          });
+          thread.start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - t0;
+        System.out.println("Round " + round + " " + lookups.get() + " request cache lookups in "
+            + (elapsed / 1000000) + " ms, " + (lookups.get() * 1000000000L / elapsed)
+            + " lookups/s with " + THREADS + " threads");
+      }
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
+}
@@ -21,17 +21,31 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.memory.PathIndex;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestCache {
 
@@ -92,6 +106,185 @@ public class TestCache {
     }
   }
 
+  @Test
+  public void testRemoveChildrenLeavesSiblings() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("SiblingTestCache", scope);
+      cache.put("a/b", "1");
+      cache.put("a/b/c", "2");
+      cache.put("a/b/c/d", "3");
+      cache.put("a/bc", "4");
+      cache.put("a/b0", "5");
+      cache.put("a", "6");
+      cache.removeChildren("a/b");
+      assertNull(cache.get("a/b"));
+      assertNull(cache.get("a/b/c"));
+      assertNull(cache.get("a/b/c/d"));
+      assertEquals("4", cache.get("a/bc"));
+      assertEquals("5", cache.get("a/b0"));
+      assertEquals("6", cache.get("a"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testMapCachePutAllIsIndexed() {
+    MapCacheImpl<String> cache = new MapCacheImpl<String>();
+    Map<String, String> values = new HashMap<String, String>();
+    values.put("a/b", "1");
+    values.put("a/b/c", "2");
+    cache.putAll(values);
+    cache.removeChildren("a");
+    assertTrue("Expected putAll keys to be removed with their parent", cache.isEmpty());
+    cache.put("a/b", "1");
+    Map<String, String> map = cache;
+    assertEquals("1", map.remove((Object) "a/b"));
+    cache.put("a/b/c", "2");
+    cache.removeChildren("a/b");
+    assertTrue(cache.isEmpty());
+    // the index is dropped on clear and built again from the keys.
+    cache.put("x", "3");
+    cache.clear();
+    cache.put("x/y", "4");
+    cache.put("x0", "5");
+    cache.removeChildren("x");
+    assertEquals(1, cache.size());
+    assertEquals("5", cache.get("x0"));
+  }
+
+  @Test
+  public void testChildrenIncludeTrailingSlashKey() {
+    PathIndex index = new PathIndex();
+    index.add("a");
+    index.add("a/");
+    index.add("a/b");
+    index.add("a0");
+    assertEquals(Arrays.asList("a/", "a/b"), index.getChildren("a/"));
+    assertEquals(Arrays.asList("a/", "a/b"), index.getChildren("a"));
+  }
+
+  @Test
+  public void testRemoveChildrenRemovesTrailingSlashKey() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("SlashTestCache", scope);
+      cache.put("a", "1");
+      cache.put("a/", "2");
+      cache.put("a/b", "3");
+      cache.put("a0", "4");
+      cache.removeChildren("a");
+      assertNull(cache.get("a"));
+      assertNull(cache.get("a/"));
+      assertNull(cache.get("a/b"));
+      assertEquals("4", cache.get("a0"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testAtomicOperations() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("AtomicTestCache", scope);
+      assertNull(cache.putIfAbsent("fish", "cat"));
+      assertEquals("cat", cache.putIfAbsent("fish", "dog"));
+      assertEquals("cat", cache.get("fish"));
+      assertFalse(cache.replace("fish", "dog", "bird"));
+      assertTrue(cache.replace("fish", "cat", "dog"));
+      assertEquals("dog", cache.get("fish"));
+      assertFalse(cache.remove("fish", "cat"));
+      assertTrue(cache.remove("fish", "dog"));
+      assertNull(cache.get("fish"));
+      cache.putQuiet("fish", "cat");
+      assertEquals("cat", cache.get("fish"));
+
+      final int[] loads = new int[1];
+      CacheLoader<String> loader = new CacheLoader<String>() {
+        public String load(String key) {
+          loads[0]++;
+          return key + "-loaded";
+        }
+      };
+      assertEquals("cat", cache.getOrCompute("fish", loader));
+      assertEquals("bird-loaded", cache.getOrCompute("bird", loader));
+      assertEquals("bird-loaded", cache.getOrCompute("bird", loader));
+      assertEquals(1, loads[0]);
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testSlowLoadDoesNotBlockOtherKeys() throws Exception {
+    final Cache<String> cache = cacheManagerService.getCache("SlowLoadCache",
+        CacheScope.INSTANCE);
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger slowLoads = new AtomicInteger();
+    final CacheLoader<String> slowLoader = new CacheLoader<String>() {
+      public String load(String key) {
+        slowLoads.incrementAndGet();
+        loading.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return "slow";
+      }
+    };
+    // a key that shares the lock stripe of the slow key.
+    String slowKey = "slow";
+    String otherKey = null;
+    for (int i = 0; otherKey == null; i++) {
+      if ((("key" + i).hashCode() & 0x7fffffff) % 32 == (slowKey.hashCode() & 0x7fffffff) % 32) {
+        otherKey = "key" + i;
+      }
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Callable<String> slow = new Callable<String>() {
+        public String call() {
+          return cache.getOrCompute("slow", slowLoader);
+        }
+      };
+      Future<String> first = executor.submit(slow);
+      assertTrue(loading.await(5, TimeUnit.SECONDS));
+      Future<String> second = executor.submit(slow);
+      final String key = otherKey;
+      Future<String> other = executor.submit(new Callable<String>() {
+        public String call() {
+          return cache.getOrCompute(key, new CacheLoader<String>() {
+            public String load(String k) {
+              return "fast";
+            }
+          });
+        }
+      });
+      assertEquals("fast", other.get(5, TimeUnit.SECONDS));
+      cache.put(otherKey, "put");
+      assertEquals("put", cache.get(otherKey));
+      assertFalse(second.isDone());
+      release.countDown();
+      assertEquals("slow", first.get(5, TimeUnit.SECONDS));
+      assertEquals("slow", second.get(5, TimeUnit.SECONDS));
+      assertEquals("Expected a single load of the slow key", 1, slowLoads.get());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRequestCacheReused() {
+    Cache<String> cache = cacheManagerService.getCache("ReusedCache", CacheScope.REQUEST);
+    cache.put("fish", "cat");
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    Cache<String> next = cacheManagerService.getCache("ReusedCache", CacheScope.REQUEST);
+    assertNull("Expected request cache to be reset", next.get("fish"));
+    assertTrue("Expected request cache to be reused", cache == next);
+  }
+
   @Test
   public void testThreadUnbinding() {
     ThreadBound testItem = createMock(ThreadBound.class);
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.cm.ConfigurationException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.CacheSettings;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class TestCacheSettings {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private MBeanServer mBeanServer;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheManagerService = new CacheManagerServiceImpl();
+    mBeanServer = ManagementFactory.getPlatformMBeanServer();
+  }
+
+  @After
+  public void tearDown() {
+    cacheManagerService.stop();
+  }
+
+  @Test
+  public void testSettingsAppliedToExistingCache() throws Exception {
+    Cache<String> cache = cacheManagerService.getCache("settings", CacheScope.INSTANCE);
+    cache.put("before", "value");
+    ObjectName metrics = findMetrics("settings");
+    assertEquals(10000L, mBeanServer.getAttribute(metrics, "MaxEntries"));
+
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(CacheSettings.CACHE_NAME, "settings");
+    properties.put(CacheSettings.MAX_ENTRIES, 5);
+    properties.put(CacheSettings.TIME_TO_LIVE, "30");
+    properties.put(CacheSettings.EVICTION_POLICY, "W-TinyLFU");
+    cacheManagerService.updated("pid1", properties);
+
+    assertEquals(5L, mBeanServer.getAttribute(metrics, "MaxEntries"));
+    assertEquals(30L, mBeanServer.getAttribute(metrics, "TimeToLive"));
+    assertEquals("LFU", mBeanServer.getAttribute(metrics, "EvictionPolicy"));
+    // the cache handed out before the change uses the new settings.
+    assertNull(cache.get("before"));
+    for (int i = 0; i < 20; i++) {
+      cache.put("key" + i, "value" + i);
+    }
+    assertTrue((Long) mBeanServer.getAttribute(metrics, "Size") <= 5L);
+    assertTrue((Long) mBeanServer.getAttribute(metrics, "Evictions") > 0L);
+
+    cacheManagerService.deleted("pid1");
+    assertEquals(10000L, mBeanServer.getAttribute(metrics, "MaxEntries"));
+  }
+
+  @Test
+  public void testSettingsBeforeCacheCreated() throws Exception {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(CacheSettings.CACHE_NAME, "early");
+    properties.put(CacheSettings.TIME_TO_IDLE, 15L);
+    cacheManagerService.updated("pid2", properties);
+    Cache<String> cache = cacheManagerService.getCache("early", CacheScope.INSTANCE);
+    cache.put("fish", "cat");
+    assertEquals("cat", cache.get("fish"));
+    assertEquals(1L, mBeanServer.getAttribute(findMetrics("early"), "Hits"));
+    assertEquals(15L, mBeanServer.getAttribute(findMetrics("early"), "TimeToIdle"));
+  }
+
+  @Test(expected = ConfigurationException.class)
+  public void testNameRequired() throws Exception {
+    cacheManagerService.updated("pid3", new Hashtable<String, Object>());
+  }
+
+  @Test
+  public void testInFlightOperationsSurviveSettingsChange() throws Exception {
+    final Cache<String> cache = cacheManagerService.getCache("inflight", CacheScope.INSTANCE);
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    final AtomicBoolean running = new AtomicBoolean(true);
+    Thread worker = new Thread() {
+      @Override
+      public void run() {
+        int i = 0;
+        while (running.get()) {
+          try {
+            cache.put("key" + (i % 100), "value");
+            cache.get("key" + (i % 50));
+            cache.remove("key" + (i % 30));
+            i++;
+          } catch (Throwable t) {
+            failures.add(t);
+            return;
+          }
+        }
+      }
+    };
+    worker.start();
+    for (int i = 0; i < 50; i++) {
+      Hashtable<String, Object> properties = new Hashtable<String, Object>();
+      properties.put(CacheSettings.CACHE_NAME, "inflight");
+      properties.put(CacheSettings.MAX_ENTRIES, 10 + i);
+      cacheManagerService.updated("pid4", properties);
+    }
+    running.set(false);
+    worker.join();
+    assertTrue("Operations failed while settings changed " + failures, failures.isEmpty());
+  }
+
+  @Test
+  public void testMetricsNameIsStable() throws Exception {
+    cacheManagerService.getCache("stable", CacheScope.INSTANCE);
+    assertTrue(mBeanServer.isRegistered(new ObjectName(
+        CacheManagerServiceImpl.METRICS_DOMAIN + ":type=CacheMetrics,name="
+            + ObjectName.quote("stable"))));
+  }
+
+  private ObjectName findMetrics(String name) throws Exception {
+    Set<ObjectName> names = mBeanServer.queryNames(new ObjectName(
+        CacheManagerServiceImpl.METRICS_DOMAIN + ":type=CacheMetrics,name="
+            + ObjectName.quote(name) + ",*"), null);
+    assertTrue("Expected metrics for " + name, names.size() > 0);
+    return names.iterator().next();
+  }
+}
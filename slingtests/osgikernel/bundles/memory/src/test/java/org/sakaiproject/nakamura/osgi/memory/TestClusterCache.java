@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationEvent;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationListener;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationMessage;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheReplicationEvent.Type;
+import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.CacheReplicator;
+import org.sakaiproject.nakamura.memory.LoopbackCacheReplicationChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestClusterCache {
+
+  private LoopbackCacheReplicationChannel channel;
+  private CacheManagerServiceImpl nodeA;
+  private CacheManagerServiceImpl nodeB;
+
+  @Before
+  public void setUp() throws IOException {
+    channel = new LoopbackCacheReplicationChannel();
+    nodeA = new CacheManagerServiceImpl(channel);
+    nodeB = new CacheManagerServiceImpl(channel);
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.stop();
+    nodeB.stop();
+  }
+
+  @Test
+  public void testReplicatedPut() {
+    Cache<String> a = nodeA.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    Cache<String> b = nodeB.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    a.put("fish", "cat");
+    nodeA.flushReplication();
+    assertEquals("Expected value to replicate", "cat", b.get("fish"));
+    b.removeChildren("fish");
+    nodeB.flushReplication();
+    assertNull("Expected removal to replicate", a.get("fish"));
+  }
+
+  @Test
+  public void testInvalidatedPut() {
+    Cache<String> a = nodeA.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> b = nodeB.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    b.put("fish", "dog");
+    nodeB.flushReplication();
+    a.put("fish", "cat");
+    nodeA.flushReplication();
+    assertFalse("Expected put to invalidate the other node", b.containsKey("fish"));
+    assertEquals("cat", a.get("fish"));
+  }
+
+  @Test
+  public void testCoalescing() {
+    final List<CacheReplicationMessage> messages = new ArrayList<CacheReplicationMessage>();
+    channel.addListener(new CacheReplicationListener() {
+      public void onMessage(CacheReplicationMessage message) {
+        messages.add(message);
+      }
+    });
+    // not started, so nothing is sent until flushed.
+    CacheReplicator replicator = new CacheReplicator("test", nodeA, 100, 500);
+    replicator.setChannel(channel);
+    replicator.enqueue(put("a", "1"));
+    replicator.enqueue(put("a", "2"));
+    replicator.enqueue(put("a/b", "3"));
+    replicator.enqueue(put("c", "4"));
+    replicator.enqueue(new CacheReplicationEvent(Type.REMOVE_CHILDREN, "coalesce", "a", null));
+    replicator.enqueue(put("a/d", "5"));
+    replicator.flush();
+    assertEquals(1, messages.size());
+    List<CacheReplicationEvent> events = messages.get(0).getEvents();
+    assertEquals(3, events.size());
+    assertEquals(Type.PUT, events.get(0).getType());
+    assertEquals("c", events.get(0).getKey());
+    assertEquals(Type.REMOVE_CHILDREN, events.get(1).getType());
+    assertEquals("a", events.get(1).getKey());
+    assertEquals("a/d", events.get(2).getKey());
+
+    messages.clear();
+    replicator.enqueue(put("x", "1"));
+    replicator.enqueue(new CacheReplicationEvent(Type.CLEAR, "coalesce", null, null));
+    replicator.enqueue(put("y", "2"));
+    replicator.flush();
+    events = messages.get(0).getEvents();
+    assertEquals(2, events.size());
+    assertEquals(Type.CLEAR, events.get(0).getType());
+    assertEquals("y", events.get(1).getKey());
+  }
+
+  private CacheReplicationEvent put(String key, String value) {
+    return new CacheReplicationEvent(Type.PUT, "coalesce", key, value);
+  }
+
+  @Test
+  public void testBackgroundFlush() throws InterruptedException {
+    Cache<String> a = nodeA.getCache("background", CacheScope.CLUSTERREPLICATED);
+    Cache<String> b = nodeB.getCache("background", CacheScope.CLUSTERREPLICATED);
+    a.put("fish", "cat");
+    for (int i = 0; i < 50 && !b.containsKey("fish"); i++) {
+      Thread.sleep(100);
+    }
+    assertTrue("Expected background flush to deliver the put", b.containsKey("fish"));
+  }
+
+  @Test
+  public void testRegisteredClassLoader() throws Exception {
+    IsolatedClassLoader loader = new IsolatedClassLoader();
+    nodeA.registerClassLoader("isolated", loader);
+    nodeB.registerClassLoader("isolated", loader);
+    Cache<Object> a = nodeA.getCache("isolated", CacheScope.CLUSTERREPLICATED);
+    Cache<Object> b = nodeB.getCache("isolated", CacheScope.CLUSTERREPLICATED);
+    a.put("fish", loader.newValue("cat"));
+    nodeA.flushReplication();
+    Object value = b.get("fish");
+    assertEquals("cat", String.valueOf(value));
+    assertSame("Expected the registered classloader to resolve the value", loader, value
+        .getClass().getClassLoader());
+  }
+
+  @Test
+  public void testUnresolvedValueInvalidates() throws Exception {
+    IsolatedClassLoader loader = new IsolatedClassLoader();
+    nodeA.registerClassLoader("unresolved", loader);
+    Cache<Object> a = nodeA.getCache("unresolved", CacheScope.CLUSTERREPLICATED);
+    Cache<Object> b = nodeB.getCache("unresolved", CacheScope.CLUSTERREPLICATED);
+    b.put("fish", "dog");
+    nodeB.flushReplication();
+    // node B has no classloader that can see the class of the value.
+    a.put("fish", loader.newValue("cat"));
+    a.put("bird", "owl");
+    nodeA.flushReplication();
+    assertFalse("Expected an unresolved value to invalidate", b.containsKey("fish"));
+    assertEquals("Expected the rest of the batch to apply", "owl", b.get("bird"));
+  }
+
+  @Test
+  public void testUnacceptedClassInvalidates() {
+    // no classloader is registered, so only the java value classes are accepted.
+    Cache<Object> a = nodeA.getCache("unaccepted", CacheScope.CLUSTERREPLICATED);
+    Cache<Object> b = nodeB.getCache("unaccepted", CacheScope.CLUSTERREPLICATED);
+    b.put("fish", "dog");
+    nodeB.flushReplication();
+    a.put("fish", new HiddenValue("cat"));
+    a.put("bird", "owl");
+    nodeA.flushReplication();
+    assertFalse("Expected a value of an unaccepted class to invalidate", b
+        .containsKey("fish"));
+    assertEquals("Expected the rest of the batch to apply", "owl", b.get("bird"));
+  }
+
+  @Test
+  public void testValueSerializedWhenPut() {
+    Cache<Object> a = nodeA.getCache("snapshot", CacheScope.CLUSTERREPLICATED);
+    Cache<Object> b = nodeB.getCache("snapshot", CacheScope.CLUSTERREPLICATED);
+    ArrayList<String> value = new ArrayList<String>();
+    value.add("cat");
+    a.put("fish", value);
+    value.add("dog");
+    nodeA.flushReplication();
+    assertEquals("Expected the value as it was when put", 1, ((List<?>) b.get("fish"))
+        .size());
+  }
+
+  @Test
+  public void testNestedUnserializableValueInvalidates() {
+    Cache<Object> a = nodeA.getCache("nested", CacheScope.CLUSTERREPLICATED);
+    Cache<Object> b = nodeB.getCache("nested", CacheScope.CLUSTERREPLICATED);
+    b.put("fish", "dog");
+    nodeB.flushReplication();
+    ArrayList<Object> value = new ArrayList<Object>();
+    value.add(new Object());
+    a.put("fish", value);
+    a.put("bird", "owl");
+    nodeA.flushReplication();
+    assertFalse("Expected an unserializable value to invalidate", b.containsKey("fish"));
+    assertEquals("Expected the rest of the batch to apply", "owl", b.get("bird"));
+  }
+
+  /**
+   * Defines a renamed copy of {@link HiddenValue}, which no other classloader can see, in
+   * the same way the classes of a bundle are only visible to the bundle.
+   */
+  private static class IsolatedClassLoader extends ClassLoader {
+    private static final String NAME = HiddenValue.class.getName().replace("HiddenValue",
+        "IsolatedVal");
+
+    IsolatedClassLoader() {
+      super(IsolatedClassLoader.class.getClassLoader());
+    }
+
+    Object newValue(String value) throws Exception {
+      return loadClass(NAME).getConstructor(String.class).newInstance(value);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      if (!NAME.equals(name)) {
+        throw new ClassNotFoundException(name);
+      }
+      try {
+        InputStream in = getParent().getResourceAsStream(
+            HiddenValue.class.getName().replace('.', '/') + ".class");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        for (int n = in.read(b); n > 0; n = in.read(b)) {
+          baos.write(b, 0, n);
+        }
+        in.close();
+        // the new name has the same length, so the class file stays valid.
+        byte[] code = new String(baos.toByteArray(), "ISO-8859-1").replace("HiddenValue",
+            "IsolatedVal").getBytes("ISO-8859-1");
+        return defineClass(name, code, 0, code.length);
+      } catch (IOException e) {
+        throw new ClassNotFoundException(name, e);
+      }
+    }
+  }
+}
@@ -34,6 +34,7 @@ import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.PathUtils;
+import org.sakaiproject.nakamura.util.StreamingJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -79,7 +80,7 @@ public class MeServlet extends SlingSafeMethodsServlet {
       UserManager um = AccessControlUtil.getUserManager(session);
       Authorizable au = um.getAuthorizable(session.getUserID());
       PrintWriter w = response.getWriter();
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+      ExtendedJSONWriter writer = new StreamingJSONWriter(w);
       writer.object();
       // User info
       writer.key("user");
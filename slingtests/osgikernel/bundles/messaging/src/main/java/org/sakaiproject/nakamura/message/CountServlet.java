@@ -23,6 +23,13 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.jackrabbit.server.index.FacetCounts;
+import org.apache.sling.jcr.jackrabbit.server.index.FacetExtractor;
+import org.apache.sling.jcr.jackrabbit.server.index.QueryHitsExtractor;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -36,13 +43,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Dictionary;
+import java.util.Hashtable;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -60,6 +67,12 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * count.json?filters=sakai:read,sakai:messagebox&values=true,inbox&groupby=sakai:category
  * 
+ * Totals and groups are counted from the search index without loading the messages.
+ * The total is the raw number of hits in the index, which is not checked against access
+ * control, so it also counts messages in the store the user can not read. The unread
+ * messages in the inbox are kept by an {@link UnreadMessageCounter} that follows
+ * message changes, so polling for them does not run a query.
+ * 
  * @scr.component metatype="no" immediate="true"
  * @scr.service interface="javax.servlet.Servlet"
  * @scr.property name="sling.servlet.resourceTypes" values="sakai/messagestore"
@@ -70,7 +83,9 @@ import javax.servlet.http.HttpServletResponse;
 @ServiceDocumentation(
     name = "CountServlet",
     shortDescription = "Count all the internal messages a user has.",
-    description = "Counts all the internal messaegs a user has.", 
+    description = "Counts all the internal messaegs a user has. The total comes from the "
+        + "search index without access checks, so it includes messages in the store the "
+        + "user can not read.", 
     bindings = @ServiceBinding(type = BindingType.TYPE, 
         bindings = "sakai/messagestore", 
         selectors = @ServiceSelector(name = "count")), 
@@ -98,6 +113,9 @@ public class CountServlet extends SlingAllMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(CountServlet.class);
 
   private transient MessagingService messagingService;
+  private transient UnreadMessageCounter unreadCounter = new UnreadMessageCounter();
+  private transient ServiceRegistration unreadCounterRegistration;
+
   protected void bindMessagingService(MessagingService messagingService) {
     this.messagingService = messagingService;
   }
@@ -108,7 +126,7 @@ public class CountServlet extends SlingAllMethodsServlet {
   @Override
   protected void doGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
-    LOGGER.info("In count servlet" );
+    LOGGER.debug("In count servlet");
 
     // Get this node so we can get the session off it.
     Node node = (Node) request.getResource().adaptTo(Node.class);
@@ -116,7 +134,8 @@ public class CountServlet extends SlingAllMethodsServlet {
     try {
       // Do the query
       // We do the query on the user his messageStore's path.
-      String messageStorePath = ISO9075.encodePath(messagingService.getFullPathToStore(request.getRemoteUser(), node.getSession()));
+      String storePath = messagingService.getFullPathToStore(request.getRemoteUser(), node.getSession());
+      String messageStorePath = ISO9075.encodePath(storePath);
       // String messageStorePath = node.getPath();
       StringBuilder queryString = new StringBuilder("/jcr:root"
           + messageStorePath + "//*[@sling:resourceType=\"sakai/message\" and @"
@@ -124,16 +143,17 @@ public class CountServlet extends SlingAllMethodsServlet {
           + MessageConstants.TYPE_INTERNAL + "\"");
 
       // Get the filters
+      String[] filters = null;
+      String[] values = null;
       if (request.getRequestParameter("filters") != null
           && request.getRequestParameter("values") != null) {
         // The user wants to filter some things.
-        String[] filters = request.getRequestParameter("filters").getString()
-            .split(",");
-        String[] values = request.getRequestParameter("values").getString()
-            .split(",");
+        filters = request.getRequestParameter("filters").getString().split(",");
+        values = request.getRequestParameter("values").getString().split(",");
         if (filters.length != values.length) {
           response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
               "The amount of values doesn't match the amount of keys.");
+          return;
         }
 
         for (int i = 0; i < filters.length; i++) {
@@ -143,50 +163,58 @@ public class CountServlet extends SlingAllMethodsServlet {
 
       queryString.append("]");
 
-      LOGGER.info("Using QUery {} ",queryString.toString());
+      JSONWriter write = new JSONWriter(response.getWriter());
+
+      if (request.getRequestParameter("groupedby") == null
+          && UnreadMessageCounter.isUnreadInbox(filters, values)) {
+        // The inbox badge, which is kept up to date as messages change.
+        write.object();
+        write.key("count");
+        write.value(unreadCounter.getUnreadCount(node.getSession(), storePath));
+        write.endObject();
+        return;
+      }
+
+      LOGGER.debug("Using Query {} ", queryString.toString());
       // Do the query and output how many results we have.
       QueryManager queryManager = node.getSession().getWorkspace()
           .getQueryManager();
       Query query = queryManager.createQuery(queryString.toString(), "xpath");
       QueryResult result = query.execute();
-      JSONWriter write = new JSONWriter(response.getWriter());
-      NodeIterator resultNodes = result.getNodes();
 
       if (request.getRequestParameter("groupedby") == null) {
         write.object();
         write.key("count");
-        // TODO: getSize iterates over all the nodes, add a JackRabbit service
-        // to fetch this number.
-        write.value(resultNodes.getSize());
+        write.value(getTotal(result));
         write.endObject();
       } else {
         // The user want to group the count by a specified set.
-        // We will have to traverse each node, get that property and count each
-        // value for it.
         String groupedby = request.getRequestParameter("groupedby").getString();
-        Map<String, Integer> mapCount = new HashMap<String, Integer>();
-        while (resultNodes.hasNext()) {
-          Node n = resultNodes.nextNode();
-          if (n.hasProperty(groupedby)) {
-            String key = n.getProperty(groupedby).getString();
-            int val = 1;
-            if (mapCount.containsKey(key)) {
-              val = mapCount.get(key) + 1;
+        FacetCounts counts = getIndexedCounts(queryManager, node.getSession(), result,
+            groupedby);
+        if (counts == null) {
+          // We will have to traverse each node, get that property and count each
+          // value for it.
+          counts = new FacetCounts();
+          NodeIterator resultNodes = result.getNodes();
+          while (resultNodes.hasNext()) {
+            Node n = resultNodes.nextNode();
+            if (n.hasProperty(groupedby)) {
+              counts.increment(n.getProperty(groupedby).getString());
             }
-            mapCount.put(key, val);
           }
         }
 
         write.object();
         write.key("count");
         write.array();
-        for (Entry<String, Integer> e : mapCount.entrySet()) {
+        for (int i = 0; i < counts.size(); i++) {
           write.object();
 
           write.key("group");
-          write.value(e.getKey());
+          write.value(counts.getTerm(i));
           write.key("count");
-          write.value(e.getValue());
+          write.value(counts.getCount(i));
 
           write.endObject();
         }
@@ -204,4 +232,59 @@ public class CountServlet extends SlingAllMethodsServlet {
     }
 
   }
+
+  /**
+   * Get the total hits of a query from the index rather than by loading the nodes. This
+   * is the raw Lucene hit count and no access checks are made, so a message in the store
+   * that the user is denied is still counted. The store is the user's own, where that is
+   * not expected, and checking every hit would cost as much as the node count this
+   * replaces.
+   * 
+   * @param result
+   * @return the number of hits.
+   * @throws RepositoryException
+   */
+  protected long getTotal(QueryResult result) throws RepositoryException {
+    try {
+      int hits = new QueryHitsExtractor(result).getHits();
+      if (hits != Integer.MAX_VALUE) {
+        return hits;
+      }
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Counting hits from nodes: {} ", e.getMessage());
+    }
+    return result.getNodes().getSize();
+  }
+
+  /**
+   * Count the values of a property over all the hits of a query from the index.
+   * 
+   * @return the counts or null if the query was not run against a Jackrabbit index.
+   */
+  protected FacetCounts getIndexedCounts(QueryManager queryManager, Session session,
+      QueryResult result, String property) {
+    try {
+      FacetExtractor extractor = new FacetExtractor(queryManager, session);
+      return extractor.count(result, new String[] { property }, false)[0];
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Counting groups from nodes: {} ", e.getMessage());
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to count groups from the index: {} ", e.getMessage());
+    }
+    return null;
+  }
+
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(EventConstants.EVENT_TOPIC, UnreadMessageCounter.TOPIC);
+    unreadCounterRegistration = componentContext.getBundleContext().registerService(
+        EventHandler.class.getName(), unreadCounter, props);
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (unreadCounterRegistration != null) {
+      unreadCounterRegistration.unregister();
+      unreadCounterRegistration = null;
+    }
+  }
 }
@@ -51,6 +51,7 @@ import javax.jcr.query.Row;
  *                description="Procsessor for message search results"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="sakai.search.processor" value="Message"
+ * @scr.property name="sakai.search.cacheable" value="true" type="Boolean"
  * @scr.property name="sakai.seach.resourcetype" value="sakai/message"
  * @scr.service interface="org.sakaiproject.nakamura.api.search.SearchResultProcessor"
  * @scr.reference name="MessagingService"
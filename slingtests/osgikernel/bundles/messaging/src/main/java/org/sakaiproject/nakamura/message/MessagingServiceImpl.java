@@ -21,6 +21,7 @@ import static org.sakaiproject.nakamura.api.message.MessageConstants.SAKAI_MESSA
 
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
@@ -119,18 +120,20 @@ public class MessagingServiceImpl implements MessagingService {
 
   }
 
+  /**
+   * Messages are sharded by id, only the leaf shard of the message is locked while it is
+   * written, so senders writing to the same store do not wait for each other unless
+   * their messages land in the same shard.
+   */
   public Node create(Session session, Map<String, Object> mapProperties, String messageId, String messagePathBase)
     throws MessagingException {
     Node msg = null;
-    try {
-      lockManager.waitForLock(messagePathBase);
-    } catch (LockTimeoutException e1) {
-      throw new MessagingException("Unable to lock user mailbox");
-    }
     try {
       //String messagePath = MessageUtils.getMessagePath(user, ISO9075.encodePath(messageId));
       String messagePath = PathUtils.toSimpleShardPath(messagePathBase, messageId, "");
       try {
+        String shardPath = getOrCreateShard(session, messagePathBase, messagePath);
+        lock(shardPath);
         msg = JcrUtils.deepGetOrCreateNode(session, messagePath);
         
         for (Entry<String, Object> e : mapProperties.entrySet()) {
@@ -162,6 +165,50 @@ public class MessagingServiceImpl implements MessagingService {
     }
   }
 
+  /**
+   * Make sure the leaf shard of a message exists. The shards of a store share their upper
+   * levels, so a missing shard is created while holding the lock on the whole store, which
+   * only happens for the first message into the shard. Only the subtree holding the new
+   * shard nodes is saved, other pending changes of the session are left alone.
+   *
+   * @param session
+   * @param storePath
+   *          the path of the message store.
+   * @param messagePath
+   *          the sharded path of the message in the store.
+   * @return the path of the leaf shard.
+   * @throws RepositoryException
+   * @throws MessagingException
+   *           when the store could not be locked.
+   */
+  private String getOrCreateShard(Session session, String storePath, String messagePath)
+      throws RepositoryException, MessagingException {
+    String shardPath = messagePath.substring(0, messagePath.lastIndexOf('/'));
+    if (!session.itemExists(shardPath)) {
+      Lock storeLock = lock(storePath);
+      try {
+        Node existing = JcrUtils.getFirstExistingNode(session, shardPath);
+        if (!shardPath.equals(existing.getPath())) {
+          JcrUtils.deepGetOrCreateNode(session, shardPath);
+          existing.save();
+        }
+      } finally {
+        if (storeLock != null) {
+          storeLock.unlock();
+        }
+      }
+    }
+    return shardPath;
+  }
+
+  private Lock lock(String path) {
+    try {
+      return lockManager.waitForLock(path);
+    } catch (LockTimeoutException e1) {
+      throw new MessagingException("Unable to lock user mailbox");
+    }
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -194,9 +241,7 @@ public class MessagingServiceImpl implements MessagingService {
     Session session = sourceMessage.getSession();
     String messageId = sourceMessage.getName();
     String targetNodePath = PathUtils.toSimpleShardPath(targetStore, messageId, "");
-    String parent = targetNodePath.substring(0, targetNodePath.lastIndexOf('/'));
-    Node parentNode = JcrUtils.deepGetOrCreateNode(session, parent);
-    LOGGER.info("Created parent node at: " + parentNode.getPath());
+    getOrCreateShard(session, targetStore, targetNodePath);
     session.save();
     session.getWorkspace().copy(sourceMessage.getPath(), targetNodePath);
   }
@@ -0,0 +1,295 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import org.apache.jackrabbit.util.ISO9075;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Keeps the unread internal messages in the inbox of each message store that has been
+ * counted. A store is seeded with one query the first time it is counted, after that
+ * resource events mark the messages that were created, read or deleted and only those
+ * are looked at again on the next count, with the session of the user asking for it.
+ * <p>
+ * Every resource event passes through here, so the store of a path is found without
+ * taking a shared lock: only events inside a counted store lock that store, and only
+ * removals outside any store lock the list of stores to drop those under the path.
+ * </p>
+ */
+public class UnreadMessageCounter implements EventHandler {
+
+  /**
+   * The topics of the resource events that change messages.
+   */
+  public static final String TOPIC = "org/apache/sling/api/resource/Resource/*";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(UnreadMessageCounter.class);
+  private static final String REMOVED_TOPIC = "org/apache/sling/api/resource/Resource/REMOVED";
+  private static final String PATH_PROPERTY = "path";
+  private static final int DEFAULT_MAX_STORES = 10000;
+
+  /**
+   * The counted stores by path, read without locking when events arrive.
+   */
+  private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+  /**
+   * The counted stores, least recently counted first. Guards itself and {@link #sorted}.
+   */
+  private final Map<String, Mailbox> recent;
+  /**
+   * The counted stores sorted by path, so those under a removed path can be found.
+   */
+  private final SortedMap<String, Mailbox> sorted = new TreeMap<String, Mailbox>();
+
+  public UnreadMessageCounter() {
+    this(DEFAULT_MAX_STORES);
+  }
+
+  /**
+   * @param maxStores
+   *          the number of message stores held, the least recently counted is dropped
+   *          first.
+   */
+  public UnreadMessageCounter(final int maxStores) {
+    recent = new LinkedHashMap<String, Mailbox>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Mailbox> eldest) {
+        if (size() > maxStores) {
+          sorted.remove(eldest.getKey());
+          mailboxes.remove(eldest.getKey());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Check if a count request asks for the unread messages in the inbox, which is what
+   * this counter holds.
+   * 
+   * @param filters
+   *          the properties the messages are filtered on.
+   * @param values
+   *          the values of those properties.
+   * @return true if the filters are exactly the inbox and unread.
+   */
+  public static boolean isUnreadInbox(String[] filters, String[] values) {
+    if (filters == null || values == null || filters.length != 2 || values.length != 2) {
+      return false;
+    }
+    boolean inbox = false;
+    boolean unread = false;
+    for (int i = 0; i < filters.length; i++) {
+      if (MessageConstants.PROP_SAKAI_MESSAGEBOX.equals(filters[i])) {
+        inbox = MessageConstants.BOX_INBOX.equals(values[i]);
+      } else if (MessageConstants.PROP_SAKAI_READ.equals(filters[i])) {
+        unread = "false".equals(values[i]);
+      }
+    }
+    return inbox && unread;
+  }
+
+  /**
+   * @param node
+   * @return true if the node is an unread internal message in an inbox.
+   * @throws RepositoryException
+   */
+  public static boolean isUnread(Node node) throws RepositoryException {
+    return hasValue(node, "sling:resourceType", MessageConstants.SAKAI_MESSAGE_RT)
+        && hasValue(node, MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL)
+        && hasValue(node, MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX)
+        && hasValue(node, MessageConstants.PROP_SAKAI_READ, "false");
+  }
+
+  private static boolean hasValue(Node node, String property, String value)
+      throws RepositoryException {
+    return node.hasProperty(property) && value.equals(node.getProperty(property).getString());
+  }
+
+  /**
+   * Get the number of unread messages in the inbox of a store.
+   * 
+   * @param session
+   *          a session that can read the messages in the store.
+   * @param storePath
+   *          the path of the message store.
+   * @return the number of unread messages.
+   * @throws RepositoryException
+   */
+  public int getUnreadCount(Session session, String storePath) throws RepositoryException {
+    Mailbox mailbox;
+    synchronized (recent) {
+      mailbox = recent.get(storePath);
+      if (mailbox == null) {
+        mailbox = new Mailbox();
+        recent.put(storePath, mailbox);
+        sorted.put(storePath, mailbox);
+        mailboxes.put(storePath, mailbox);
+      }
+    }
+    synchronized (mailbox) {
+      if (!mailbox.loaded) {
+        load(session, storePath, mailbox);
+        mailbox.loaded = true;
+      }
+      // Events that arrived while loading are applied again, which changes nothing
+      // since every message is checked against its current state.
+      for (String path : mailbox.changed) {
+        if (session.itemExists(path)) {
+          Item item = session.getItem(path);
+          if (item.isNode() && isUnread((Node) item)) {
+            mailbox.unread.add(path);
+            continue;
+          }
+        }
+        mailbox.unread.remove(path);
+      }
+      mailbox.changed.clear();
+      return mailbox.unread.size();
+    }
+  }
+
+  private void load(Session session, String storePath, Mailbox mailbox)
+      throws RepositoryException {
+    String queryString = "/jcr:root" + ISO9075.encodePath(storePath)
+        + "//*[@sling:resourceType=\"" + MessageConstants.SAKAI_MESSAGE_RT + "\" and @"
+        + MessageConstants.PROP_SAKAI_TYPE + "=\"" + MessageConstants.TYPE_INTERNAL
+        + "\" and @" + MessageConstants.PROP_SAKAI_MESSAGEBOX + "=\""
+        + MessageConstants.BOX_INBOX + "\" and @" + MessageConstants.PROP_SAKAI_READ
+        + "=\"false\"]";
+    QueryManager queryManager = session.getWorkspace().getQueryManager();
+    RowIterator rows = queryManager.createQuery(queryString, Query.XPATH).execute()
+        .getRows();
+    while (rows.hasNext()) {
+      mailbox.unread.add(rows.nextRow().getValue("jcr:path").getString());
+    }
+    LOGGER.debug("Loaded {} unread messages for {} ", mailbox.unread.size(), storePath);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object path = event.getProperty(PATH_PROPERTY);
+    if (path != null) {
+      changed(String.valueOf(path), REMOVED_TOPIC.equals(event.getTopic()));
+    }
+  }
+
+  /**
+   * Record a change to a path, only paths inside a counted store are kept.
+   * 
+   * @param path
+   *          the path of the node that was added, changed or removed.
+   * @param removed
+   *          true if the node and everything under it was removed.
+   */
+  public void changed(String path, boolean removed) {
+    Mailbox mailbox = null;
+    for (String p = path; mailbox == null && p.length() > 1; p = p.substring(0, Math
+        .max(1, p.lastIndexOf('/')))) {
+      mailbox = mailboxes.get(p);
+      if (mailbox != null && removed && p.equals(path)) {
+        // the store itself has gone.
+        mailbox = null;
+        break;
+      }
+    }
+    if (mailbox == null) {
+      if (removed) {
+        removeStores(path);
+      }
+      return;
+    }
+    synchronized (mailbox) {
+      if (removed) {
+        String prefix = path + "/";
+        for (Iterator<String> i = mailbox.unread.iterator(); i.hasNext();) {
+          String p = i.next();
+          if (p.equals(path) || p.startsWith(prefix)) {
+            i.remove();
+          }
+        }
+      }
+      mailbox.changed.add(path);
+    }
+  }
+
+  /**
+   * Drop the store at a path and every store under it. Stores do not nest, so this is
+   * only needed for removed paths that are not inside a store.
+   * 
+   * @param path
+   *          the path that was removed.
+   */
+  private void removeStores(String path) {
+    String prefix = path.endsWith("/") ? path : path + "/";
+    String end = prefix.substring(0, prefix.length() - 1) + (char) ('/' + 1);
+    synchronized (recent) {
+      List<String> stores = new ArrayList<String>(sorted.subMap(prefix, end).keySet());
+      stores.add(path);
+      for (String store : stores) {
+        recent.remove(store);
+        sorted.remove(store);
+        mailboxes.remove(store);
+      }
+    }
+  }
+
+  /**
+   * @return the number of stores held.
+   */
+  public int size() {
+    return mailboxes.size();
+  }
+
+  private static class Mailbox {
+    private boolean loaded;
+    private final Set<String> unread = new HashSet<String>();
+    private final Set<String> changed = new HashSet<String>();
+  }
+}
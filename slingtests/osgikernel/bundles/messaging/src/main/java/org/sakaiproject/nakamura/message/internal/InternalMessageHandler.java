@@ -20,30 +20,53 @@ package org.sakaiproject.nakamura.message.internal;
 
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.MessageRoute;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
 import org.sakaiproject.nakamura.api.message.MessageTransport;
+import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery. Needs to be
  * started immediately to make sure it registers with JCR as soon as possible.
  * 
+ * Recipients are delivered to in batches, the shards of a batch are created first, then
+ * the message is copied to every recipient of the batch in the session and saved once.
+ * Admin sessions are kept in a small pool between messages.
+ * 
  * @scr.component label="InternalMessageHandler"
  *                description="Handler for internally delivered messages."
  *                immediate="true"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
+ * @scr.property name="message.internal.batch" value="100" type="Long"
+ * @scr.property name="message.internal.sessions" value="4" type="Long"
  * @scr.service interface="org.sakaiproject.nakamura.api.message.MessageTransport"
  * @scr.service interface="org.sakaiproject.nakamura.api.message.MessageProfileWriter"
  * @scr.reference interface="org.apache.sling.jcr.api.SlingRepository"
@@ -54,6 +77,16 @@ import javax.jcr.Session;
 public class InternalMessageHandler implements MessageTransport, MessageProfileWriter {
   private static final Logger LOG = LoggerFactory.getLogger(InternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
+  /**
+   * The number of recipients written with one save.
+   */
+  private static final String BATCH = "message.internal.batch";
+  /**
+   * The number of admin sessions kept between messages.
+   */
+  private static final String SESSIONS = "message.internal.sessions";
+  private static final int DEFAULT_BATCH = 100;
+  private static final int DEFAULT_SESSIONS = 4;
 
   /**
    * The JCR Repository we access.
@@ -61,6 +94,14 @@ public class InternalMessageHandler implements MessageTransport, MessageProfileW
    */
   private SlingRepository slingRepository;
 
+  private int batchSize = DEFAULT_BATCH;
+
+  /**
+   * Idle admin sessions, without pending changes.
+   */
+  private BlockingQueue<Session> sessions = new LinkedBlockingQueue<Session>(
+      DEFAULT_SESSIONS);
+
   /**
    * @param slingRepository
    *          the slingRepository to set
@@ -93,6 +134,25 @@ public class InternalMessageHandler implements MessageTransport, MessageProfileW
   public InternalMessageHandler() {
   }
 
+  protected void activate(ComponentContext context) {
+    Long batch = (Long) context.getProperties().get(BATCH);
+    if (batch != null && batch > 0) {
+      batchSize = batch.intValue();
+    }
+    Long pool = (Long) context.getProperties().get(SESSIONS);
+    if (pool != null && pool > 0) {
+      sessions = new LinkedBlockingQueue<Session>(pool.intValue());
+    }
+  }
+
+  protected void deactivate(ComponentContext context) {
+    Session session = sessions.poll();
+    while (session != null) {
+      session.logout();
+      session = sessions.poll();
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -100,38 +160,176 @@ public class InternalMessageHandler implements MessageTransport, MessageProfileW
    *      org.osgi.service.event.Event, javax.jcr.Node)
    */
   public void send(MessageRoutes routes, Event event, Node originalMessage) {
+    Set<String> rcpts = new LinkedHashSet<String>();
+    for (MessageRoute route : routes) {
+      if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        rcpts.add(route.getRcpt());
+      }
+    }
+    if (rcpts.isEmpty()) {
+      return;
+    }
+    Session session = null;
     try {
-
-      Session session = slingRepository.loginAdministrative(null);
-
-      for (MessageRoute route : routes) {
-        if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
-          LOG.info("Started handling a message.");
-          String rcpt = route.getRcpt();
-          // the path were we want to save messages in.
-          String messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)
-              .getString();
-          String toPath = messagingService.getFullPathToMessage(rcpt, messageId, session);
-
-          // Copy the node into the user his folder.
-          JcrUtils.deepGetOrCreateNode(session, toPath.substring(0, toPath
-              .lastIndexOf("/")));
-          session.save();
-          session.getWorkspace().copy(originalMessage.getPath(), toPath);
-          Node n = JcrUtils.deepGetOrCreateNode(session, toPath);
-
-          // Add some extra properties on the just created node.
-          n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-          n.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-              MessageConstants.BOX_INBOX);
-          n.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE,
-              MessageConstants.STATE_NOTIFIED);
-
-          n.save();
+      session = borrowSession();
+      LOG.info("Started handling a message for {} recipients.", rcpts.size());
+      // the path were we want to save messages in.
+      String messageId = originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)
+          .getString();
+      Map<String, String> batch = new LinkedHashMap<String, String>();
+      for (String rcpt : rcpts) {
+        try {
+          batch.put(rcpt, messagingService.getFullPathToMessage(rcpt, messageId, session));
+        } catch (MessagingException e) {
+          LOG.warn("Unable to deliver message {} to {}: {}", new Object[] { messageId,
+              rcpt, e.getMessage() });
         }
+        if (batch.size() == batchSize) {
+          deliver(session, originalMessage, batch);
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        deliver(session, originalMessage, batch);
       }
     } catch (RepositoryException e) {
       LOG.error(e.getMessage(), e);
+    } finally {
+      returnSession(session);
+    }
+  }
+
+  /**
+   * Deliver a message to a batch of recipients with one save. If the batch fails it is
+   * delivered again one recipient at a time, so one bad recipient does not hold up the
+   * rest of the batch.
+   * 
+   * @param session
+   * @param originalMessage
+   * @param batch
+   *          the path of the copy of the message by recipient.
+   * @throws RepositoryException
+   */
+  private void deliver(Session session, Node originalMessage, Map<String, String> batch)
+      throws RepositoryException {
+    long start = System.nanoTime();
+    try {
+      write(session, originalMessage, batch.values());
+    } catch (RepositoryException e) {
+      LOG.warn("Failed to deliver a batch of {}, delivering one at a time: {}", batch
+          .size(), e.getMessage());
+      session.refresh(false);
+      for (Entry<String, String> rcpt : batch.entrySet()) {
+        try {
+          List<String> one = new ArrayList<String>(1);
+          one.add(rcpt.getValue());
+          write(session, originalMessage, one);
+        } catch (RepositoryException ex) {
+          LOG.warn("Unable to deliver message to {}: {}", rcpt.getKey(), ex.getMessage());
+          session.refresh(false);
+        }
+      }
+    }
+    long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    LOG.info("Delivered a batch of {} in {} ms ({} per s)", new Object[] { batch.size(),
+        ms, ms == 0 ? "-" : String.valueOf(batch.size() * 1000L / ms) });
+  }
+
+  /**
+   * Create the shards of all the copies, then copy the message into each and save once.
+   * 
+   * @param session
+   * @param originalMessage
+   * @param toPaths
+   * @throws RepositoryException
+   */
+  private void write(Session session, Node originalMessage, Iterable<String> toPaths)
+      throws RepositoryException {
+    Map<String, Node> shards = new LinkedHashMap<String, Node>();
+    for (String toPath : toPaths) {
+      String shard = toPath.substring(0, toPath.lastIndexOf("/"));
+      if (!shards.containsKey(shard)) {
+        shards.put(shard, JcrUtils.deepGetOrCreateNode(session, shard));
+      }
+    }
+    for (String toPath : toPaths) {
+      if (session.itemExists(toPath)) {
+        LOG.debug("Message already delivered to {}", toPath);
+        continue;
+      }
+      Node shard = shards.get(toPath.substring(0, toPath.lastIndexOf("/")));
+      // Copy the node into the user his folder.
+      Node n = copy(originalMessage, shard, toPath.substring(toPath.lastIndexOf("/") + 1));
+
+      // Add some extra properties on the just created node.
+      n.setProperty(MessageConstants.PROP_SAKAI_READ, false);
+      n.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+      n.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
+    }
+    if (session.hasPendingChanges()) {
+      session.save();
+    }
+  }
+
+  /**
+   * Copy a node and its children in the session, protected items are left to the
+   * repository as a workspace copy would.
+   * 
+   * @param source
+   * @param parent
+   * @param name
+   * @return the copy.
+   * @throws RepositoryException
+   */
+  private Node copy(Node source, Node parent, String name) throws RepositoryException {
+    Node n = parent.addNode(name, source.getPrimaryNodeType().getName());
+    for (NodeType mixin : source.getMixinNodeTypes()) {
+      n.addMixin(mixin.getName());
+    }
+    PropertyIterator pi = source.getProperties();
+    while (pi.hasNext()) {
+      Property p = pi.nextProperty();
+      if (!p.getDefinition().isProtected()) {
+        if (p.getDefinition().isMultiple()) {
+          n.setProperty(p.getName(), p.getValues());
+        } else {
+          n.setProperty(p.getName(), p.getValue());
+        }
+      }
+    }
+    NodeIterator ni = source.getNodes();
+    while (ni.hasNext()) {
+      Node child = ni.nextNode();
+      if (!child.getDefinition().isProtected()) {
+        copy(child, n, child.getName());
+      }
+    }
+    return n;
+  }
+
+  private Session borrowSession() throws RepositoryException {
+    Session session = sessions.poll();
+    if (session != null && session.isLive()) {
+      return session;
+    }
+    return slingRepository.loginAdministrative(null);
+  }
+
+  private void returnSession(Session session) {
+    if (session == null) {
+      return;
+    }
+    try {
+      if (session.isLive() && session.hasPendingChanges()) {
+        session.refresh(false);
+      }
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to reset session: {}", e.getMessage());
+      session.logout();
+      return;
+    }
+    if (!session.isLive() || !sessions.offer(session)) {
+      session.logout();
     }
   }
 
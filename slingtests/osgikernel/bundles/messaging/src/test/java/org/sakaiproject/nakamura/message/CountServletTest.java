@@ -20,7 +20,11 @@ package org.sakaiproject.nakamura.message;
 import static org.junit.Assert.assertNotSame;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -48,10 +52,13 @@ import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.Workspace;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
 import javax.servlet.ServletException;
 
 /**
@@ -144,6 +151,61 @@ public class CountServletTest {
 
   }
 
+  @Test
+  public void testUnreadInbox() throws ServletException, IOException,
+      RepositoryException, JSONException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter write = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(write);
+
+    RequestParameter filtersParam = mock(RequestParameter.class);
+    when(filtersParam.getString()).thenReturn("sakai:messagebox,sakai:read");
+    RequestParameter valuesParam = mock(RequestParameter.class);
+    when(valuesParam.getString()).thenReturn("inbox,false");
+    when(request.getRemoteUser()).thenReturn("admin");
+    when(request.getRequestParameter("filters")).thenReturn(filtersParam);
+    when(request.getRequestParameter("values")).thenReturn(valuesParam);
+
+    // The unread messages are loaded as rows, no nodes are read.
+    Row row = mock(Row.class);
+    Value value = mock(Value.class);
+    when(value.getString()).thenReturn("/path/to/store/msgA", "/path/to/store/msgB");
+    when(row.getValue("jcr:path")).thenReturn(value);
+    RowIterator rows = mock(RowIterator.class);
+    when(rows.hasNext()).thenReturn(true, true, false);
+    when(rows.nextRow()).thenReturn(row);
+
+    Session session = mock(Session.class);
+    Workspace workspace = mock(Workspace.class);
+    QueryManager queryManager = mock(QueryManager.class);
+    Query q = mock(Query.class);
+    QueryResult queryResult = mock(QueryResult.class);
+    when(queryResult.getRows()).thenReturn(rows);
+    when(q.execute()).thenReturn(queryResult);
+    when(queryManager.createQuery(anyString(), eq(Query.XPATH))).thenReturn(q);
+    when(workspace.getQueryManager()).thenReturn(queryManager);
+    when(session.getWorkspace()).thenReturn(workspace);
+
+    MockNode node = new MockNode("/_user/message.count.json");
+    node.setSession(session);
+    Resource resource = mock(Resource.class);
+    when(resource.adaptTo(Node.class)).thenReturn(node);
+    when(request.getResource()).thenReturn(resource);
+
+    when(messagingService.getFullPathToStore("admin", session)).thenReturn(
+        "/path/to/store");
+
+    servlet.doGet(request, response);
+    servlet.doGet(request, response);
+
+    write.flush();
+    String s = baos.toString("UTF-8");
+    assertEquals("{\"count\":2}{\"count\":2}", s);
+    verify(queryManager, times(1)).createQuery(anyString(), eq(Query.XPATH));
+  }
+
   /**
    * Create a {@link MockNode}.
    * 
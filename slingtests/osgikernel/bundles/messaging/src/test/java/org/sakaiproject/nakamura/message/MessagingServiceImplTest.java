@@ -36,6 +36,7 @@ import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
@@ -219,6 +220,7 @@ public class MessagingServiceImplTest {
 
     Node messageNode = new MockNode("/_user/a/ad/admin/message");
 
+    expect(session.itemExists("/_user/a/ad/admin/message/fo/o_/__/__")).andReturn(true);
     expect(session.itemExists("/_user/a/ad/admin/message/fo/o_/__/__/foo"))
         .andReturn(true);
     expect(session.getItem("/_user/a/ad/admin/message/fo/o_/__/__/foo")).andReturn(
@@ -230,7 +232,8 @@ public class MessagingServiceImplTest {
     // expect(session.hasPendingChanges()).andReturn(true);
 
     LockManager lockManager = createMock(LockManager.class);
-    expect(lockManager.waitForLock("/_user/a/ad/admin/message")).andReturn(null);
+    expect(lockManager.waitForLock("/_user/a/ad/admin/message/fo/o_/__/__")).andReturn(
+        null);
     lockManager.clearLocks();
     replay(lockManager, session);
     
@@ -239,6 +242,46 @@ public class MessagingServiceImplTest {
     assertEquals("foo", result.getProperty(MessageConstants.PROP_SAKAI_ID).getString());
     assertEquals(10L, result.getProperty("num").getLong());
     assertEquals("foobar", result.getProperty("s").getString());
+    verify(lockManager, session);
+  }
+
+  @Test
+  public void testCreateNewShard() throws LockTimeoutException, RepositoryException {
+    Map<String, Object> mapProperties = new HashMap<String, Object>();
+    String messageId = "foo";
+    String shardPath = "/_user/a/ad/admin/message/fo/o_/__/__";
+
+    expect(session.getUserID()).andReturn("admin");
+    expect(session.itemExists(shardPath)).andReturn(false);
+    // only the subtree under the first existing parent of the shard is saved.
+    expect(session.getItem(shardPath)).andThrow(new PathNotFoundException());
+    Node parentNode = createMock(Node.class);
+    expect(parentNode.isNode()).andReturn(true);
+    expect(parentNode.getPath()).andReturn("/_user/a/ad/admin/message/fo/o_/__");
+    parentNode.save();
+    expect(session.getItem("/_user/a/ad/admin/message/fo/o_/__")).andReturn(parentNode);
+    Node shardNode = new MockNode(shardPath);
+    expect(session.itemExists(shardPath)).andReturn(true);
+    expect(session.getItem(shardPath)).andReturn(shardNode);
+    Node messageNode = new MockNode(shardPath + "/foo");
+    expect(session.itemExists(shardPath + "/foo")).andReturn(true);
+    expect(session.getItem(shardPath + "/foo")).andReturn(messageNode);
+    expect(session.hasPendingChanges()).andReturn(true);
+    session.save();
+
+    // the store is only locked while the shard is created.
+    Lock storeLock = createMock(Lock.class);
+    storeLock.unlock();
+    LockManager lockManager = createMock(LockManager.class);
+    expect(lockManager.waitForLock("/_user/a/ad/admin/message")).andReturn(storeLock);
+    expect(lockManager.waitForLock(shardPath)).andReturn(null);
+    lockManager.clearLocks();
+    replay(lockManager, storeLock, parentNode, session);
+
+    messagingServiceImpl.lockManager = lockManager;
+    Node result = messagingServiceImpl.create(session, mapProperties, messageId);
+    assertEquals("foo", result.getProperty(MessageConstants.PROP_SAKAI_ID).getString());
+    verify(lockManager, storeLock, parentNode, session);
   }
 
   @Test
@@ -247,11 +290,10 @@ public class MessagingServiceImplTest {
     String messageId = "foo";
 
     expect(session.getUserID()).andReturn("admin");
-    expect(session.itemExists("/_user/a/ad/admin/message/fo/o_/__/__/foo"))
+    expect(session.itemExists("/_user/a/ad/admin/message/fo/o_/__/__"))
         .andThrow(new RepositoryException());
 
     LockManager lockManager = createMock(LockManager.class);
-    expect(lockManager.waitForLock("/_user/a/ad/admin/message")).andReturn(null);
     lockManager.clearLocks();
     replay(session, lockManager);
     
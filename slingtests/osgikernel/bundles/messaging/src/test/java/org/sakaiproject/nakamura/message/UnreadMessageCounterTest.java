@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+
+import java.util.Hashtable;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ *
+ */
+public class UnreadMessageCounterTest {
+
+  private static final String STORE = "/_user/message/a/ad/admin";
+
+  private UnreadMessageCounter counter;
+  private Session session;
+  private QueryManager queryManager;
+
+  @Before
+  public void setUp() throws RepositoryException {
+    counter = new UnreadMessageCounter();
+    session = mock(Session.class);
+    Workspace workspace = mock(Workspace.class);
+    queryManager = mock(QueryManager.class);
+    when(session.getWorkspace()).thenReturn(workspace);
+    when(workspace.getQueryManager()).thenReturn(queryManager);
+
+    Row row = mock(Row.class);
+    Value value = mock(Value.class);
+    when(value.getString()).thenReturn(STORE + "/msgA");
+    when(row.getValue("jcr:path")).thenReturn(value);
+    RowIterator rows = mock(RowIterator.class);
+    when(rows.hasNext()).thenReturn(true, false);
+    when(rows.nextRow()).thenReturn(row);
+    QueryResult result = mock(QueryResult.class);
+    when(result.getRows()).thenReturn(rows);
+    Query query = mock(Query.class);
+    when(query.execute()).thenReturn(result);
+    when(queryManager.createQuery(anyString(), eq(Query.XPATH))).thenReturn(query);
+  }
+
+  @Test
+  public void testIsUnreadInbox() {
+    assertTrue(UnreadMessageCounter.isUnreadInbox(new String[] { "sakai:messagebox",
+        "sakai:read" }, new String[] { "inbox", "false" }));
+    assertTrue(UnreadMessageCounter.isUnreadInbox(new String[] { "sakai:read",
+        "sakai:messagebox" }, new String[] { "false", "inbox" }));
+    assertFalse(UnreadMessageCounter.isUnreadInbox(new String[] { "sakai:read",
+        "sakai:messagebox" }, new String[] { "true", "inbox" }));
+    assertFalse(UnreadMessageCounter.isUnreadInbox(new String[] { "sakai:messagebox" },
+        new String[] { "inbox" }));
+    assertFalse(UnreadMessageCounter.isUnreadInbox(null, null));
+  }
+
+  @Test
+  public void testLoadedOnce() throws RepositoryException {
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+    verify(queryManager, times(1)).createQuery(anyString(), eq(Query.XPATH));
+  }
+
+  @Test
+  public void testAddedAndRead() throws RepositoryException {
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+
+    Node unread = createMessage(false);
+    Node read = createMessage(true);
+    when(session.itemExists(STORE + "/msgB")).thenReturn(true);
+    when(session.getItem(STORE + "/msgB")).thenReturn(unread, read);
+    counter.handleEvent(createEvent("ADDED", STORE + "/msgB"));
+    assertEquals(2, counter.getUnreadCount(session, STORE));
+
+    counter.handleEvent(createEvent("CHANGED", STORE + "/msgB"));
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+  }
+
+  @Test
+  public void testRemoved() throws RepositoryException {
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+    counter.handleEvent(createEvent("REMOVED", STORE + "/msgA"));
+    assertEquals(0, counter.getUnreadCount(session, STORE));
+  }
+
+  @Test
+  public void testOtherPathsIgnored() throws RepositoryException {
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+    counter.handleEvent(createEvent("ADDED", "/_user/message/b/bo/bob/msgC"));
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+    verify(session, times(0)).itemExists(anyString());
+  }
+
+  @Test
+  public void testStoreRemoved() throws RepositoryException {
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+    assertEquals(1, counter.size());
+    counter.handleEvent(createEvent("REMOVED", STORE));
+    assertEquals(0, counter.size());
+  }
+
+  @Test
+  public void testParentOfStoreRemoved() throws RepositoryException {
+    assertEquals(1, counter.getUnreadCount(session, STORE));
+    counter.handleEvent(createEvent("REMOVED", "/_user/message/a/ad/adm"));
+    assertEquals(1, counter.size());
+    counter.handleEvent(createEvent("REMOVED", "/_user/message/a"));
+    assertEquals(0, counter.size());
+  }
+
+  private Node createMessage(boolean read) throws RepositoryException {
+    Node node = mock(Node.class);
+    when(node.isNode()).thenReturn(true);
+    mockProperty(node, "sling:resourceType", MessageConstants.SAKAI_MESSAGE_RT);
+    mockProperty(node, MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL);
+    mockProperty(node, MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    mockProperty(node, MessageConstants.PROP_SAKAI_READ, String.valueOf(read));
+    return node;
+  }
+
+  private void mockProperty(Node node, String name, String value)
+      throws RepositoryException {
+    Property property = mock(Property.class);
+    when(property.getString()).thenReturn(value);
+    when(node.hasProperty(name)).thenReturn(true);
+    when(node.getProperty(name)).thenReturn(property);
+  }
+
+  private Event createEvent(String type, String path) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", path);
+    return new Event("org/apache/sling/api/resource/Resource/" + type, props);
+  }
+}
@@ -17,29 +17,32 @@
  */
 package org.sakaiproject.nakamura.message.internal;
 
-import static org.junit.Assert.assertEquals;
-
-import static org.mockito.Mockito.when;
-
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
-import org.apache.sling.commons.testing.jcr.MockNode;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.message.listener.MessageRoutesImpl;
 
+import java.util.Hashtable;
+
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.ValueFormatException;
-import javax.jcr.Workspace;
-import javax.jcr.lock.LockException;
-import javax.jcr.nodetype.ConstraintViolationException;
-import javax.jcr.version.VersionException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
 
 /**
  *
@@ -50,53 +53,110 @@ public class InternalMessageHandlerTest {
   private MessagingService messagingService;
   private SlingRepository slingRepository;
   private Session session;
+  private Node originalMessage;
+  private Value subject;
 
   @Before
   public void setUp() throws Exception {
     messagingService = mock(MessagingService.class);
     slingRepository = mock(SlingRepository.class);
     session = mock(Session.class);
+    when(session.isLive()).thenReturn(true);
+    when(slingRepository.loginAdministrative(null)).thenReturn(session);
     handler = new InternalMessageHandler();
     handler.bindMessagingService(messagingService);
     handler.bindSlingRepository(slingRepository);
-  }
-
-  @Test
-  public void testHandle() throws ValueFormatException, VersionException, LockException,
-      ConstraintViolationException, RepositoryException {
-    String path = "/path/to/msg";
-    String newPath = "/path/to/new/msg";
 
     // Original message created to send
-    Node originalMessage = new MockNode(path);
-    originalMessage.setProperty(MessageConstants.PROP_SAKAI_TO, "internal:admin");
-    originalMessage.setProperty(MessageConstants.PROP_SAKAI_ID, "foo");
-
-    Node newNode = new MockNode(newPath);
-    Node newNodeParent = new MockNode(newPath.substring(0, newPath.lastIndexOf("/")));
-    Workspace space = mock(Workspace.class);
-    when(session.getWorkspace()).thenReturn(space);
+    originalMessage = mock(Node.class);
+    when(originalMessage.getPath()).thenReturn("/path/to/msg");
+    Property id = mock(Property.class);
+    when(id.getString()).thenReturn("foo");
+    when(originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID)).thenReturn(id);
+    NodeType type = mock(NodeType.class);
+    when(type.getName()).thenReturn("nt:unstructured");
+    when(originalMessage.getPrimaryNodeType()).thenReturn(type);
+    when(originalMessage.getMixinNodeTypes()).thenReturn(new NodeType[0]);
+    NodeIterator children = mock(NodeIterator.class);
+    when(originalMessage.getNodes()).thenReturn(children);
+  }
 
-    when(session.itemExists(newNodeParent.getPath())).thenReturn(true);
-    when(session.getItem(newNodeParent.getPath())).thenReturn(newNodeParent);
-    when(session.itemExists(newPath)).thenReturn(true);
-    when(session.getItem(newPath)).thenReturn(newNode);
+  private void setRecipients(String to) throws RepositoryException {
+    Property toProp = mock(Property.class);
+    when(toProp.getString()).thenReturn(to);
+    when(originalMessage.getProperty(MessageConstants.PROP_SAKAI_TO)).thenReturn(toProp);
+    // one copied property.
+    subject = mock(Value.class);
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    Property subjectProp = mock(Property.class);
+    when(subjectProp.getName()).thenReturn("sakai:subject");
+    when(subjectProp.getDefinition()).thenReturn(definition);
+    when(subjectProp.getValue()).thenReturn(subject);
+    PropertyIterator properties = mock(PropertyIterator.class);
+    when(properties.hasNext()).thenReturn(true, false);
+    when(properties.nextProperty()).thenReturn(subjectProp);
+    when(originalMessage.getProperties()).thenReturn(properties);
+  }
 
-    when(slingRepository.loginAdministrative(null)).thenReturn(session);
+  private Node expectShard(String rcpt, String shardPath) throws RepositoryException {
+    Node shard = mock(Node.class);
+    when(session.itemExists(shardPath)).thenReturn(true);
+    when(session.getItem(shardPath)).thenReturn(shard);
+    when(messagingService.getFullPathToMessage(rcpt, "foo", session)).thenReturn(
+        shardPath + "/foo");
+    Node newNode = mock(Node.class);
+    when(shard.addNode("foo", "nt:unstructured")).thenReturn(newNode);
+    return newNode;
+  }
 
-    when(messagingService.getFullPathToMessage("admin", "foo", session)).thenReturn(
-        newPath);
+  @Test
+  public void testHandle() throws RepositoryException {
+    setRecipients("internal:admin");
+    Node newNode = expectShard("admin", "/path/to/new");
+    when(session.hasPendingChanges()).thenReturn(true, false);
 
     MessageRoutes routes = new MessageRoutesImpl(originalMessage);
 
     handler.send(routes, null, originalMessage);
 
-    assertEquals(false, newNode.getProperty(MessageConstants.PROP_SAKAI_READ)
-        .getBoolean());
-    assertEquals(MessageConstants.BOX_INBOX, newNode.getProperty(
-        MessageConstants.PROP_SAKAI_MESSAGEBOX).getString());
-    assertEquals(MessageConstants.STATE_NOTIFIED, newNode.getProperty(
-        MessageConstants.PROP_SAKAI_SENDSTATE).getString());
+    verify(newNode).setProperty("sakai:subject", subject);
+    verify(newNode).setProperty(MessageConstants.PROP_SAKAI_READ, false);
+    verify(newNode).setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+        MessageConstants.BOX_INBOX);
+    verify(newNode).setProperty(MessageConstants.PROP_SAKAI_SENDSTATE,
+        MessageConstants.STATE_NOTIFIED);
+    verify(session).save();
+    verify(session, never()).logout();
+  }
 
+  @Test
+  public void testHandleInBatches() throws RepositoryException {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("message.internal.batch", 2L);
+    ComponentContext context = mock(ComponentContext.class);
+    when(context.getProperties()).thenReturn(properties);
+    handler.activate(context);
+
+    setRecipients("internal:a,internal:b,internal:c,internal:a");
+    Node a = expectShard("a", "/_user/a/message/fo/o_/__/__");
+    Node b = expectShard("b", "/_user/b/message/fo/o_/__/__");
+    Node c = expectShard("c", "/_user/c/message/fo/o_/__/__");
+    when(session.hasPendingChanges()).thenReturn(true, true, false, true, false);
+
+    handler.send(new MessageRoutesImpl(originalMessage), null, originalMessage);
+    // the session is reused for the next message.
+    setRecipients("internal:a");
+    handler.send(new MessageRoutesImpl(originalMessage), null, originalMessage);
+
+    // a is only delivered once per message.
+    verify(a, times(2)).setProperty(MessageConstants.PROP_SAKAI_READ, false);
+    verify(b).setProperty(MessageConstants.PROP_SAKAI_READ, false);
+    verify(c).setProperty(MessageConstants.PROP_SAKAI_READ, false);
+    // one save for a and b, one for c, one for the second message.
+    verify(session, times(3)).save();
+    verify(slingRepository, times(1)).loginAdministrative(null);
+
+    handler.deactivate(context);
+    verify(session).logout();
   }
 }
@@ -100,9 +100,7 @@ public class PresenceServiceImpl implements PresenceService {
     if (currentStatus != null) {
       if (userStatusCache != null) {
         // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
+        userStatusCache.remove(uuid);
       }
       // try to find the location and clear the user from that
       String location = null;
@@ -115,7 +113,7 @@ public class PresenceServiceImpl implements PresenceService {
         if (locationInstanceCache != null) {
           if (locationInstanceCache.containsKey(uuid)) {
             locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
+            locationCache.putQuiet(location, locationInstanceCache);
           }
         }
       }
@@ -236,18 +234,19 @@ public class PresenceServiceImpl implements PresenceService {
       if (!"none".equals(location) && locationCache != null) {
         Map<String, String> locationInstanceCache = locationCache.get(location);
         if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
+          Map<String, String> newLocationInstanceCache = new ConcurrentHashMap<String, String>();
+          locationInstanceCache = locationCache.putIfAbsent(location,
+              newLocationInstanceCache);
+          if (locationInstanceCache == null) {
+            locationInstanceCache = newLocationInstanceCache;
           }
         }
 
         String userKey = getLocationKey(uuid, location);
         if (!locationInstanceCache.containsKey(uuid)) {
           locationInstanceCache.put(uuid, userKey);
+          // put back so that the change reaches the rest of the cluster.
+          locationCache.putQuiet(location, locationInstanceCache);
         }
       }
     }
@@ -307,7 +306,7 @@ public class PresenceServiceImpl implements PresenceService {
         }
         String newStatus = ':' + StringUtils.join(ls, ':');
         if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
+          userStatusCache.putQuiet(uuid, newStatus);
         } else {
           update = false;
         }
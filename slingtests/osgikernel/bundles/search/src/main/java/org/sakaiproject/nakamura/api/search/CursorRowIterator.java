@@ -15,37 +15,20 @@
  * KIND, either express or implied. See the License for the
  * specific language governing permissions and limitations under the License.
  */
-package org.sakaiproject.nakamura.site;
+package org.sakaiproject.nakamura.api.search;
 
-import java.util.Map;
+import javax.jcr.query.RowIterator;
 
 /**
- * 
+ * A {@link RowIterator} that can say where it is in the rows of the query it came from,
+ * so that a later request can carry on from there.
  */
-public class MembershipTree {
+public interface CursorRowIterator extends RowIterator {
 
-  private Map<GroupKey, Membership> groups;
-  private Map<UserKey, Membership> users;
-
-  /**
-   * @param groups
-   * @param users
-   */
-  public MembershipTree(Map<GroupKey, Membership> groups, Map<UserKey, Membership> users) {
-    this.groups = groups;
-    this.users = users;
-  }
-  /**
-   * @return the groups
-   */
-  public Map<GroupKey, Membership> getGroups() {
-    return groups;
-  }
   /**
-   * @return the users
+   * @return the cursor just after the row last returned, or null if no row has been
+   *         returned yet.
    */
-  public Map<UserKey, Membership> getUsers() {
-    return users;
-  }
+  SearchCursor getCursor();
 
 }
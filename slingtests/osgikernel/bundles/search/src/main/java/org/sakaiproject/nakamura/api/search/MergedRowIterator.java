@@ -18,44 +18,75 @@
 
 package org.sakaiproject.nakamura.api.search;
 
+import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import javax.jcr.Value;
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
+/**
+ * Merges any number of {@link RowIterator}s, each ordered by descending
+ * <code>jcr:score</code>, into a single iterator with the same ordering. The head row of
+ * every source is held in a heap together with its score, so each row's score is read
+ * exactly once. When two rows have the same score the row from the iterator that was
+ * passed in first wins. The iterators may instead be ordered by a property of the row
+ * nodes, as a query with an order by clause returns them.
+ */
 public class MergedRowIterator implements RowIterator {
 
-  private RowIterator iteratorA;
-  private RowIterator iteratorB;
+  private final Comparator<Source> order = new Comparator<Source>() {
+    public int compare(Source a, Source b) {
+      int c = compareKeys(a.key, b.key);
+      if (c != 0) {
+        return descending ? -c : c;
+      }
+      return a.index - b.index;
+    }
+  };
 
-  private Row rowA = null;
-  private Row rowB = null;
+  private final RowIterator[] iterators;
+  private final String property;
+  private final boolean descending;
+  private final PriorityQueue<Source> heap;
+  private boolean primed;
 
-  private int pos;
+  private long pos;
 
-  public MergedRowIterator(RowIterator iteratorA, RowIterator iteratorB) {
-    this.iteratorA = iteratorA;
-    this.iteratorB = iteratorB;
+  public MergedRowIterator(RowIterator... iterators) {
+    this(null, true, iterators);
   }
 
-  public Row nextRow() {
-    Row rowA = getRowA();
-    Row rowB = getRowB();
-
-    Row r = null;
+  /**
+   * @param property
+   *          the property of the row nodes the iterators are ordered by, null for
+   *          <code>jcr:score</code>. Rows without the property sort below all others.
+   * @param descending
+   *          true if the iterators are in descending order.
+   * @param iterators
+   */
+  public MergedRowIterator(String property, boolean descending, RowIterator... iterators) {
+    this.iterators = iterators;
+    this.property = property;
+    this.descending = descending;
+    this.heap = new PriorityQueue<Source>(Math.max(1, iterators.length), order);
+  }
 
-    if (compare(rowA, rowB)) {
-      r = rowA;
-      this.rowA = null;
-    } else {
-      r = rowB;
-      this.rowB = null;
-    }
-    pos++;
-    if (r == null) {
+  public Row nextRow() {
+    prime();
+    Source top = heap.poll();
+    if (top == null) {
       throw new IllegalStateException();
     }
+    Row r = top.row;
+    if (top.advance()) {
+      heap.add(top);
+    }
+    pos++;
     return r;
   }
 
@@ -63,26 +94,67 @@ public class MergedRowIterator implements RowIterator {
     return pos;
   }
 
+  /**
+   * The sum of the sizes reported by the merged iterators. This is an estimate in as far
+   * as the sources may overlap. If any of the sources does not know its size, -1 is
+   * returned.
+   *
+   * @see javax.jcr.RangeIterator#getSize()
+   */
   public long getSize() {
-    // We could do something like: iteratorA.getSize() + iteratorB.getSize()
-    // But this is terribly slow and should not be attempted.
-    return -1;
+    long size = 0;
+    for (RowIterator iterator : iterators) {
+      long s = iterator.getSize();
+      if (s < 0) {
+        return -1;
+      }
+      size += s;
+    }
+    return size;
   }
 
+  /**
+   * Skips rows without handing them out. Rows are consumed a run at a time: the source
+   * at the top of the heap keeps on winning for as long as its scores do not drop below
+   * the head of the next best source, so there is no need to go through the heap for
+   * every skipped row. Once a single source is left the remainder of the skip is
+   * delegated to that source, which lets the underlying query result skip without
+   * creating the rows.
+   *
+   * @see javax.jcr.RangeIterator#skip(long)
+   */
   public void skip(long skipNum) {
-    // TODO Find a better performing mechanism for this.
+    prime();
     while (skipNum > 0) {
-      try {
-        nextRow();
-      } catch (IllegalStateException e) {
+      Source top = heap.poll();
+      if (top == null) {
         throw new NoSuchElementException();
       }
-      skipNum--;
+      Source next = heap.peek();
+      if (next == null) {
+        // Only one source left, the current row counts as the first skipped row.
+        top.skipRemaining(skipNum - 1);
+        pos += skipNum;
+        if (top.advance()) {
+          heap.add(top);
+        }
+        return;
+      }
+      boolean more = true;
+      while (skipNum > 0 && more && order.compare(top, next) < 0) {
+        skipNum--;
+        pos++;
+        more = top.advance();
+      }
+      if (more) {
+        heap.add(top);
+      }
     }
   }
 
   public boolean hasNext() {
-    return iteratorA.hasNext() || iteratorB.hasNext();
+    prime();
+    return !heap.isEmpty();
   }
 
   public Object next() {
@@ -93,37 +165,93 @@ public class MergedRowIterator implements RowIterator {
     throw new UnsupportedOperationException();
   }
 
-  private long getScore(Row row) {
+  /**
+   * Pulls the first row of every source into the heap. This is done lazily so that
+   * constructing the iterator does not touch the query results.
+   */
+  private void prime() {
+    if (!primed) {
+      primed = true;
+      for (int i = 0; i < iterators.length; i++) {
+        Source source = new Source(iterators[i], i);
+        if (source.advance()) {
+          heap.add(source);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the value the row is ordered by, null if the row has none.
+   */
+  private Comparable<?> getKey(Row row) {
     try {
-      if (row == null) {
-        return Long.MIN_VALUE;
+      if (property == null) {
+        return row.getValue("jcr:score").getLong();
+      }
+      Node node = row.getNode();
+      if (node == null || !node.hasProperty(property)) {
+        return null;
+      }
+      Value value = node.getProperty(property).getValue();
+      switch (value.getType()) {
+      case PropertyType.DATE:
+        return value.getDate().getTimeInMillis();
+      case PropertyType.LONG:
+      case PropertyType.DOUBLE:
+        return value.getDouble();
+      default:
+        return value.getString();
       }
-      return row.getValue("jcr:score").getLong();
     } catch (RepositoryException e) {
-      return 0;
+      return property == null ? Long.valueOf(0) : null;
     }
   }
 
-  private boolean compare(Row rowA, Row rowB) {
-    long l1 = getScore(rowA);
-    long l2 = getScore(rowB);
-    return (l1 >= l2);
+  @SuppressWarnings("unchecked")
+  private static int compareKeys(Comparable a, Comparable b) {
+    if (a == null || b == null) {
+      return a == b ? 0 : (a == null ? -1 : 1);
+    }
+    if (a.getClass() != b.getClass()) {
+      // a property of different types in different nodes, order by the type.
+      return a.getClass().getName().compareTo(b.getClass().getName());
+    }
+    return a.compareTo(b);
   }
 
-  private Row getRowA() {
-    if (rowA == null && iteratorA.hasNext()) {
-      this.rowA = iteratorA.nextRow();
-    }
+  /**
+   * A source iterator with its current head row and the cached key of that row.
+   */
+  private final class Source {
+    private final RowIterator iterator;
+    private final int index;
+    private Row row;
+    private Comparable<?> key;
 
-    return rowA;
-  }
+    private Source(RowIterator iterator, int index) {
+      this.iterator = iterator;
+      this.index = index;
+    }
 
-  private Row getRowB() {
-    if (rowB == null && iteratorB.hasNext()) {
-      this.rowB = iteratorB.nextRow();
+    /**
+     * @return true if a new head row was read, false if the source is exhausted.
+     */
+    private boolean advance() {
+      if (iterator.hasNext()) {
+        row = iterator.nextRow();
+        key = getKey(row);
+        return true;
+      }
+      row = null;
+      return false;
     }
 
-    return rowB;
+    private void skipRemaining(long skipNum) {
+      if (skipNum > 0) {
+        iterator.skip(skipNum);
+      }
+    }
   }
 
 }
@@ -0,0 +1,388 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Map.Entry;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Iterates over the rows that the session can read, loading the node of each. Rows are
+ * read a batch at a time and grouped by parent path, so that siblings are resolved
+ * relative to their parent rather than each from the root, and rows that can not be read
+ * are dropped without loading them.
+ */
+public class ReadableRowIterator implements CursorRowIterator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReadableRowIterator.class);
+
+  private Session session;
+  private RowIterator rows;
+  private int batchSize;
+  private List<Row> batchRows = new ArrayList<Row>();
+  private List<Node> batchNodes = new ArrayList<Node>();
+  /**
+   * The position in the underlying rows after each of the batch rows.
+   */
+  private long[] batchSourcePositions;
+  /**
+   * The number of underlying rows before each of the batch rows with the same score.
+   */
+  private long[] batchTies;
+  /**
+   * The same for each row of the batch last read from the underlying rows.
+   */
+  private long[] readTies;
+  private int batchPosition;
+  private Node node;
+  private Row row;
+  private long sourcePosition;
+  private long rowTies;
+  private double tieScore;
+  private long tieCount;
+  /**
+   * The number of underlying rows read so far, including those before this iterator
+   * started when it resumes from a cursor.
+   */
+  private long sourceRead;
+  private long position;
+
+  /**
+   * @param session
+   *          the session to resolve the rows with.
+   * @param rows
+   *          the rows, normally already positioned at the start of the page. Cursors
+   *          count from the start of these rows unless they are a
+   *          {@link CursorRowIterator} themselves.
+   * @param batchSize
+   *          the number of rows to resolve together, normally the page size.
+   */
+  public ReadableRowIterator(Session session, RowIterator rows, int batchSize) {
+    this.session = session;
+    this.rows = rows;
+    this.batchSize = Math.max(1, batchSize);
+    this.batchSourcePositions = new long[this.batchSize];
+    this.batchTies = new long[this.batchSize];
+    this.readTies = new long[this.batchSize];
+    if (rows instanceof CursorRowIterator) {
+      sourceRead = rows.getPosition();
+    }
+    if (rows instanceof ResumableRowIterator) {
+      tieScore = ((ResumableRowIterator) rows).getTieScore();
+      tieCount = ((ResumableRowIterator) rows).getTieCount();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.util.Iterator#hasNext()
+   */
+  public boolean hasNext() {
+    while (batchPosition >= batchNodes.size()) {
+      if (!rows.hasNext()) {
+        return false;
+      }
+      fill();
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.RowIterator#nextRow()
+   */
+  public Row nextRow() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    node = batchNodes.get(batchPosition);
+    row = batchRows.get(batchPosition);
+    sourcePosition = batchSourcePositions[batchPosition];
+    rowTies = batchTies[batchPosition];
+    batchPosition++;
+    position++;
+    return row;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.util.Iterator#next()
+   */
+  public Object next() {
+    return nextRow();
+  }
+
+  /**
+   * @return the node of the row last returned by {@link #nextRow()}, already loaded.
+   */
+  public Node getNode() {
+    return node;
+  }
+
+  /**
+   * {@inheritDoc} The position of the cursor is in the underlying rows, so it includes
+   * rows that were dropped because they could not be read.
+   * 
+   * @see org.sakaiproject.nakamura.api.search.CursorRowIterator#getCursor()
+   */
+  public SearchCursor getCursor() {
+    if (row == null) {
+      return null;
+    }
+    return SearchCursor.after(sourcePosition, row, rowTies);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.RangeIterator#getPosition()
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * {@inheritDoc} This is the size of the underlying rows, which may include rows the
+   * session can not read.
+   * 
+   * @see javax.jcr.RangeIterator#getSize()
+   */
+  public long getSize() {
+    return rows.getSize();
+  }
+
+  /**
+   * Skip rows the session can read, checking access without loading the nodes, so that
+   * offset paging counts the same rows as are written.
+   * 
+   * @param skipNum
+   *          the number of readable rows to skip.
+   * @throws NoSuchElementException
+   *           if there are fewer readable rows than skipNum.
+   * @see javax.jcr.RangeIterator#skip(long)
+   */
+  public void skip(long skipNum) {
+    if (skipReadable(skipNum) < skipNum) {
+      throw new NoSuchElementException();
+    }
+  }
+
+  /**
+   * Skip rows the session can read, as {@link #skip(long)} without failing at the end.
+   * 
+   * @param skipNum
+   *          the number of readable rows to skip.
+   * @return the number of readable rows skipped, less than skipNum if the rows ran out.
+   */
+  public long skipReadable(long skipNum) {
+    long skipped = 0;
+    // first use up anything already resolved.
+    while (skipped < skipNum && batchPosition < batchNodes.size()) {
+      row = batchRows.get(batchPosition);
+      sourcePosition = batchSourcePositions[batchPosition];
+      rowTies = batchTies[batchPosition];
+      batchPosition++;
+      skipped++;
+    }
+    while (skipped < skipNum && rows.hasNext()) {
+      long batchStart = sourceRead;
+      List<Row> batch = readBatch();
+      List<String> paths = getPaths(batch);
+      boolean[] readable = new boolean[paths.size()];
+      resolve(paths, readable, null);
+      for (int i = 0; i < readable.length; i++) {
+        if (!readable[i]) {
+          continue;
+        }
+        if (skipped < skipNum) {
+          row = batch.get(i);
+          sourcePosition = batchStart + i + 1;
+          rowTies = readTies[i];
+          skipped++;
+        } else {
+          // overshot the offset, this row is the first of the page.
+          try {
+            Node n = (Node) session.getItem(paths.get(i));
+            batchSourcePositions[batchRows.size()] = batchStart + i + 1;
+            batchTies[batchRows.size()] = readTies[i];
+            batchRows.add(batch.get(i));
+            batchNodes.add(n);
+          } catch (RepositoryException e) {
+            LOGGER.debug("Unable to load {} {} ", paths.get(i), e.getMessage());
+          }
+        }
+      }
+    }
+    position += skipped;
+    return skipped;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.util.Iterator#remove()
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Read and resolve the next batch of rows.
+   */
+  private void fill() {
+    long batchStart = sourceRead;
+    List<Row> batch = readBatch();
+    List<String> paths = getPaths(batch);
+    boolean[] readable = new boolean[paths.size()];
+    Node[] nodes = new Node[paths.size()];
+    resolve(paths, readable, nodes);
+    for (int i = 0; i < nodes.length; i++) {
+      if (nodes[i] != null) {
+        batchSourcePositions[batchRows.size()] = batchStart + i + 1;
+        batchTies[batchRows.size()] = readTies[i];
+        batchRows.add(batch.get(i));
+        batchNodes.add(nodes[i]);
+      }
+    }
+  }
+
+  private List<Row> readBatch() {
+    batchRows.clear();
+    batchNodes.clear();
+    batchPosition = 0;
+    List<Row> batch = new ArrayList<Row>(batchSize);
+    for (int i = 0; i < batchSize && rows.hasNext(); i++) {
+      Row r = rows.nextRow();
+      // count the underlying rows with the same score, readable or not, as the cursor
+      // is resumed against the underlying rows.
+      double score = SearchCursor.getScore(r);
+      if (tieCount == 0 || score != tieScore) {
+        tieScore = score;
+        tieCount = 0;
+      }
+      readTies[i] = tieCount++;
+      batch.add(r);
+      sourceRead++;
+    }
+    return batch;
+  }
+
+  private List<String> getPaths(List<Row> batch) {
+    List<String> paths = new ArrayList<String>(batch.size());
+    for (Row r : batch) {
+      String path = null;
+      try {
+        Value v = r.getValue("jcr:path");
+        if (v != null) {
+          path = v.getString();
+        }
+      } catch (RepositoryException e) {
+        LOGGER.debug("Row without a path {} ", e.getMessage());
+      }
+      paths.add(path);
+    }
+    return paths;
+  }
+
+  /**
+   * Work out which paths can be read, and when nodes is not null load them. Paths that
+   * share a parent are checked through the parent node, the rest through the session.
+   * 
+   * @param paths
+   *          the paths of the batch, may contain nulls.
+   * @param readable
+   *          set to true for each path that can be read.
+   * @param nodes
+   *          if not null, filled with the node of each readable path.
+   */
+  private void resolve(List<String> paths, boolean[] readable, Node[] nodes) {
+    Map<String, List<Integer>> byParent = new LinkedHashMap<String, List<Integer>>();
+    for (int i = 0; i < paths.size(); i++) {
+      String path = paths.get(i);
+      if (path == null) {
+        continue;
+      }
+      String parent = getParentPath(path);
+      List<Integer> siblings = byParent.get(parent);
+      if (siblings == null) {
+        siblings = new ArrayList<Integer>();
+        byParent.put(parent, siblings);
+      }
+      siblings.add(i);
+    }
+    for (Entry<String, List<Integer>> e : byParent.entrySet()) {
+      String parentPath = e.getKey();
+      List<Integer> siblings = e.getValue();
+      Node parent = null;
+      if (siblings.size() > 1 && parentPath != null) {
+        try {
+          if (session.itemExists(parentPath)) {
+            parent = (Node) session.getItem(parentPath);
+          }
+        } catch (RepositoryException ex) {
+          LOGGER.debug("Unable to load parent {} {} ", parentPath, ex.getMessage());
+        }
+      }
+      for (int i : siblings) {
+        String path = paths.get(i);
+        try {
+          if (parent != null) {
+            String relPath = path.substring(parentPath.length() == 1 ? 1 : parentPath
+                .length() + 1);
+            readable[i] = parent.hasNode(relPath);
+            if (readable[i] && nodes != null) {
+              nodes[i] = parent.getNode(relPath);
+            }
+          } else {
+            readable[i] = session.itemExists(path);
+            if (readable[i] && nodes != null) {
+              nodes[i] = (Node) session.getItem(path);
+            }
+          }
+        } catch (RepositoryException ex) {
+          LOGGER.debug("Skipping unreadable row {} {} ", path, ex.getMessage());
+          readable[i] = false;
+        }
+      }
+    }
+  }
+
+  private static String getParentPath(String path) {
+    int i = path.lastIndexOf('/');
+    if (i < 0 || path.length() == 1) {
+      return null;
+    }
+    return (i == 0) ? "/" : path.substring(0, i);
+  }
+}
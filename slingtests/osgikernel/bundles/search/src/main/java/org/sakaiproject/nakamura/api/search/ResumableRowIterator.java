@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import java.util.List;
+
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Passes the rows of a query through, keeping track of the position in the query and the
+ * last row returned so a {@link SearchCursor} can be created from them. The rows returned
+ * with the same score as the last row are counted too, so that a cursor can tell how many
+ * of them were handed out if the rows change.
+ */
+public class ResumableRowIterator implements CursorRowIterator {
+
+  private RowIterator rows;
+  private List<Row> pending;
+  private int pendingPosition;
+  private Row last;
+  private long start;
+  private long position;
+  private double tieScore;
+  private long tieCount;
+
+  /**
+   * @param rows
+   *          the rows of the query.
+   * @param pending
+   *          rows that have been read from the rows already and should be returned
+   *          first.
+   */
+  public ResumableRowIterator(RowIterator rows, List<Row> pending) {
+    this(rows, pending, null);
+  }
+
+  /**
+   * @param rows
+   *          the rows of the query.
+   * @param pending
+   *          rows that have been read from the rows already and should be returned
+   *          first.
+   * @param from
+   *          the cursor the rows resume from, null if they start at the beginning.
+   */
+  public ResumableRowIterator(RowIterator rows, List<Row> pending, SearchCursor from) {
+    this(rows, pending, from == null ? 0 : from.getScore(), (from == null || from
+        .getPath() == null) ? 0 : from.getTies() + 1);
+  }
+
+  /**
+   * @param rows
+   *          the rows of the query.
+   * @param pending
+   *          rows that have been read from the rows already and should be returned
+   *          first.
+   * @param tieScore
+   *          the score of the rows handed out just before these rows.
+   * @param tieCount
+   *          the number of rows with that score already handed out.
+   */
+  ResumableRowIterator(RowIterator rows, List<Row> pending, double tieScore,
+      long tieCount) {
+    this.rows = rows;
+    this.pending = pending;
+    this.start = rows.getPosition() - pending.size();
+    this.tieScore = tieScore;
+    this.tieCount = tieCount;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.search.CursorRowIterator#getCursor()
+   */
+  public SearchCursor getCursor() {
+    if (last == null) {
+      return null;
+    }
+    return SearchCursor.after(getPosition(), last, tieCount - 1);
+  }
+
+  /**
+   * @return the score of the last row handed out, or of the cursor these rows resumed
+   *         from.
+   */
+  double getTieScore() {
+    return tieScore;
+  }
+
+  /**
+   * @return the number of rows handed out with the score of {@link #getTieScore()}.
+   */
+  long getTieCount() {
+    return tieCount;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.RowIterator#nextRow()
+   */
+  public Row nextRow() {
+    if (pendingPosition < pending.size()) {
+      last = pending.get(pendingPosition++);
+    } else {
+      last = rows.nextRow();
+    }
+    position++;
+    track(last);
+    return last;
+  }
+
+  /**
+   * Count a row returned, starting again if the score changed.
+   *
+   * @param row
+   */
+  private void track(Row row) {
+    double score = SearchCursor.getScore(row);
+    if (tieCount == 0 || score != tieScore) {
+      tieCount = 0;
+      tieScore = score;
+    }
+    tieCount++;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.util.Iterator#hasNext()
+   */
+  public boolean hasNext() {
+    return pendingPosition < pending.size() || rows.hasNext();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.util.Iterator#next()
+   */
+  public Object next() {
+    return nextRow();
+  }
+
+  /**
+   * {@inheritDoc} The position counts the rows of the query that came before the point
+   * this iterator resumed from, so it can be used for a new cursor.
+   * 
+   * @see javax.jcr.RangeIterator#getPosition()
+   */
+  public long getPosition() {
+    return start + position;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.RangeIterator#getSize()
+   */
+  public long getSize() {
+    return rows.getSize();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.RangeIterator#skip(long)
+   */
+  public void skip(long skipNum) {
+    if (skipNum <= 0) {
+      return;
+    }
+    while (skipNum > 0 && pendingPosition < pending.size()) {
+      last = pending.get(pendingPosition++);
+      position++;
+      track(last);
+      skipNum--;
+    }
+    if (skipNum > 0) {
+      try {
+        rows.skip(skipNum - 1);
+        last = rows.nextRow();
+        // the skipped rows were not read, so only the last one is known.
+        tieCount = 0;
+        track(last);
+      } finally {
+        position = rows.getPosition() - start;
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.util.Iterator#remove()
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
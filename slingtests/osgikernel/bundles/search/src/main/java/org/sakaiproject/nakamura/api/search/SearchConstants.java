@@ -50,6 +50,16 @@ public interface SearchConstants {
   *
   */
   public static final String PARAMS_PAGE = "page";
+  /**
+   * An opaque position in the results, as handed out in {@link #JSON_CURSOR}, to page on
+   * from. When present it replaces {@link #PARAMS_PAGE}, an empty value asks for the first
+   * page.
+   */
+  public static final String PARAMS_CURSOR = "cursor";
+  /**
+   * The cursor to pass in {@link #PARAMS_CURSOR} to get the next page.
+   */
+  public static final String JSON_CURSOR = "cursor";
   /**
   *
   */
@@ -73,6 +83,12 @@ public interface SearchConstants {
   public static final String REG_BATCH_PROCESSOR_NAMES = "sakai.search.batchprocessor";
 
   public static final String REG_PROVIDER_NAMES = "sakai.search.provider";
+  /**
+   * Service property of a result processor whose getSearchResultSet only pages the query
+   * rows, so its templates may be served from the result cache. Processors that filter or
+   * reorder the rows per request leave it unset.
+   */
+  public static final String REG_CACHEABLE = "sakai.search.cacheable";
   public static final String SAKAI_PROPERTY_PROVIDER = "sakai:propertyprovider";
 
   /**
@@ -105,5 +121,15 @@ public interface SearchConstants {
    * Property that defines whether the results should have a limit on it.
    */
   public static final String SAKAI_LIMIT_RESULTS = "sakai:limit-results";
+  /**
+   * Property of the search template giving the number of seconds results may be served
+   * from the result cache. Templates without it are never cached.
+   */
+  public static final String SAKAI_CACHE_TTL = "sakai:cache-ttl";
+  /**
+   * Property of the search template listing the paths under which any change invalidates
+   * the cached results of the template.
+   */
+  public static final String SAKAI_CACHE_INVALIDATE_PATHS = "sakai:cache-invalidate-paths";
 
 }
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * A position in the rows of a query, handed to clients as an opaque string so they can
+ * ask for the rows that follow it. The cursor holds the position in the unfiltered rows
+ * together with the score and path of the row at that position, and the number of rows
+ * before it with the same score. Resuming skips straight to the position in the
+ * query result and checks the row found there, if the result has changed in the mean
+ * time the row is found again by its score.
+ * <p>
+ * This is still offset paging underneath: the Lucene version in Jackrabbit 2.0 has no
+ * search after, so the query collects every hit up to the position and the row iterator
+ * skips them, which costs O(position) per page. The cursor saves the per row work above
+ * that, the node loading and access checks of the skipped rows, and keeps pages stable
+ * when rows are added or removed in front of the position.
+ * </p>
+ */
+public class SearchCursor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchCursor.class);
+
+  /**
+   * The cursor before the first row.
+   */
+  public static final SearchCursor START = new SearchCursor(0, 0, null);
+
+  private static final char SEPARATOR = ':';
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private long position;
+  private double score;
+  private String path;
+  private long ties;
+
+  /**
+   * @param position
+   *          the number of rows up to and including the last row returned.
+   * @param score
+   *          the score of the last row returned.
+   * @param path
+   *          the path of the last row returned.
+   */
+  public SearchCursor(long position, double score, String path) {
+    this(position, score, path, 0);
+  }
+
+  /**
+   * @param position
+   *          the number of rows up to and including the last row returned.
+   * @param score
+   *          the score of the last row returned.
+   * @param path
+   *          the path of the last row returned.
+   * @param ties
+   *          the number of rows returned before the last row with the same score.
+   */
+  public SearchCursor(long position, double score, String path, long ties) {
+    this.position = position;
+    this.score = score;
+    this.path = path;
+    this.ties = ties;
+  }
+
+  /**
+   * Create a cursor for the row that was last read from a set of rows.
+   *
+   * @param position
+   *          the position of the rows after reading the row.
+   * @param row
+   *          the row last read.
+   * @return the cursor, or null if the row can not be identified.
+   */
+  public static SearchCursor after(long position, Row row) {
+    return after(position, row, 0);
+  }
+
+  /**
+   * Create a cursor for the row that was last read from a set of rows.
+   *
+   * @param position
+   *          the position of the rows after reading the row.
+   * @param row
+   *          the row last read.
+   * @param ties
+   *          the number of rows read before the row with the same score.
+   * @return the cursor, or null if the row can not be identified.
+   */
+  public static SearchCursor after(long position, Row row, long ties) {
+    String path = getPath(row);
+    if (path == null) {
+      return null;
+    }
+    return new SearchCursor(position, getScore(row), path, ties);
+  }
+
+  /**
+   * @return the number of rows up to and including the row of this cursor.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * @return the score of the row of this cursor.
+   */
+  public double getScore() {
+    return score;
+  }
+
+  /**
+   * @return the path of the row of this cursor, null for {@link #START}.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the number of rows before the row of this cursor with the same score.
+   */
+  public long getTies() {
+    return ties;
+  }
+
+  /**
+   * Position a set of rows just after this cursor.
+   *
+   * @param result
+   *          the query result, used to read the rows again if they have changed since the
+   *          cursor was created.
+   * @param rows
+   *          the rows of the result, not read yet.
+   * @return rows starting with the first row after the cursor.
+   * @throws RepositoryException
+   */
+  public RowIterator resume(QueryResult result, RowIterator rows)
+      throws RepositoryException {
+    List<Row> pending = new ArrayList<Row>();
+    if (position <= 0 || path == null) {
+      return new ResumableRowIterator(rows, pending);
+    }
+    try {
+      rows.skip(position - 1);
+      if (rows.hasNext() && path.equals(getPath(rows.nextRow()))) {
+        return new ResumableRowIterator(rows, pending, this);
+      }
+    } catch (NoSuchElementException e) {
+      LOGGER.debug("Cursor {} is past the end of the result ", this);
+    }
+
+    // The result has changed, find the row by its score. If the row has gone the rows
+    // with the same score are handed out again, apart from as many as the cursor records
+    // as already handed out.
+    rows = result.getRows();
+    long skipTies = ties;
+    while (rows.hasNext()) {
+      Row row = rows.nextRow();
+      double s = getScore(row);
+      if (s < score) {
+        pending.add(row);
+        break;
+      } else if (s == score) {
+        if (path.equals(getPath(row))) {
+          pending.clear();
+          return new ResumableRowIterator(rows, pending, this);
+        }
+        if (skipTies > 0) {
+          skipTies--;
+        } else {
+          pending.add(row);
+        }
+      }
+    }
+    return new ResumableRowIterator(rows, pending, score, ties);
+  }
+
+  /**
+   * @return the cursor as an opaque string that can be passed in a request.
+   */
+  public String encode() {
+    StringBuilder plain = new StringBuilder();
+    plain.append(position).append(SEPARATOR).append(score).append(SEPARATOR);
+    plain.append(ties).append(SEPARATOR);
+    if (path != null) {
+      plain.append(path);
+    }
+    byte[] bytes;
+    try {
+      bytes = plain.toString().getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+      hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * @param cursor
+   *          a string created by {@link #encode()}.
+   * @return the cursor, {@link #START} if the string is empty, null if it is not a valid
+   *         cursor.
+   */
+  public static SearchCursor decode(String cursor) {
+    if (cursor == null || cursor.length() == 0) {
+      return START;
+    }
+    try {
+      if (cursor.length() % 2 != 0) {
+        return null;
+      }
+      byte[] bytes = new byte[cursor.length() / 2];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = (byte) Integer.parseInt(cursor.substring(2 * i, 2 * i + 2), 16);
+      }
+      String plain = new String(bytes, "UTF-8");
+      int first = plain.indexOf(SEPARATOR);
+      int second = plain.indexOf(SEPARATOR, first + 1);
+      int third = plain.indexOf(SEPARATOR, second + 1);
+      if (first < 0 || second < 0 || third < 0) {
+        return null;
+      }
+      long position = Long.parseLong(plain.substring(0, first));
+      double score = Double.parseDouble(plain.substring(first + 1, second));
+      long ties = Long.parseLong(plain.substring(second + 1, third));
+      // the path goes last, it may contain the separator.
+      String path = plain.substring(third + 1);
+      if (position < 0 || ties < 0 || (ties > 0 && ties >= position)) {
+        return null;
+      }
+      return new SearchCursor(position, score, path.length() == 0 ? null : path, ties);
+    } catch (NumberFormatException e) {
+      return null;
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return position + "@" + score + " " + path;
+  }
+
+  static String getPath(Row row) {
+    try {
+      Value v = row.getValue("jcr:path");
+      return v == null ? null : v.getString();
+    } catch (RepositoryException e) {
+      return null;
+    }
+  }
+
+  static double getScore(Row row) {
+    try {
+      Value v = row.getValue("jcr:score");
+      return v == null ? 0 : v.getDouble();
+    } catch (RepositoryException e) {
+      return 0;
+    }
+  }
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.search;
 
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_CURSOR;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
 
@@ -27,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
 import javax.jcr.query.RowIterator;
@@ -58,8 +60,13 @@ public class SearchUtil {
 
       // Do the paging on the iterator.
       RowIterator iterator = rs.getRows();
-      long start = getPaging(request, hits);
-      iterator.skip(start);
+      SearchCursor cursor = getCursor(request);
+      if (cursor != null) {
+        iterator = cursor.resume(rs, iterator);
+      } else {
+        long start = getPaging(request, hits);
+        iterator.skip(start);
+      }
 
       // Return the result set.
       SearchResultSet srs = new AbstractSearchResultSet(iterator, hits);
@@ -70,6 +77,48 @@ public class SearchUtil {
 
   }
 
+  /**
+   * As {@link #getSearchResultSet(SlingHttpServletRequest, Query)} but the rows are a
+   * {@link ReadableRowIterator}, so the offset only counts rows the session can read and
+   * the page is resolved in a batch.
+   * 
+   * @param request
+   * @param query
+   * @return
+   * @throws SearchException
+   */
+  public static SearchResultSet getReadableSearchResultSet(
+      SlingHttpServletRequest request, Query query) throws SearchException {
+    try {
+      // Get the query result.
+      QueryResult rs = query.execute();
+
+      // Extract the total hits from lucene
+      int hits = getHits(rs);
+
+      // Do the paging on the readable rows.
+      Session session = request.getResourceResolver().adaptTo(Session.class);
+      int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+          SearchConstants.DEFAULT_PAGED_ITEMS);
+      SearchCursor cursor = getCursor(request);
+      if (cursor != null) {
+        RowIterator rows = cursor.resume(rs, rs.getRows());
+        return new AbstractSearchResultSet(new ReadableRowIterator(session, rows, nitems),
+            hits);
+      }
+      ReadableRowIterator iterator = new ReadableRowIterator(session, rs.getRows(),
+          nitems);
+      long start = getPaging(request, hits);
+      iterator.skipReadable(start);
+
+      // Return the result set.
+      SearchResultSet srs = new AbstractSearchResultSet(iterator, hits);
+      return srs;
+    } catch (RepositoryException e) {
+      throw new SearchException(500, "Unable to perform query.");
+    }
+  }
+
   /**
    * Get the hits from a Lucene queryResult.
    * @param rs
@@ -105,6 +154,27 @@ public class SearchUtil {
     return defaultVal;
   }
 
+  /**
+   * Get the cursor the request wants to page on from.
+   * 
+   * @param request
+   * @return the cursor, {@link SearchCursor#START} if the cursor parameter is empty or
+   *         invalid, null if the request does not use a cursor.
+   */
+  public static SearchCursor getCursor(SlingHttpServletRequest request) {
+    RequestParameter param = request.getRequestParameter(PARAMS_CURSOR);
+    if (param == null) {
+      return null;
+    }
+    SearchCursor cursor = SearchCursor.decode(param.getString());
+    if (cursor == null) {
+      LOGGER.warn(PARAMS_CURSOR + " parameter (" + param.getString()
+          + ") is invalid, starting from the first result ");
+      return SearchCursor.START;
+    }
+    return cursor;
+  }
+
   /**
    * Get the starting point.
    * 
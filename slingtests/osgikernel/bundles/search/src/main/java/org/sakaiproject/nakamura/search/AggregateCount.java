@@ -17,11 +17,13 @@
  */
 package org.sakaiproject.nakamura.search;
 
+import org.apache.sling.jcr.jackrabbit.server.index.FacetCounts;
 import org.sakaiproject.nakamura.api.search.Aggregator;
 import org.sakaiproject.nakamura.util.JcrUtils;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -34,15 +36,16 @@ import javax.jcr.Value;
  * Generates an aggregate count of a set of properties from a set of nodes, presented via
  * add. Optionally it will accumulate for child nodes of the node in question.
  * 
- * The result is stored in a Map of Maps containing counts. The key to the map of counts
- * is the property name, and the key to the count is the value of the property.
+ * The result is stored in a Map of {@link FacetCounts}, keyed by property name. The
+ * counts are primitive, they are only boxed when the aggregate is asked for as a Map of
+ * Maps.
  */
 public class AggregateCount implements Aggregator {
 
   /**
    * The storage map for the aggregate.
    */
-  private Map<String, Map<String, Integer>> agregateMap = new HashMap<String, Map<String, Integer>>();
+  private Map<String, FacetCounts> agregateMap = new HashMap<String, FacetCounts>();
   /**
    * The list of property names to aggregate.
    */
@@ -63,7 +66,7 @@ public class AggregateCount implements Aggregator {
    */
   public AggregateCount(String[] fields, boolean children) {
     for (String f : fields) {
-      agregateMap.put(f, new HashMap<String, Integer>());
+      agregateMap.put(f, new FacetCounts());
     }
     this.checked = new HashSet<String>();
     
@@ -82,16 +85,11 @@ public class AggregateCount implements Aggregator {
       return;
     }
     for (String f : fields) {
-      Map<String, Integer> tagResult = agregateMap.get(f);
+      FacetCounts tagResult = agregateMap.get(f);
       if (node.hasProperty(f)) {
         Value[] tags = JcrUtils.getValues(node, f);
         for (Value t : tags) {
-          String tag = t.getString();
-          if (tagResult.containsKey(tag)) {
-            tagResult.put(tag, tagResult.get(tag) + 1);
-          } else {
-            tagResult.put(tag, 1);
-          }
+          tagResult.increment(t.getString());
         }
       }
     }
@@ -107,7 +105,30 @@ public class AggregateCount implements Aggregator {
    * @return the aggregated set.
    */
   public Map<String, Map<String, Integer>> getAggregate() {
+    Map<String, Map<String, Integer>> aggregate = new HashMap<String, Map<String, Integer>>();
+    for (Map.Entry<String, FacetCounts> e : agregateMap.entrySet()) {
+      aggregate.put(e.getKey(), toMap(e.getValue()));
+    }
+    return aggregate;
+  }
+
+  /**
+   * @return the aggregated set, with the counts kept in primitive form.
+   */
+  public Map<String, FacetCounts> getFacetCounts() {
     return agregateMap;
   }
 
+  /**
+   * @param counts
+   * @return the counts as a map keyed by term.
+   */
+  private static Map<String, Integer> toMap(FacetCounts counts) {
+    Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < counts.size(); i++) {
+      map.put(counts.getTerm(i), counts.getCount(i));
+    }
+    return map;
+  }
+
 }
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Row;
+
+/**
+ * A row served from the search result cache. Only jcr:path and jcr:score are held, other
+ * columns such as excerpts are null.
+ */
+public class CachedRow implements Row {
+
+  private final Session session;
+  private final String path;
+  private final long score;
+
+  public CachedRow(Session session, String path, long score) {
+    this.session = session;
+    this.path = path;
+    this.score = score;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Row#getValue(java.lang.String)
+   */
+  public Value getValue(String columnName) throws RepositoryException {
+    if ("jcr:path".equals(columnName)) {
+      return session.getValueFactory().createValue(path);
+    } else if ("jcr:score".equals(columnName)) {
+      return session.getValueFactory().createValue(score);
+    }
+    return null;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Row#getValues()
+   */
+  public Value[] getValues() throws RepositoryException {
+    return new Value[] { getValue("jcr:path"), getValue("jcr:score") };
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Row#getNode()
+   */
+  public Node getNode() throws RepositoryException {
+    return (Node) session.getItem(path);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Row#getNode(java.lang.String)
+   */
+  public Node getNode(String selectorName) throws RepositoryException {
+    return getNode();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Row#getPath()
+   */
+  public String getPath() throws RepositoryException {
+    return path;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Row#getPath(java.lang.String)
+   */
+  public String getPath(String selectorName) throws RepositoryException {
+    return path;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Row#getScore()
+   */
+  public double getScore() throws RepositoryException {
+    return score;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Row#getScore(java.lang.String)
+   */
+  public double getScore(String selectorName) throws RepositoryException {
+    return score;
+  }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+
+/**
+ * A query that has already been executed, handing out the same result each time it is
+ * executed again. Jackrabbit reads the hits afresh for each call to
+ * {@link QueryResult#getRows()}, so the result can be read more than once.
+ */
+class ExecutedQuery implements Query {
+
+  private Query query;
+  private QueryResult result;
+
+  /**
+   * @param query
+   *          the query.
+   * @param result
+   *          the result of executing it.
+   */
+  ExecutedQuery(Query query, QueryResult result) {
+    this.query = query;
+    this.result = result;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Query#execute()
+   */
+  public QueryResult execute() {
+    return result;
+  }
+
+  /**
+   * The query has been executed, so the limit can not be changed.
+   * 
+   * @see javax.jcr.query.Query#setLimit(long)
+   */
+  public void setLimit(long limit) {
+    throw new UnsupportedOperationException("The query has been executed");
+  }
+
+  /**
+   * The query has been executed, so the offset can not be changed.
+   * 
+   * @see javax.jcr.query.Query#setOffset(long)
+   */
+  public void setOffset(long offset) {
+    throw new UnsupportedOperationException("The query has been executed");
+  }
+
+  /**
+   * The query has been executed, so no values can be bound.
+   * 
+   * @see javax.jcr.query.Query#bindValue(java.lang.String, javax.jcr.Value)
+   */
+  public void bindValue(String varName, Value value) {
+    throw new UnsupportedOperationException("The query has been executed");
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Query#getBindVariableNames()
+   */
+  public String[] getBindVariableNames() throws RepositoryException {
+    return query.getBindVariableNames();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Query#getLanguage()
+   */
+  public String getLanguage() {
+    return query.getLanguage();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Query#getStatement()
+   */
+  public String getStatement() {
+    return query.getStatement();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Query#getStoredQueryPath()
+   */
+  public String getStoredQueryPath() throws RepositoryException {
+    return query.getStoredQueryPath();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jcr.query.Query#storeAsNode(java.lang.String)
+   */
+  public Node storeAsNode(String absPath) throws RepositoryException {
+    return query.storeAsNode(absPath);
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+/**
+ * A sakai:query-template compiled into literal text and parameter tokens, so that a
+ * request only has to append the tokens. Parameters have the form {name} or
+ * {name|default}, names starting with _ come from the user properties, the rest from the
+ * request. A \ outside a parameter makes the next character literal.
+ */
+public class QueryTemplate {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryTemplate.class);
+
+  private final String template;
+  private final String[] literals;
+  private final String[] names;
+  private final String[] defaults;
+  private final List<String> requestParameterNames;
+
+  /**
+   * The builder each thread binds into, reused between requests.
+   */
+  private static final ThreadLocal<StringBuilder> BUILDER = new ThreadLocal<StringBuilder>() {
+    @Override
+    protected StringBuilder initialValue() {
+      return new StringBuilder(256);
+    }
+  };
+
+  private QueryTemplate(String template, List<String> literals, List<String> names,
+      List<String> defaults) {
+    this.template = template;
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.names = names.toArray(new String[names.size()]);
+    this.defaults = defaults.toArray(new String[defaults.size()]);
+    requestParameterNames = new ArrayList<String>();
+    for (String name : names) {
+      if (!name.startsWith("_") && !requestParameterNames.contains(name)) {
+        requestParameterNames.add(name);
+      }
+    }
+  }
+
+  /**
+   * Compile a template.
+   * 
+   * @param template
+   *          the sakai:query-template.
+   * @return the compiled template.
+   */
+  public static QueryTemplate compile(String template) {
+    List<String> literals = new ArrayList<String>();
+    List<String> names = new ArrayList<String>();
+    List<String> defaults = new ArrayList<String>();
+    StringBuilder literal = new StringBuilder();
+    int length = template.length();
+    int i = 0;
+    while (i < length) {
+      char c = template.charAt(i);
+      if (c == '\\') {
+        if (i + 1 < length) {
+          literal.append(template.charAt(i + 1));
+        }
+        i += 2;
+      } else if (c == '{') {
+        int end = template.indexOf('}', i + 1);
+        if (end < 0) {
+          // an unterminated parameter is dropped.
+          break;
+        }
+        String name = template.substring(i + 1, end);
+        String defaultValue = null;
+        int bar = name.indexOf('|');
+        if (bar >= 0) {
+          int bar2 = name.indexOf('|', bar + 1);
+          defaultValue = name.substring(bar + 1, bar2 < 0 ? name.length() : bar2);
+          name = name.substring(0, bar);
+        }
+        literals.add(literal.toString());
+        literal.setLength(0);
+        names.add(name);
+        defaults.add(defaultValue);
+        i = end + 1;
+      } else {
+        literal.append(c);
+        i++;
+      }
+    }
+    literals.add(literal.toString());
+    return new QueryTemplate(template, literals, names, defaults);
+  }
+
+  /**
+   * @return the source of the template.
+   */
+  public String getTemplate() {
+    return template;
+  }
+
+  /**
+   * @return the names of the parameters that come from the request.
+   */
+  public List<String> getRequestParameterNames() {
+    return requestParameterNames;
+  }
+
+  /**
+   * Bind values into the template.
+   * 
+   * @param values
+   *          the user properties and request parameters by name.
+   * @param queryLanguage
+   *          the language the values are escaped for.
+   * @return the query.
+   */
+  public String bind(Map<String, String> values, String queryLanguage) {
+    StringBuilder sb = BUILDER.get();
+    sb.setLength(0);
+    sb.append(literals[0]);
+    for (int i = 0; i < names.length; i++) {
+      String value = values.get(names[i]);
+      if (value == null) {
+        value = defaults[i];
+      }
+      if (value != null) {
+        escape(value, queryLanguage, sb);
+      }
+      sb.append(literals[i + 1]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Escape a value for a string literal in XPATH or SQL, see JSR-170 spec v1.0, Sec.
+   * 6.6.4.9 and 6.6.5.2. A \ is doubled unless it escapes a - or ", and a ' becomes \''.
+   * 
+   * @param value
+   * @param queryLanguage
+   * @param sb
+   *          where to append the escaped value.
+   */
+  public static void escape(String value, String queryLanguage, StringBuilder sb) {
+    if (!Query.XPATH.equals(queryLanguage) && !Query.SQL.equals(queryLanguage)) {
+      LOGGER.error("Unknown query language: " + queryLanguage);
+      sb.append((String) null);
+      return;
+    }
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c == '\\') {
+        char next = (i + 1 < length) ? value.charAt(i + 1) : 0;
+        if (next == '-' || next == '"') {
+          sb.append('\\');
+        } else {
+          sb.append("\\\\");
+        }
+      } else if (c == '\'') {
+        sb.append("\\''");
+      } else {
+        sb.append(c);
+      }
+    }
+  }
+}
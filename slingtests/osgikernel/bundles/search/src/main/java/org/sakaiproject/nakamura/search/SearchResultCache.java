@@ -0,0 +1,312 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Holds the ordered paths and total of search results for templates that set
+ * sakai:cache-ttl. Results are keyed by the expanded query, the query language and the
+ * principals of the user, since those decide which rows the user could see. Entries
+ * expire after the template TTL, and are dropped early when a resource event arrives for
+ * one of the paths the template declares. Each declared path has a generation counter, a
+ * resource event bumps the counters of the path and its ancestors, and a result read
+ * under older generations is no longer served. An event costs one lookup per path
+ * segment, however many results are held.
+ */
+public class SearchResultCache implements EventHandler {
+
+  /**
+   * The topics of the resource events that invalidate results.
+   */
+  public static final String TOPIC = "org/apache/sling/api/resource/Resource/*";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResultCache.class);
+  private static final String PATH_PROPERTY = "path";
+  private static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  private final Map<String, CachedResult> results;
+  private final ConcurrentMap<String, AtomicLong> generations =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  public SearchResultCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param maxEntries
+   *          the number of result sets held, the least recently used is dropped first.
+   */
+  public SearchResultCache(final int maxEntries) {
+    results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Build the key of a result set.
+   * 
+   * @param queryString
+   *          the query after template processing.
+   * @param queryLanguage
+   * @param principals
+   *          the principal names of the user, in any order.
+   * @return the key.
+   */
+  public static String getKey(String queryString, String queryLanguage,
+      Collection<String> principals) {
+    StringBuilder sb = new StringBuilder(queryLanguage).append('\n').append(queryString);
+    for (String principal : new TreeSet<String>(principals)) {
+      sb.append('\n').append(principal);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param key
+   * @return the cached result or null if there is none, it has expired or one of its
+   *         paths has changed.
+   */
+  public CachedResult get(String key) {
+    synchronized (results) {
+      CachedResult result = results.get(key);
+      if (result != null
+          && (result.expires <= System.currentTimeMillis() || !isCurrent(result))) {
+        results.remove(key);
+        return null;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Read the generations of the paths a result depends on, before the query is run, so a
+   * change made while the query runs still drops the result.
+   * 
+   * @param paths
+   *          the paths under which any change drops the result, may be null.
+   * @return the generations of the paths.
+   */
+  public long[] getGenerations(String[] paths) {
+    if (paths == null) {
+      return new long[0];
+    }
+    long[] stamp = new long[paths.length];
+    for (int i = 0; i < paths.length; i++) {
+      stamp[i] = getGeneration(normalize(paths[i])).get();
+    }
+    return stamp;
+  }
+
+  /**
+   * @param key
+   * @param result
+   */
+  public void put(String key, CachedResult result) {
+    synchronized (results) {
+      results.put(key, result);
+    }
+  }
+
+  /**
+   * @return the number of result sets held.
+   */
+  public int size() {
+    synchronized (results) {
+      return results.size();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object path = event.getProperty(PATH_PROPERTY);
+    if (path != null) {
+      invalidate(String.valueOf(path));
+    }
+  }
+
+  /**
+   * Drop every result set whose template declared a path that is, or is an ancestor of,
+   * the changed path. The results are dropped when they are next read.
+   * 
+   * @param path
+   *          the changed path.
+   */
+  public void invalidate(String path) {
+    String p = normalize(path);
+    while (true) {
+      AtomicLong generation = generations.get(p);
+      if (generation != null) {
+        generation.incrementAndGet();
+        LOGGER.debug("Invalidated cached search results under {} on change to {} ", p,
+            path);
+      }
+      int slash = p.lastIndexOf('/');
+      if (slash < 0 || p.length() == 1) {
+        break;
+      }
+      p = slash == 0 ? "/" : p.substring(0, slash);
+    }
+  }
+
+  /**
+   * @return true if none of the paths of the result have changed since it was read.
+   */
+  private boolean isCurrent(CachedResult result) {
+    if (result.invalidationPaths == null) {
+      return true;
+    }
+    for (int i = 0; i < result.invalidationPaths.length; i++) {
+      AtomicLong generation = getGeneration(normalize(result.invalidationPaths[i]));
+      if (generation.get() != result.generations[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private AtomicLong getGeneration(String path) {
+    AtomicLong generation = generations.get(path);
+    if (generation == null) {
+      generation = new AtomicLong();
+      AtomicLong existing = generations.putIfAbsent(path, generation);
+      if (existing != null) {
+        generation = existing;
+      }
+    }
+    return generation;
+  }
+
+  private static String normalize(String path) {
+    if (path.length() > 1 && path.endsWith("/")) {
+      return path.substring(0, path.length() - 1);
+    }
+    return path;
+  }
+
+  /**
+   * The ordered rows of a search, reduced to path and score.
+   */
+  public static class CachedResult {
+    private final String[] paths;
+    private final long[] scores;
+    private final int total;
+    private final boolean complete;
+    private final String[] invalidationPaths;
+    private final long[] generations;
+    private final long expires;
+
+    /**
+     * Read rows into a cached result.
+     * 
+     * @param rows
+     *          the rows in order.
+     * @param total
+     *          the total hits of the query.
+     * @param maxRows
+     *          the most rows to keep.
+     * @param invalidationPaths
+     *          paths under which any change drops the result.
+     * @param generations
+     *          the generations of the paths, read with
+     *          {@link SearchResultCache#getGenerations(String[])} before the query ran.
+     * @param ttl
+     *          the time in ms the result may be served for.
+     * @throws RepositoryException
+     */
+    public CachedResult(RowIterator rows, int total, long maxRows,
+        String[] invalidationPaths, long[] generations, long ttl)
+        throws RepositoryException {
+      List<String> p = new ArrayList<String>();
+      List<Long> s = new ArrayList<Long>();
+      while (p.size() < maxRows && rows.hasNext()) {
+        Row row = rows.nextRow();
+        p.add(row.getValue("jcr:path").getString());
+        s.add(row.getValue("jcr:score") == null ? 0L : row.getValue("jcr:score")
+            .getLong());
+      }
+      this.complete = !rows.hasNext();
+      this.paths = p.toArray(new String[p.size()]);
+      this.scores = new long[paths.length];
+      for (int i = 0; i < scores.length; i++) {
+        scores[i] = s.get(i);
+      }
+      this.total = total;
+      this.invalidationPaths = invalidationPaths;
+      this.generations = generations;
+      this.expires = System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * @return the total hits of the query.
+     */
+    public int getTotal() {
+      return total;
+    }
+
+    /**
+     * @param offset
+     * @return true if the rows from offset onwards are all held.
+     */
+    public boolean covers(long offset) {
+      return complete || offset < paths.length;
+    }
+
+    /**
+     * @param session
+     *          the session the rows will load their nodes with.
+     * @param offset
+     *          the first row.
+     * @return the rows from offset onwards.
+     */
+    public List<Row> getRows(Session session, long offset) {
+      List<Row> rows = new ArrayList<Row>();
+      for (int i = (int) Math.min(offset, paths.length); i < paths.length; i++) {
+        rows.add(new CachedRow(session, paths[i], scores[i]));
+      }
+      return rows;
+    }
+  }
+}
@@ -19,16 +19,20 @@ package org.sakaiproject.nakamura.search;
 
 import static org.sakaiproject.nakamura.api.search.SearchConstants.DEFAULT_PAGED_ITEMS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_COUNT;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_CURSOR;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_NAME;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_RESULTS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_TOTALS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_BATCH_PROCESSOR_NAMES;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_CACHEABLE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_PROVIDER_NAMES;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE_CHILDREN;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_CACHE_INVALIDATE_PATHS;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_CACHE_TTL;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_LIMIT_RESULTS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
@@ -40,6 +44,7 @@ import static org.sakaiproject.nakamura.api.search.SearchConstants.SEARCH_RESULT
 import static org.sakaiproject.nakamura.api.search.SearchConstants.TOTAL;
 
 import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -49,33 +54,47 @@ import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.jackrabbit.server.index.FacetCounts;
+import org.apache.sling.jcr.jackrabbit.server.index.FacetExtractor;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
-import org.sakaiproject.nakamura.api.search.Aggregator;
+import org.sakaiproject.nakamura.api.search.AbstractSearchResultSet;
+import org.sakaiproject.nakamura.api.search.CursorRowIterator;
+import org.sakaiproject.nakamura.api.search.RowIteratorImpl;
 import org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
+import org.sakaiproject.nakamura.api.search.SearchCursor;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchPropertyProvider;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.search.SearchResultCache.CachedResult;
 import org.sakaiproject.nakamura.search.processors.NodeSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.search.processors.NodeSearchResultProcessor;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.JcrUtils;
+import org.sakaiproject.nakamura.util.StreamingJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -87,6 +106,7 @@ import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
 import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 import javax.servlet.ServletException;
@@ -133,7 +153,12 @@ import javax.servlet.http.HttpServletResponse;
         + "        -sakai:propertyprovider - the name of a Property Provider used to populate the properties \n"
         + "                                  to be used in the query \n"
         + "        -sakai:batchresultprocessor - the name of a SearchResultProcessor to be used processing \n"
-        + "                                      the result set.\n" + "</pre>",
+        + "                                      the result set.\n"
+        + "        -sakai:cache-ttl - optional, the number of seconds results may be served from \n"
+        + "                           memory for the same query and principals. Only used with \n"
+        + "                           result processors registered as sakai.search.cacheable.\n"
+        + "        -sakai:cache-invalidate-paths - optional, paths under which a change drops the \n"
+        + "                                        cached results.\n" + "</pre>",
     "For example:",
     "<pre>" + "/var/search/content\n" + "{  \n"
         + "   \"sakai:query-language\": \"xpath\", \n"
@@ -173,6 +198,11 @@ import javax.servlet.http.HttpServletResponse;
         + "  ]\n" + "}\n" + "</pre>" }, parameters = {
     @ServiceParameter(name = "items", description = { "The number of items per page in the result set." }),
     @ServiceParameter(name = "page", description = { "The page number to start listing the results on." }),
+    @ServiceParameter(name = "cursor", description = { "Instead of page, the cursor returned with the previous page, "
+        + "the results carry on after it. Pass an empty cursor to get the first page. "
+        + "The rows before the cursor are skipped without being loaded or checked again, "
+        + "a cursor past maximumResults is refused as a page would be. Result processors "
+        + "that page the results themselves leave the cursor out of the response." }),
     @ServiceParameter(name = "*", description = { "Any other parameters may be used by the template." }) }, response = {
     @ServiceResponse(code = 200, description = "A search response simular to the above will be emitted "),
     @ServiceResponse(code = 500, description = "Any error with the html containing the error")
@@ -192,6 +222,11 @@ public class SearchServlet extends SlingAllMethodsServlet {
   private Map<String, SearchResultProcessor> processors = new ConcurrentHashMap<String, SearchResultProcessor>();
   private Map<Long, SearchResultProcessor> processorsById = new ConcurrentHashMap<Long, SearchResultProcessor>();
 
+  /**
+   * The processors registered with {@link SearchConstants#REG_CACHEABLE}.
+   */
+  private Map<Object, Boolean> cacheableProcessors = new ConcurrentHashMap<Object, Boolean>();
+
   private Map<String, SearchPropertyProvider> propertyProvider = new ConcurrentHashMap<String, SearchPropertyProvider>();
   private Map<Long, SearchPropertyProvider> propertyProviderById = new ConcurrentHashMap<Long, SearchPropertyProvider>();
 
@@ -203,6 +238,13 @@ public class SearchServlet extends SlingAllMethodsServlet {
   /** @scr.property name="maximumResults" value="1000" type="Long" */
   private long maximumResults;
 
+  private transient SearchResultCache searchResultCache;
+  /**
+   * Compiled query templates by search node path.
+   */
+  private Map<String, QueryTemplate> queryTemplates = new ConcurrentHashMap<String, QueryTemplate>();
+  private transient ServiceRegistration searchResultCacheRegistration;
+
   // Default processors
   protected transient SearchBatchResultProcessor defaultSearchBatchProcessor;
   protected transient SearchResultProcessor defaultSearchProcessor;
@@ -212,6 +254,7 @@ public class SearchServlet extends SlingAllMethodsServlet {
     super.init();
     defaultSearchBatchProcessor = new NodeSearchBatchResultProcessor();
     defaultSearchProcessor = new NodeSearchResultProcessor();
+    cacheableProcessors.put(defaultSearchProcessor, Boolean.TRUE);
   }
 
   @Override
@@ -235,20 +278,19 @@ public class SearchServlet extends SlingAllMethodsServlet {
           limitResults = node.getProperty(SAKAI_LIMIT_RESULTS).getBoolean();
         }
 
-        // Get the aggregator
-        Aggregator aggregator = null;
+        // Get the properties to aggregate
+        String[] aggregateProperties = null;
+        boolean withChildren = false;
         if (node.hasProperty(SAKAI_AGGREGATE)) {
           Value[] aggregatePropertyValues = JcrUtils.getValues(node, SAKAI_AGGREGATE);
-          String[] aggregateProperties = new String[aggregatePropertyValues.length];
+          aggregateProperties = new String[aggregatePropertyValues.length];
           for (int i = 0; i < aggregatePropertyValues.length; i++) {
             aggregateProperties[i] = aggregatePropertyValues[i].getString();
           }
-          boolean withChildren = false;
           if (node.hasProperty(SAKAI_AGGREGATE_CHILDREN)) {
             withChildren = "true".equals(node.getProperty(SAKAI_AGGREGATE_CHILDREN)
                 .getString());
           }
-          aggregator = new AggregateCount(aggregateProperties, withChildren);
         }
 
         // Check if the users wants results who are too far in the resultset to get.
@@ -259,20 +301,41 @@ public class SearchServlet extends SlingAllMethodsServlet {
             DEFAULT_PAGED_ITEMS);
         int page = SearchUtil.intRequestParameter(request, PARAMS_PAGE, 0);
         int offset = page * nitems;
-        if (limitResults && offset > maximumResults) {
+        // A cursor resumes where the previous page ended rather than counting up to an
+        // offset, but its position is limited the same way.
+        SearchCursor cursor = SearchUtil.getCursor(request);
+        boolean useCursor = cursor != null;
+        long depth = useCursor ? cursor.getPosition() : offset;
+        if (limitResults && depth > maximumResults) {
           response.sendError(HttpServletResponse.SC_FORBIDDEN,
               "There are too many results.");
           return;
         }
 
-        String queryString = processQueryTemplate(request, queryTemplate, queryLanguage,
-            propertyProviderName);
+        String queryString = processQueryTemplate(request, getQueryTemplate(node
+            .getPath(), queryTemplate), queryLanguage, propertyProviderName);
 
         // Create the query.
         LOGGER.debug("Posting Query {} ", queryString);
         QueryManager queryManager = node.getSession().getWorkspace().getQueryManager();
         Query query = queryManager.createQuery(queryString, queryLanguage);
 
+        // Count the aggregate over all the hits from the index, if that is not
+        // possible the result processors count the nodes they write out.
+        Map<String, FacetCounts> facets = null;
+        AggregateCount aggregator = null;
+        if (aggregateProperties != null) {
+          // The result processors execute the query too, hand them this result.
+          QueryResult result = query.execute();
+          query = new ExecutedQuery(query, result);
+          facets = getIndexedFacets(queryManager, node.getSession(), result,
+              aggregateProperties, withChildren);
+          if (facets == null) {
+            aggregator = new AggregateCount(aggregateProperties, withChildren);
+            facets = aggregator.getFacetCounts();
+          }
+        }
+
         boolean useBatch = false;
         // Get the
         SearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
@@ -296,9 +359,18 @@ public class SearchServlet extends SlingAllMethodsServlet {
 
         SearchResultSet rs = null;
         try {
+          // Serve the page from the result cache if the template and processor allow it.
+          if (!useCursor
+              && cacheableProcessors.containsKey(useBatch ? searchBatchProcessor
+                  : searchProcessor)) {
+            rs = getCachedSearchResultSet(request, node, query, queryString,
+                queryLanguage, offset, nitems);
+          }
           // Prepare the result set.
           // This allows a processor to do other queries and manipulate the results.
-          if (useBatch) {
+          if (rs != null) {
+            LOGGER.debug("Serving {} from the result cache ", queryString);
+          } else if (useBatch) {
             rs = searchBatchProcessor.getSearchResultSet(request, query);
           } else {
             rs = searchProcessor.getSearchResultSet(request, query);
@@ -309,7 +381,7 @@ public class SearchServlet extends SlingAllMethodsServlet {
         }
 
         response.setHeader("Content-Type", "application/json");
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        ExtendedJSONWriter write = new StreamingJSONWriter(response.getWriter());
         write.object();
         write.key(PARAMS_ITEMS_PER_PAGE);
         write.value(nitems);
@@ -336,19 +408,24 @@ public class SearchServlet extends SlingAllMethodsServlet {
           }
         }
         write.endArray();
-        if (aggregator != null) {
-          Map<String, Map<String, Integer>> aggregate = aggregator.getAggregate();
+        if (useCursor && iterator instanceof CursorRowIterator) {
+          SearchCursor next = ((CursorRowIterator) iterator).getCursor();
+          write.key(JSON_CURSOR);
+          write.value(next == null ? null : next.encode());
+        }
+        if (facets != null) {
           write.key(JSON_TOTALS);
           write.object();
-          for (Entry<String, Map<String, Integer>> t : aggregate.entrySet()) {
+          for (Entry<String, FacetCounts> t : facets.entrySet()) {
             write.key(t.getKey());
             write.array();
-            for (Entry<String, Integer> v : t.getValue().entrySet()) {
+            FacetCounts counts = t.getValue();
+            for (int i = 0; i < counts.size(); i++) {
               write.object();
               write.key(JSON_NAME);
-              write.value(v.getKey());
+              write.value(counts.getTerm(i));
               write.key(JSON_COUNT);
-              write.value(v.getValue());
+              write.value(counts.getCount(i));
               write.endObject();
             }
             write.endArray();
@@ -366,6 +443,74 @@ public class SearchServlet extends SlingAllMethodsServlet {
     }
   }
 
+  /**
+   * Get the page of results from the result cache, running the query to fill the cache
+   * when needed. Only templates with sakai:cache-ttl are cached, and only with processors
+   * registered as {@link SearchConstants#REG_CACHEABLE}, since the cached page stands in
+   * for their getSearchResultSet and the cached rows only hold jcr:path and jcr:score.
+   * 
+   * @return the result set positioned at offset, or null if the template is not cached
+   *         or the offset is beyond the cached rows.
+   * @throws RepositoryException
+   * @throws SearchException
+   */
+  protected SearchResultSet getCachedSearchResultSet(SlingHttpServletRequest request,
+      Node node, Query query, String queryString, String queryLanguage, long offset,
+      int nitems) throws RepositoryException, SearchException {
+    if (searchResultCache == null || !node.hasProperty(SAKAI_CACHE_TTL)) {
+      return null;
+    }
+    long ttl = node.getProperty(SAKAI_CACHE_TTL).getLong() * 1000L;
+    if (ttl <= 0) {
+      return null;
+    }
+    Session session = request.getResourceResolver().adaptTo(Session.class);
+    String key = SearchResultCache.getKey(queryString, queryLanguage, getPrincipalNames(
+        session, request.getRemoteUser()));
+    CachedResult cached = searchResultCache.get(key);
+    if (cached == null) {
+      String[] invalidationPaths = null;
+      if (node.hasProperty(SAKAI_CACHE_INVALIDATE_PATHS)) {
+        Value[] values = JcrUtils.getValues(node, SAKAI_CACHE_INVALIDATE_PATHS);
+        invalidationPaths = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+          invalidationPaths[i] = values[i].getString();
+        }
+      }
+      long[] generations = searchResultCache.getGenerations(invalidationPaths);
+      QueryResult queryResult = query.execute();
+      cached = new CachedResult(queryResult.getRows(), SearchUtil.getHits(queryResult),
+          maximumResults + nitems, invalidationPaths, generations, ttl);
+      searchResultCache.put(key, cached);
+    }
+    if (!cached.covers(offset)) {
+      return null;
+    }
+    return new AbstractSearchResultSet(new RowIteratorImpl(cached.getRows(session, offset)),
+        cached.getTotal());
+  }
+
+  /**
+   * @return the names of the principals of the user, which decide what the user can read.
+   */
+  private List<String> getPrincipalNames(Session session, String userId) {
+    List<String> names = new ArrayList<String>();
+    names.add(String.valueOf(userId));
+    names.add("everyone");
+    try {
+      Authorizable au = AccessControlUtil.getUserManager(session).getAuthorizable(userId);
+      if (au != null) {
+        Iterator<Group> groups = au.memberOf();
+        while (groups.hasNext()) {
+          names.add(groups.next().getPrincipal().getName());
+        }
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to get the groups of {} {} ", userId, e.getMessage());
+    }
+    return names;
+  }
+
   /**
    * Processes a template of the form select * from y where x = {q} so that strings
    * enclosed in { and } are replaced by the same property in the request.
@@ -380,60 +525,76 @@ public class SearchServlet extends SlingAllMethodsServlet {
    */
   protected String processQueryTemplate(SlingHttpServletRequest request,
       String queryTemplate, String queryLanguage, String propertyProviderName) {
+    return processQueryTemplate(request, QueryTemplate.compile(queryTemplate),
+        queryLanguage, propertyProviderName);
+  }
+
+  /**
+   * Binds the user properties and request parameters into a compiled template.
+   * 
+   * @param request
+   *          the request.
+   * @param queryTemplate
+   *          the compiled query template.
+   * @param propertyProviderName
+   * @return A processed query template.
+   */
+  protected String processQueryTemplate(SlingHttpServletRequest request,
+      QueryTemplate queryTemplate, String queryLanguage, String propertyProviderName) {
     Map<String, String> propertiesMap = loadUserProperties(request, propertyProviderName);
+    for (String name : queryTemplate.getRequestParameterNames()) {
+      RequestParameter rp = request.getRequestParameter(name);
+      if (rp != null) {
+        propertiesMap.put(name, rp.getString());
+      }
+    }
+    return queryTemplate.bind(propertiesMap, queryLanguage);
+  }
 
-    StringBuilder sb = new StringBuilder();
-    boolean escape = false;
-    int vstart = -1;
-    char[] ca = queryTemplate.toCharArray();
-    String defaultValue = null;
-    for (int i = 0; i < ca.length; i++) {
-      char c = ca[i];
-      if (escape) {
-        sb.append(c);
-        escape = false;
-      } else if (vstart >= 0) {
-        if (c == '}') {
-          String v = new String(ca, vstart + 1, i - vstart - 1);
-          defaultValue = null;
-          // Take care of default values
-          if (v.contains("|")) {
-            String[] val = v.split("\\|");
-            v = val[0];
-            defaultValue = val[1];
-          }
-          if (v.startsWith("_")) {
-            String value = propertiesMap.get(v);
-            if (value != null) {
-              sb.append(escapeString(value, queryLanguage));
-            } else if (value == null && defaultValue != null) {
-              sb.append(escapeString(defaultValue, queryLanguage));
-            }
-          } else {
+  /**
+   * Get the compiled template of a search node, compiling it again if the template of the
+   * node has changed since it was last compiled.
+   * 
+   * @param path
+   *          the path of the search node.
+   * @param queryTemplate
+   *          the current sakai:query-template of the node.
+   * @return the compiled template.
+   */
+  protected QueryTemplate getQueryTemplate(String path, String queryTemplate) {
+    QueryTemplate compiled = queryTemplates.get(path);
+    if (compiled == null || !compiled.getTemplate().equals(queryTemplate)) {
+      compiled = QueryTemplate.compile(queryTemplate);
+      queryTemplates.put(path, compiled);
+    }
+    return compiled;
+  }
 
-            RequestParameter rp = request.getRequestParameter(v);
-            if (rp != null) {
-              sb.append(escapeString(rp.getString(), queryLanguage));
-            } else if (rp == null && defaultValue != null) {
-              sb.append(escapeString(defaultValue, queryLanguage));
-            }
-          }
-          vstart = -1;
-        }
-      } else {
-        switch (c) {
-        case '{':
-          vstart = i;
-          break;
-        case '\\':
-          escape = true;
-          break;
-        default:
-          sb.append(c);
-        }
+  /**
+   * Count the aggregate properties over all the hits of the query, reading the values
+   * from the search index rather than from the nodes.
+   * 
+   * @param result
+   *          the result of the query, the result processors read its rows again.
+   * @return the counts keyed by property name, or null if the index can not be read, in
+   *         which case the caller should fall back to counting the nodes.
+   */
+  protected Map<String, FacetCounts> getIndexedFacets(QueryManager queryManager,
+      Session session, QueryResult result, String[] properties, boolean children) {
+    try {
+      FacetExtractor extractor = new FacetExtractor(queryManager, session);
+      FacetCounts[] counts = extractor.count(result, properties, children);
+      Map<String, FacetCounts> facets = new LinkedHashMap<String, FacetCounts>();
+      for (int i = 0; i < properties.length; i++) {
+        facets.put(properties[i], counts[i]);
       }
+      return facets;
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Counting aggregate from nodes: {} ", e.getMessage());
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to count aggregate from the index: {} ", e.getMessage());
     }
-    return sb.toString();
+    return null;
   }
 
   /**
@@ -471,20 +632,6 @@ public class SearchServlet extends SlingAllMethodsServlet {
     return propertiesMap;
   }
 
-  private String escapeString(String value, String queryLanguage) {
-    String escaped = null;
-    if (value != null) {
-      if (queryLanguage.equals(Query.XPATH) || queryLanguage.equals(Query.SQL)) {
-        // See JSR-170 spec v1.0, Sec. 6.6.4.9 and 6.6.5.2
-        escaped = value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'", "\\\\'")
-            .replaceAll("'", "''");
-      } else {
-        LOGGER.error("Unknown query language: " + queryLanguage);
-      }
-    }
-    return escaped;
-  }
-
   protected void bindSearchResultProcessor(ServiceReference serviceReference) {
     synchronized (delayedReferences) {
       if (osgiComponentContext == null) {
@@ -558,6 +705,7 @@ public class SearchServlet extends SlingAllMethodsServlet {
     Long serviceId = (Long) serviceReference.getProperty(Constants.SERVICE_ID);
     SearchResultProcessor processor = processorsById.remove(serviceId);
     if (processor != null) {
+      cacheableProcessors.remove(processor);
       List<String> toRemove = new ArrayList<String>();
       for (Entry<String, SearchResultProcessor> e : processors.entrySet()) {
         if (processor.equals(e.getValue())) {
@@ -579,6 +727,9 @@ public class SearchServlet extends SlingAllMethodsServlet {
     Long serviceId = (Long) serviceReference.getProperty(Constants.SERVICE_ID);
 
     processorsById.put(serviceId, processor);
+    if (OsgiUtil.toBoolean(serviceReference.getProperty(REG_CACHEABLE), false)) {
+      cacheableProcessors.put(processor, Boolean.TRUE);
+    }
     String[] processorNames = OsgiUtil.toStringArray(serviceReference
         .getProperty(REG_PROCESSOR_NAMES));
 
@@ -592,16 +743,17 @@ public class SearchServlet extends SlingAllMethodsServlet {
    */
   private void removeBatchProcessor(ServiceReference serviceReference) {
     Long serviceId = (Long) serviceReference.getProperty(Constants.SERVICE_ID);
-    SearchResultProcessor processor = processorsById.remove(serviceId);
+    SearchBatchResultProcessor processor = batchProcessorsById.remove(serviceId);
     if (processor != null) {
+      cacheableProcessors.remove(processor);
       List<String> toRemove = new ArrayList<String>();
-      for (Entry<String, SearchResultProcessor> e : processors.entrySet()) {
+      for (Entry<String, SearchBatchResultProcessor> e : batchProcessors.entrySet()) {
         if (processor.equals(e.getValue())) {
           toRemove.add(e.getKey());
         }
       }
       for (String r : toRemove) {
-        processors.remove(r);
+        batchProcessors.remove(r);
       }
     }
   }
@@ -615,6 +767,9 @@ public class SearchServlet extends SlingAllMethodsServlet {
     Long serviceId = (Long) serviceReference.getProperty(Constants.SERVICE_ID);
 
     batchProcessorsById.put(serviceId, processor);
+    if (OsgiUtil.toBoolean(serviceReference.getProperty(REG_CACHEABLE), false)) {
+      cacheableProcessors.put(processor, Boolean.TRUE);
+    }
     String[] processorNames = OsgiUtil.toStringArray(serviceReference
         .getProperty(REG_BATCH_PROCESSOR_NAMES));
 
@@ -686,6 +841,20 @@ public class SearchServlet extends SlingAllMethodsServlet {
     }
 
     maximumResults = (Long) componentContext.getProperties().get("maximumResults");
+
+    searchResultCache = new SearchResultCache();
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(EventConstants.EVENT_TOPIC, SearchResultCache.TOPIC);
+    searchResultCacheRegistration = componentContext.getBundleContext().registerService(
+        EventHandler.class.getName(), searchResultCache, props);
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (searchResultCacheRegistration != null) {
+      searchResultCacheRegistration.unregister();
+      searchResultCacheRegistration = null;
+    }
+    searchResultCache = null;
   }
 
 }
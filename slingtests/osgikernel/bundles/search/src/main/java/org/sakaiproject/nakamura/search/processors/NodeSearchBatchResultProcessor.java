@@ -28,6 +28,7 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.sakaiproject.nakamura.api.search.Aggregator;
+import org.sakaiproject.nakamura.api.search.ReadableRowIterator;
 import org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
@@ -38,7 +39,6 @@ import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
-import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
 @Component(immediate = true, label = "NodeSearchBatchResultProcessor", description = "Formatter for batch search results.")
@@ -55,19 +55,20 @@ public class NodeSearchBatchResultProcessor implements
 
     Session session = request.getResourceResolver().adaptTo(Session.class);
 
-    // TODO Get size from somewhere else.
-    long total = iterator.getSize();
-    long start = SearchUtil.getPaging(request, total);
-    
     int nitems = SearchUtil.intRequestParameter(request,
         PARAMS_ITEMS_PER_PAGE, DEFAULT_PAGED_ITEMS);
 
-    iterator.skip(start);
-
-    for (long i = 0; i < nitems && iterator.hasNext(); i++) {
-      Row row = iterator.nextRow();
-      String path = row.getValue("jcr:path").getString();
-      Node node = (Node) session.getItem(path);
+    // The iterator has already been positioned at the start of the page by
+    // getSearchResultSet, resolve the page in one batch.
+    ReadableRowIterator rows;
+    if (iterator instanceof ReadableRowIterator) {
+      rows = (ReadableRowIterator) iterator;
+    } else {
+      rows = new ReadableRowIterator(session, iterator, nitems);
+    }
+    for (long i = 0; i < nitems && rows.hasNext(); i++) {
+      rows.nextRow();
+      Node node = rows.getNode();
       if (aggregator != null) {
         aggregator.add(node);
       }
@@ -84,7 +85,7 @@ public class NodeSearchBatchResultProcessor implements
    */
   public SearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SearchException {
-    return SearchUtil.getSearchResultSet(request, query);
+    return SearchUtil.getReadableSearchResultSet(request, query);
   }
 
 }
@@ -41,6 +41,7 @@ import javax.jcr.query.Row;
  *                description="Formatter for user search results"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="sakai.search.processor" value="Node"
+ * @scr.property name="sakai.search.cacheable" value="true" type="Boolean"
  * @scr.service interface="org.sakaiproject.nakamura.api.search.SearchResultProcessor"
  */
 public class NodeSearchResultProcessor implements SearchResultProcessor {
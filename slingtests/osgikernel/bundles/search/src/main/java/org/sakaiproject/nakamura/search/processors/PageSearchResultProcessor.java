@@ -43,6 +43,7 @@ import javax.jcr.query.Row;
  *                description="Formatter for pages search results."
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="sakai.search.processor" value="Page"
+ * @scr.property name="sakai.search.cacheable" value="true" type="Boolean"
  * @scr.property name="sakai.seach.resourcetype" value="sakai/page"
  * @scr.service interface="org.sakaiproject.nakamura.api.search.SearchResultProcessor"
  */
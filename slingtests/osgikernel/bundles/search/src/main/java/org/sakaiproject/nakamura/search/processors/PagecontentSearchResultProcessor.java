@@ -26,6 +26,7 @@ import javax.jcr.query.Row;
  *                description="Formatter for pagecontent search results"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="sakai.search.processor" value="Pagecontent"
+ * @scr.property name="sakai.search.cacheable" value="true" type="Boolean"
  * @scr.property name="sakai.seach.resourcetype" value="sakai/pagecontent"
  * @scr.service interface="org.sakaiproject.nakamura.api.search.SearchResultProcessor"
  */
@@ -27,6 +27,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
+import java.util.Calendar;
+import java.util.NoSuchElementException;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
@@ -76,7 +82,111 @@ public class MergedRowIteratorTest extends AbstractEasyMockTest {
   @Test
   public void testSize() throws RepositoryException {
     MergedRowIterator iterator = createMergedRowIterator();
-    assertEquals(-1, iterator.getSize());
+    assertEquals(6, iterator.getSize());
+
+    RowIterator unknown = EasyMock.createMock(RowIterator.class);
+    expect(unknown.getSize()).andReturn(-1L).anyTimes();
+    EasyMock.replay(unknown);
+    RowIterator known = EasyMock.createMock(RowIterator.class);
+    expect(known.getSize()).andReturn(3L).anyTimes();
+    EasyMock.replay(known);
+    assertEquals(-1, new MergedRowIterator(known, unknown).getSize());
+  }
+
+  @Test
+  public void testMergingMultiple() throws RepositoryException {
+    RowIterator iteratorA = EasyMock.createMock(RowIterator.class);
+    addRowToIterator(iteratorA, 500, CUSTOM_PROP, "A");
+    addRowToIterator(iteratorA, 100, CUSTOM_PROP, "A");
+    expect(iteratorA.hasNext()).andReturn(false).anyTimes();
+    EasyMock.replay(iteratorA);
+
+    RowIterator iteratorB = EasyMock.createMock(RowIterator.class);
+    expect(iteratorB.hasNext()).andReturn(false).anyTimes();
+    EasyMock.replay(iteratorB);
+
+    RowIterator iteratorC = EasyMock.createMock(RowIterator.class);
+    addRowToIterator(iteratorC, 700, CUSTOM_PROP, "C");
+    addRowToIterator(iteratorC, 500, CUSTOM_PROP, "C");
+    addRowToIterator(iteratorC, 300, CUSTOM_PROP, "C");
+    expect(iteratorC.hasNext()).andReturn(false).anyTimes();
+    EasyMock.replay(iteratorC);
+
+    MergedRowIterator iterator = new MergedRowIterator(iteratorA, iteratorB,
+        iteratorC);
+    assertEquals("C", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    // Equal scores favour the iterator that was passed in first.
+    assertEquals("A", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    assertEquals("C", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    assertEquals("C", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    assertEquals("A", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    assertEquals(false, iterator.hasNext());
+  }
+
+  @Test
+  public void testSkippingDelegatesToLastSource() throws RepositoryException {
+    RowIterator iteratorA = EasyMock.createMock(RowIterator.class);
+    addRowToIterator(iteratorA, 1000, CUSTOM_PROP, "A");
+    expect(iteratorA.hasNext()).andReturn(false).anyTimes();
+    EasyMock.replay(iteratorA);
+
+    RowIterator iteratorB = EasyMock.createMock(RowIterator.class);
+    addRowToIterator(iteratorB, 900, CUSTOM_PROP, "B");
+    // The merged iterator should let the source skip instead of reading the rows.
+    iteratorB.skip(10);
+    addRowToIterator(iteratorB, 100, CUSTOM_PROP, "B-last");
+    expect(iteratorB.hasNext()).andReturn(false).anyTimes();
+    EasyMock.replay(iteratorB);
+
+    MergedRowIterator iterator = new MergedRowIterator(iteratorA, iteratorB);
+    iterator.skip(12);
+    assertEquals(12, iterator.getPosition());
+    assertEquals("B-last", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    assertEquals(false, iterator.hasNext());
+    EasyMock.verify(iteratorB);
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void testSkippingPastEnd() throws RepositoryException {
+    RowIterator iteratorA = EasyMock.createMock(RowIterator.class);
+    addRowToIterator(iteratorA, 1000, CUSTOM_PROP, "A");
+    expect(iteratorA.hasNext()).andReturn(false).anyTimes();
+    EasyMock.replay(iteratorA);
+
+    RowIterator iteratorB = EasyMock.createMock(RowIterator.class);
+    addRowToIterator(iteratorB, 900, CUSTOM_PROP, "B");
+    iteratorB.skip(1);
+    EasyMock.expectLastCall().andThrow(new NoSuchElementException());
+    EasyMock.replay(iteratorB);
+
+    MergedRowIterator iterator = new MergedRowIterator(iteratorA, iteratorB);
+    iterator.skip(3);
+  }
+
+  @Test
+  public void testMergingByDate() throws RepositoryException {
+    RowIterator iteratorA = EasyMock.createMock(RowIterator.class);
+    addDatedRowToIterator(iteratorA, 3000L, "A");
+    addDatedRowToIterator(iteratorA, 1000L, "A");
+    expect(iteratorA.hasNext()).andReturn(false).anyTimes();
+    EasyMock.replay(iteratorA);
+
+    RowIterator iteratorB = EasyMock.createMock(RowIterator.class);
+    addDatedRowToIterator(iteratorB, 4000L, "B");
+    addDatedRowToIterator(iteratorB, 2000L, "B");
+    // rows without the property sort below all others.
+    addDatedRowToIterator(iteratorB, -1L, "B-undated");
+    expect(iteratorB.hasNext()).andReturn(false).anyTimes();
+    EasyMock.replay(iteratorB);
+
+    MergedRowIterator iterator = new MergedRowIterator("jcr:created", true, iteratorA,
+        iteratorB);
+    assertEquals("B", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    assertEquals("A", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    iterator.skip(1);
+    assertEquals("A", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    assertEquals("B-undated", getStringValueFromRow(iterator.nextRow(), CUSTOM_PROP));
+    assertEquals(false, iterator.hasNext());
   }
 
   private String getStringValueFromRow(Row row, String prop)
@@ -121,6 +231,39 @@ public class MergedRowIteratorTest extends AbstractEasyMockTest {
     expect(iterator.nextRow()).andReturn(row);
   }
 
+  /**
+   * Add a row whose node was created at time, or has no jcr:created if time is negative.
+   */
+  private void addDatedRowToIterator(RowIterator iterator, long time, String val)
+      throws RepositoryException {
+    Node node = EasyMock.createMock(Node.class);
+    expect(node.hasProperty("jcr:created")).andReturn(time >= 0).anyTimes();
+    if (time >= 0) {
+      Calendar created = Calendar.getInstance();
+      created.setTimeInMillis(time);
+      Value value = EasyMock.createMock(Value.class);
+      expect(value.getType()).andReturn(PropertyType.DATE).anyTimes();
+      expect(value.getDate()).andReturn(created).anyTimes();
+      EasyMock.replay(value);
+      Property property = EasyMock.createMock(Property.class);
+      expect(property.getValue()).andReturn(value).anyTimes();
+      EasyMock.replay(property);
+      expect(node.getProperty("jcr:created")).andReturn(property).anyTimes();
+    }
+    EasyMock.replay(node);
+
+    Value valProp = EasyMock.createMock(Value.class);
+    expect(valProp.getString()).andReturn(val).anyTimes();
+    EasyMock.replay(valProp);
+
+    Row row = EasyMock.createMock(Row.class);
+    expect(row.getNode()).andReturn(node).anyTimes();
+    expect(row.getValue(CUSTOM_PROP)).andReturn(valProp).anyTimes();
+    EasyMock.replay(row);
+    expect(iterator.hasNext()).andReturn(true);
+    expect(iterator.nextRow()).andReturn(row);
+  }
+
   /**
    * @param i
    * @return
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Row;
+
+/**
+ *
+ */
+public class ReadableRowIteratorTest extends AbstractEasyMockTest {
+
+  private Session session;
+  private Node parent;
+  private Node nodeX;
+  private Node nodeZ;
+  private Node nodeB;
+  private List<Row> rows;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    session = createNiceMock(Session.class);
+    parent = createNiceMock(Node.class);
+    nodeX = createNiceMock(Node.class);
+    nodeZ = createNiceMock(Node.class);
+    nodeB = createNiceMock(Node.class);
+    rows = new ArrayList<Row>();
+    rows.add(row("/a/x"));
+    rows.add(row("/a/y"));
+    rows.add(row("/a/z"));
+    rows.add(row("/b"));
+
+    // siblings are resolved through their parent, /a/y can not be read.
+    expect(session.itemExists("/a")).andReturn(true).anyTimes();
+    expect(session.getItem("/a")).andReturn(parent).anyTimes();
+    expect(parent.hasNode("x")).andReturn(true).anyTimes();
+    expect(parent.hasNode("y")).andReturn(false).anyTimes();
+    expect(parent.hasNode("z")).andReturn(true).anyTimes();
+    expect(parent.getNode("x")).andReturn(nodeX).anyTimes();
+    expect(parent.getNode("z")).andReturn(nodeZ).anyTimes();
+    expect(session.itemExists("/a/z")).andReturn(true).anyTimes();
+    expect(session.getItem("/a/z")).andReturn(nodeZ).anyTimes();
+    expect(session.itemExists("/b")).andReturn(true).anyTimes();
+    expect(session.getItem("/b")).andReturn(nodeB).anyTimes();
+  }
+
+  private Row row(String path) throws RepositoryException {
+    Row row = createNiceMock(Row.class);
+    Value value = createNiceMock(Value.class);
+    expect(value.getString()).andReturn(path).anyTimes();
+    expect(row.getValue("jcr:path")).andReturn(value).anyTimes();
+    return row;
+  }
+
+  @Test
+  public void testDeniedRowsSkipped() throws Exception {
+    replay();
+    ReadableRowIterator iterator = new ReadableRowIterator(session,
+        new RowIteratorImpl(rows), 10);
+    assertTrue(iterator.hasNext());
+    assertSame(rows.get(0), iterator.nextRow());
+    assertSame(nodeX, iterator.getNode());
+    assertSame(rows.get(2), iterator.nextRow());
+    assertSame(nodeZ, iterator.getNode());
+    assertSame(rows.get(3), iterator.nextRow());
+    assertSame(nodeB, iterator.getNode());
+    assertFalse(iterator.hasNext());
+    assertEquals(3, iterator.getPosition());
+  }
+
+  @Test
+  public void testOffsetCountsReadableRows() throws Exception {
+    replay();
+    ReadableRowIterator iterator = new ReadableRowIterator(session,
+        new RowIteratorImpl(rows), 2);
+    assertEquals(2, iterator.skipReadable(2));
+    assertTrue(iterator.hasNext());
+    assertSame(rows.get(3), iterator.nextRow());
+    assertSame(nodeB, iterator.getNode());
+    assertFalse(iterator.hasNext());
+    assertEquals(3, new ReadableRowIterator(session, new RowIteratorImpl(rows), 2)
+        .skipReadable(5));
+  }
+
+  @Test
+  public void testCursorCountsTies() throws Exception {
+    replay();
+    // none of the rows have a score, so they all tie, the unreadable row included.
+    ReadableRowIterator iterator = new ReadableRowIterator(session,
+        new RowIteratorImpl(rows), 2);
+    iterator.nextRow();
+    iterator.nextRow();
+    SearchCursor cursor = iterator.getCursor();
+    assertEquals(3, cursor.getPosition());
+    assertEquals("/a/z", cursor.getPath());
+    assertEquals(2, cursor.getTies());
+
+    iterator = new ReadableRowIterator(session, new RowIteratorImpl(rows), 2);
+    iterator.skipReadable(3);
+    assertEquals(3, iterator.getCursor().getTies());
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ *
+ */
+public class SearchCursorTest extends AbstractEasyMockTest {
+
+  private List<Row> rows;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    rows = new ArrayList<Row>();
+    rows.add(row("/a", 900));
+    rows.add(row("/b", 800));
+    rows.add(row("/c", 800));
+    rows.add(row("/d", 700));
+  }
+
+  private Row row(String path, long score) throws RepositoryException {
+    Row row = createNiceMock(Row.class);
+    Value pathValue = createNiceMock(Value.class);
+    expect(pathValue.getString()).andReturn(path).anyTimes();
+    Value scoreValue = createNiceMock(Value.class);
+    expect(scoreValue.getDouble()).andReturn((double) score).anyTimes();
+    expect(row.getValue("jcr:path")).andReturn(pathValue).anyTimes();
+    expect(row.getValue("jcr:score")).andReturn(scoreValue).anyTimes();
+    return row;
+  }
+
+  @Test
+  public void testEncoding() {
+    SearchCursor cursor = new SearchCursor(25, 812.5, "/a:b/\u00e9t\u00e9");
+    String encoded = cursor.encode();
+    assertTrue(encoded.matches("[0-9a-f]+"));
+    SearchCursor decoded = SearchCursor.decode(encoded);
+    assertEquals(25, decoded.getPosition());
+    assertEquals(812.5, decoded.getScore(), 0);
+    assertEquals("/a:b/\u00e9t\u00e9", decoded.getPath());
+    assertEquals(0, decoded.getTies());
+
+    decoded = SearchCursor.decode(new SearchCursor(3, 1, "/c", 2).encode());
+    assertEquals("/c", decoded.getPath());
+    assertEquals(2, decoded.getTies());
+
+    assertSame(SearchCursor.START, SearchCursor.decode(""));
+    assertSame(SearchCursor.START, SearchCursor.decode(null));
+    assertNull(SearchCursor.decode("abc"));
+    assertNull(SearchCursor.decode("zz"));
+    assertNull(SearchCursor.decode(new SearchCursor(-1, 0, "/a").encode()));
+    assertNull(SearchCursor.decode(new SearchCursor(2, 0, "/a", 2).encode()));
+  }
+
+  @Test
+  public void testResume() throws RepositoryException {
+    replay();
+    ResumableRowIterator first = new ResumableRowIterator(new ListRowIterator(rows),
+        new ArrayList<Row>());
+    first.nextRow();
+    first.nextRow();
+    SearchCursor cursor = SearchCursor.decode(first.getCursor().encode());
+    assertEquals(2, cursor.getPosition());
+    assertEquals("/b", cursor.getPath());
+
+    ListRowIterator again = new ListRowIterator(rows);
+    RowIterator next = cursor.resume(null, again);
+    // only the row of the cursor was read to check it.
+    assertEquals(1, again.read);
+    assertSame(rows.get(2), next.nextRow());
+    assertSame(rows.get(3), next.nextRow());
+    assertFalse(next.hasNext());
+  }
+
+  @Test
+  public void testResumeChangedResult() throws RepositoryException {
+    // /b has gone, carry on from the rows with the same score.
+    final List<Row> changed = new ArrayList<Row>();
+    changed.add(rows.get(0));
+    changed.add(rows.get(2));
+    changed.add(rows.get(3));
+    QueryResult result = createNiceMock(QueryResult.class);
+    expect(result.getRows()).andReturn(new ListRowIterator(changed));
+    replay();
+    SearchCursor cursor = new SearchCursor(2, 800, "/b");
+    RowIterator next = cursor.resume(result, new ListRowIterator(changed));
+    assertSame(rows.get(2), next.nextRow());
+    assertSame(rows.get(3), next.nextRow());
+    assertFalse(next.hasNext());
+  }
+
+  @Test
+  public void testResumeMovedRow() throws RepositoryException {
+    // a row was added in front, /b is found again further down.
+    final List<Row> changed = new ArrayList<Row>();
+    changed.add(row("/new", 1000));
+    changed.addAll(rows);
+    QueryResult result = createNiceMock(QueryResult.class);
+    expect(result.getRows()).andReturn(new ListRowIterator(changed));
+    replay();
+    SearchCursor cursor = new SearchCursor(2, 800, "/b");
+    ResumableRowIterator next = (ResumableRowIterator) cursor.resume(result,
+        new ListRowIterator(changed));
+    assertSame(rows.get(2), next.nextRow());
+    assertEquals(4, next.getCursor().getPosition());
+  }
+
+  @Test
+  public void testResumeGoneRowSkipsTies() throws RepositoryException {
+    List<Row> tied = new ArrayList<Row>();
+    tied.add(row("/a", 900));
+    tied.add(row("/b", 800));
+    tied.add(row("/c", 800));
+    tied.add(row("/d", 800));
+    tied.add(row("/e", 700));
+    QueryResult result = createNiceMock(QueryResult.class);
+    List<Row> changed = new ArrayList<Row>(tied);
+    changed.remove(2);
+    expect(result.getRows()).andReturn(new ListRowIterator(changed));
+    replay();
+    ResumableRowIterator first = new ResumableRowIterator(new ListRowIterator(tied),
+        new ArrayList<Row>());
+    first.nextRow();
+    first.nextRow();
+    first.nextRow();
+    SearchCursor cursor = SearchCursor.decode(first.getCursor().encode());
+    assertEquals("/c", cursor.getPath());
+    assertEquals(1, cursor.getTies());
+
+    // /c has gone, /b was handed out already and must not come again.
+    RowIterator next = cursor.resume(result, new ListRowIterator(changed));
+    assertSame(tied.get(3), next.nextRow());
+    assertEquals(1, ((CursorRowIterator) next).getCursor().getTies());
+    assertSame(tied.get(4), next.nextRow());
+    assertFalse(next.hasNext());
+  }
+
+  /**
+   * A list backed iterator that counts the rows it hands out.
+   */
+  private static class ListRowIterator extends RowIteratorImpl {
+    private int position;
+    private int read;
+    private List<Row> rows;
+
+    public ListRowIterator(List<Row> rows) {
+      super(rows);
+      this.rows = rows;
+    }
+
+    @Override
+    public Row nextRow() {
+      read++;
+      return rows.get(position++);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < rows.size();
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public void skip(long skipNum) {
+      position += skipNum;
+    }
+  }
+}
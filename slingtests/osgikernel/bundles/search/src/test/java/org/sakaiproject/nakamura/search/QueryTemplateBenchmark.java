@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+/**
+ * Compares binding the shipped /var/search templates with a compiled QueryTemplate
+ * against scanning the template on every request and escaping with regular expressions,
+ * as SearchServlet used to. Not run as part of the unit tests, run the main method by
+ * hand.
+ */
+public class QueryTemplateBenchmark {
+
+  private static final int ITERATIONS = 200000;
+  private static final String[] TEMPLATES = new String[] {
+      "/{_siteFeed}//*[@sling:resourceType='sakai/activity'] order by @{sortOn|jcr:created} {sortOrder|descending}",
+      "//*[jcr:contains(.,\"{q}\")]",
+      "//*[@sling:resourceType=\"sakai/site\" and jcr:contains(.,\"{q}\")]",
+      "//*[@sling:resourceType='sakai/site'{_site}]//*[@jcr:primaryType != 'nt:frozenNode' and @sling:resourceType and (jcr:contains(.,'{q}') or jcr:contains(jcr:content,'{q}'))]/rep:excerpt()",
+      "//*[@sling:resourceType=\"sakai/user-profile\" and jcr:contains(.,\"{username}\")]",
+      "/{_path}//*[@sling:resourceType=\"sakai/page\"{_filter}]",
+      "/jcr:root/{_connectionstore}//*[@sling:resourceType='sakai/contact' and @sakai:state='ACCEPTED']/jcr:deref(@jcr:reference, '*')[jcr:contains(@firstName, '*{s}*') or jcr:contains(@lastName, '*{s}*') or jcr:contains(@email, '*{s}*')]" };
+
+  public static void main(String[] args) {
+    Map<String, String> values = new HashMap<String, String>();
+    values.put("_siteFeed", "sites/physics/activityFeed");
+    values.put("_site", " and @id='physics'");
+    values.put("_path", "sites/physics");
+    values.put("_filter", "");
+    values.put("_connectionstore", "_user/contacts/a/ad/admin");
+    values.put("q", "O'Brien's \\notes");
+    values.put("s", "ian");
+    values.put("username", "ieb");
+    values.put("sortOrder", "ascending");
+
+    QueryTemplate[] compiled = new QueryTemplate[TEMPLATES.length];
+    for (int i = 0; i < TEMPLATES.length; i++) {
+      compiled[i] = QueryTemplate.compile(TEMPLATES[i]);
+      if (!compiled[i].bind(values, Query.XPATH).equals(
+          scanTemplate(TEMPLATES[i], values, Query.XPATH))) {
+        throw new IllegalStateException("Mismatch on " + TEMPLATES[i]);
+      }
+    }
+
+    for (int round = 0; round < 3; round++) {
+      long sink = 0;
+      long t0 = System.nanoTime();
+      for (int n = 0; n < ITERATIONS; n++) {
+        for (String template : TEMPLATES) {
+          sink += scanTemplate(template, values, Query.XPATH).length();
+        }
+      }
+      long scan = System.nanoTime() - t0;
+      t0 = System.nanoTime();
+      for (int n = 0; n < ITERATIONS; n++) {
+        for (QueryTemplate template : compiled) {
+          sink += template.bind(values, Query.XPATH).length();
+        }
+      }
+      long bound = System.nanoTime() - t0;
+      long ops = (long) ITERATIONS * TEMPLATES.length;
+      System.out.println("Round " + round + " scan " + (scan / ops) + " ns/op, compiled "
+          + (bound / ops) + " ns/op (" + sink + ")");
+    }
+  }
+
+  /**
+   * The template processing SearchServlet did before templates were compiled.
+   */
+  private static String scanTemplate(String queryTemplate, Map<String, String> values,
+      String queryLanguage) {
+    StringBuilder sb = new StringBuilder();
+    boolean escape = false;
+    int vstart = -1;
+    char[] ca = queryTemplate.toCharArray();
+    String defaultValue = null;
+    for (int i = 0; i < ca.length; i++) {
+      char c = ca[i];
+      if (escape) {
+        sb.append(c);
+        escape = false;
+      } else if (vstart >= 0) {
+        if (c == '}') {
+          String v = new String(ca, vstart + 1, i - vstart - 1);
+          defaultValue = null;
+          if (v.contains("|")) {
+            String[] val = v.split("\\|");
+            v = val[0];
+            defaultValue = val[1];
+          }
+          String value = values.get(v);
+          if (value != null) {
+            sb.append(escapeString(value));
+          } else if (defaultValue != null) {
+            sb.append(escapeString(defaultValue));
+          }
+          vstart = -1;
+        }
+      } else {
+        switch (c) {
+        case '{':
+          vstart = i;
+          break;
+        case '\\':
+          escape = true;
+          break;
+        default:
+          sb.append(c);
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String escapeString(String value) {
+    return value.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'", "\\\\'")
+        .replaceAll("'", "''");
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.query.Query;
+
+/**
+ *
+ */
+public class QueryTemplateTest {
+
+  @Test
+  public void testBind() {
+    QueryTemplate template = QueryTemplate
+        .compile("/{_myFeed}//*[@sling:resourceType='sakai/activity'] order by @{sortOn|jcr:created} {sortOrder|descending}");
+    assertEquals(Arrays.asList("sortOn", "sortOrder"), template.getRequestParameterNames());
+    Map<String, String> values = new HashMap<String, String>();
+    values.put("_myFeed", "_user/a/ad/admin/private/activityFeed");
+    values.put("sortOrder", "ascending");
+    assertEquals(
+        "/_user/a/ad/admin/private/activityFeed//*[@sling:resourceType='sakai/activity'] order by @jcr:created ascending",
+        template.bind(values, Query.XPATH));
+  }
+
+  @Test
+  public void testEscapedBraceAndUnterminated() {
+    Map<String, String> values = new HashMap<String, String>();
+    values.put("q", "x");
+    assertEquals("a{b} x ", QueryTemplate.compile("a\\{b\\} {q} {q").bind(values, Query.SQL));
+  }
+
+  @Test
+  public void testEscapeMatchesRegex() {
+    String[] samples = new String[] { "plain", "fo'o", "a\\b", "a\\-b", "a\\\"b", "\\",
+        "'\\'", "it's a \\\"test\\\" \\\\" };
+    for (String sample : samples) {
+      String expected = sample.replaceAll("\\\\(?![-\"])", "\\\\\\\\").replaceAll("'",
+          "\\\\'").replaceAll("'", "''");
+      StringBuilder sb = new StringBuilder();
+      QueryTemplate.escape(sample, Query.XPATH, sb);
+      assertEquals(sample, expected, sb.toString());
+    }
+  }
+}
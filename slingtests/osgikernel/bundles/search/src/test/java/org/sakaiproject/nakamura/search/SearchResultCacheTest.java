@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.search.RowIteratorImpl;
+import org.sakaiproject.nakamura.search.SearchResultCache.CachedResult;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.Row;
+/**
+ *
+ */
+public class SearchResultCacheTest extends AbstractEasyMockTest {
+
+  private List<Row> rows(int n) throws RepositoryException {
+    List<Row> rows = new ArrayList<Row>();
+    for (int i = 0; i < n; i++) {
+      Row row = createNiceMock(Row.class);
+      Value path = createNiceMock(Value.class);
+      expect(path.getString()).andReturn("/sites/s" + i).anyTimes();
+      expect(row.getValue("jcr:path")).andReturn(path).anyTimes();
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  @Test
+  public void testKeyIgnoresPrincipalOrder() {
+    assertEquals(SearchResultCache.getKey("q", "xpath", Arrays.asList("a", "b")),
+        SearchResultCache.getKey("q", "xpath", Arrays.asList("b", "a")));
+    assertFalse(SearchResultCache.getKey("q", "xpath", Arrays.asList("a")).equals(
+        SearchResultCache.getKey("q", "xpath", Arrays.asList("a", "g-admin"))));
+  }
+
+  @Test
+  public void testPagingAndInvalidation() throws Exception {
+    List<Row> rows = rows(10);
+    replay();
+    SearchResultCache cache = new SearchResultCache();
+    String[] paths = new String[] { "/sites" };
+    CachedResult result = new CachedResult(new RowIteratorImpl(rows), 10, 5, paths,
+        cache.getGenerations(paths), 60000L);
+    cache.put("k", result);
+    assertNotNull(cache.get("k"));
+    assertEquals(10, result.getTotal());
+    assertTrue(result.covers(4));
+    assertFalse(result.covers(5));
+    assertEquals(2, result.getRows(null, 3).size());
+
+    cache.invalidate("/var/search");
+    assertNotNull(cache.get("k"));
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", "/sites/s3");
+    cache.handleEvent(new Event("org/apache/sling/api/resource/Resource/CHANGED", props));
+    assertNull(cache.get("k"));
+  }
+
+  @Test
+  public void testInvalidationByPath() throws Exception {
+    List<Row> rows = rows(3);
+    replay();
+    SearchResultCache cache = new SearchResultCache();
+    String[] sites = new String[] { "/sites/" };
+    String[] messages = new String[] { "/_user/message" };
+    long[] stale = cache.getGenerations(sites);
+    cache.put("sites", new CachedResult(new RowIteratorImpl(rows), 3, 5, sites,
+        cache.getGenerations(sites), 60000L));
+    cache.put("messages", new CachedResult(new RowIteratorImpl(rows), 3, 5, messages,
+        cache.getGenerations(messages), 60000L));
+
+    // a sibling with the same prefix, and the parent of a root, are not under the root.
+    cache.invalidate("/sitesmap");
+    cache.invalidate("/_user");
+    assertNotNull(cache.get("sites"));
+    assertNotNull(cache.get("messages"));
+
+    cache.invalidate("/sites");
+    assertNull(cache.get("sites"));
+    assertNotNull(cache.get("messages"));
+    cache.invalidate("/_user/message/a/b/c");
+    assertNull(cache.get("messages"));
+
+    // a change while the query ran drops the result it produced.
+    cache.put("sites", new CachedResult(new RowIteratorImpl(rows), 3, 5, sites, stale,
+        60000L));
+    assertNull(cache.get("sites"));
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    List<Row> rows = rows(1);
+    replay();
+    SearchResultCache cache = new SearchResultCache();
+    cache.put("k", new CachedResult(new RowIteratorImpl(rows), 1, 5, null, null, -1));
+    assertNull(cache.get("k"));
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    List<Row> rows = rows(1);
+    replay();
+    SearchResultCache cache = new SearchResultCache(2);
+    for (int i = 0; i < 5; i++) {
+      cache.put("k" + i, new CachedResult(new RowIteratorImpl(rows), 1, 5, null, null,
+          60000L));
+    }
+    assertEquals(2, cache.size());
+  }
+}
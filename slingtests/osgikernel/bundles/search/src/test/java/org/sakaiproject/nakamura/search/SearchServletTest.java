@@ -2,6 +2,7 @@ package org.sakaiproject.nakamura.search;
 
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_CURSOR;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_BATCHRESULTPROCESSOR;
@@ -106,6 +107,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(request.getRemoteUser()).andReturn("admin");
     expect(request.getResource()).andReturn(resource);
     expect(request.getRequestParameter(PARAMS_PAGE)).andReturn(null).anyTimes();
+    expect(request.getRequestParameter(PARAMS_CURSOR)).andReturn(null).anyTimes();
     addStringRequestParameter(request, "items", "25");
     addStringRequestParameter(request, "q", "foo");
     
@@ -187,6 +189,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(request.getResource()).andReturn(resource);
     expect(request.getRemoteUser()).andReturn("bob").anyTimes();
     expect(request.getRequestParameter(PARAMS_PAGE)).andReturn(null).anyTimes();
+    expect(request.getRequestParameter(PARAMS_CURSOR)).andReturn(null).anyTimes();
     expect(resourceResolver.adaptTo(Session.class)).andReturn(session).anyTimes();
     expect(request.getResourceResolver()).andReturn(resourceResolver).anyTimes();
     addStringRequestParameter(request, "items", itemCount);
@@ -237,6 +240,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(session.getWorkspace()).andReturn(workspace);
 
     expect(queryNode.getSession()).andReturn(session);
+    expect(queryNode.getPath()).andReturn("/var/search/test").anyTimes();
 
     return queryNode;
   }
@@ -61,6 +61,7 @@ public class NodeSearchBatchResultProcessorTest extends AbstractEasyMockTest {
         .anyTimes();
     EasyMock.expect(row.getValue("jcr:path")).andReturn(value).anyTimes();
     EasyMock.expect(value.getString()).andReturn("/test").anyTimes();
+    EasyMock.expect(session.itemExists("/test")).andReturn(true).anyTimes();
     EasyMock.expect(session.getItem("/test")).andReturn(node).anyTimes();
     
     EasyMock.expect(iterator.hasNext()).andReturn(true);
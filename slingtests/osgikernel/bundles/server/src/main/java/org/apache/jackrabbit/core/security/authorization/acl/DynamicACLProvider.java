@@ -18,7 +18,6 @@
 package org.apache.jackrabbit.core.security.authorization.acl;
 
 import org.apache.commons.collections.iterators.IteratorChain;
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.Authorizable;
@@ -27,9 +26,12 @@ import org.apache.jackrabbit.core.DynamicSecurityManager;
 import org.apache.jackrabbit.core.NodeImpl;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
 import org.apache.jackrabbit.core.security.authorization.AccessControlConstants;
 import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
 import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
+import org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic.StaticPrincipalCache;
+import org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic.StaticPrincipalCache.PrincipalType;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,10 +40,12 @@ import java.security.Principal;
 import java.security.acl.Group;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.NodeIterator;
@@ -49,6 +53,10 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
 import javax.jcr.security.AccessControlEntry;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
@@ -59,18 +67,49 @@ import javax.jcr.security.Privilege;
 public class DynamicACLProvider extends ACLProvider {
 
   private static final Logger LOG = LoggerFactory.getLogger(DynamicACLProvider.class);
+  /**
+   * The maximum number of ACL nodes held in the entry cache before it is emptied.
+   */
+  private static final int MAX_CACHED_ACLS = 10000;
+  /**
+   * Node types whose changes invalidate the ACL entry cache, the ACL and ACE nodes, and
+   * access controlled nodes for the removal of a policy.
+   */
+  private static final String[] ACL_NODE_TYPES = new String[] { "rep:ACL", "rep:ACE",
+      "rep:AccessControllable" };
   private String userId;
   private DynamicPrincipalManager dynamicPrincipalManager;
-  private LRUMap staticPrincipals = new LRUMap(1000);
+  private StaticPrincipalCache staticPrincipals;
   private NodeId rootNodeId;
+  /**
+   * The parsed entries of each ACL node, keyed by the id of the rep:policy node. The
+   * entries do not depend on the user, so they are shared by every session.
+   */
+  private Map<NodeId, List<CachedEntry>> aclEntryCache = new ConcurrentHashMap<NodeId, List<CachedEntry>>();
+  /**
+   * Incremented on every ACL change so that a load that overlapped a change is not cached.
+   */
+  private volatile int aclGeneration;
+  private ObservationManager observationManager;
+  private EventListener aclListener;
 
-  
 
   /**
    * @param dynamicPrincipalManager2
    */
   public DynamicACLProvider(DynamicPrincipalManager dynamicPrincipalManager) {
+    this(dynamicPrincipalManager, new StaticPrincipalCache());
+  }
+
+  /**
+   * @param dynamicPrincipalManager
+   * @param staticPrincipals
+   *          the principal cache, shared with the providers of other workspaces.
+   */
+  public DynamicACLProvider(DynamicPrincipalManager dynamicPrincipalManager,
+      StaticPrincipalCache staticPrincipals) {
     this.dynamicPrincipalManager = dynamicPrincipalManager;
+    this.staticPrincipals = staticPrincipals;
   }
 
   /**
@@ -85,6 +124,36 @@ public class DynamicACLProvider extends ACLProvider {
     super.init(systemSession, configuration);
     NodeImpl node = (NodeImpl) systemSession.getRootNode();
     rootNodeId = node.getNodeId();
+    // synchronous so the cache is invalid before the save that changed the ACL returns.
+    aclListener = new SynchronousEventListener() {
+      public void onEvent(EventIterator events) {
+        // ACL changes are rare compared to permission checks, so drop everything.
+        aclGeneration++;
+        aclEntryCache.clear();
+      }
+    };
+    observationManager = systemSession.getWorkspace().getObservationManager();
+    observationManager.addEventListener(aclListener, Event.NODE_ADDED | Event.NODE_REMOVED
+        | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED, node
+        .getPath(), true, null, ACL_NODE_TYPES, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.jackrabbit.core.security.authorization.acl.ACLProvider#close()
+   */
+  @Override
+  public void close() {
+    if (observationManager != null && aclListener != null) {
+      try {
+        observationManager.removeEventListener(aclListener);
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to remove ACL listener " + e.getMessage());
+      }
+    }
+    aclEntryCache.clear();
+    super.close();
   }
 
   /**
@@ -118,6 +187,11 @@ public class DynamicACLProvider extends ACLProvider {
     private final Collection<String> principalNames;
     private final List<AccessControlEntry> userAces = new ArrayList<AccessControlEntry>();
     private final List<AccessControlEntry> groupAces = new ArrayList<AccessControlEntry>();
+    /**
+     * Dynamic principal answers for this context node and user, so that a principal named
+     * in the ACLs of several ancestors is only resolved once.
+     */
+    private final Map<String, Boolean> resolvedPrincipals = new HashMap<String, Boolean>();
     private StringBuilder construct;
 
     private Entries(NodeImpl node, Collection<String> principalNames)
@@ -159,59 +233,32 @@ public class DynamicACLProvider extends ACLProvider {
         construct.append(":ACLNode:").append(aclNode.getPath());
         construct.append("\n");
       }
-      SessionImpl sImpl = (SessionImpl) aclNode.getSession();
-      PrincipalManager principalMgr = sImpl.getPrincipalManager();
-      AccessControlManager acMgr = sImpl.getAccessControlManager();
 
       // first collect aces present on the given aclNode.
       List<AccessControlEntry> gaces = new ArrayList<AccessControlEntry>();
       List<AccessControlEntry> uaces = new ArrayList<AccessControlEntry>();
 
-      NodeIterator itr = aclNode.getNodes();
-      while (itr.hasNext()) {
-        NodeImpl aceNode = (NodeImpl) itr.nextNode();
-
-        String principalName = aceNode.getProperty(
-            AccessControlConstants.P_PRINCIPAL_NAME).getString();
+      for (CachedEntry entry : getAclEntries(aclNode)) {
+        String principalName = entry.principalName;
         // only process aceNode if 'principalName' is contained in the given set
         // or the dynamicPrincialManager says the user has the principal.
 
         if (principalNames.contains(principalName)
-            || hasPrincipal(principalName, aclNode, contextNode, 
-                userId)) {
-          Principal princ = principalMgr.getPrincipal(principalName);
-
-          Value[] privValues = aceNode.getProperty(AccessControlConstants.P_PRIVILEGES)
-              .getValues();
-          Privilege[] privs = new Privilege[privValues.length];
+            || hasResolvedPrincipal(principalName, aclNode, contextNode)) {
           if ( LOG.isDebugEnabled() ) {
-            construct.append("[Matched,");
-            construct.append((princ instanceof Group)?"group,":"user,");
-            construct.append(aceNode
-                .isNodeType(AccessControlConstants.NT_REP_GRANT_ACE)?"grant,":"deny,").append(principalName);
-            for (int i = 0; i < privValues.length; i++) {
-              construct.append(",").append(privValues[i].getString());
-            }
-            construct.append("]\n");
-          }
-          for (int i = 0; i < privValues.length; i++) {
-            privs[i] = acMgr.privilegeFromName(privValues[i].getString());
+            construct.append("[Matched,").append(entry.description).append("]\n");
           }
-          // create a new ACEImpl (omitting validation check)
-          AccessControlEntry ace = new ACLTemplate.Entry(princ, privs, aceNode
-              .isNodeType(AccessControlConstants.NT_REP_GRANT_ACE), sImpl
-              .getValueFactory());
           // add it to the proper list (e.g. separated by principals)
           /**
            * NOTE: access control entries must be collected in reverse order in order to
            * assert proper evaluation.
            */
-          if (EveryonePrincipal.getInstance().getName().equals(princ.getName()) ) {
-            gaces.add(ace);
-          } else if (princ instanceof Group) {
-            gaces.add(0, ace);
+          if (entry.everyone) {
+            gaces.add(entry.ace);
+          } else if (entry.group) {
+            gaces.add(0, entry.ace);
           } else {
-            uaces.add(0, ace);
+            uaces.add(0, entry.ace);
           }
         } else if ( LOG.isDebugEnabled() ){
           construct.append("[Ignored,").append(principalName).append("]\n");
@@ -229,6 +276,21 @@ public class DynamicACLProvider extends ACLProvider {
       }
     }
 
+    /**
+     * @return true if the user has the principal at the context node, asking
+     *         {@link DynamicACLProvider#hasPrincipal(String, NodeImpl, NodeImpl, String)}
+     *         only the first time the principal is seen.
+     */
+    private boolean hasResolvedPrincipal(String principalName, NodeImpl aclNode,
+        NodeImpl contextNode) {
+      Boolean has = resolvedPrincipals.get(principalName);
+      if (has == null) {
+        has = hasPrincipal(principalName, aclNode, contextNode, userId);
+        resolvedPrincipals.put(principalName, has);
+      }
+      return has;
+    }
+
     @SuppressWarnings("unchecked")
     private Iterator<AccessControlEntry> iterator() {
       LOG.debug("User {} ACE {} ",userId,construct);
@@ -236,14 +298,97 @@ public class DynamicACLProvider extends ACLProvider {
     }
   }
 
+  /**
+   * Get the parsed entries of an ACL node, in document order, reading the ACE nodes,
+   * principals and privileges only the first time the ACL node is seen. An ACL with an
+   * entry for a principal that can not be resolved is not cached, so the entry is picked
+   * up once the principal is created.
+   *
+   * @param aclNode
+   *          the rep:policy node.
+   * @return the entries.
+   * @throws RepositoryException
+   */
+  protected List<CachedEntry> getAclEntries(NodeImpl aclNode) throws RepositoryException {
+    NodeId aclNodeId = aclNode.getNodeId();
+    List<CachedEntry> entries = aclEntryCache.get(aclNodeId);
+    if (entries != null) {
+      return entries;
+    }
+    int generation = aclGeneration;
+    SessionImpl sImpl = (SessionImpl) aclNode.getSession();
+    PrincipalManager principalMgr = sImpl.getPrincipalManager();
+    AccessControlManager acMgr = sImpl.getAccessControlManager();
+    entries = new ArrayList<CachedEntry>();
+    boolean resolved = true;
+    NodeIterator itr = aclNode.getNodes();
+    while (itr.hasNext()) {
+      NodeImpl aceNode = (NodeImpl) itr.nextNode();
+      String principalName = aceNode.getProperty(AccessControlConstants.P_PRINCIPAL_NAME)
+          .getString();
+      Principal princ = principalMgr.getPrincipal(principalName);
+      if (princ == null) {
+        LOG.debug("Ignoring ACE for unknown principal {} ", principalName);
+        resolved = false;
+        continue;
+      }
+      Value[] privValues = aceNode.getProperty(AccessControlConstants.P_PRIVILEGES)
+          .getValues();
+      Privilege[] privs = new Privilege[privValues.length];
+      for (int i = 0; i < privValues.length; i++) {
+        privs[i] = acMgr.privilegeFromName(privValues[i].getString());
+      }
+      boolean allow = aceNode.isNodeType(AccessControlConstants.NT_REP_GRANT_ACE);
+      // create a new ACEImpl (omitting validation check)
+      AccessControlEntry ace = new ACLTemplate.Entry(princ, privs, allow, sImpl
+          .getValueFactory());
+      StringBuilder description = new StringBuilder();
+      description.append((princ instanceof Group) ? "group," : "user,");
+      description.append(allow ? "grant," : "deny,").append(principalName);
+      for (int i = 0; i < privValues.length; i++) {
+        description.append(",").append(privValues[i].getString());
+      }
+      entries.add(new CachedEntry(principalName, ace, EveryonePrincipal.getInstance()
+          .getName().equals(princ.getName()), princ instanceof Group, description
+          .toString()));
+    }
+    if (resolved && generation == aclGeneration) {
+      if (aclEntryCache.size() >= MAX_CACHED_ACLS) {
+        aclEntryCache.clear();
+      }
+      aclEntryCache.put(aclNodeId, entries);
+    }
+    return entries;
+  }
+
+  /**
+   * An ACE read from an ACL node, ready to be matched against the principals of a user.
+   */
+  protected static class CachedEntry {
+    private final String principalName;
+    private final AccessControlEntry ace;
+    private final boolean everyone;
+    private final boolean group;
+    private final String description;
+
+    private CachedEntry(String principalName, AccessControlEntry ace, boolean everyone,
+        boolean group, String description) {
+      this.principalName = principalName;
+      this.ace = ace;
+      this.everyone = everyone;
+      this.group = group;
+      this.description = description;
+    }
+  }
+
   protected boolean hasPrincipal(String principalName, NodeImpl aclNode, NodeImpl contextNode,
        String userId) {
     /*
      * Principals that don't have a 'dynamic=true' property will not be resolved
-     * dynamically. We cache principals that are found not to be dynamic. The
-     * cache is never invalidated because it is assumed that principals will not
-     * be included in ACLs until their dynamic/static status has been set, and
-     * that setting will not be modified subsequently.
+     * dynamically, and names that are not authorizables at all are never held. Both are
+     * cached, as are dynamic principals, so that the user manager is only consulted the
+     * first time a name is seen. The cache is invalidated by authorizable events, so
+     * flipping a group to dynamic takes effect once the update event is delivered.
      */
     if ( LOG.isDebugEnabled()) {
       try {
@@ -252,31 +397,61 @@ public class DynamicACLProvider extends ACLProvider {
         LOG.warn(e1.getMessage(),e1);
       }
     }
-    if (staticPrincipals.containsKey(principalName)) {
+    PrincipalType type = staticPrincipals.get(principalName);
+    if (type == null) {
+      type = resolvePrincipalType(principalName, aclNode);
+      if (type == null) {
+        // unable to tell, don't cache and fall through to the dynamic principal manager.
+        type = PrincipalType.DYNAMIC;
+      } else {
+        staticPrincipals.put(principalName, type);
+      }
+    }
+    if (type == PrincipalType.STATIC) {
       LOG.debug("Principal {} is cached static - not resolving dynamically",principalName );
       return false;
+    } else if (type == PrincipalType.NOT_AUTHORIZABLE) {
+      LOG.debug("Principal {} is cached as not an authorizable",principalName );
+      return false;
     }
+    LOG.debug("Resolving dynamic principal {} ",principalName);
+    boolean has = dynamicPrincipalManager.hasPrincipalInContext(principalName, aclNode, contextNode, userId);
+    if ( LOG.isDebugEnabled() ) {
+      try {
+        LOG.debug("This user {} has principal {}  at {} : {} ", new Object[] {userId, principalName, contextNode.getPath(), has});
+      } catch (RepositoryException e) {
+        LOG.warn(e.getMessage(),e);
+      }
+    }
+    return has;
+  }
+
+  /**
+   * Look up whether a principal is static, dynamic or not an authorizable.
+   *
+   * @param principalName
+   * @param aclNode
+   * @return the type or null if the user manager could not be consulted.
+   */
+  private PrincipalType resolvePrincipalType(String principalName, NodeImpl aclNode) {
     Session session = aclNode.getSession();
     if (session instanceof JackrabbitSession) {
       JackrabbitSession jcrSession = (JackrabbitSession) session;
       try {
-        boolean dynamic = false;
         UserManager manager = jcrSession.getUserManager();
         Authorizable principal = manager.getAuthorizable(principalName);
         if ( principal == null ) {
-          return false;
+          LOG.debug("Found non authorizable principal {}. Caching ",principalName);
+          return PrincipalType.NOT_AUTHORIZABLE;
         } else if (principal.hasProperty("dynamic")) {
           Value[] dyn = principal.getProperty("dynamic");
           if (dyn != null && dyn.length > 0 && ("true".equals(dyn[0].getString()))) {
             LOG.debug("Found dynamic principal {} ",principalName);
-            dynamic = true;
+            return PrincipalType.DYNAMIC;
           }
         }
-        if (!dynamic) {
-          LOG.debug("Found static principal {}. Caching ",principalName);
-          staticPrincipals.put(principalName, true);
-          return false;
-        }
+        LOG.debug("Found static principal {}. Caching ",principalName);
+        return PrincipalType.STATIC;
       } catch (AccessDeniedException e) {
         LOG.error("Unable to determine group status", e);
       } catch (UnsupportedRepositoryOperationException e) {
@@ -285,16 +460,7 @@ public class DynamicACLProvider extends ACLProvider {
         LOG.error("Unable to access user manager", e);
       }
     }
-    LOG.debug("Resolving dynamic principal {} ",principalName);
-    boolean has = dynamicPrincipalManager.hasPrincipalInContext(principalName, aclNode, contextNode, userId);
-    if ( LOG.isDebugEnabled() ) {
-      try {
-        LOG.debug("This user {} has principal {}  at {} : {} ", new Object[] {userId, principalName, contextNode.getPath(), has});
-      } catch (RepositoryException e) {
-        LOG.warn(e.getMessage(),e);
-      }
-    }
-    return has;
+    return null;
   }
 
 }
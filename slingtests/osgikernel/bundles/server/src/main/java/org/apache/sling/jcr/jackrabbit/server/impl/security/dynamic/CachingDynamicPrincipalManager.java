@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic;
+
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.CacheableDynamicPrincipalManager;
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Wraps a {@link CacheableDynamicPrincipalManager} and reuses its answers for the TTL it
+ * declares, keyed by principal name, context node identifier and user id.
+ */
+public class CachingDynamicPrincipalManager implements DynamicPrincipalManager {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(CachingDynamicPrincipalManager.class);
+  private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private final CacheableDynamicPrincipalManager delegate;
+  private final ConcurrentMap<String, Resolution> resolutions = new ConcurrentHashMap<String, Resolution>();
+  private final int maxEntries;
+
+  /**
+   * @param delegate
+   *          the manager to cache answers for.
+   */
+  public CachingDynamicPrincipalManager(CacheableDynamicPrincipalManager delegate) {
+    this(delegate, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param delegate
+   *          the manager to cache answers for.
+   * @param maxEntries
+   *          the number of answers held before some are evicted.
+   */
+  public CachingDynamicPrincipalManager(CacheableDynamicPrincipalManager delegate,
+      int maxEntries) {
+    this.delegate = delegate;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager#hasPrincipalInContext(java.lang.String,
+   *      javax.jcr.Node, javax.jcr.Node, java.lang.String)
+   */
+  public boolean hasPrincipalInContext(String principalName, Node aclNode,
+      Node contextNode, String userId) {
+    long ttl = delegate.getCacheTtl(principalName);
+    if (ttl <= 0) {
+      return delegate.hasPrincipalInContext(principalName, aclNode, contextNode, userId);
+    }
+    String key;
+    try {
+      key = principalName + "\u0000" + contextNode.getIdentifier() + "\u0000" + userId;
+    } catch (RepositoryException e) {
+      LOG.debug("Unable to identify context node, not caching {} ", e.getMessage());
+      return delegate.hasPrincipalInContext(principalName, aclNode, contextNode, userId);
+    }
+    long now = System.currentTimeMillis();
+    Resolution resolution = resolutions.get(key);
+    if (resolution != null && resolution.expires > now) {
+      return resolution.has;
+    }
+    boolean has = delegate.hasPrincipalInContext(principalName, aclNode, contextNode,
+        userId);
+    if (resolutions.size() >= maxEntries) {
+      evict(now);
+    }
+    resolutions.put(key, new Resolution(has, now + ttl));
+    return has;
+  }
+
+  /**
+   * Drop expired answers, and if that frees nothing an arbitrary tenth of the rest.
+   */
+  private void evict(long now) {
+    for (Iterator<Resolution> i = resolutions.values().iterator(); i.hasNext();) {
+      if (i.next().expires <= now) {
+        i.remove();
+      }
+    }
+    int toEvict = resolutions.size() - (maxEntries - Math.max(1, maxEntries / 10));
+    for (Iterator<String> i = resolutions.keySet().iterator(); toEvict > 0 && i.hasNext(); toEvict--) {
+      i.next();
+      i.remove();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager#getMembersOf(java.lang.String)
+   */
+  public List<String> getMembersOf(String principalName) {
+    return delegate.getMembersOf(principalName);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager#getMembershipFor(java.lang.String)
+   */
+  public List<String> getMembershipFor(String principalName) {
+    return delegate.getMembershipFor(principalName);
+  }
+
+  /**
+   * An answer and the time it stops being valid.
+   */
+  private static class Resolution {
+    private final boolean has;
+    private final long expires;
+
+    private Resolution(boolean has, long expires) {
+      this.has = has;
+      this.expires = expires;
+    }
+  }
+}
@@ -17,8 +17,10 @@
  */
 package org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic;
 
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.CacheableDynamicPrincipalManager;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
 import org.osgi.util.tracker.ServiceTracker;
 
 import java.util.ArrayList;
@@ -108,6 +110,23 @@ public class DynamicPrincipalManagerFactoryImpl extends ServiceTracker implement
     };
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * Managers that declare their answers cacheable are tracked wrapped in a
+   * {@link CachingDynamicPrincipalManager}.
+   * 
+   * @see org.osgi.util.tracker.ServiceTracker#addingService(org.osgi.framework.ServiceReference)
+   */
+  @Override
+  public Object addingService(ServiceReference reference) {
+    Object service = super.addingService(reference);
+    if (service instanceof CacheableDynamicPrincipalManager) {
+      return new CachingDynamicPrincipalManager((CacheableDynamicPrincipalManager) service);
+    }
+    return service;
+  }
+
   /**
    * {@inheritDoc}
    * 
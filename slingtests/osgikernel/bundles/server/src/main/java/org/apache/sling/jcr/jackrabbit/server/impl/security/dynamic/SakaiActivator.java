@@ -18,6 +18,12 @@ package org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic;
 
 import org.apache.sling.jcr.jackrabbit.server.impl.Activator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
 
 /**
  * The <code>Activator</code> 
@@ -26,6 +32,8 @@ public class SakaiActivator extends Activator {
   
   
   private static DynamicPrincipalManagerFactoryImpl dynamicPrincipalManagerFactory;
+  private static StaticPrincipalCache staticPrincipalCache = new StaticPrincipalCache();
+  private ServiceRegistration staticPrincipalCacheRegistration;
 
   /**
    * {@inheritDoc}
@@ -40,7 +48,11 @@ public class SakaiActivator extends Activator {
           bundleContext);
     }
     dynamicPrincipalManagerFactory.open();
-    
+
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(EventConstants.EVENT_TOPIC, StaticPrincipalCache.TOPIC);
+    staticPrincipalCacheRegistration = bundleContext.registerService(EventHandler.class
+        .getName(), staticPrincipalCache, props);
   }
   
   
@@ -50,6 +62,11 @@ public class SakaiActivator extends Activator {
    */
   @Override
   public void stop(BundleContext arg0) {
+    if (staticPrincipalCacheRegistration != null) {
+      staticPrincipalCacheRegistration.unregister();
+      staticPrincipalCacheRegistration = null;
+    }
+    staticPrincipalCache.clear();
     if (dynamicPrincipalManagerFactory != null) {
       dynamicPrincipalManagerFactory.close();
       dynamicPrincipalManagerFactory = null;
@@ -63,5 +80,12 @@ public class SakaiActivator extends Activator {
     return dynamicPrincipalManagerFactory;
   }
 
+  /**
+   * @return the principal cache shared by the access control providers of all workspaces.
+   */
+  public static StaticPrincipalCache getStaticPrincipalCache() {
+    return staticPrincipalCache;
+  }
+
 
 }
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded, thread safe record of how principal names found in ACEs resolve, shared by
+ * the access control providers of every workspace. Entries are invalidated when the
+ * user manager reports a change to the authorizable.
+ */
+public class StaticPrincipalCache implements EventHandler {
+
+  /**
+   * The topics of the authorizable events fired by the user manager servlets.
+   */
+  public static final String TOPIC = "org/apache/sling/jackrabbit/usermanager/event/*";
+  /**
+   * The event property holding the principal name of the changed authorizable.
+   */
+  public static final String PRINCIPAL_NAME = "principal_name";
+
+  private static final Logger LOG = LoggerFactory.getLogger(StaticPrincipalCache.class);
+  private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  /**
+   * How a principal name resolves.
+   */
+  public static enum PrincipalType {
+    /**
+     * An authorizable without dynamic=true, membership is only that of the session.
+     */
+    STATIC(),
+    /**
+     * An authorizable with dynamic=true, resolved by the DynamicPrincipalManager.
+     */
+    DYNAMIC(),
+    /**
+     * Not an authorizable at all.
+     */
+    NOT_AUTHORIZABLE();
+  }
+
+  private final ConcurrentMap<String, PrincipalType> principals = new ConcurrentHashMap<String, PrincipalType>();
+  private final int maxEntries;
+
+  public StaticPrincipalCache() {
+    this(DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param maxEntries
+   *          the number of principal names held before some are evicted.
+   */
+  public StaticPrincipalCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @param principalName
+   * @return the cached type of the principal or null if it is not known.
+   */
+  public PrincipalType get(String principalName) {
+    return principals.get(principalName);
+  }
+
+  /**
+   * Record the type of a principal, evicting arbitrary entries when the cache is full.
+   *
+   * @param principalName
+   * @param type
+   */
+  public void put(String principalName, PrincipalType type) {
+    if (principals.size() >= maxEntries) {
+      // evict about a tenth, which entries go does not matter as they are cheap to reload.
+      int toEvict = Math.max(1, maxEntries / 10);
+      Iterator<String> keys = principals.keySet().iterator();
+      while (toEvict-- > 0 && keys.hasNext()) {
+        keys.next();
+        keys.remove();
+      }
+    }
+    principals.put(principalName, type);
+  }
+
+  /**
+   * @param principalName
+   *          the principal to forget.
+   */
+  public void invalidate(String principalName) {
+    principals.remove(principalName);
+  }
+
+  /**
+   * Forget all principals.
+   */
+  public void clear() {
+    principals.clear();
+  }
+
+  /**
+   * @return the number of principals cached.
+   */
+  public int size() {
+    return principals.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object principalName = event.getProperty(PRINCIPAL_NAME);
+    if (principalName == null) {
+      LOG.debug("Authorizable event {} without a principal, clearing all ", event.getTopic());
+      clear();
+    } else {
+      LOG.debug("Authorizable event {} invalidating {} ", event.getTopic(), principalName);
+      invalidate(String.valueOf(principalName));
+    }
+  }
+
+}
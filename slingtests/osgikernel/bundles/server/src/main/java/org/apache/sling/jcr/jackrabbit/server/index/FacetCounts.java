@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+/**
+ * A frequency count of terms backed by primitive arrays. Terms keep the order in which
+ * they were first counted and are addressed through an open addressing hash table, so
+ * counting does not box or allocate per increment.
+ */
+public class FacetCounts {
+
+    private String[] terms;
+    private int[] counts;
+    /**
+     * Hash slots holding the index of a term plus one, 0 marks an empty slot.
+     */
+    private int[] slots;
+    private int size;
+
+    public FacetCounts() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize
+     *            the number of distinct terms that is expected.
+     */
+    public FacetCounts(int expectedSize) {
+        int capacity = Math.max(4, expectedSize);
+        terms = new String[capacity];
+        counts = new int[capacity];
+        int slotCount = 8;
+        while (slotCount < capacity * 2) {
+            slotCount <<= 1;
+        }
+        slots = new int[slotCount];
+    }
+
+    /**
+     * Count a single occurrence of a term.
+     *
+     * @param term
+     */
+    public void increment(String term) {
+        add(term, 1);
+    }
+
+    /**
+     * Add a number of occurrences of a term.
+     *
+     * @param term
+     * @param count
+     */
+    public void add(String term, int count) {
+        int slot = findSlot(term);
+        int index = slots[slot] - 1;
+        if (index >= 0) {
+            counts[index] += count;
+            return;
+        }
+        if (size == terms.length) {
+            int capacity = terms.length * 2;
+            String[] newTerms = new String[capacity];
+            int[] newCounts = new int[capacity];
+            System.arraycopy(terms, 0, newTerms, 0, size);
+            System.arraycopy(counts, 0, newCounts, 0, size);
+            terms = newTerms;
+            counts = newCounts;
+        }
+        terms[size] = term;
+        counts[size] = count;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash();
+        } else {
+            slots[slot] = size;
+        }
+    }
+
+    /**
+     * @param term
+     * @return the count for the term, 0 if it has not been counted.
+     */
+    public int get(String term) {
+        int index = slots[findSlot(term)] - 1;
+        return index < 0 ? 0 : counts[index];
+    }
+
+    /**
+     * @return the number of distinct terms.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i
+     *            a position between 0 and {@link #size()}.
+     * @return the term at that position.
+     */
+    public String getTerm(int i) {
+        return terms[i];
+    }
+
+    /**
+     * @param i
+     *            a position between 0 and {@link #size()}.
+     * @return the count at that position.
+     */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    private int findSlot(String term) {
+        int mask = slots.length - 1;
+        int h = term.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (slots[slot] != 0 && !terms[slots[slot] - 1].equals(term)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        for (int i = 0; i < size; i++) {
+            slots[findSlot(terms[i])] = i + 1;
+        }
+    }
+}
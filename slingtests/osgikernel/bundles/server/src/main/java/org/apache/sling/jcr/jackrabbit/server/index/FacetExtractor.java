@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.query.lucene.DateField;
+import org.apache.jackrabbit.core.query.lucene.DoubleField;
+import org.apache.jackrabbit.core.query.lucene.FieldNames;
+import org.apache.jackrabbit.core.query.lucene.LongField;
+import org.apache.jackrabbit.core.query.lucene.ScoreNode;
+import org.apache.jackrabbit.core.query.lucene.ScoreNodeIterator;
+import org.apache.jackrabbit.core.query.lucene.SearchIndex;
+import org.apache.jackrabbit.core.query.lucene.Util;
+import org.apache.jackrabbit.core.security.AccessManager;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.conversion.DefaultNamePathResolver;
+import org.apache.jackrabbit.spi.commons.conversion.NamePathResolver;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+/**
+ * Counts the values of a set of properties over all the hits of a query, straight from
+ * the Lucene index. The hits are collected as document numbers and the property terms
+ * are walked once per property, so no JCR nodes are created along the way. Uses the same
+ * reflective access to the Jackrabbit search index as {@link TermCloudExtractor}.
+ * <p>
+ * The index holds long, double and date values in a sortable encoding and names with the
+ * namespace prefixes of the index, so the terms are decoded by the type of the property,
+ * which is read from the first node that is counted. Dates come back in UTC, where the
+ * nodes may hold them in another time zone. Properties of other types can not be decoded
+ * and are refused, as are properties whose values do not all decode as the same type.
+ * </p>
+ */
+public class FacetExtractor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FacetExtractor.class);
+
+    private static final FieldSelector UUID_ONLY = new FieldSelector() {
+        private static final long serialVersionUID = 1L;
+
+        public FieldSelectorResult accept(String fieldName) {
+            if (FieldNames.UUID.equals(fieldName)) {
+                return FieldSelectorResult.LOAD_AND_BREAK;
+            }
+            return FieldSelectorResult.NO_LOAD;
+        }
+    };
+
+    private SearchIndex searchIndex;
+    private SessionImpl session;
+
+    /**
+     * @param queryManager
+     *            the query manager of the session the query was executed with.
+     * @param session
+     *            the session the query was executed with.
+     * @throws IllegalArgumentException
+     *             if the query manager or session are not backed by a Jackrabbit search
+     *             index.
+     */
+    public FacetExtractor(QueryManager queryManager, Session session) {
+        try {
+            searchIndex = TermCloudExtractor.readFields(queryManager, "searchMgr", "handler");
+        } catch (Exception e) {
+            LOGGER.debug("No search index behind " + queryManager.getClass(), e);
+        }
+        if (searchIndex == null || !(session instanceof SessionImpl)) {
+            throw new IllegalArgumentException(
+                    "Failed to get the search index from Query Manager, which should have been a QueryManagerImpl, but was "
+                            + queryManager.getClass());
+        }
+        this.session = (SessionImpl) session;
+    }
+
+    /**
+     * Count the values of each of the properties over all the hits of a query.
+     * 
+     * @param result
+     *            the result of the query, the rows of which have not been read yet.
+     * @param properties
+     *            the JCR names of the properties to count.
+     * @param children
+     *            if true the readable descendants of the hits are counted as well.
+     * @return a {@link FacetCounts} for each property, in the same order as the
+     *         properties.
+     * @throws IllegalArgumentException
+     *             if the result was not produced by a Jackrabbit search index or the values
+     *             of a property can not be decoded from the index.
+     * @throws RepositoryException
+     */
+    public FacetCounts[] count(QueryResult result, String[] properties, boolean children)
+            throws RepositoryException {
+        ScoreNodeIterator scoreNodes;
+        try {
+            scoreNodes = TermCloudExtractor.readFields(result.getRows(), "scoreNodes");
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Failed to get the hits from " + result.getClass());
+        }
+        IndexReader reader = getIndexReader();
+        try {
+            BitSet docs = new BitSet(reader.maxDoc());
+            while (scoreNodes.hasNext()) {
+                ScoreNode[] sn = scoreNodes.nextScoreNodes();
+                if (sn != null && sn.length > 0 && sn[0] != null) {
+                    int doc = getDoc(reader, sn[0].getNodeId().toString());
+                    if (doc >= 0) {
+                        docs.set(doc);
+                    }
+                }
+            }
+            if (children) {
+                addDescendants(reader, docs);
+            }
+            FacetCounts[] facets = new FacetCounts[properties.length];
+            for (int i = 0; i < properties.length; i++) {
+                facets[i] = countProperty(reader, docs, properties[i]);
+            }
+            return facets;
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to count facets " + e.getMessage(), e);
+        } finally {
+            try {
+                Util.closeOrRelease(reader);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to release index reader " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Walks the terms of a property in document order and counts those that belong to
+     * the set of documents.
+     */
+    private FacetCounts countProperty(IndexReader reader, BitSet docs, String property)
+            throws IOException, RepositoryException {
+        FacetCounts counts = new FacetCounts();
+        String prefix = FieldNames.createNamedValue(getIndexFieldName(property), "");
+        int[] docBuffer = new int[64];
+        int[] freqBuffer = new int[64];
+        int type = PropertyType.UNDEFINED;
+        TermEnum terms = reader.terms(new Term(FieldNames.PROPERTIES, prefix));
+        TermDocs termDocs = reader.termDocs();
+        try {
+            do {
+                Term term = terms.term();
+                if (term == null || !FieldNames.PROPERTIES.equals(term.field())
+                        || !term.text().startsWith(prefix)) {
+                    break;
+                }
+                int count = 0;
+                int first = -1;
+                termDocs.seek(terms);
+                int n;
+                while ((n = termDocs.read(docBuffer, freqBuffer)) > 0) {
+                    for (int i = 0; i < n; i++) {
+                        if (docs.get(docBuffer[i])) {
+                            if (count++ == 0) {
+                                first = docBuffer[i];
+                            }
+                        }
+                    }
+                }
+                if (count > 0) {
+                    if (type == PropertyType.UNDEFINED) {
+                        type = getPropertyType(reader, first, property);
+                    }
+                    counts.add(decode(term.text().substring(prefix.length()), type, property),
+                            count);
+                }
+            } while (terms.next());
+        } finally {
+            termDocs.close();
+            terms.close();
+        }
+        return counts;
+    }
+
+    /**
+     * @return the type of a property on the node of a document.
+     */
+    private int getPropertyType(IndexReader reader, int doc, String property)
+            throws IOException, RepositoryException {
+        String uuid = reader.document(doc, UUID_ONLY).get(FieldNames.UUID);
+        return session.getNodeByIdentifier(uuid).getProperty(property).getType();
+    }
+
+    /**
+     * Turns an index term back into the string value of the property, the same string
+     * {@link javax.jcr.Value#getString()} gives.
+     *
+     * @throws IllegalArgumentException
+     *             if the type can not be decoded or the term is not of that type.
+     */
+    private String decode(String text, int type, String property) throws RepositoryException {
+        try {
+            switch (type) {
+            case PropertyType.STRING:
+            case PropertyType.BOOLEAN:
+                return text;
+            case PropertyType.LONG:
+                return String.valueOf(LongField.stringToLong(text));
+            case PropertyType.DOUBLE:
+                return String.valueOf(DoubleField.stringToDouble(text));
+            case PropertyType.DATE:
+                Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+                c.setTimeInMillis(DateField.stringToTime(text));
+                return ISO8601.format(c);
+            case PropertyType.NAME:
+                NamePathResolver resolver = new DefaultNamePathResolver(searchIndex
+                        .getNamespaceMappings());
+                return session.getJCRName(resolver.getQName(text));
+            default:
+                throw new IllegalArgumentException("Can not count " + property + " of type "
+                        + PropertyType.nameFromValue(type) + " from the index");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Values of " + property + " are not all "
+                    + PropertyType.nameFromValue(type));
+        }
+    }
+
+    /**
+     * Adds the readable descendants of every document in the set, following the parent
+     * field of the index.
+     */
+    @SuppressWarnings("deprecation")
+    private void addDescendants(IndexReader reader, BitSet docs) throws IOException,
+            RepositoryException {
+        AccessManager accessManager = session.getAccessManager();
+        int[] frontier = new int[docs.cardinality()];
+        int frontierSize = 0;
+        for (int doc = docs.nextSetBit(0); doc >= 0; doc = docs.nextSetBit(doc + 1)) {
+            frontier[frontierSize++] = doc;
+        }
+        TermDocs termDocs = reader.termDocs();
+        try {
+            while (frontierSize > 0) {
+                int doc = frontier[--frontierSize];
+                Document document = reader.document(doc, UUID_ONLY);
+                termDocs.seek(new Term(FieldNames.PARENT, document.get(FieldNames.UUID)));
+                while (termDocs.next()) {
+                    int child = termDocs.doc();
+                    if (docs.get(child)) {
+                        continue;
+                    }
+                    String uuid = reader.document(child, UUID_ONLY).get(FieldNames.UUID);
+                    if (!accessManager.isGranted(new NodeId(uuid), AccessManager.READ)) {
+                        continue;
+                    }
+                    docs.set(child);
+                    if (frontierSize == frontier.length) {
+                        int[] grown = new int[frontier.length * 2 + 1];
+                        System.arraycopy(frontier, 0, grown, 0, frontierSize);
+                        frontier = grown;
+                    }
+                    frontier[frontierSize++] = child;
+                }
+            }
+        } finally {
+            termDocs.close();
+        }
+    }
+
+    /**
+     * @return the document number for a node id, -1 if the node is not in the index.
+     */
+    private int getDoc(IndexReader reader, String uuid) throws IOException {
+        TermDocs tDocs = reader.termDocs(new Term(FieldNames.UUID, uuid));
+        try {
+            if (tDocs.next()) {
+                return tDocs.doc();
+            }
+        } finally {
+            tDocs.close();
+        }
+        return -1;
+    }
+
+    /**
+     * Converts a JCR property name into the name it is indexed under, which uses the
+     * namespace prefixes of the index rather than those of the session.
+     */
+    private String getIndexFieldName(String property) throws RepositoryException {
+        String uri = "";
+        String localName = property;
+        int colon = property.indexOf(':');
+        if (colon > 0) {
+            uri = session.getNamespaceURI(property.substring(0, colon));
+            localName = property.substring(colon + 1);
+        }
+        Name name = NameFactoryImpl.getInstance().create(uri, localName);
+        NamePathResolver resolver = new DefaultNamePathResolver(searchIndex
+                .getNamespaceMappings());
+        return resolver.getJCRName(name);
+    }
+
+    /**
+     * The index reader of the search index is not public, so it is opened the same way
+     * the rest of the index internals are reached.
+     */
+    private IndexReader getIndexReader() throws RepositoryException {
+        Class<?> c = searchIndex.getClass();
+        while (c != null) {
+            try {
+                Method m = c.getDeclaredMethod("getIndexReader");
+                m.setAccessible(true);
+                return (IndexReader) m.invoke(searchIndex);
+            } catch (NoSuchMethodException e) {
+                c = c.getSuperclass();
+            } catch (Exception e) {
+                throw new RepositoryException("Failed to open index reader " + e.getMessage(), e);
+            }
+        }
+        throw new RepositoryException("No index reader on " + searchIndex.getClass());
+    }
+}
@@ -27,14 +27,17 @@ public class QueryHitsExtractor {
 
   public QueryHitsExtractor(QueryResult result) {
     this.result = getSingleColumnQueryResult(result);
-    if (result == null) {
+    if (this.result == null) {
       throw new IllegalArgumentException(
           "Failed to get the QueryHits from this result.");
     }
   }
 
   private SingleColumnQueryResult getSingleColumnQueryResult(QueryResult result) {
-    return ((SingleColumnQueryResult) result);
+    if (result instanceof SingleColumnQueryResult) {
+      return (SingleColumnQueryResult) result;
+    }
+    return null;
   }
 
   /**
@@ -63,22 +63,37 @@ public class TermCloudExtractor {
      * @param queryManager
      * @return
      */
-    @SuppressWarnings("unchecked")
     protected <T> T adaptTo(Object startObject, String... fieldPath) {
-        Object currentObject = startObject;
         try {
-            for (String field : fieldPath) {
-                Field nextField = currentObject.getClass().getDeclaredField(field);
-                nextField.setAccessible(true);
-                currentObject = nextField.get(currentObject);
-            }
-            return (T) currentObject;
+            return TermCloudExtractor.<T> readFields(startObject, fieldPath);
         } catch (Exception e) {
             LOGGER.error(e.getMessage(), e);
         }
         return null;
     }
 
+    /**
+     * Follows a path of private fields starting at an object.
+     * 
+     * @param startObject
+     * @param fieldPath
+     * @return the value of the last field in the path.
+     * @throws NoSuchFieldException
+     *             if one of the fields does not exist on the object it is read from.
+     * @throws IllegalAccessException
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T readFields(Object startObject, String... fieldPath)
+            throws NoSuchFieldException, IllegalAccessException {
+        Object currentObject = startObject;
+        for (String field : fieldPath) {
+            Field nextField = currentObject.getClass().getDeclaredField(field);
+            nextField.setAccessible(true);
+            currentObject = nextField.get(currentObject);
+        }
+        return (T) currentObject;
+    }
+
     public void add(Node node) throws RepositoryException {
         try {
             Term idTerm = new Term(FieldNames.UUID, node.getIdentifier().toString());
@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.security.dynamic;
+
+/**
+ * A DynamicPrincipalManager whose answers to
+ * {@link DynamicPrincipalManager#hasPrincipalInContext(String, javax.jcr.Node, javax.jcr.Node, String)}
+ * may be reused for a while. Results are cached keyed by principal name, context node
+ * identifier and user id, so they must not depend on the ACL node.
+ */
+public interface CacheableDynamicPrincipalManager extends DynamicPrincipalManager {
+
+  /**
+   * @param principalName
+   *          the name of the principal being resolved.
+   * @return the number of milliseconds a result for the principal may be reused, 0 or less
+   *         if results for the principal must not be cached.
+   */
+  long getCacheTtl(String principalName);
+
+}
@@ -27,7 +27,10 @@ import javax.jcr.Node;
  */
 public interface DynamicPrincipalManager {
   /**
-   * Returns true if the current session has the principal in the current context.
+   * Returns true if the current session has the principal in the current context. The
+   * answer is reused for every ACL on the ancestors of the context node within one
+   * permission evaluation, implement {@link CacheableDynamicPrincipalManager} to allow it to
+   * be reused for longer.
    * 
    * @param principalName
    *          the name of the principal
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+package org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.CacheableDynamicPrincipalManager;
+import org.junit.Test;
+
+import java.util.List;
+
+import javax.jcr.Node;
+
+/**
+ *
+ */
+public class CachingDynamicPrincipalManagerTest {
+
+  private static class CountingManager implements CacheableDynamicPrincipalManager {
+    private int calls;
+    private long ttl;
+
+    private CountingManager(long ttl) {
+      this.ttl = ttl;
+    }
+
+    public boolean hasPrincipalInContext(String principalName, Node aclNode,
+        Node contextNode, String userId) {
+      calls++;
+      return "ieb".equals(userId);
+    }
+
+    public long getCacheTtl(String principalName) {
+      return ttl;
+    }
+
+    public List<String> getMembersOf(String principalName) {
+      return null;
+    }
+
+    public List<String> getMembershipFor(String principalName) {
+      return null;
+    }
+  }
+
+  @Test
+  public void testCachedPerContextAndUser() throws Exception {
+    Node row1 = createMock(Node.class);
+    expect(row1.getIdentifier()).andReturn("id1").anyTimes();
+    Node row2 = createMock(Node.class);
+    expect(row2.getIdentifier()).andReturn("id2").anyTimes();
+    replay(row1, row2);
+
+    CountingManager counting = new CountingManager(60000L);
+    CachingDynamicPrincipalManager manager = new CachingDynamicPrincipalManager(counting);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(manager.hasPrincipalInContext("owner", null, row1, "ieb"));
+      assertFalse(manager.hasPrincipalInContext("owner", null, row1, "other"));
+      assertTrue(manager.hasPrincipalInContext("owner", null, row2, "ieb"));
+    }
+    assertEquals(3, counting.calls);
+    verify(row1, row2);
+  }
+
+  @Test
+  public void testNotCacheable() throws Exception {
+    Node row1 = createMock(Node.class);
+    replay(row1);
+
+    CountingManager counting = new CountingManager(0);
+    CachingDynamicPrincipalManager manager = new CachingDynamicPrincipalManager(counting);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(manager.hasPrincipalInContext("owner", null, row1, "ieb"));
+    }
+    assertEquals(5, counting.calls);
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    CountingManager counting = new CountingManager(60000L);
+    CachingDynamicPrincipalManager manager = new CachingDynamicPrincipalManager(counting,
+        10);
+    Node row = createMock(Node.class);
+    expect(row.getIdentifier()).andReturn("id").anyTimes();
+    replay(row);
+    for (int i = 0; i < 100; i++) {
+      manager.hasPrincipalInContext("owner", null, row, "user" + i);
+    }
+    assertEquals(100, counting.calls);
+    manager.hasPrincipalInContext("owner", null, row, "user99");
+    assertEquals(100, counting.calls);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+package org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic.StaticPrincipalCache.PrincipalType;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ *
+ */
+public class StaticPrincipalCacheTest {
+
+  @Test
+  public void testBounded() {
+    StaticPrincipalCache cache = new StaticPrincipalCache(100);
+    for (int i = 0; i < 1000; i++) {
+      cache.put("p" + i, PrincipalType.STATIC);
+    }
+    assertTrue(cache.size() <= 100);
+    assertEquals(PrincipalType.STATIC, cache.get("p999"));
+  }
+
+  @Test
+  public void testInvalidatedByEvent() {
+    StaticPrincipalCache cache = new StaticPrincipalCache();
+    cache.put("g-course", PrincipalType.STATIC);
+    cache.put("nobody", PrincipalType.NOT_AUTHORIZABLE);
+
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(StaticPrincipalCache.PRINCIPAL_NAME, "g-course");
+    cache.handleEvent(new Event("org/apache/sling/jackrabbit/usermanager/event/update",
+        props));
+    assertNull(cache.get("g-course"));
+    assertEquals(PrincipalType.NOT_AUTHORIZABLE, cache.get("nobody"));
+
+    cache.handleEvent(new Event("org/apache/sling/jackrabbit/usermanager/event/unknown",
+        new Hashtable<String, Object>()));
+    assertNull(cache.get("nobody"));
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ *
+ */
+public class FacetCountsTest {
+
+    @Test
+    public void testCount() {
+        FacetCounts counts = new FacetCounts();
+        counts.increment("a");
+        counts.increment("b");
+        counts.increment("a");
+        counts.add("c", 10);
+        assertEquals(3, counts.size());
+        assertEquals(2, counts.get("a"));
+        assertEquals(1, counts.get("b"));
+        assertEquals(10, counts.get("c"));
+        assertEquals(0, counts.get("d"));
+    }
+
+    @Test
+    public void testOrder() {
+        FacetCounts counts = new FacetCounts();
+        counts.increment("z");
+        counts.increment("a");
+        counts.increment("z");
+        assertEquals("z", counts.getTerm(0));
+        assertEquals(2, counts.getCount(0));
+        assertEquals("a", counts.getTerm(1));
+        assertEquals(1, counts.getCount(1));
+    }
+
+    @Test
+    public void testGrow() {
+        FacetCounts counts = new FacetCounts(2);
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        for (int i = 0; i < 5000; i++) {
+            String term = "term" + (i % 1234);
+            counts.increment(term);
+            Integer c = expected.get(term);
+            expected.put(term, c == null ? 1 : c + 1);
+        }
+        assertEquals(expected.size(), counts.size());
+        for (int i = 0; i < counts.size(); i++) {
+            assertEquals(expected.get(counts.getTerm(i)).intValue(), counts.getCount(i));
+        }
+    }
+}
@@ -264,7 +264,9 @@ public interface SiteService {
   AbstractCollection<User> getMembers(Node site, int start, int nitems, Sort[] sort);
 
   /**
-   * Returns the number of declared members of a site
+   * Returns the number of declared members of a site. The count is kept by the service
+   * and brought up to date by join, unjoin and group membership events, so it is cheap
+   * enough to call for every site in a listing.
    * 
    * @param site
    *          the Site node
@@ -0,0 +1,474 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * The members of one site. The groups are those reached from the authorizables of the
+ * site, the users are those declared in the site or in any of those groups. Users are held
+ * in the order they were found and by id, first name and last name in sorted lists, so the
+ * count is a field and a page of members is read straight out of a list. Only ids and
+ * names are kept, the authorizables themselves are looked up for the page being returned
+ * with the session of the caller. The members are shared by every caller, so they must be
+ * read with an administrative session. That session is shared by all the sites and is
+ * only used while holding its monitor. Names are only read from the profiles the first
+ * time a page is sorted on them, counting the members of a site never reads a profile.
+ */
+public class SiteMembers {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SiteMembers.class);
+
+  /**
+   * The parent of users that are declared in the site itself.
+   */
+  private static final String SITE_PARENT = "";
+
+  private static final Comparator<Member> BY_ID = new MemberComparator(SortField.id);
+  private static final Comparator<Member> BY_FIRST_NAME = new MemberComparator(
+      SortField.firstName);
+  private static final Comparator<Member> BY_LAST_NAME = new MemberComparator(
+      SortField.lastName);
+
+  private final Set<String> siteAuthorizables = new HashSet<String>();
+  private final List<String> groups = new ArrayList<String>();
+  private final Set<String> groupIds = new HashSet<String>();
+  private final Map<String, Member> users = new HashMap<String, Member>();
+  private final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+  private final List<Member> inOrder = new ArrayList<Member>();
+  private final List<Member> byId = new ArrayList<Member>();
+  private final List<Member> byFirstName = new ArrayList<Member>();
+  private final List<Member> byLastName = new ArrayList<Member>();
+  private final Set<String> changed = new HashSet<String>();
+  private boolean loaded;
+  private boolean named;
+
+  /**
+   * Bring the members up to date, by walking the site the first time and by looking at
+   * the changed users after that.
+   * 
+   * @param site
+   *          the site node.
+   * @param session
+   *          the session to read profiles with.
+   * @param userManager
+   *          the user manager to resolve authorizables with.
+   * @throws RepositoryException
+   */
+  public synchronized void refresh(Node site, Session session, UserManager userManager)
+      throws RepositoryException {
+    if (!loaded) {
+      synchronized (session) {
+        load(site, session, userManager);
+      }
+    } else if (!changed.isEmpty()) {
+      synchronized (session) {
+        update(session, userManager);
+      }
+    }
+  }
+
+  /**
+   * Walk the groups of the site and collect all the users in them.
+   * 
+   * @param site
+   *          the site node.
+   * @param session
+   *          the session to read profiles with.
+   * @param userManager
+   *          the user manager to resolve authorizables with.
+   * @throws RepositoryException
+   */
+  private void load(Node site, Session session, UserManager userManager)
+      throws RepositoryException {
+    LinkedList<Group> toExpand = new LinkedList<Group>();
+    if (site.hasProperty(SiteService.AUTHORIZABLE)) {
+      Property property = site.getProperty(SiteService.AUTHORIZABLE);
+      Value[] values = property.getDefinition().isMultiple() ? property.getValues()
+          : new Value[] { property.getValue() };
+      for (Value v : values) {
+        String id = v.getString();
+        siteAuthorizables.add(id);
+        Authorizable a = userManager.getAuthorizable(id);
+        if (a instanceof Group) {
+          if (groupIds.add(a.getID())) {
+            groups.add(a.getID());
+            toExpand.add((Group) a);
+          }
+        } else if (a instanceof User) {
+          addParent((User) a, SITE_PARENT);
+        } else if (a == null) {
+          LOGGER.warn("Authorizable could not be resolved from id: {}", id);
+        } else {
+          LOGGER.warn("Cannot handle Authorizable {} of type {}", a, a.getClass());
+        }
+      }
+    } else {
+      LOGGER.info(
+          "Site ({}) does not have Authorizable property ({}) and thus has no memberships",
+          site.getPath(), SiteService.AUTHORIZABLE);
+    }
+    while (!toExpand.isEmpty()) {
+      Group group = toExpand.removeFirst();
+      for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
+        Authorizable a = igm.next();
+        if (a instanceof Group) {
+          if (groupIds.add(a.getID())) {
+            groups.add(a.getID());
+            toExpand.add((Group) a);
+          }
+        } else if (a instanceof User) {
+          addParent((User) a, group.getID());
+        }
+      }
+    }
+    Collections.sort(byId, BY_ID);
+    loaded = true;
+  }
+
+  /**
+   * Read the names of all the members from their profiles and sort them by name.
+   * 
+   * @param session
+   *          the session to read profiles with.
+   * @param userManager
+   *          the user manager to resolve the members with.
+   * @throws RepositoryException
+   */
+  private void loadNames(Session session, UserManager userManager)
+      throws RepositoryException {
+    for (Member member : byId) {
+      Authorizable a = userManager.getAuthorizable(member.id);
+      if (a instanceof User) {
+        member.setNames((User) a, session);
+      }
+    }
+    byFirstName.addAll(byId);
+    byLastName.addAll(byId);
+    Collections.sort(byFirstName, BY_FIRST_NAME);
+    Collections.sort(byLastName, BY_LAST_NAME);
+    named = true;
+  }
+
+  private void addParent(User user, String parent) throws RepositoryException {
+    Set<String> p = parents.get(user.getID());
+    if (p == null) {
+      p = new HashSet<String>();
+      parents.put(user.getID(), p);
+      Member member = new Member(user.getID());
+      users.put(member.id, member);
+      inOrder.add(member);
+      byId.add(member);
+    }
+    p.add(parent);
+  }
+
+  /**
+   * @return true once the site has been walked.
+   */
+  public synchronized boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * @param id
+   * @return true if the authorizable is one of the groups of the site.
+   */
+  public synchronized boolean hasGroup(String id) {
+    return groupIds.contains(id);
+  }
+
+  /**
+   * @param id
+   * @return true if the user is a member of the site.
+   */
+  public synchronized boolean hasUser(String id) {
+    return users.containsKey(id);
+  }
+
+  /**
+   * Mark a user whose membership or profile may have changed, it is looked at again on
+   * the next {@link #refresh(Node, Session, UserManager)}.
+   * 
+   * @param id
+   */
+  public synchronized void changed(String id) {
+    changed.add(id);
+  }
+
+  /**
+   * Look at the users that were marked as changed again and move them into, within or out
+   * of the sorted lists.
+   * 
+   * @param session
+   * @param userManager
+   * @throws RepositoryException
+   */
+  private void update(Session session, UserManager userManager)
+      throws RepositoryException {
+    for (String id : changed) {
+      remove(id);
+      Authorizable a = userManager.getAuthorizable(id);
+      if (!(a instanceof User)) {
+        continue;
+      }
+      Set<String> p = new HashSet<String>();
+      if (siteAuthorizables.contains(id)) {
+        p.add(SITE_PARENT);
+      }
+      for (Iterator<Group> i = a.declaredMemberOf(); i.hasNext();) {
+        String groupId = i.next().getID();
+        if (groupIds.contains(groupId)) {
+          p.add(groupId);
+        }
+      }
+      if (!p.isEmpty()) {
+        Member member = new Member(id);
+        parents.put(id, p);
+        users.put(id, member);
+        inOrder.add(member);
+        insert(byId, member, BY_ID);
+        if (named) {
+          member.setNames((User) a, session);
+          insert(byFirstName, member, BY_FIRST_NAME);
+          insert(byLastName, member, BY_LAST_NAME);
+        }
+      }
+    }
+    changed.clear();
+  }
+
+  private void remove(String id) {
+    Member member = users.remove(id);
+    parents.remove(id);
+    if (member != null) {
+      inOrder.remove(member);
+      byId.remove(Collections.binarySearch(byId, member, BY_ID));
+      if (named) {
+        byFirstName.remove(Collections.binarySearch(byFirstName, member, BY_FIRST_NAME));
+        byLastName.remove(Collections.binarySearch(byLastName, member, BY_LAST_NAME));
+      }
+    }
+  }
+
+  private void insert(List<Member> list, Member member, Comparator<Member> comparator) {
+    int i = Collections.binarySearch(list, member, comparator);
+    list.add(i < 0 ? -i - 1 : i, member);
+  }
+
+  /**
+   * @return the number of users in the site.
+   */
+  public synchronized int getUserCount() {
+    return users.size();
+  }
+
+  /**
+   * @return the number of groups in the site.
+   */
+  public synchronized int getGroupCount() {
+    return groups.size();
+  }
+
+  /**
+   * @param start
+   * @param nitems
+   * @return the ids of a page of groups, in the order they were found.
+   */
+  public synchronized List<String> getGroupIds(int start, int nitems) {
+    return page(groups, start, nitems, false);
+  }
+
+  /**
+   * @return the ids of all the groups, in the order they were found.
+   */
+  public synchronized List<String> getGroupIds() {
+    return new ArrayList<String>(groups);
+  }
+
+  /**
+   * Get a page of user ids. A single sort is read from the sorted lists, a compound sort
+   * has to sort a copy of the users.
+   * 
+   * @param start
+   * @param nitems
+   * @param sort
+   *          the order, the order the users were found in if null or empty.
+   * @param session
+   *          the session to read profiles with, if the sort needs names.
+   * @param userManager
+   *          the user manager to resolve members with, if the sort needs names.
+   * @return the ids of the users in the page.
+   * @throws RepositoryException
+   */
+  public synchronized List<String> getUserIds(int start, int nitems, Sort[] sort,
+      Session session, UserManager userManager) throws RepositoryException {
+    if (!named && sortsOnName(sort)) {
+      synchronized (session) {
+        loadNames(session, userManager);
+      }
+    }
+    List<Member> members = inOrder;
+    boolean descending = false;
+    if (sort != null && sort.length > 1) {
+      members = new ArrayList<Member>(byId);
+      Collections.sort(members, new CompoundComparator(sort));
+    } else if (sort != null && sort.length == 1) {
+      switch (sort[0].getField()) {
+      case firstName:
+        members = byFirstName;
+        break;
+      case lastName:
+        members = byLastName;
+        break;
+      default:
+        members = byId;
+      }
+      descending = SortOrder.desc.equals(sort[0].getOrder());
+    }
+    List<String> ids = new ArrayList<String>();
+    for (Member m : page(members, start, nitems, descending)) {
+      ids.add(m.id);
+    }
+    return ids;
+  }
+
+  private boolean sortsOnName(Sort[] sort) {
+    if (sort != null) {
+      for (Sort s : sort) {
+        if (!SortField.id.equals(s.getField())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private <T> List<T> page(List<T> list, int start, int nitems, boolean descending) {
+    int size = list.size();
+    int from = Math.max(0, Math.min(start, size));
+    int to = (int) Math.min((long) from + Math.max(0, nitems), size);
+    List<T> page = new ArrayList<T>(to - from);
+    for (int i = from; i < to; i++) {
+      page.add(list.get(descending ? size - 1 - i : i));
+    }
+    return page;
+  }
+
+  /**
+   * The id and sort names of a user.
+   */
+  private static class Member {
+    private final String id;
+    private String firstName = "";
+    private String lastName = "";
+
+    private Member(String id) {
+      this.id = id;
+    }
+
+    private void setNames(User user, Session session) throws RepositoryException {
+      String profilePath = PersonalUtils.getProfilePath(user);
+      Node profileNode = null;
+      try {
+        profileNode = (Node) session.getItem(profilePath);
+      } catch (PathNotFoundException e) {
+        LOGGER.warn("User {} does not have a profile at {} ", user.getID(), profilePath);
+      }
+      UserKey key = new UserKey(user, profileNode);
+      firstName = key.getFirstName() == null ? "" : key.getFirstName();
+      lastName = key.getLastName() == null ? "" : key.getLastName();
+    }
+
+    private String get(SortField field) {
+      switch (field) {
+      case firstName:
+        return firstName;
+      case lastName:
+        return lastName;
+      default:
+        return id;
+      }
+    }
+  }
+
+  /**
+   * Orders on one field and then on id, so every member has a single place in a list.
+   */
+  private static class MemberComparator implements Comparator<Member> {
+    private final SortField field;
+
+    private MemberComparator(SortField field) {
+      this.field = field;
+    }
+
+    public int compare(Member o1, Member o2) {
+      int i = o1.get(field).compareTo(o2.get(field));
+      return i == 0 ? o1.id.compareTo(o2.id) : i;
+    }
+  }
+
+  /**
+   * Orders on each of the sorts in turn.
+   */
+  private static class CompoundComparator implements Comparator<Member> {
+    private final Sort[] sort;
+
+    private CompoundComparator(Sort[] sort) {
+      this.sort = sort;
+    }
+
+    public int compare(Member o1, Member o2) {
+      for (Sort s : sort) {
+        int i = o1.get(s.getField()).compareTo(o2.get(s.getField()));
+        if (i != 0) {
+          return SortOrder.desc.equals(s.getOrder()) ? -i : i;
+        }
+      }
+      return 0;
+    }
+  }
+}
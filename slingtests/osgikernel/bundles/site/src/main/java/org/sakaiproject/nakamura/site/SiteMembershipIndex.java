@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.site.SiteService.SiteEvent;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Holds the {@link SiteMembers} of the sites that have been asked for. A site is walked
+ * once, after that site and authorizable events mark the users that joined or left one of
+ * its groups, and only those users are looked at again on the next request. Changes that
+ * can not be narrowed down to a user, such as a group joining a group or the site node
+ * changing, drop the site so it is walked again. The members are shared by every caller,
+ * so they must be read with an administrative session.
+ */
+public class SiteMembershipIndex implements EventHandler {
+
+  /**
+   * The topics of the events that change membership.
+   */
+  public static final String[] TOPICS = { SiteEvent.TOPIC + "*",
+      AuthorizableEvent.TOPIC + "*", "org/apache/sling/api/resource/Resource/*" };
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SiteMembershipIndex.class);
+  private static final String PATH_PROPERTY = "path";
+  private static final String REMOVED_TOPIC = "org/apache/sling/api/resource/Resource/REMOVED";
+  private static final int DEFAULT_MAX_SITES = 1000;
+
+  private final Map<String, SiteMembers> sites;
+
+  public SiteMembershipIndex() {
+    this(DEFAULT_MAX_SITES);
+  }
+
+  /**
+   * @param maxSites
+   *          the number of sites held, the least recently used is dropped first.
+   */
+  public SiteMembershipIndex(final int maxSites) {
+    sites = new LinkedHashMap<String, SiteMembers>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SiteMembers> eldest) {
+        return size() > maxSites;
+      }
+    };
+  }
+
+  /**
+   * Get the members of a site, up to date with the events received so far.
+   * 
+   * @param site
+   *          the site node, read with the administrative session.
+   * @param session
+   *          an administrative session to read profiles with.
+   * @param userManager
+   *          the user manager of the administrative session.
+   * @return the members of the site.
+   * @throws RepositoryException
+   */
+  public SiteMembers getMembers(Node site, Session session, UserManager userManager)
+      throws RepositoryException {
+    String path = site.getPath();
+    SiteMembers members;
+    synchronized (sites) {
+      members = sites.get(path);
+      if (members == null) {
+        members = new SiteMembers();
+        sites.put(path, members);
+      }
+    }
+    members.refresh(site, session, userManager);
+    return members;
+  }
+
+  /**
+   * @return the number of sites held.
+   */
+  public int size() {
+    synchronized (sites) {
+      return sites.size();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (topic.startsWith(SiteEvent.TOPIC)) {
+      Object group = event.getProperty(SiteEvent.GROUP);
+      Object user = event.getProperty(SiteEvent.USER);
+      if (group instanceof Authorizable && user != null) {
+        try {
+          userChanged(String.valueOf(user), ((Authorizable) group).getID());
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to read group of site event, dropping all sites {} ", e
+              .getMessage());
+          clear();
+        }
+      }
+    } else if (topic.startsWith(AuthorizableEvent.TOPIC)) {
+      handleAuthorizableEvent(event);
+    } else {
+      Object path = event.getProperty(PATH_PROPERTY);
+      if (path != null) {
+        siteChanged(String.valueOf(path), REMOVED_TOPIC.equals(topic));
+      }
+    }
+  }
+
+  private void handleAuthorizableEvent(Event event) {
+    Object operation = event.getProperty(AuthorizableEvent.OPERATION);
+    String principal = (String) event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    if (!(operation instanceof Operation) || principal == null) {
+      clear();
+      return;
+    }
+    switch ((Operation) operation) {
+    case join:
+    case part:
+      // A user joining or leaving a group carries the user, a group joining or leaving
+      // does not, and could bring any number of users with it.
+      Object user = event.getProperty(AuthorizableEvent.USER);
+      if (user instanceof Authorizable) {
+        try {
+          userChanged(((Authorizable) user).getID(), principal);
+          return;
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to read user of group event {} ", e.getMessage());
+        }
+      }
+      groupChanged(principal);
+      break;
+    case update:
+    case delete:
+      groupChanged(principal);
+      for (SiteMembers members : getSites()) {
+        if (members.hasUser(principal)) {
+          members.changed(principal);
+        }
+      }
+      break;
+    case create:
+      break;
+    default:
+      clear();
+    }
+  }
+
+  /**
+   * A user joined or left a group, mark the user in every site that holds the group.
+   */
+  private void userChanged(String user, String group) {
+    for (SiteMembers members : getSites()) {
+      if (members.hasGroup(group)) {
+        members.changed(user);
+      }
+    }
+  }
+
+  /**
+   * The members of a group changed in a way that can not be followed, drop every site
+   * that holds the group.
+   */
+  private void groupChanged(String group) {
+    // the sites are looked at without holding the map, a site may be loading.
+    List<String> dropped = new ArrayList<String>();
+    for (Map.Entry<String, SiteMembers> e : getSiteMap().entrySet()) {
+      if (e.getValue().hasGroup(group)) {
+        dropped.add(e.getKey());
+      }
+    }
+    synchronized (sites) {
+      for (String path : dropped) {
+        sites.remove(path);
+      }
+    }
+  }
+
+  /**
+   * A node changed, if it is a site it is dropped since the site authorizables may have
+   * changed. If it was removed, the sites under it are dropped as well.
+   */
+  private void siteChanged(String path, boolean removed) {
+    synchronized (sites) {
+      if (!removed) {
+        sites.remove(path);
+        return;
+      }
+      String prefix = path.endsWith("/") ? path : path + "/";
+      for (Iterator<String> i = sites.keySet().iterator(); i.hasNext();) {
+        String site = i.next();
+        if (site.equals(path) || site.startsWith(prefix)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  private void clear() {
+    synchronized (sites) {
+      sites.clear();
+    }
+  }
+
+  private Map<String, SiteMembers> getSiteMap() {
+    synchronized (sites) {
+      return new HashMap<String, SiteMembers>(sites);
+    }
+  }
+
+  private List<SiteMembers> getSites() {
+    synchronized (sites) {
+      return new ArrayList<SiteMembers>(sites.values());
+    }
+  }
+}
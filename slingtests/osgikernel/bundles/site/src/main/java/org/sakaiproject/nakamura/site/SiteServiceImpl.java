@@ -28,8 +28,11 @@ import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.EventAdmin;
-import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.site.SiteException;
 import org.sakaiproject.nakamura.api.site.SiteService;
 import org.sakaiproject.nakamura.api.site.Sort;
@@ -40,6 +43,8 @@ import org.slf4j.LoggerFactory;
 
 import java.util.AbstractCollection;
 import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -84,9 +89,19 @@ public class SiteServiceImpl implements SiteService {
   public static final String DEFAULT_SITE = "/sites/default.html";
 
   /**
-   * The maximum size of any list before we truncate. The user is warned.
+   * The members of the sites, kept up to date from membership events. The index is shared
+   * by all callers, so it is only ever filled through an administrative session.
    */
-  private static final int MAXLISTSIZE = 10000;
+  private SiteMembershipIndex membershipIndex = new SiteMembershipIndex();
+
+  /**
+   * The administrative session the membership index is read with, opened on first use and
+   * held until the service is deactivated.
+   */
+  private Session indexSession;
+  private final Object indexSessionLock = new Object();
+
+  private ServiceRegistration membershipIndexRegistration;
 
   /**
    * The OSGi Event Admin Service.
@@ -449,19 +464,71 @@ public class SiteServiceImpl implements SiteService {
    */
   public Iterator<Group> getGroups(Node site, int start, int nitems, Sort[] sort)
       throws SiteException {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<GroupKey> comparitor = buildCompoundComparitor(sort);
-      List<GroupKey> sortedList = Lists.sortedCopy(membership.getGroups().keySet(), comparitor);
-      Iterator<GroupKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapGroups(Iterators.limit(sortedIterator, nitems));
+    try {
+      SiteMembers members = getIndexedMembers(site);
+      // the groups are resolved by the caller, leaving out those it can not see.
+      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
+      if (sort != null && sort.length > 0) {
+        // groups are few, so they are sorted as they are asked for.
+        List<GroupKey> groups = Lists.newArrayList();
+        for (Group group : getGroups(members.getGroupIds(), userManager)) {
+          groups.add(new GroupKey(group));
+        }
+        Comparator<GroupKey> comparitor = buildCompoundComparitor(sort);
+        List<GroupKey> sortedList = Lists.sortedCopy(groups, comparitor);
+        Iterator<GroupKey> sortedIterator = sortedList.listIterator(Math.min(start,
+            sortedList.size()));
+        return unwrapGroups(Iterators.limit(sortedIterator, nitems));
+      }
+
+      // no sort requested.
+      return getGroups(members.getGroupIds(start, nitems), userManager).iterator();
+    } catch (RepositoryException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
     }
+  }
 
-    // no sort requested.
+  /**
+   * Get the members of a site from the index, read with the administrative index session
+   * so the entries do not depend on who asked first. Callers look the ids up with their
+   * own session.
+   * 
+   * @param site
+   *          the site node, as seen by the caller.
+   * @return the members of the site.
+   * @throws RepositoryException
+   */
+  private SiteMembers getIndexedMembers(Node site) throws RepositoryException {
+    Session session = getIndexSession();
+    return membershipIndex.getMembers(site, session, AccessControlUtil
+        .getUserManager(session));
+  }
+
+  /**
+   * @return the administrative session of the membership index, logged in again only if
+   *         it has been closed.
+   * @throws RepositoryException
+   */
+  private Session getIndexSession() throws RepositoryException {
+    synchronized (indexSessionLock) {
+      if (indexSession == null || !indexSession.isLive()) {
+        indexSession = slingRepository.loginAdministrative(null);
+      }
+      return indexSession;
+    }
+  }
 
-    List<GroupKey> finalList = Lists.immutableList(membership.getGroups().keySet());
-    Iterator<GroupKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapGroups(Iterators.limit(unsortedIterator, nitems));
+  private List<Group> getGroups(List<String> ids, UserManager userManager)
+      throws RepositoryException {
+    List<Group> groups = Lists.newArrayList();
+    for (String id : ids) {
+      Authorizable a = userManager.getAuthorizable(id);
+      if (a instanceof Group) {
+        groups.add((Group) a);
+      }
+    }
+    return groups;
   }
 
   public Iterator<Group> unwrapGroups(final Iterator<GroupKey> underlying) {
@@ -488,26 +555,36 @@ public class SiteServiceImpl implements SiteService {
    *      int, org.sakaiproject.nakamura.api.site.Sort[])
    */
   public AbstractCollection<User> getMembers(Node site, int start, int nitems, Sort[] sort) {
-    MembershipTree membership = getMembershipTree(site);
-    if (sort != null && sort.length > 0) {
-      Comparator<UserKey> comparitor = buildCompoundComparitor(sort);
-      List<UserKey> sortedList = Lists.sortedCopy(membership.getUsers().keySet(), comparitor);
-      Iterator<UserKey> sortedIterator = sortedList.listIterator(start);
-      return returnCollection(sortedIterator, nitems, sortedList.size());
+    List<User> users = Lists.newArrayList();
+    int total = 0;
+    try {
+      SiteMembers members = getIndexedMembers(site);
+      Session session = getIndexSession();
+      List<String> ids = members.getUserIds(start, nitems, sort, session,
+          AccessControlUtil.getUserManager(session));
+      // Only the users on the page are looked up, by the caller, leaving out those it can
+      // not see.
+      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
+      for (String id : ids) {
+        Authorizable a = userManager.getAuthorizable(id);
+        if (a instanceof User) {
+          users.add((User) a);
+        }
+      }
+      total = members.getUserCount();
+    } catch (RepositoryException ex) {
+      // dont change this warn into {} form, doing so will prevent the exception being displayed.
+      LOGGER.warn("Failed to get the members of site ["+site+"] ", ex);
     }
-
-    // no sort requested.
-    List<UserKey> finalList = Lists.immutableList(membership.getUsers().keySet());
-    Iterator<UserKey> unsortedIterator = finalList.listIterator(start);
-    return returnCollection(unsortedIterator, nitems, finalList.size());
+    return returnCollection(users, total);
   }
 
-  private AbstractCollection<User> returnCollection(final Iterator<UserKey> iterator, final int nitems, final int totalSize) {
+  private AbstractCollection<User> returnCollection(final List<User> users, final int totalSize) {
     return new AbstractCollection<User>() {
 
       @Override
       public Iterator<User> iterator() {
-        return unwrapUsers(Iterators.limit(iterator, nitems));
+        return users.iterator();
       }
 
       @Override
@@ -517,92 +594,14 @@ public class SiteServiceImpl implements SiteService {
     };
   }
 
-  public Iterator<User> unwrapUsers(final Iterator<UserKey> underlying) {
-    return new Iterator<User>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
-
-      public User next() {
-        return underlying.next().getUser();
-      }
-
-      public void remove() {
-        underlying.remove();
-      }
-    };
-  }
-
   public int getMemberCount(Node site) {
-    return getMembershipTree(site).getUsers().size();
-  }
-
-  /**
-   * Builds a membership tree of users and groups for the site, because of the tree like
-   * nature of membership we may want to think of a more efficient way of performing this
-   * operation, however, there are no queries to perform this and it may be better to have
-   * this in memory. We are taking a google like approach to this operation, limiting the
-   * set to a practical size. If this become a real problem, then we might want to put the
-   * members of a site into a JPA mapped table, although that will require a tree cache
-   * invalidation scheme to keep upto date. Membership is derived not always declared.
-   * 
-   * 
-   * @param site
-   *          the site
-   * @return a membership tree
-   */
-  private MembershipTree getMembershipTree(Node site) {
-    Map<GroupKey, Membership> groups = Maps.newLinkedHashMap();
-    Map<UserKey, Membership> users = Maps.newLinkedHashMap();
     try {
-      Session session = site.getSession();
-      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
-      if (site.hasProperty(SiteService.AUTHORIZABLE)) {
-        Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
-        for (Value v : values) {
-          String id = v.getString();
-          Authorizable a = userManager.getAuthorizable(id);
-          if (a instanceof Group) {
-            // FIXME: a is never a Group Key (bug?)
-            if (!groups.containsKey(a)) {
-              groups.put(new GroupKey((Group) a), new Membership(null, a));
-              populateMembers((Group) a, groups, users, session);
-            }
-          } else if (a instanceof User) {
-            // FIXME: a is never a User Key (bug?)
-            if (!users.containsKey(a)) {
-              String profilePath = PersonalUtils.getProfilePath(a);
-              Node profileNode = null;
-              try {
-                profileNode = (Node) session.getItem(profilePath);
-              } catch ( PathNotFoundException e ) {
-                LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-              }
-              users.put(new UserKey((User) a, profileNode), new Membership(null, a));
-            }
-          } else if (a == null) {
-            // if a is null
-            LOGGER.warn("Authorizable could not be resolved from id: {}", id);
-          } else {
-            // if a is not one of the known types
-            LOGGER.warn("Cannot handle Authorizable {} of type {}", a,  a
-                .getClass());
-          }
-        }
-
-        // might want to cache the unsorted lists at this point, although they are already
-        // cached by JCR.
-      } else {
-        LOGGER.info(
-            "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
-                .getPath(), SiteService.AUTHORIZABLE);
-      }
+      return getIndexedMembers(site).getUserCount();
     } catch (RepositoryException ex) {
       // dont change this warn into {} form, doing so will prevent the exception being displayed.
-      LOGGER.warn("Failed to build membership Tree for  site ["+site+"] ", ex);
+      LOGGER.warn("Failed to count the members of site ["+site+"] ", ex);
     }
-    return new MembershipTree(groups, users);
+    return 0;
   }
 
   /**
@@ -685,50 +684,6 @@ public class SiteServiceImpl implements SiteService {
     return comparitors[0];
   }
 
-  /**
-   * Recursively build a list of groups for the group avoiding duplicates or infinite
-   * recursion.
-   * 
-   * @param group
-   *          the group for which we want to know all members.
-   * @param groups
-   *          the groups associated with the site.
-   * @param users
-   *          the users associated with the sites, extracted from groups
-   * @param session
-   *          the session to grab the profile node for users.
-   * @throws RepositoryException
-   */
-  private void populateMembers(Group group, Map<GroupKey, Membership> groups,
-      Map<UserKey, Membership> users, Session session) throws RepositoryException {
-    for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
-      Authorizable a = igm.next();
-      // FIXME: a is not a GroupKey, so this can never be true (Bug?)
-      if (!groups.containsKey(a)) {
-        if (a instanceof Group) {
-          groups.put(new GroupKey((Group) a), new Membership(group, a));
-          populateMembers((Group) a, groups, users, session);
-        } else {
-          String profilePath = PersonalUtils.getProfilePath(a);
-          Node profileNode = null;
-          try {
-            profileNode = (Node) session.getItem(profilePath);
-          } catch ( PathNotFoundException e ) {
-            LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-          }
-          LOGGER.info("Populate Members adding profile {} {} ",profileNode,profilePath);
-          users.put(new UserKey((User) a, profileNode), new Membership(group, a));
-        }
-      }
-      if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
-        LOGGER
-            .warn("Large site listing, please consider using dynamic membership rather than explicit members groups parent Group {} "
-                + group.getID());
-        return;
-      }
-    }
-  }
-
   /**
    * {@inheritDoc}
    * 
@@ -841,6 +796,26 @@ public class SiteServiceImpl implements SiteService {
     return null;
   }
 
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(EventConstants.EVENT_TOPIC, SiteMembershipIndex.TOPICS);
+    membershipIndexRegistration = componentContext.getBundleContext().registerService(
+        EventHandler.class.getName(), membershipIndex, props);
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (membershipIndexRegistration != null) {
+      membershipIndexRegistration.unregister();
+      membershipIndexRegistration = null;
+    }
+    synchronized (indexSessionLock) {
+      if (indexSession != null) {
+        indexSession.logout();
+        indexSession = null;
+      }
+    }
+  }
+
   protected void bindSlingRepository(SlingRepository slingRepository) {
     this.slingRepository = slingRepository;
   }
@@ -27,6 +27,7 @@ import javax.jcr.query.Row;
  *                description="Formatter for user search results"
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="sakai.search.processor" value="Site"
+ * @scr.property name="sakai.search.cacheable" value="true" type="Boolean"
  * @scr.property name="sakai.seach.resourcetype" value="sakai/site"
  * @scr.service interface="org.sakaiproject.nakamura.api.search.SearchResultProcessor"
  */
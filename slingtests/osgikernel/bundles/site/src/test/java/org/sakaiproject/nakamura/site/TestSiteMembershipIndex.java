@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.api.site.SiteService.SiteEvent;
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+public class TestSiteMembershipIndex {
+
+  private static final String SITE_PATH = "/sites/physics";
+
+  private SiteMembershipIndex index;
+  private Node site;
+  private Session session;
+  private UserManager userManager;
+  private Group group;
+
+  @Before
+  public void setUp() throws RepositoryException {
+    index = new SiteMembershipIndex();
+    session = mock(Session.class);
+    userManager = mock(UserManager.class);
+
+    group = mock(Group.class);
+    when(group.getID()).thenReturn("physics-students");
+    when(userManager.getAuthorizable("physics-students")).thenReturn(group);
+    setMembers(group, createUser("bob", "Bob", "Zeta"), createUser("alice", "Alice",
+        "Young"), createUser("carol", "Carol", "Xu"));
+
+    Value value = mock(Value.class);
+    when(value.getString()).thenReturn("physics-students");
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    when(definition.isMultiple()).thenReturn(true);
+    Property property = mock(Property.class);
+    when(property.getDefinition()).thenReturn(definition);
+    when(property.getValues()).thenReturn(new Value[] { value });
+    site = mock(Node.class);
+    when(site.getPath()).thenReturn(SITE_PATH);
+    when(site.hasProperty(SiteService.AUTHORIZABLE)).thenReturn(true);
+    when(site.getProperty(SiteService.AUTHORIZABLE)).thenReturn(property);
+  }
+
+  @Test
+  public void testPaging() throws RepositoryException {
+    SiteMembers members = index.getMembers(site, session, userManager);
+    assertEquals(3, members.getUserCount());
+    assertEquals(1, members.getGroupCount());
+    // Counting does not need any of the profiles.
+    verify(session, never()).getItem(anyString());
+    assertEquals(Arrays.asList("bob", "alice", "carol"), members.getUserIds(0, 10, null,
+        session, userManager));
+    assertEquals(Arrays.asList("alice", "bob"), members.getUserIds(0, 2,
+        sort(SortField.id, SortOrder.asc), session, userManager));
+    verify(session, never()).getItem(anyString());
+    assertEquals(Arrays.asList("carol"), members.getUserIds(2, 2,
+        sort(SortField.firstName, SortOrder.asc), session, userManager));
+    assertEquals(Arrays.asList("bob", "alice", "carol"), members.getUserIds(0, 10,
+        sort(SortField.lastName, SortOrder.desc), session, userManager));
+  }
+
+  @Test
+  public void testJoinAndLeave() throws RepositoryException {
+    SiteMembers members = index.getMembers(site, session, userManager);
+    assertEquals(3, members.getUserCount());
+
+    // dave joins the group, only dave is looked up again.
+    User dave = createUser("dave", "Dave", "Able");
+    when(dave.declaredMemberOf()).thenReturn(groups(group));
+    index.handleEvent(createSiteEvent(SiteEvent.joinedSite, "dave"));
+    members = index.getMembers(site, session, userManager);
+    assertEquals(4, members.getUserCount());
+    assertEquals(Arrays.asList("dave", "carol"), members.getUserIds(0, 2,
+        sort(SortField.lastName, SortOrder.asc), session, userManager));
+
+    // bob leaves.
+    User bob = (User) userManager.getAuthorizable("bob");
+    when(bob.declaredMemberOf()).thenReturn(groups());
+    index.handleEvent(createAuthorizableEvent(Operation.part, "physics-students", bob));
+    members = index.getMembers(site, session, userManager);
+    assertEquals(3, members.getUserCount());
+    assertEquals(Arrays.asList("alice", "carol", "dave"), members.getUserIds(0, 10,
+        sort(SortField.id, SortOrder.asc), session, userManager));
+  }
+
+  @Test
+  public void testSiteChanged() throws RepositoryException {
+    index.getMembers(site, session, userManager);
+    index.handleEvent(createResourceEvent("CHANGED", SITE_PATH + "/pages"));
+    assertEquals(1, index.size());
+    index.handleEvent(createResourceEvent("CHANGED", SITE_PATH));
+    assertEquals(0, index.size());
+
+    index.getMembers(site, session, userManager);
+    index.handleEvent(createResourceEvent("REMOVED", "/sites"));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testGroupChanged() throws RepositoryException {
+    index.getMembers(site, session, userManager);
+    // A group joining the site group can bring in any number of users.
+    index.handleEvent(createAuthorizableEvent(Operation.join, "physics-students", null));
+    assertEquals(0, index.size());
+
+    index.getMembers(site, session, userManager);
+    index.handleEvent(createAuthorizableEvent(Operation.create, "someone-else", null));
+    assertEquals(1, index.size());
+  }
+
+  private User createUser(String id, String firstName, String lastName)
+      throws RepositoryException {
+    User user = mock(User.class);
+    when(user.getID()).thenReturn(id);
+    Value path = mock(Value.class);
+    when(path.getString()).thenReturn("/" + id.substring(0, 1) + "/" + id);
+    when(user.hasProperty("path")).thenReturn(true);
+    when(user.getProperty("path")).thenReturn(new Value[] { path });
+    Value first = mock(Value.class);
+    when(first.getString()).thenReturn(firstName);
+    when(user.hasProperty("firstName")).thenReturn(true);
+    when(user.getProperty("firstName")).thenReturn(new Value[] { first });
+    Value last = mock(Value.class);
+    when(last.getString()).thenReturn(lastName);
+    when(user.hasProperty("lastName")).thenReturn(true);
+    when(user.getProperty("lastName")).thenReturn(new Value[] { last });
+    when(userManager.getAuthorizable(id)).thenReturn(user);
+    return user;
+  }
+
+  private Sort[] sort(SortField field, SortOrder order) {
+    return new Sort[] { new Sort(field, order) };
+  }
+
+  private void setMembers(Group g, Authorizable... members) throws RepositoryException {
+    List<Authorizable> list = new ArrayList<Authorizable>(Arrays.asList(members));
+    when(g.getDeclaredMembers()).thenReturn(list.iterator());
+  }
+
+  private Iterator<Group> groups(Group... groups) {
+    return Arrays.asList(groups).iterator();
+  }
+
+  private Event createSiteEvent(SiteEvent siteEvent, String user) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SiteEvent.SITE, SITE_PATH);
+    props.put(SiteEvent.USER, user);
+    props.put(SiteEvent.GROUP, group);
+    return new Event(siteEvent.getTopic(), props);
+  }
+
+  private Event createAuthorizableEvent(Operation operation, String principal,
+      Authorizable user) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(AuthorizableEvent.OPERATION, operation);
+    props.put(AuthorizableEvent.PRINCIPAL_NAME, principal);
+    if (user != null) {
+      props.put(AuthorizableEvent.USER, user);
+    }
+    return new Event(operation.getTopic(), props);
+  }
+
+  private Event createResourceEvent(String type, String path) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", path);
+    return new Event("org/apache/sling/api/resource/Resource/" + type, props);
+  }
+}
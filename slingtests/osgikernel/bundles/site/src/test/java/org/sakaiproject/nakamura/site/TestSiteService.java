@@ -15,7 +15,6 @@ import org.apache.sling.jcr.api.SlingRepository;
 import org.easymock.EasyMock;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.site.SiteService;
-import org.sakaiproject.nakamura.api.site.SortField;
 import org.sakaiproject.nakamura.site.SiteServiceImpl;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.util.PathUtils;
@@ -26,7 +25,6 @@ import java.util.Iterator;
 import java.util.Set;
 
 import javax.jcr.Node;
-import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 
@@ -35,32 +33,10 @@ public class TestSiteService extends AbstractEasyMockTest {
   @Test
   public void testNoDuplicateMembers() throws RepositoryException {
     UserManager userManager = createMock(UserManager.class);
-    SlingRepository slingRepository = createMock(SlingRepository.class);
-    SiteServiceImpl siteService = new SiteServiceImpl();
-    siteService.bindSlingRepository(slingRepository);
-    Node siteNode = createMock(Node.class);
-    JackrabbitSession session = createMock(JackrabbitSession.class);
-    expect(siteNode.getSession()).andReturn(session).anyTimes();
-    expect(session.getUserManager()).andReturn(userManager);
-    Node profileNode = createMock(Node.class);
-    expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(profileNode).anyTimes();
-    expect(profileNode.hasProperty(SortField.firstName.toString())).andReturn(true).anyTimes();
-    expect(profileNode.hasProperty(SortField.lastName.toString())).andReturn(true).anyTimes();
-    Property prop = createMock(Property.class);
-    expect(prop.getString()).andReturn("bob").anyTimes();
-    expect(profileNode.getProperty(SortField.firstName.toString())).andReturn(prop).anyTimes();
-    expect(profileNode.getProperty(SortField.lastName.toString())).andReturn(prop).anyTimes();
-    addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] { new MockValue("group1"),
-        new MockValue("group2") });
-
-    Group group1 = createMock(Group.class);
-    Group group2 = createMock(Group.class);
-    expect(userManager.getAuthorizable("group1")).andReturn(group1);
-    expect(userManager.getAuthorizable("group2")).andReturn(group2);
-    expect(group1.getDeclaredMembers()).andReturn(createUserIterator("admin"));
-    expect(group1.getID()).andReturn("group1").anyTimes();
-    expect(group2.getDeclaredMembers()).andReturn(createUserIterator("admin"));
-    expect(group2.getID()).andReturn("group2").anyTimes();
+    SiteServiceImpl siteService = createSiteService(userManager);
+    Node siteNode = createSiteNode(userManager);
+    // The users on the page are looked up with the session of the caller.
+    expect(userManager.getAuthorizable("admin")).andReturn(createUser("admin"));
 
     replay();
     AbstractCollection<User> users = siteService.getMembers(siteNode, 0, 3, null); 
@@ -76,20 +52,62 @@ public class TestSiteService extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testMembersFilteredByCaller() throws RepositoryException {
+    UserManager userManager = createMock(UserManager.class);
+    SiteServiceImpl siteService = createSiteService(userManager);
+    Node siteNode = createSiteNode(userManager);
+    // The caller can not see the member, the index still holds it.
+    expect(userManager.getAuthorizable("admin")).andReturn(null);
+
+    replay();
+    AbstractCollection<User> users = siteService.getMembers(siteNode, 0, 3, null);
+    assertFalse(users.iterator().hasNext());
+    // the count comes from the index, without logging in again.
+    assertEquals(1, siteService.getMemberCount(siteNode));
+    verify();
+  }
+
+  /**
+   * A site service whose index is filled with an administrative session that can see two
+   * groups, both holding the admin user. The session is opened once and kept.
+   */
+  private SiteServiceImpl createSiteService(UserManager userManager)
+      throws RepositoryException {
+    UserManager adminUserManager = createMock(UserManager.class);
+    JackrabbitSession adminSession = createMock(JackrabbitSession.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession);
+    expect(adminSession.isLive()).andReturn(true).anyTimes();
+    expect(adminSession.getUserManager()).andReturn(adminUserManager).anyTimes();
+
+    Group group1 = createMock(Group.class);
+    Group group2 = createMock(Group.class);
+    expect(adminUserManager.getAuthorizable("group1")).andReturn(group1);
+    expect(adminUserManager.getAuthorizable("group2")).andReturn(group2);
+    expect(group1.getDeclaredMembers()).andReturn(createUserIterator("admin"));
+    expect(group1.getID()).andReturn("group1").anyTimes();
+    expect(group2.getDeclaredMembers()).andReturn(createUserIterator("admin"));
+    expect(group2.getID()).andReturn("group2").anyTimes();
+
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.bindSlingRepository(slingRepository);
+    return siteService;
+  }
+
+  private Node createSiteNode(UserManager userManager) throws RepositoryException {
+    Node siteNode = createMock(Node.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(siteNode.getSession()).andReturn(session).anyTimes();
+    expect(siteNode.getPath()).andReturn("/sites/physics").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] {
+        new MockValue("group1"), new MockValue("group2") });
+    return siteNode;
+  }
+
   private Iterator<Authorizable> createUserIterator(String userName) throws RepositoryException {
-    final User mockUser = createMock(User.class);
-    expect(mockUser.getID()).andReturn(userName).anyTimes();
-    expect(mockUser.isGroup()).andReturn(false).anyTimes();
-    ItemBasedPrincipal p = EasyMock.createMock(ItemBasedPrincipal.class);
-    String hashedPath = "/"+userName.substring(0,1)+"/"+userName.substring(0,2)+"/"+userName;
-    expect(p.getPath()).andReturn("rep:" + hashedPath).anyTimes();
-    expect(mockUser.getPrincipal()).andReturn(p).anyTimes();
-    expect(mockUser.hasProperty("path")).andReturn(true).anyTimes();
-    Value v = EasyMock.createNiceMock(Value.class);
-    expect(v.getString()).andReturn(hashedPath).anyTimes();
-    expect(mockUser.getProperty("path")).andReturn(new Value[] { v }).anyTimes();
-    EasyMock.replay(p);
-    EasyMock.replay(v);
+    final User mockUser = createUser(userName);
     return new Iterator<Authorizable>() {
 
       boolean had = false;
@@ -108,4 +126,21 @@ public class TestSiteService extends AbstractEasyMockTest {
 
     };
   }
+
+  private User createUser(String userName) throws RepositoryException {
+    User mockUser = createMock(User.class);
+    expect(mockUser.getID()).andReturn(userName).anyTimes();
+    expect(mockUser.isGroup()).andReturn(false).anyTimes();
+    ItemBasedPrincipal p = EasyMock.createMock(ItemBasedPrincipal.class);
+    String hashedPath = "/"+userName.substring(0,1)+"/"+userName.substring(0,2)+"/"+userName;
+    expect(p.getPath()).andReturn("rep:" + hashedPath).anyTimes();
+    expect(mockUser.getPrincipal()).andReturn(p).anyTimes();
+    expect(mockUser.hasProperty("path")).andReturn(true).anyTimes();
+    Value v = EasyMock.createNiceMock(Value.class);
+    expect(v.getString()).andReturn(hashedPath).anyTimes();
+    expect(mockUser.getProperty("path")).andReturn(new Value[] { v }).anyTimes();
+    EasyMock.replay(p);
+    EasyMock.replay(v);
+    return mockUser;
+  }
 }
@@ -288,6 +288,8 @@ public class TokenStore {
     this.serverId = serverId;
     this.ttl = ttl;
     this.cacheManager = cacheManager;
+    cacheManager.registerClassLoader(this.getClass().getName(), this.getClass()
+        .getClassLoader());
     getActiveToken();
   }
 
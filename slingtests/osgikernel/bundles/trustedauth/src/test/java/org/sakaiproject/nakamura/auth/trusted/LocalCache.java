@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.auth.trusted;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheLoader;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -93,5 +94,65 @@ public class LocalCache<T>  implements Cache<Object> {
     return m.put(key, (T) payload);
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putQuiet(java.lang.String, java.lang.Object)
+   */
+  public void putQuiet(String key, Object payload) {
+    put(key, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#putIfAbsent(java.lang.String, java.lang.Object)
+   */
+  public Object putIfAbsent(String key, Object payload) {
+    Object existing = m.get(key);
+    if (existing == null) {
+      put(key, payload);
+    }
+    return existing;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#replace(java.lang.String, java.lang.Object, java.lang.Object)
+   */
+  public boolean replace(String key, Object expected, Object payload) {
+    Object current = m.get(key);
+    if (current == null || !current.equals(expected)) {
+      return false;
+    }
+    put(key, payload);
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String, java.lang.Object)
+   */
+  public boolean remove(String key, Object expected) {
+    Object current = m.get(key);
+    if (current == null || !current.equals(expected)) {
+      return false;
+    }
+    m.remove(key);
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#getOrCompute(java.lang.String, org.sakaiproject.nakamura.api.memory.CacheLoader)
+   */
+  public Object getOrCompute(String key, CacheLoader<Object> loader) {
+    Object value = m.get(key);
+    if (value == null) {
+      value = loader.load(key);
+      if (value != null) {
+        put(key, value);
+      }
+    }
+    return value;
+  }
 
 }
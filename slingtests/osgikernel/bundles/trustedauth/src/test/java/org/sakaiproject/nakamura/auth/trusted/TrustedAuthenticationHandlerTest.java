@@ -64,6 +64,8 @@ public class TrustedAuthenticationHandlerTest {
 
     Cache<Object> cache = new LocalCache<Object>();
     EasyMock.expect(cacheManagerService.getCache(TokenStore.class.getName(), CacheScope.CLUSTERREPLICATED)).andReturn(cache).anyTimes();
+    cacheManagerService.registerClassLoader(EasyMock.eq(TokenStore.class.getName()), (ClassLoader) EasyMock.anyObject());
+    EasyMock.expectLastCall().anyTimes();
     EasyMock.expect(clusterTrackingService.getCurrentServerId()).andReturn("serverID").anyTimes();
     trustedTokenService.clusterTrackingService = clusterTrackingService;
     trustedTokenService.cacheManager = cacheManagerService;
@@ -19,7 +19,7 @@ package org.sakaiproject.nakamura.user.owner;
 
 import static org.sakaiproject.nakamura.api.user.UserConstants.JCR_CREATED_BY;
 
-import org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager;
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.CacheableDynamicPrincipalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,13 +42,18 @@ import javax.jcr.RepositoryException;
  * @scr.property name="service.vendor" value="The Sakai Foundation"
  * @scr.property name="service.description" value="Owner Principal Manager Implementation"
  */
-public class OwnerPrincipalManagerImpl implements DynamicPrincipalManager {
+public class OwnerPrincipalManagerImpl implements CacheableDynamicPrincipalManager {
 
   /**
    *
    */
   private static Logger LOG = LoggerFactory.getLogger(OwnerPrincipalManagerImpl.class);
 
+  /**
+   * jcr:createdBy is protected and never changes once set, so ownership can be reused.
+   */
+  private static final long OWNER_CACHE_TTL = 300000L;
+
   public boolean hasPrincipalInContext(String principalName, Node aclNode, Node contextNode, String userId) {
     try {
       if ( userId == null ) {
@@ -76,6 +81,15 @@ public class OwnerPrincipalManagerImpl implements DynamicPrincipalManager {
     return false;
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.apache.sling.jcr.jackrabbit.server.security.dynamic.CacheableDynamicPrincipalManager#getCacheTtl(java.lang.String)
+   */
+  public long getCacheTtl(String principalName) {
+    // other principals are answered without touching the repository.
+    return "owner".equals(principalName) ? OWNER_CACHE_TTL : 0;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager#getMembersOf(java.lang.String)
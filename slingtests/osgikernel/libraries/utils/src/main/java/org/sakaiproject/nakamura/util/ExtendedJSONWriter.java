@@ -85,11 +85,11 @@ public class ExtendedJSONWriter extends JSONWriter {
         Value[] values = prop.getValues();
         write.array();
         for (Value value : values) {
-          write.value(stringValue(value));
+          writeValue(write, value);
         }
         write.endArray();
       } else {
-        write.value(stringValue(prop.getValue()));
+        writeValue(write, prop.getValue());
       }
     }
   }
@@ -100,24 +100,33 @@ public class ExtendedJSONWriter extends JSONWriter {
     write.endObject();    
   }
 
-  private static Object stringValue(Value value) throws ValueFormatException,
-      IllegalStateException, RepositoryException {
+  /**
+   * Write a JCR value through the typed value methods of the writer, so that longs,
+   * doubles and booleans are not boxed on the way.
+   */
+  private static void writeValue(JSONWriter write, Value value) throws JSONException,
+      ValueFormatException, IllegalStateException, RepositoryException {
     switch (value.getType()) {
     case PropertyType.STRING:
     case PropertyType.NAME:
     case PropertyType.REFERENCE:
     case PropertyType.PATH:
-      return value.getString();
+      write.value(value.getString());
+      break;
     case PropertyType.BOOLEAN:
-      return value.getBoolean();
+      write.value(value.getBoolean());
+      break;
     case PropertyType.LONG:
-      return value.getLong();
+      write.value(value.getLong());
+      break;
     case PropertyType.DOUBLE:
-      return value.getDouble();     
+      write.value(value.getDouble());
+      break;
     case PropertyType.DATE:
-      return DateUtils.iso8601(value.getDate());
+      write.value(DateUtils.iso8601(value.getDate()));
+      break;
     default:
-      return value.toString();
+      write.value(value.toString());
     }
   }
 
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+/**
+ * Evaluates the permissions a session has on a path as a bitmask. The privileges of a path
+ * are read from the {@link AccessControlManager} in one call, instead of one
+ * {@link Session#checkPermission(String, String)} per action that throws when denied. The
+ * privileges of every path looked at, including the parent folders needed for
+ * {@link #REMOVE}, are remembered, so an instance should live no longer than a request.
+ */
+public class PermissionEvaluator {
+
+  /**
+   * The session can read the item, as the <code>read</code> action.
+   */
+  public static final int READ = 1;
+  /**
+   * The session can set properties on the node, as the <code>set_property</code> action.
+   */
+  public static final int SET_PROPERTY = 2;
+  /**
+   * The session can remove the node, as the <code>remove</code> action. This needs
+   * jcr:removeNode on the node and jcr:removeChildNodes on its parent.
+   */
+  public static final int REMOVE = 4;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PermissionEvaluator.class);
+  private static final int REMOVE_NODE = 8;
+  private static final int REMOVE_CHILD_NODES = 16;
+
+  private final AccessControlManager accessControlManager;
+  private final Map<String, Integer> privileges = new HashMap<String, Integer>();
+
+  /**
+   * @param session
+   *          the session to evaluate permissions for.
+   * @throws RepositoryException
+   */
+  public PermissionEvaluator(Session session) throws RepositoryException {
+    this(AccessControlUtil.getAccessControlManager(session));
+  }
+
+  /**
+   * @param accessControlManager
+   *          the access control manager of the session to evaluate permissions for.
+   */
+  public PermissionEvaluator(AccessControlManager accessControlManager) {
+    this.accessControlManager = accessControlManager;
+  }
+
+  /**
+   * @param path
+   *          the absolute path of a node.
+   * @return the permissions on the path, a combination of {@link #READ},
+   *         {@link #SET_PROPERTY} and {@link #REMOVE}.
+   */
+  public int getPermissions(String path) {
+    int bits = getPrivileges(path);
+    int permissions = bits & (READ | SET_PROPERTY);
+    if ((bits & REMOVE_NODE) != 0 && !"/".equals(path)
+        && (getPrivileges(PathUtils.getParentReference(path)) & REMOVE_CHILD_NODES) != 0) {
+      permissions |= REMOVE;
+    }
+    return permissions;
+  }
+
+  /**
+   * @param path
+   *          the absolute path of a node.
+   * @param permissions
+   *          the permissions to check, a combination of {@link #READ},
+   *          {@link #SET_PROPERTY} and {@link #REMOVE}.
+   * @return true if all the permissions are granted on the path.
+   */
+  public boolean hasPermissions(String path, int permissions) {
+    return (getPermissions(path) & permissions) == permissions;
+  }
+
+  private int getPrivileges(String path) {
+    Integer bits = privileges.get(path);
+    if (bits == null) {
+      int b = 0;
+      try {
+        for (Privilege privilege : accessControlManager.getPrivileges(path)) {
+          b |= getBits(privilege);
+        }
+      } catch (RepositoryException e) {
+        // Missing or not visible to the session, either way nothing is granted.
+        LOGGER.debug("Unable to read the privileges on {} {} ", path, e.getMessage());
+      }
+      bits = b;
+      privileges.put(path, bits);
+    }
+    return bits;
+  }
+
+  private int getBits(Privilege privilege) {
+    int bits = getBits(privilege.getName());
+    if (privilege.isAggregate()) {
+      for (Privilege p : privilege.getAggregatePrivileges()) {
+        bits |= getBits(p.getName());
+      }
+    }
+    return bits;
+  }
+
+  private int getBits(String name) {
+    if (Privilege.JCR_READ.equals(name)) {
+      return READ;
+    } else if (Privilege.JCR_MODIFY_PROPERTIES.equals(name)) {
+      return SET_PROPERTY;
+    } else if (Privilege.JCR_REMOVE_NODE.equals(name)) {
+      return REMOVE_NODE;
+    } else if (Privilege.JCR_REMOVE_CHILD_NODES.equals(name)) {
+      return REMOVE_CHILD_NODES;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,438 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A {@link JSONWriter} that writes straight into a reusable char buffer and hands it to
+ * the underlying writer a chunk at a time. Longs, doubles and booleans are written
+ * without being boxed or turned into intermediate strings, and strings are escaped into
+ * the buffer rather than through a quoted copy. The output is the same as that of
+ * {@link JSONWriter}.
+ * 
+ * The buffer is flushed when it is full and when the outermost object or array is
+ * closed, call {@link #flush()} to push out anything written in between.
+ */
+public class StreamingJSONWriter extends ExtendedJSONWriter {
+
+  private static final int BUFFER_SIZE = 8192;
+  /**
+   * The longest a single escaped character can get.
+   */
+  private static final int MAX_ESCAPE = 6;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final char[] TRUE = "true".toCharArray();
+  private static final char[] FALSE = "false".toCharArray();
+  private static final char[] NULL = "null".toCharArray();
+  /**
+   * A buffer per thread that is lent to one writer at a time.
+   */
+  private static final ThreadLocal<char[]> BUFFERS = new ThreadLocal<char[]>();
+
+  private static final char OBJECT = 'o';
+  private static final char KEY = 'k';
+  private static final char ARRAY = 'a';
+
+  private final Writer out;
+  private char[] buf;
+  private int len;
+  private char[] stack = new char[16];
+  private int top;
+  private boolean comma;
+  private boolean done;
+
+  public StreamingJSONWriter(Writer w) {
+    super(w);
+    this.out = w;
+    buf = BUFFERS.get();
+    if (buf == null) {
+      buf = new char[BUFFER_SIZE];
+    } else {
+      BUFFERS.set(null);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#object()
+   */
+  @Override
+  public JSONWriter object() throws JSONException {
+    beforeValue();
+    push(OBJECT);
+    append('{');
+    comma = false;
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#endObject()
+   */
+  @Override
+  public JSONWriter endObject() throws JSONException {
+    if (top == 0 || stack[top - 1] != OBJECT) {
+      throw new JSONException("Misplaced endObject.");
+    }
+    top--;
+    append('}');
+    afterValue();
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#array()
+   */
+  @Override
+  public JSONWriter array() throws JSONException {
+    beforeValue();
+    push(ARRAY);
+    append('[');
+    comma = false;
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#endArray()
+   */
+  @Override
+  public JSONWriter endArray() throws JSONException {
+    if (top == 0 || stack[top - 1] != ARRAY) {
+      throw new JSONException("Misplaced endArray.");
+    }
+    top--;
+    append(']');
+    afterValue();
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#key(java.lang.String)
+   */
+  @Override
+  public JSONWriter key(String s) throws JSONException {
+    if (s == null) {
+      throw new JSONException("Null key.");
+    }
+    if (top == 0 || stack[top - 1] != OBJECT) {
+      throw new JSONException("Misplaced key.");
+    }
+    if (comma) {
+      append(',');
+    }
+    quote(s);
+    append(':');
+    stack[top - 1] = KEY;
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#value(boolean)
+   */
+  @Override
+  public JSONWriter value(boolean b) throws JSONException {
+    beforeValue();
+    append(b ? TRUE : FALSE);
+    afterValue();
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#value(long)
+   */
+  @Override
+  public JSONWriter value(long l) throws JSONException {
+    beforeValue();
+    appendLong(l);
+    afterValue();
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#value(double)
+   */
+  @Override
+  public JSONWriter value(double d) throws JSONException {
+    if (Double.isNaN(d) || Double.isInfinite(d)) {
+      throw new JSONException("JSON does not allow non-finite numbers.");
+    }
+    beforeValue();
+    // Whole numbers print without a fraction, the same as JSONObject.numberToString.
+    if (d == (long) d && Math.abs(d) < 1e7 && (d != 0 || 1 / d > 0)) {
+      appendLong((long) d);
+    } else {
+      appendNumber(Double.toString(d));
+    }
+    afterValue();
+    return this;
+  }
+
+  /**
+   * {@inheritDoc} Strings, whole numbers, doubles, booleans and null are written straight
+   * into the buffer. Anything else goes through {@link JSONObject#valueToString(Object)},
+   * the same conversion {@link JSONWriter} uses, so a Map, Collection or array is written
+   * as its quoted toString and not as a JSON object or array.
+   * 
+   * @see org.apache.sling.commons.json.io.JSONWriter#value(java.lang.Object)
+   */
+  @Override
+  public JSONWriter value(Object o) throws JSONException {
+    if (o instanceof String) {
+      beforeValue();
+      quote((String) o);
+      afterValue();
+    } else if (o instanceof Long || o instanceof Integer || o instanceof Short
+        || o instanceof Byte) {
+      value(((Number) o).longValue());
+    } else if (o instanceof Double) {
+      value(((Double) o).doubleValue());
+    } else if (o instanceof Boolean) {
+      value(((Boolean) o).booleanValue());
+    } else if (o == null || o.equals(null)) {
+      beforeValue();
+      append(NULL);
+      afterValue();
+    } else {
+      String json = JSONObject.valueToString(o);
+      beforeValue();
+      append(json);
+      afterValue();
+    }
+    return this;
+  }
+
+  /**
+   * Write out anything that is buffered to the underlying writer.
+   * 
+   * @throws JSONException
+   *           if the underlying writer fails.
+   */
+  public void flush() throws JSONException {
+    if (buf == null || len == 0) {
+      return;
+    }
+    try {
+      out.write(buf, 0, len);
+      len = 0;
+    } catch (IOException e) {
+      throw new JSONException(e);
+    }
+  }
+
+  private void beforeValue() throws JSONException {
+    if (top == 0) {
+      if (done) {
+        throw new JSONException("Value out of sequence.");
+      }
+      return;
+    }
+    char mode = stack[top - 1];
+    if (mode == ARRAY) {
+      if (comma) {
+        append(',');
+      }
+    } else if (mode != KEY) {
+      throw new JSONException("Value out of sequence.");
+    }
+  }
+
+  private void afterValue() throws JSONException {
+    if (top == 0) {
+      // The outermost value is complete, send it and give the buffer back.
+      done = true;
+      flush();
+      BUFFERS.set(buf);
+      buf = null;
+      return;
+    }
+    if (stack[top - 1] == KEY) {
+      stack[top - 1] = OBJECT;
+    }
+    comma = true;
+  }
+
+  private void push(char mode) {
+    if (top == stack.length) {
+      char[] grown = new char[stack.length * 2];
+      System.arraycopy(stack, 0, grown, 0, top);
+      stack = grown;
+    }
+    stack[top++] = mode;
+  }
+
+  private void append(char c) throws JSONException {
+    if (len == buf.length) {
+      flush();
+    }
+    buf[len++] = c;
+  }
+
+  private void append(char[] chars) throws JSONException {
+    if (len + chars.length > buf.length) {
+      flush();
+    }
+    System.arraycopy(chars, 0, buf, len, chars.length);
+    len += chars.length;
+  }
+
+  private void append(String s) throws JSONException {
+    int n = s.length();
+    int start = 0;
+    while (start < n) {
+      if (len == buf.length) {
+        flush();
+      }
+      int count = Math.min(n - start, buf.length - len);
+      s.getChars(start, start + count, buf, len);
+      len += count;
+      start += count;
+    }
+  }
+
+  /**
+   * Writes the digits of a long into the buffer from the back.
+   */
+  private void appendLong(long l) throws JSONException {
+    if (l == Long.MIN_VALUE) {
+      append(Long.toString(l));
+      return;
+    }
+    if (len + 20 > buf.length) {
+      flush();
+    }
+    boolean negative = l < 0;
+    if (negative) {
+      l = -l;
+    }
+    int digits = 1;
+    for (long v = l; v >= 10; v /= 10) {
+      digits++;
+    }
+    if (negative) {
+      buf[len++] = '-';
+    }
+    int end = len + digits;
+    for (int i = end - 1; i >= len; i--) {
+      buf[i] = (char) ('0' + (l % 10));
+      l /= 10;
+    }
+    len = end;
+  }
+
+  /**
+   * Writes a number, dropping trailing zeros of the fraction as
+   * JSONObject.numberToString does.
+   */
+  private void appendNumber(String s) throws JSONException {
+    if (s.indexOf('.') > 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+      int end = s.length();
+      while (s.charAt(end - 1) == '0') {
+        end--;
+      }
+      if (s.charAt(end - 1) == '.') {
+        end--;
+      }
+      s = s.substring(0, end);
+    }
+    append(s);
+  }
+
+  /**
+   * Writes a quoted and escaped string into the buffer, escaping the same characters as
+   * JSONObject.quote.
+   */
+  private void quote(String s) throws JSONException {
+    append('"');
+    int n = s.length();
+    int limit = buf.length - MAX_ESCAPE;
+    char b;
+    char c = 0;
+    for (int i = 0; i < n; i++) {
+      if (len > limit) {
+        flush();
+      }
+      b = c;
+      c = s.charAt(i);
+      switch (c) {
+      case '\\':
+      case '"':
+        buf[len++] = '\\';
+        buf[len++] = c;
+        break;
+      case '/':
+        if (b == '<') {
+          buf[len++] = '\\';
+        }
+        buf[len++] = c;
+        break;
+      case '\b':
+        buf[len++] = '\\';
+        buf[len++] = 'b';
+        break;
+      case '\t':
+        buf[len++] = '\\';
+        buf[len++] = 't';
+        break;
+      case '\n':
+        buf[len++] = '\\';
+        buf[len++] = 'n';
+        break;
+      case '\f':
+        buf[len++] = '\\';
+        buf[len++] = 'f';
+        break;
+      case '\r':
+        buf[len++] = '\\';
+        buf[len++] = 'r';
+        break;
+      default:
+        if (c < ' ') {
+          buf[len++] = '\\';
+          buf[len++] = 'u';
+          buf[len++] = HEX[(c >> 12) & 0xf];
+          buf[len++] = HEX[(c >> 8) & 0xf];
+          buf[len++] = HEX[(c >> 4) & 0xf];
+          buf[len++] = HEX[c & 0xf];
+        } else {
+          buf[len++] = c;
+        }
+      }
+    }
+    append('"');
+  }
+}
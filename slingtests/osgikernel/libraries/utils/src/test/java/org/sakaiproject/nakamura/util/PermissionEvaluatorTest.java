@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+public class PermissionEvaluatorTest {
+
+  @Test
+  public void testPermissions() throws RepositoryException {
+    AccessControlManager acm = createMock(AccessControlManager.class);
+    Privilege read = createPrivilege(Privilege.JCR_READ);
+    Privilege removeNode = createPrivilege(Privilege.JCR_REMOVE_NODE);
+    Privilege removeChildNodes = createPrivilege(Privilege.JCR_REMOVE_CHILD_NODES);
+    Privilege modifyProperties = createPrivilege(Privilege.JCR_MODIFY_PROPERTIES);
+    Privilege write = createMock(Privilege.class);
+    expect(write.getName()).andReturn(Privilege.JCR_WRITE).anyTimes();
+    expect(write.isAggregate()).andReturn(true).anyTimes();
+    expect(write.getAggregatePrivileges()).andReturn(
+        new Privilege[] { modifyProperties, removeNode, removeChildNodes }).anyTimes();
+
+    // Every path is only asked for once, the parent is shared by both files.
+    expect(acm.getPrivileges("/files/a")).andReturn(new Privilege[] { read, write });
+    expect(acm.getPrivileges("/files/b")).andReturn(new Privilege[] { read, removeNode });
+    expect(acm.getPrivileges("/files")).andReturn(new Privilege[] { read, removeChildNodes });
+    expect(acm.getPrivileges("/private")).andThrow(new PathNotFoundException());
+    replay(acm, read, removeNode, removeChildNodes, modifyProperties, write);
+
+    PermissionEvaluator evaluator = new PermissionEvaluator(acm);
+    assertEquals(PermissionEvaluator.READ | PermissionEvaluator.SET_PROPERTY
+        | PermissionEvaluator.REMOVE, evaluator.getPermissions("/files/a"));
+    assertEquals(PermissionEvaluator.READ | PermissionEvaluator.REMOVE, evaluator
+        .getPermissions("/files/b"));
+    assertTrue(evaluator.hasPermissions("/files/a", PermissionEvaluator.SET_PROPERTY));
+    assertFalse(evaluator.hasPermissions("/files/b", PermissionEvaluator.READ
+        | PermissionEvaluator.SET_PROPERTY));
+    assertEquals(PermissionEvaluator.READ, evaluator.getPermissions("/files"));
+    assertEquals(0, evaluator.getPermissions("/private"));
+    assertEquals(0, evaluator.getPermissions("/private"));
+    verify(acm);
+  }
+
+  private Privilege createPrivilege(String name) {
+    Privilege privilege = createMock(Privilege.class);
+    expect(privilege.getName()).andReturn(name).anyTimes();
+    expect(privilege.isAggregate()).andReturn(false).anyTimes();
+    return privilege;
+  }
+}
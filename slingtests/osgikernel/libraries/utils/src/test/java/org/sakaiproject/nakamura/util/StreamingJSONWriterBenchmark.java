@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+/**
+ * Compares writing a page of 1,000 result nodes with {@link ExtendedJSONWriter} against
+ * {@link StreamingJSONWriter}. The nodes carry a mix of string, long, double, boolean,
+ * date and multi valued properties. Not run as part of the unit tests, run the main
+ * method by hand.
+ */
+public class StreamingJSONWriterBenchmark {
+
+  private static final int NODES = 1000;
+  private static final int PAGES = 200;
+
+  public static void main(String[] args) throws Exception {
+    Node[] page = new Node[NODES];
+    for (int i = 0; i < NODES; i++) {
+      page[i] = createNode(i);
+    }
+
+    StringWriter extended = new StringWriter();
+    writePage(new ExtendedJSONWriter(extended), page);
+    StringWriter streaming = new StringWriter();
+    writePage(new StreamingJSONWriter(streaming), page);
+    if (!extended.toString().equals(streaming.toString())) {
+      throw new IllegalStateException("The writers do not produce the same output");
+    }
+
+    for (int round = 0; round < 3; round++) {
+      CountingWriter out = new CountingWriter();
+      long t0 = System.nanoTime();
+      for (int n = 0; n < PAGES; n++) {
+        writePage(new ExtendedJSONWriter(out), page);
+      }
+      long ext = System.nanoTime() - t0;
+      t0 = System.nanoTime();
+      for (int n = 0; n < PAGES; n++) {
+        writePage(new StreamingJSONWriter(out), page);
+      }
+      long str = System.nanoTime() - t0;
+      System.out.println("round " + round + ": ExtendedJSONWriter " + (ext / PAGES / 1000)
+          + " us/page, StreamingJSONWriter " + (str / PAGES / 1000) + " us/page ("
+          + out.count + " chars)");
+    }
+  }
+
+  private static void writePage(JSONWriter write, Node[] page) throws JSONException,
+      RepositoryException {
+    write.object();
+    write.key("items");
+    write.value(NODES);
+    write.key("results");
+    write.array();
+    for (Node node : page) {
+      ExtendedJSONWriter.writeNodeToWriter(write, node);
+    }
+    write.endArray();
+    write.endObject();
+  }
+
+  private static Node createNode(int i) {
+    final List<Property> properties = new ArrayList<Property>();
+    properties.add(property("sling:resourceType", false, value(PropertyType.STRING,
+        "sakai/page")));
+    properties.add(property("sakai:title", false, value(PropertyType.STRING,
+        "Page \"" + i + "\" of the <b>physics</b> site")));
+    properties.add(property("sakai:tags", true, value(PropertyType.STRING, "physics"),
+        value(PropertyType.STRING, "course"), value(PropertyType.STRING, "2010")));
+    properties.add(property("sakai:count", false, value(PropertyType.LONG, (long) i * 37)));
+    properties.add(property("sakai:rating", false, value(PropertyType.DOUBLE, i / 7.0)));
+    properties.add(property("sakai:public", false, value(PropertyType.BOOLEAN,
+        i % 2 == 0)));
+    Calendar created = Calendar.getInstance();
+    created.setTimeInMillis(1266511924745L + i * 1000L);
+    properties.add(property("jcr:created", false, value(PropertyType.DATE, created)));
+
+    Map<String, Object> answers = new HashMap<String, Object>();
+    answers.put("getPath", "/sites/physics/pages/page" + i);
+    answers.put("getName", "page" + i);
+    return stub(Node.class, answers, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return new ListPropertyIterator(properties);
+      }
+    });
+  }
+
+  private static Property property(String name, boolean multiple, Value... values) {
+    Map<String, Object> def = new HashMap<String, Object>();
+    def.put("isMultiple", multiple);
+    Map<String, Object> answers = new HashMap<String, Object>();
+    answers.put("getName", name);
+    answers.put("getDefinition", stub(PropertyDefinition.class, def, null));
+    answers.put("getValue", values[0]);
+    answers.put("getValues", values);
+    return stub(Property.class, answers, null);
+  }
+
+  private static Value value(int type, Object v) {
+    Map<String, Object> answers = new HashMap<String, Object>();
+    answers.put("getType", type);
+    answers.put("getString", String.valueOf(v));
+    answers.put("getLong", v);
+    answers.put("getDouble", v);
+    answers.put("getBoolean", v);
+    answers.put("getDate", v);
+    return stub(Value.class, answers, null);
+  }
+
+  /**
+   * A proxy that answers methods by name from a map, or from a handler for getProperties.
+   */
+  private static <T> T stub(Class<T> c, final Map<String, Object> answers,
+      final InvocationHandler properties) {
+    return c.cast(Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            if (properties != null && "getProperties".equals(method.getName())) {
+              return properties.invoke(proxy, method, args);
+            }
+            return answers.get(method.getName());
+          }
+        }));
+  }
+
+  private static class ListPropertyIterator implements PropertyIterator {
+    private List<Property> properties;
+    private int position;
+
+    ListPropertyIterator(List<Property> properties) {
+      this.properties = properties;
+    }
+
+    public Property nextProperty() {
+      if (position >= properties.size()) {
+        throw new NoSuchElementException();
+      }
+      return properties.get(position++);
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public long getSize() {
+      return properties.size();
+    }
+
+    public void skip(long skipNum) {
+      position += skipNum;
+    }
+
+    public boolean hasNext() {
+      return position < properties.size();
+    }
+
+    public Object next() {
+      return nextProperty();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Throws the output away, counting it.
+   */
+  private static class CountingWriter extends Writer {
+    private long count;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      count += len;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      count++;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
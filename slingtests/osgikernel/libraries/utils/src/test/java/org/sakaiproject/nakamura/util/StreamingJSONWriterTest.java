@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class StreamingJSONWriterTest {
+
+  private void write(JSONWriter w) throws JSONException {
+    w.object();
+    w.key("string");
+    w.value("quote \" slash </ \\ tab \t ctrl \u0001 latin \u0085 \u00e9 \u2028");
+    w.key("long");
+    w.value(-1234567890123L);
+    w.key("int");
+    w.value(Integer.valueOf(42));
+    w.key("doubles");
+    w.array();
+    w.value(1.5);
+    w.value(2.0);
+    w.value(-0.125);
+    w.value(1e20);
+    w.value(Double.valueOf(3.25));
+    w.value(Float.valueOf(0.1f));
+    w.endArray();
+    w.key("booleans");
+    w.array();
+    w.value(true);
+    w.value(Boolean.FALSE);
+    w.endArray();
+    w.key("null");
+    w.value(null);
+    w.key("jsonnull");
+    w.value(JSONObject.NULL);
+    w.key("empty");
+    w.object();
+    w.endObject();
+    w.key("nested");
+    w.array();
+    w.array();
+    w.endArray();
+    w.object();
+    w.key("a");
+    w.value("b");
+    w.endObject();
+    w.endArray();
+    w.endObject();
+  }
+
+  @Test
+  public void testSameOutput() throws JSONException {
+    StringWriter expected = new StringWriter();
+    write(new JSONWriter(expected));
+    StringWriter actual = new StringWriter();
+    write(new StreamingJSONWriter(actual));
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  @Test
+  public void testLongOutputIsChunked() throws JSONException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 30000; i++) {
+      sb.append(i % 10 == 0 ? '"' : 'x');
+    }
+    String big = sb.toString();
+    StringWriter out = new StringWriter();
+    StreamingJSONWriter w = new StreamingJSONWriter(out);
+    w.array();
+    for (int i = 0; i < 3; i++) {
+      w.value(big);
+    }
+    // more than a buffer has been written before the array is closed.
+    if (out.getBuffer().length() == 0) {
+      fail("Nothing was flushed while writing");
+    }
+    w.endArray();
+
+    StringWriter expected = new StringWriter();
+    JSONWriter j = new JSONWriter(expected);
+    j.array();
+    for (int i = 0; i < 3; i++) {
+      j.value(big);
+    }
+    j.endArray();
+    assertEquals(expected.toString(), out.toString());
+  }
+
+  @Test
+  public void testBufferReused() throws JSONException {
+    for (int i = 0; i < 3; i++) {
+      StringWriter out = new StringWriter();
+      StreamingJSONWriter w = new StreamingJSONWriter(out);
+      w.object();
+      w.key("i");
+      w.value(i);
+      w.endObject();
+      assertEquals("{\"i\":" + i + "}", out.toString());
+    }
+  }
+
+  @Test
+  public void testObjectValuesMatchJSONWriter() throws JSONException {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("i", 1);
+    List<Object> list = new ArrayList<Object>();
+    list.add(1);
+    list.add("a");
+    Object[] values = new Object[] { map, list, new Object[] { 1, "b" }, new int[] { 1 },
+        1.5f, 2.0f, new BigDecimal("1.50"), 'c', new StringBuilder("s\"b"),
+        new JSONObject(map), new JSONArray(list) };
+    for (Object value : values) {
+      StringWriter expected = new StringWriter();
+      new JSONWriter(expected).array().value(value).endArray();
+      StringWriter actual = new StringWriter();
+      new StreamingJSONWriter(actual).array().value(value).endArray();
+      assertEquals(expected.toString(), actual.toString());
+    }
+  }
+
+  @Test
+  public void testSequence() throws JSONException {
+    StreamingJSONWriter w = new StreamingJSONWriter(new StringWriter());
+    w.object();
+    try {
+      w.value(1);
+      fail("A value without a key should fail");
+    } catch (JSONException e) {
+      // expected
+    }
+    try {
+      w.endArray();
+      fail("Closing an array in an object should fail");
+    } catch (JSONException e) {
+      // expected
+    }
+    w.endObject();
+    try {
+      w.object();
+      fail("A second top level value should fail");
+    } catch (JSONException e) {
+      // expected
+    }
+  }
+}